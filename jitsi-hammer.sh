@@ -45,11 +45,14 @@ SC_HOME_DIR_LOCATION=$SCRIPT_DIR
 SC_HOME_DIR_NAME=.jitsi-hammer
 LOG_HOME=$SCRIPT_DIR/$SC_HOME_DIR_NAME/log
 
+# extra maven arguments, e.g. HAMMER_MAVEN_ARGS=-Pjdk21 for -virtualThreads
+MAVEN_ARGS=${HAMMER_MAVEN_ARGS:-}
+
 if $REBUILD ; then
-  mvn clean compile
+  mvn $MAVEN_ARGS clean compile
 fi
 
-exec mvn exec:java -Dexec.args="$*" \
+exec mvn $MAVEN_ARGS exec:java -Dexec.args="$*" \
   -Djavax.net.ssl.keyStore=$KEYSTORE_FILE -Djavax.net.ssl.keyStorePassword=$KEYSTORE_PWD \
   -Djavax.net.ssl.trustStore=$KEYSTORE_FILE -Djavax.net.ssl.trustStorePassword=$KEYSTORE_PWD \
   -Djava.util.logging.config.file=$SCRIPT_DIR/lib/logging.properties \
@@ -0,0 +1,329 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.benchmark;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.provider.*;
+import org.jivesoftware.smack.util.*;
+import org.openjdk.jmh.annotations.*;
+import org.xmlpull.v1.*;
+
+/**
+ * Compares the parsing of the video content of a session-initiate by the
+ * <tt>JingleElementParser</tt> with its parsing by the
+ * <tt>NewAbstractExtensionElementProvider</tt>s it replaced, which
+ * instantiate the elements by reflection and look up the provider of every
+ * child element in the <tt>ProviderManager</tt>.
+ *
+ * Run with :
+ * <pre>
+ * mvn -Pbenchmark compile exec:exec -Dexec.executable=java \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main JingleParserBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JingleParserBenchmark
+{
+    /**
+     * The namespace of the ICE-UDP transport and of its candidates.
+     */
+    private static final String ICE_UDP_NS
+        = "urn:xmpp:jingle:transports:ice-udp:1";
+
+    /**
+     * The namespace of the raw UDP transport and of its candidates.
+     */
+    private static final String RAW_UDP_NS
+        = "urn:xmpp:jingle:transports:raw-udp:1";
+
+    /**
+     * The start tag of the RTCP feedback elements.
+     */
+    private static final String RTCP_FB
+        = "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0'";
+
+    /**
+     * The video content of a session-initiate of the focus : 8 payload
+     * types, 4 sources, and an ICE-UDP transport with 8 candidates next to
+     * a raw UDP transport with 2 candidates, so that all the elements known
+     * by the <tt>JingleElementParser</tt> are parsed.
+     */
+    static final String CONTENT = createContent();
+
+    /**
+     * The provider of the content elements with reflection.
+     */
+    private NewAbstractExtensionElementProvider<NewContentPacketExtension>
+        legacyProvider;
+
+    /**
+     * The XML parser, reused by all the invocations as Smack does for the
+     * stanzas of a connection.
+     */
+    private XmlPullParser parser;
+
+    /**
+     * Register the <tt>NewAbstractExtensionElementProvider</tt>s of the
+     * elements of the Jingle extension tree, as the <tt>FakeUser</tt>s did
+     * before the <tt>JingleElementParser</tt>. The
+     * <tt>JingleElementParser</tt> does not look them up, as it knows all
+     * these elements.
+     *
+     * @throws XmlPullParserException if the XML parser cannot be created.
+     */
+    @Setup
+    public void setUp()
+        throws XmlPullParserException
+    {
+        legacyProvider = register(
+            NewContentPacketExtension.ELEMENT_NAME,
+            NewContentPacketExtension.NAMESPACE,
+            NewContentPacketExtension.class);
+        register(
+            NewRtpDescriptionPacketExtension.ELEMENT_NAME,
+            NewRtpDescriptionPacketExtension.NAMESPACE,
+            NewRtpDescriptionPacketExtension.class);
+        register(
+            NewPayloadTypePacketExtension.ELEMENT_NAME,
+            NewPayloadTypePacketExtension.NAMESPACE,
+            NewPayloadTypePacketExtension.class);
+        register(
+            NewParameterPacketExtension.ELEMENT_NAME,
+            "urn:xmpp:jingle:apps:rtp:1",
+            NewParameterPacketExtension.class);
+        register(
+            NewParameterPacketExtension.ELEMENT_NAME,
+            "urn:xmpp:jingle:apps:rtp:ssma:0",
+            NewParameterPacketExtension.class);
+        register(
+            NewRtcpFbPacketExtension.ELEMENT_NAME,
+            NewRtcpFbPacketExtension.NAMESPACE,
+            NewRtcpFbPacketExtension.class);
+        register(
+            NewRTPHdrExtPacketExtension.ELEMENT_NAME,
+            NewRTPHdrExtPacketExtension.NAMESPACE,
+            NewRTPHdrExtPacketExtension.class);
+        register(
+            NewSourcePacketExtension.ELEMENT_NAME,
+            NewSourcePacketExtension.NAMESPACE,
+            NewSourcePacketExtension.class);
+        register(
+            NewSSRCInfoPacketExtension.ELEMENT_NAME,
+            NewSSRCInfoPacketExtension.NAMESPACE,
+            NewSSRCInfoPacketExtension.class);
+        register(
+            NewIceUdpTransportPacketExtension.ELEMENT_NAME,
+            NewIceUdpTransportPacketExtension.NAMESPACE,
+            NewIceUdpTransportPacketExtension.class);
+        register(
+            NewDtlsFingerprintPacketExtension.ELEMENT_NAME,
+            NewDtlsFingerprintPacketExtension.NAMESPACE,
+            NewDtlsFingerprintPacketExtension.class);
+        register(
+            NewCandidatePacketExtension.ELEMENT_NAME,
+            ICE_UDP_NS,
+            NewCandidatePacketExtension.class);
+        register(
+            NewRawUdpTransportPacketExtension.ELEMENT_NAME,
+            NewRawUdpTransportPacketExtension.NAMESPACE,
+            NewRawUdpTransportPacketExtension.class);
+        register(
+            NewCandidatePacketExtension.ELEMENT_NAME,
+            RAW_UDP_NS,
+            NewCandidatePacketExtension.class);
+        register(
+            NewSourceGroupPacketExtension.ELEMENT_NAME,
+            NewSourceGroupPacketExtension.NAMESPACE,
+            NewSourceGroupPacketExtension.class);
+
+        parser = PacketParserUtils.newXmppParser(new StringReader(""));
+    }
+
+    /**
+     * Register a <tt>NewAbstractExtensionElementProvider</tt> in the
+     * <tt>ProviderManager</tt>.
+     *
+     * @param elementName the name of the element.
+     * @param namespace the namespace of the element.
+     * @param c the class of the element.
+     * @return the provider.
+     */
+    private static <C extends NewAbstractExtensionElement>
+        NewAbstractExtensionElementProvider<C> register(
+            String elementName,
+            String namespace,
+            Class<C> c)
+    {
+        NewAbstractExtensionElementProvider<C> provider
+            = new NewAbstractExtensionElementProvider<>(c);
+        ProviderManager.addExtensionProvider(
+            elementName, namespace, provider);
+        return provider;
+    }
+
+    /**
+     * Set the content as the input of the parser, and move the parser to
+     * its start tag.
+     *
+     * @return the parser, on the start tag of the content.
+     * @throws Exception if the content cannot be read.
+     */
+    private XmlPullParser reset()
+        throws Exception
+    {
+        parser.setInput(new StringReader(CONTENT));
+        parser.next();
+        return parser;
+    }
+
+    /**
+     * Parse the content with the
+     * <tt>NewAbstractExtensionElementProvider</tt>s.
+     *
+     * @return the parsed content.
+     * @throws Exception if the content cannot be parsed.
+     */
+    @Benchmark
+    public Element legacyProvider()
+        throws Exception
+    {
+        return legacyProvider.parse(reset(), 0);
+    }
+
+    /**
+     * Parse the content with the <tt>JingleElementParser</tt>.
+     *
+     * @return the parsed content.
+     * @throws Exception if the content cannot be parsed.
+     */
+    @Benchmark
+    public Element jingleElementParser()
+        throws Exception
+    {
+        return JingleElementParser.parseExtension(reset());
+    }
+
+    /**
+     * Parse the content without building any element, as the lower bound of
+     * the parsing.
+     *
+     * @return the number of events read.
+     * @throws Exception if the content cannot be read.
+     */
+    @Benchmark
+    public int tokenizeOnly()
+        throws Exception
+    {
+        XmlPullParser parser = reset();
+        int events = 0;
+        while (parser.next() != XmlPullParser.END_DOCUMENT)
+            events++;
+        return events;
+    }
+
+    /**
+     * Create the video content of a session-initiate.
+     *
+     * @return the XML of the content.
+     */
+    private static String createContent()
+    {
+        StringBuilder xml = new StringBuilder(8192);
+        xml.append("<content xmlns='urn:xmpp:jingle:1' creator='initiator'"
+            + " name='video' senders='both'>");
+        xml.append("<description xmlns='urn:xmpp:jingle:apps:rtp:1'"
+            + " media='video'>");
+        String[] encodings = {
+            "VP8", "rtx", "VP9", "rtx", "H264", "rtx", "red", "ulpfec"
+        };
+        for (int i = 0; i < encodings.length; i++)
+        {
+            int id = 100 + i;
+            xml.append("<payload-type id='" + id + "' name='" + encodings[i]
+                + "' clockrate='90000'>");
+            if (encodings[i].equals("rtx"))
+            {
+                xml.append(
+                    "<parameter name='apt' value='" + (id - 1) + "'/>");
+            }
+            else
+            {
+                xml.append(RTCP_FB + " type='ccm' subtype='fir'/>");
+                xml.append(RTCP_FB + " type='nack'/>");
+                xml.append(RTCP_FB + " type='nack' subtype='pli'/>");
+                xml.append(RTCP_FB + " type='goog-remb'/>");
+            }
+            xml.append("</payload-type>");
+        }
+        xml.append("<rtp-hdrext"
+            + " xmlns='urn:xmpp:jingle:apps:rtp:rtp-hdrext:0' id='3'"
+            + " uri='http://www.webrtc.org/experiments/rtp-hdrext/"
+            + "abs-send-time'/>");
+        for (int i = 0; i < 4; i++)
+        {
+            long ssrc = 1000000000L + 7919L * i;
+            xml.append("<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0'"
+                + " ssrc='" + ssrc + "'>");
+            xml.append("<parameter name='cname' value='mixed-" + i + "'/>");
+            xml.append("<parameter name='msid' value='mixedmslabel"
+                + " mixedlabelvideo" + i + "'/>");
+            xml.append("<ssrc-info xmlns='http://jitsi.org/jitmeet'"
+                + " owner='room@conference.example.com/user" + i + "'/>");
+            xml.append("</source>");
+        }
+        xml.append("<ssrc-group xmlns='urn:xmpp:jingle:apps:rtp:ssma:0'"
+            + " semantics='FID'><source ssrc='1000000000'/>"
+            + "<source ssrc='1000007919'/></ssrc-group>");
+        xml.append("</description>");
+        xml.append("<transport xmlns='" + ICE_UDP_NS + "'"
+            + " ufrag='4bdbr1cu5bsi2a' pwd='6r44l0ob1h4mhjogfik0hgs3u'>");
+        xml.append("<fingerprint xmlns='urn:xmpp:jingle:apps:dtls:0'"
+            + " hash='sha-256' setup='actpass'>"
+            + "59:0C:A3:2F:BE:31:4B:AE:93:D0:3C:6C:E8:6A:AE:4D:"
+            + "B8:3D:3B:81:2A:CC:E3:70:62:CA:61:1C:2A:BA:2C:3F"
+            + "</fingerprint>");
+        for (int i = 0; i < 8; i++)
+        {
+            xml.append("<candidate component='1' foundation='" + (i + 1)
+                + "' generation='0' id='" + Integer.toHexString(0x5a3f1 + i)
+                + "' network='0' port='" + (10000 + i)
+                + "' priority='" + (2130706431 - i)
+                + "' protocol='udp' type='" + ((i < 4) ? "host" : "srflx")
+                + "' ip='10.0.0." + (i + 1) + "'/>");
+        }
+        xml.append("</transport>");
+        xml.append("<transport xmlns='" + RAW_UDP_NS + "'>");
+        for (int i = 0; i < 2; i++)
+        {
+            xml.append("<candidate component='" + (i + 1)
+                + "' generation='0' id='" + Integer.toHexString(0x7b2e0 + i)
+                + "' ip='10.0.1.1' port='" + (20000 + i) + "'/>");
+        }
+        xml.append("</transport>");
+        xml.append("</content>");
+        return xml.toString();
+    }
+}
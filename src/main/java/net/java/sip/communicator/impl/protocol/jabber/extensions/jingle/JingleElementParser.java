@@ -0,0 +1,370 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions.jingle;
+
+import java.util.function.*;
+import java.util.logging.*;
+
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.provider.*;
+import org.jivesoftware.smack.util.*;
+import org.xmlpull.v1.*;
+
+/**
+ * A parser of the elements of the Jingle extension tree (contents,
+ * descriptions, payload types, transports, candidates, sources...) which
+ * does not go through reflection nor through the <tt>ProviderManager</tt>
+ * for the elements it knows.
+ *
+ * The (element name, namespace) pairs it knows are mapped to the
+ * constructors of their <tt>NewAbstractExtensionElement</tt> in a perfect
+ * hash table computed once : looking up the child elements while parsing is
+ * one hash and one comparison, and parsing allocates nothing but the
+ * resulting elements. The elements it does not know are handed to the
+ * provider registered in the <tt>ProviderManager</tt>, if any, or skipped.
+ *
+ * It replaces <tt>NewAbstractExtensionElementProvider</tt>, which
+ * instantiates the elements by reflection and looks up a provider for
+ * every child element. That provider is kept in the benchmark sources, as
+ * the baseline of <tt>JingleParserBenchmark</tt>.
+ */
+public class JingleElementParser
+    extends ExtensionElementProvider<NewAbstractExtensionElement>
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>JingleElementParser</tt> class
+     * for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(JingleElementParser.class.getName());
+
+    /**
+     * The elements known by the parser.
+     */
+    private static final Entry[] ENTRIES = {
+        new Entry(
+            NewContentPacketExtension.ELEMENT_NAME,
+            NewContentPacketExtension.NAMESPACE,
+            NewContentPacketExtension::new),
+        new Entry(
+            NewRtpDescriptionPacketExtension.ELEMENT_NAME,
+            NewRtpDescriptionPacketExtension.NAMESPACE,
+            NewRtpDescriptionPacketExtension::new),
+        new Entry(
+            NewPayloadTypePacketExtension.ELEMENT_NAME,
+            NewPayloadTypePacketExtension.NAMESPACE,
+            NewPayloadTypePacketExtension::new),
+        new Entry(
+            NewParameterPacketExtension.ELEMENT_NAME,
+            "urn:xmpp:jingle:apps:rtp:1",
+            NewParameterPacketExtension::new),
+        new Entry(
+            NewParameterPacketExtension.ELEMENT_NAME,
+            "urn:xmpp:jingle:apps:rtp:ssma:0",
+            NewParameterPacketExtension::new),
+        new Entry(
+            NewRtcpFbPacketExtension.ELEMENT_NAME,
+            NewRtcpFbPacketExtension.NAMESPACE,
+            NewRtcpFbPacketExtension::new),
+        new Entry(
+            NewRTPHdrExtPacketExtension.ELEMENT_NAME,
+            NewRTPHdrExtPacketExtension.NAMESPACE,
+            NewRTPHdrExtPacketExtension::new),
+        new Entry(
+            NewSourcePacketExtension.ELEMENT_NAME,
+            NewSourcePacketExtension.NAMESPACE,
+            NewSourcePacketExtension::new),
+        new Entry(
+            NewSSRCInfoPacketExtension.ELEMENT_NAME,
+            NewSSRCInfoPacketExtension.NAMESPACE,
+            NewSSRCInfoPacketExtension::new),
+        new Entry(
+            NewIceUdpTransportPacketExtension.ELEMENT_NAME,
+            NewIceUdpTransportPacketExtension.NAMESPACE,
+            NewIceUdpTransportPacketExtension::new),
+        new Entry(
+            NewRawUdpTransportPacketExtension.ELEMENT_NAME,
+            NewRawUdpTransportPacketExtension.NAMESPACE,
+            NewRawUdpTransportPacketExtension::new),
+        new Entry(
+            NewDtlsFingerprintPacketExtension.ELEMENT_NAME,
+            NewDtlsFingerprintPacketExtension.NAMESPACE,
+            NewDtlsFingerprintPacketExtension::new),
+        new Entry(
+            NewCandidatePacketExtension.ELEMENT_NAME,
+            "urn:xmpp:jingle:transports:ice-udp:1",
+            NewCandidatePacketExtension::new),
+        new Entry(
+            NewCandidatePacketExtension.ELEMENT_NAME,
+            "urn:xmpp:jingle:transports:raw-udp:1",
+            NewCandidatePacketExtension::new),
+        new Entry(
+            NewSourceGroupPacketExtension.ELEMENT_NAME,
+            NewSourceGroupPacketExtension.NAMESPACE,
+            NewSourceGroupPacketExtension::new)
+    };
+
+    /**
+     * The perfect hash table of <tt>ENTRIES</tt>, indexed by
+     * <tt>hash(elementName, namespace, seed) &amp; (table.length - 1)</tt>.
+     */
+    private static final Entry[] table;
+
+    /**
+     * The seed of the hash function for which <tt>table</tt> has no
+     * collision.
+     */
+    private static final int seed;
+
+    static
+    {
+        int size = Integer.highestOneBit(ENTRIES.length * 2 - 1) * 2;
+        Entry[] candidate = null;
+        int candidateSeed = 1;
+
+        // Look for a seed without collision. There are few entries in a
+        // table at least twice as large, so a few seeds are enough, and
+        // String hash codes do not change between runs.
+        while (candidate == null)
+        {
+            candidate = new Entry[size];
+            for (Entry entry : ENTRIES)
+            {
+                int index
+                    = hash(entry.elementName, entry.namespace, candidateSeed)
+                        & (size - 1);
+                if (candidate[index] != null)
+                {
+                    candidate = null;
+                    candidateSeed += 2;
+                    break;
+                }
+                candidate[index] = entry;
+            }
+        }
+        table = candidate;
+        seed = candidateSeed;
+    }
+
+    /**
+     * The instance registered in the <tt>ProviderManager</tt> for all the
+     * elements known by the parser.
+     */
+    private static final JingleElementParser INSTANCE
+        = new JingleElementParser();
+
+    /**
+     * Register the parser in the <tt>ProviderManager</tt> for all the
+     * elements it knows.
+     */
+    public static void registerProviders()
+    {
+        for (Entry entry : ENTRIES)
+        {
+            ProviderManager.addExtensionProvider(
+                entry.elementName, entry.namespace, INSTANCE);
+        }
+    }
+
+    /**
+     * Hash an (element name, namespace) pair.
+     *
+     * @param elementName the name of the element.
+     * @param namespace the namespace of the element.
+     * @param seed the seed of the hash.
+     * @return the hash of the pair.
+     */
+    private static int hash(String elementName, String namespace, int seed)
+    {
+        int h = (elementName.hashCode() * 31 + namespace.hashCode()) * seed;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Get the constructor of the element <tt>elementName</tt> of namespace
+     * <tt>namespace</tt>.
+     *
+     * @param elementName the name of the element.
+     * @param namespace the namespace of the element.
+     * @return the constructor of the element, or <tt>null</tt> if the parser
+     * does not know it.
+     */
+    private static Supplier<? extends NewAbstractExtensionElement> lookup(
+            String elementName,
+            String namespace)
+    {
+        Entry entry
+            = table[hash(elementName, namespace, seed) & (table.length - 1)];
+
+        return (entry != null
+                && entry.elementName.equals(elementName)
+                && entry.namespace.equals(namespace))
+            ? entry.constructor
+            : null;
+    }
+
+    /**
+     * Parse an element of the Jingle extension tree. At the beginning of the
+     * call, the parser is on the start tag of the element, and at the end it
+     * is on its end tag.
+     *
+     * @param parser the XML parser.
+     * @param initialDepth the depth of the element.
+     * @return the parsed element.
+     * @throws Exception if the element is unknown, or could not be parsed.
+     */
+    @Override
+    public NewAbstractExtensionElement parse(
+            XmlPullParser parser,
+            int initialDepth)
+        throws Exception
+    {
+        Supplier<? extends NewAbstractExtensionElement> constructor
+            = lookup(parser.getName(), parser.getNamespace());
+        if (constructor == null)
+        {
+            throw new XmlPullParserException("Unknown Jingle element "
+                + parser.getName() + " from namespace "
+                + parser.getNamespace());
+        }
+        return parseElement(parser, constructor);
+    }
+
+    /**
+     * Parse any extension element : with this parser if it is an element of
+     * the Jingle extension tree, or with the provider registered in the
+     * <tt>ProviderManager</tt> otherwise. At the beginning of the call, the
+     * parser is on the start tag of the element, and at the end it is on its
+     * end tag.
+     *
+     * @param parser the XML parser.
+     * @return the parsed element, or <tt>null</tt> if no provider knows it
+     * (the element is then skipped).
+     * @throws Exception if the element could not be parsed.
+     */
+    public static Element parseExtension(XmlPullParser parser)
+        throws Exception
+    {
+        String elementName = parser.getName();
+        String namespace = parser.getNamespace();
+
+        Supplier<? extends NewAbstractExtensionElement> constructor
+            = lookup(elementName, namespace);
+        if (constructor != null)
+            return parseElement(parser, constructor);
+
+        ExtensionElementProvider<?> provider
+            = ProviderManager.getExtensionProvider(elementName, namespace);
+        if (provider != null)
+            return provider.parse(parser);
+
+        if (logger.isLoggable(Level.FINE))
+        {
+            logger.fine("Could not find a provider for element "
+                + elementName + " from namespace " + namespace);
+        }
+        ParserUtils.forwardToEndTagOfDepth(parser, parser.getDepth());
+        return null;
+    }
+
+    /**
+     * Parse an element of the Jingle extension tree, its attributes, text
+     * and children.
+     *
+     * @param parser the XML parser, on the start tag of the element.
+     * @param constructor the constructor of the element.
+     * @return the parsed element.
+     * @throws Exception if the element could not be parsed.
+     */
+    private static NewAbstractExtensionElement parseElement(
+            XmlPullParser parser,
+            Supplier<? extends NewAbstractExtensionElement> constructor)
+        throws Exception
+    {
+        NewAbstractExtensionElement element = constructor.get();
+        int depth = parser.getDepth();
+
+        int attrCount = parser.getAttributeCount();
+        for (int i = 0; i < attrCount; i++)
+        {
+            element.setAttribute(
+                parser.getAttributeName(i),
+                parser.getAttributeValue(i));
+        }
+
+        while (true)
+        {
+            switch (parser.next())
+            {
+            case XmlPullParser.START_TAG:
+                Element child = parseExtension(parser);
+                if (child != null)
+                    element.addChildExtension(child);
+                break;
+            case XmlPullParser.END_TAG:
+                if (parser.getDepth() == depth)
+                    return element;
+                break;
+            case XmlPullParser.TEXT:
+                element.setText(parser.getText());
+                break;
+            case XmlPullParser.END_DOCUMENT:
+                throw new XmlPullParserException("Unexpected end of document"
+                    + " in element " + element.getElementName());
+            }
+        }
+    }
+
+    /**
+     * An element known by the parser.
+     */
+    private static class Entry
+    {
+        /**
+         * The name of the element.
+         */
+        final String elementName;
+
+        /**
+         * The namespace of the element.
+         */
+        final String namespace;
+
+        /**
+         * The constructor of the element.
+         */
+        final Supplier<? extends NewAbstractExtensionElement> constructor;
+
+        /**
+         * Initializes an <tt>Entry</tt>.
+         *
+         * @param elementName the name of the element.
+         * @param namespace the namespace of the element.
+         * @param constructor the constructor of the element.
+         */
+        Entry(
+                String elementName,
+                String namespace,
+                Supplier<? extends NewAbstractExtensionElement> constructor)
+        {
+            this.elementName = elementName;
+            this.namespace = namespace;
+            this.constructor = constructor;
+        }
+    }
+}
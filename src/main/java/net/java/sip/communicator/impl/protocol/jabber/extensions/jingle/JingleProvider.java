@@ -17,9 +17,7 @@
 package net.java.sip.communicator.impl.protocol.jabber.extensions.jingle;
 
 import org.jivesoftware.smack.packet.Element;
-import org.jivesoftware.smack.provider.ExtensionElementProvider;
 import org.jivesoftware.smack.provider.IntrospectionProvider;
-import org.jivesoftware.smack.provider.ProviderManager;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -63,10 +61,9 @@ public class JingleProvider extends IntrospectionProvider.IQIntrospectionProvide
                 String namespace = parser.getNamespace();
                 if (eventType == XmlPullParser.START_TAG)
                 {
-                    ExtensionElementProvider provider = ProviderManager.getExtensionProvider(elementName, namespace);
-                    if (provider != null)
+                    Element child = JingleElementParser.parseExtension(parser);
+                    if (child != null)
                     {
-                        Element child = provider.parse(parser);
                         if (child instanceof NewContentPacketExtension)
                         {
                             jingleIQ.addContent((NewContentPacketExtension)child);
@@ -2,9 +2,8 @@ package net.java.sip.communicator.impl.protocol.jabber.extensions.jingle;
 
 import org.jivesoftware.smack.packet.Element;
 import org.jivesoftware.smack.packet.ExtensionElement;
-import org.jivesoftware.smack.packet.NamedElement;
-import org.jivesoftware.smack.util.XmlStringBuilder;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
@@ -104,46 +103,116 @@ public abstract class NewAbstractExtensionElement
      */
     public CharSequence toXML()
     {
-        XmlStringBuilder xmlBuilder;
-        if (namespaceInherited)
+        StringBuilder xml = new StringBuilder();
+
+        try
         {
-            xmlBuilder = new XmlStringBuilder((NamedElement)this);
+            writeXML(xml);
         }
-        else
+        catch (IOException e)
         {
-            xmlBuilder = new XmlStringBuilder(this);
+            // A StringBuilder does not throw.
+            throw new IllegalStateException(e);
+        }
+        return xml;
+    }
 
+    /**
+     * Writes the XML representation of this extension, and of its whole
+     * tree of child extensions, to <tt>out</tt>. The attribute values are
+     * escaped as they are written, and no intermediate string is built for
+     * the children which are <tt>NewAbstractExtensionElement</tt>s.
+     * <p>
+     * Extensions which need a custom XML representation should override this
+     * method rather than {@link #toXML()}, which is not called for the
+     * children.
+     *
+     * @param out the <tt>Appendable</tt> to write to.
+     * @throws IOException if <tt>out</tt> could not be written to.
+     */
+    public void writeXML(Appendable out)
+        throws IOException
+    {
+        out.append('<').append(getElementName());
+        if (!namespaceInherited)
+        {
+            String namespace = getNamespace();
+            if (namespace != null)
+                appendAttribute(out, "xmlns", namespace);
         }
 
         for (Map.Entry<String, Object> entry : attributes.entrySet())
         {
-            xmlBuilder.attribute(entry.getKey(), entry.getValue().toString());
+            appendAttribute(out, entry.getKey(), entry.getValue().toString());
         }
 
-        List<Element> childElements = new ArrayList<>(getChildExtensions());
+        List<Element> childElements = getChildExtensions();
         String text = getText();
 
         if (childElements.isEmpty() && text == null)
         {
-            xmlBuilder.closeEmptyElement();
+            out.append("/>");
         }
         else
         {
-            xmlBuilder.rightAngleBracket();
+            out.append('>');
 
             // Child elements, if any
             for (Element e : childElements)
             {
-                xmlBuilder.element(e);
+                if (e instanceof NewAbstractExtensionElement)
+                    ((NewAbstractExtensionElement) e).writeXML(out);
+                else
+                    out.append(e.toXML());
             }
 
             // Text, if non-null
-            xmlBuilder.optAppend(getText());
+            if (text != null)
+                out.append(text);
 
-            xmlBuilder.closeElement(this);
+            out.append("</").append(getElementName()).append('>');
         }
+    }
+
+    /**
+     * Writes the attribute <tt>name</tt> to <tt>out</tt>, escaping
+     * <tt>value</tt> the way <tt>XmlStringBuilder</tt> does.
+     *
+     * @param out the <tt>Appendable</tt> to write to.
+     * @param name the name of the attribute.
+     * @param value the (unescaped) value of the attribute.
+     * @throws IOException if <tt>out</tt> could not be written to.
+     */
+    private static void appendAttribute(
+            Appendable out,
+            String name,
+            String value)
+        throws IOException
+    {
+        out.append(' ').append(name).append("='");
 
-        return xmlBuilder.toString();
+        int start = 0;
+        for (int i = 0, length = value.length(); i < length; i++)
+        {
+            String escaped;
+            switch (value.charAt(i))
+            {
+            case '<':
+                escaped = "&lt;";
+                break;
+            case '&':
+                escaped = "&amp;";
+                break;
+            case '\'':
+                escaped = "&apos;";
+                break;
+            default:
+                continue;
+            }
+            out.append(value, start, i).append(escaped);
+            start = i + 1;
+        }
+        out.append(value, start, value.length()).append('\'');
     }
 
     /**
@@ -448,4 +517,35 @@ public abstract class NewAbstractExtensionElement
 
         return dst;
     }
+
+    /**
+     * Clones a specific <tt>NewAbstractExtensionElement</tt> and its whole tree
+     * of child extensions. The children which are not
+     * <tt>NewAbstractExtensionElement</tt>s are shared with <tt>src</tt>.
+     *
+     * @param src the <tt>NewAbstractExtensionElement</tt> to be cloned
+     * @return a new <tt>NewAbstractExtensionElement</tt> instance of the run-time
+     * type of the specified <tt>src</tt> which has the same attributes,
+     * namespace, text and (cloned) child extensions
+     */
+    public static <T extends NewAbstractExtensionElement> T cloneTree(T src)
+    {
+        T dst = clone(src);
+
+        dst.namespaceInherited = src.namespaceInherited;
+        for (Element child : src.getChildExtensions())
+        {
+            if (child instanceof NewAbstractExtensionElement)
+            {
+                dst.addChildExtension(
+                        cloneTree((NewAbstractExtensionElement) child));
+            }
+            else
+            {
+                dst.addChildExtension(child);
+            }
+        }
+
+        return dst;
+    }
 }
@@ -90,7 +90,7 @@ public class NewIceUdpTransportPacketExtension
     protected NewIceUdpTransportPacketExtension(String namespace,
                                                 String elementName)
     {
-        super(namespace, elementName);
+        super(elementName, namespace);
     }
 
     /**
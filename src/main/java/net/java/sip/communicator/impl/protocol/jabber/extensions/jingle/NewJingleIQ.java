@@ -20,6 +20,7 @@ package net.java.sip.communicator.impl.protocol.jabber.extensions.jingle;
 
 import org.jivesoftware.smack.packet.IQ;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -96,10 +97,23 @@ public class NewJingleIQ extends IQ
         xml.attribute(SID_ATTR_NAME, getSID());
 
         xml.rightAngleBracket();
-        for (NewContentPacketExtension cpe : contentList)
+
+        // Write all the contents in one buffer, which the connection then
+        // writes as one part of the stanza.
+        StringBuilder contents = new StringBuilder();
+        try
+        {
+            for (NewContentPacketExtension cpe : contentList)
+            {
+                cpe.writeXML(contents);
+            }
+        }
+        catch (IOException e)
         {
-            xml.element(cpe);
+            // A StringBuilder does not throw.
+            throw new IllegalStateException(e);
         }
+        xml.append(contents);
         if (reason != null)
         {
             xml.element(reason);
@@ -17,15 +17,13 @@ package org.jitsi.hammer;
 
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.JingleProvider;
-import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.NewAbstractExtensionElementProvider;
 import net.java.sip.communicator.impl.protocol.jabber.jinglesdp.HammerJingleUtils;
 import net.java.sip.communicator.service.protocol.media.DynamicPayloadTypeRegistry;
 import net.java.sip.communicator.service.protocol.media.DynamicRTPExtensionsRegistry;
 import org.jitsi.hammer.extension.MediaPacketExtension;
+import org.jitsi.service.neomedia.device.MediaDevice;
 import org.jitsi.service.neomedia.format.MediaFormat;
-import org.jitsi.impl.neomedia.transform.dtls.DtlsControlImpl;
 import org.jivesoftware.smack.*;
-import org.jivesoftware.smack.bosh.*;
 import org.jivesoftware.smack.iqrequest.AbstractIqRequestHandler;
 import org.jivesoftware.smack.iqrequest.IQRequestHandler;
 import org.jivesoftware.smack.packet.*;
@@ -36,7 +34,9 @@ import org.jivesoftware.smackx.nick.packet.*;
 import org.ice4j.ice.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.util.Logger;
+import org.jitsi.hammer.media.*;
 import org.jitsi.hammer.stats.*;
+import org.jitsi.hammer.transport.*;
 import org.jitsi.hammer.utils.*;
 
 import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
@@ -49,6 +49,8 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 
 /**
@@ -70,12 +72,6 @@ public class FakeUser implements StanzaListener
     private static final Logger logger
         = Logger.getLogger(FakeUser.class);
 
-    /**
-     * After this amount of time, we'll give up on waiting for ICE to
-     * connect
-     */
-    private static long ICE_TIMEOUT_MS = 30000;
-
     /**
      * The <tt>Hammer</tt> instance to which this <tt>FakeUser</tt> corresponds
      * This object layout exists in order to make conference initiation 
@@ -106,12 +102,6 @@ public class FakeUser implements StanzaListener
      */
     private String nickname;
 
-
-    /**
-     * The <tt>ConnectionConfiguration</tt> equivalent of <tt>serverInfo</tt>.
-     */
-    private BOSHConfiguration config;
-
     /**
      * The object use to connect to and then communicate with the XMPP server.
      */
@@ -143,12 +133,43 @@ public class FakeUser implements StanzaListener
      */
     private NewJingleIQ sessionAccept;
 
+    /**
+     * The futures of all the stages of the acceptance of the Jingle session,
+     * cancelled by <tt>stop()</tt>, or <tt>null</tt> if no session is being
+     * accepted.
+     */
+    private volatile CompletableFuture<?>[] sessionStages;
+
+    /**
+     * Whether this <tt>FakeUser</tt> was stopped. The stages of the
+     * acceptance of the Jingle session started after it was stopped do
+     * nothing.
+     */
+    private volatile boolean stopped = false;
+
     /**
      * A Map of the different <tt>MediaStream</tt> this <tt>FakeUser</tt>
      * handles.
      */
     private Map<String,MediaStream> mediaStreamMap;
 
+    /**
+     * The <tt>MediaSender.Destination</tt>s of the <tt>MediaStream</tt>s of
+     * this <tt>FakeUser</tt> that have no <tt>MediaDevice</tt>, which are
+     * sent rtpdump packets or pre-encoded frames, or <tt>null</tt> once this
+     * <tt>FakeUser</tt> is stopped.
+     */
+    private List<MediaSender.Destination> mediaDestinations
+        = new ArrayList<>();
+
+    /**
+     * The SSRCs of the simulcast layers of the video stream of this
+     * <tt>FakeUser</tt> and of their RTX streams (see
+     * <tt>HammerUtils.createSimulcastSsrcs</tt>), or <tt>null</tt> if it is
+     * not sent in simulcast.
+     */
+    private long[] simulcastSsrcs;
+
     /**
      * The <tt>Agent</tt> handling the ICE protocol of the stream
      */
@@ -160,7 +181,25 @@ public class FakeUser implements StanzaListener
      */
     private FakeUserStats fakeUserStats;
 
-    private final DtlsControl dtlsControl = new DtlsControlImpl();
+    /**
+     * The <tt>ReceiveSink</tt> accounting the RTP packets received by this
+     * <tt>FakeUser</tt>, or <tt>null</tt> if the statistics are disabled or
+     * the media is not started.
+     */
+    private ReceiveSink receiveSink;
+
+    /**
+     * The <tt>DtlsControl</tt> of the <tt>MediaStream</tt>s of this
+     * <tt>FakeUser</tt>, taken from the <tt>DtlsControlPool</tt> of the
+     * <tt>Hammer</tt>.
+     */
+    private final DtlsControl dtlsControl;
+
+    /**
+     * The <tt>SetupTimeline</tt> recording when this <tt>FakeUser</tt>
+     * reaches each phase of its session setup.
+     */
+    private final SetupTimeline setupTimeline;
 
     /**
      * Construct the conference focus JID 
@@ -239,29 +278,13 @@ public class FakeUser implements StanzaListener
         boolean statisticsEnabled)
     {   
         this.hammer = hammer;
+        this.dtlsControl = hammer.getDtlsControlPool().take();
         this.serverInfo = hammer.getServerInfo();
         this.mediaDeviceChooser = mdc;
         this.nickname = (nickname == null) ? "Anonymous" : nickname;
         this.conferenceInfo = hammer.getConferenceInfo();
         fakeUserStats = statisticsEnabled ? new FakeUserStats(nickname) : null;
-
-        try
-        {
-            config = BOSHConfiguration.builder()
-                    .setUseHttps(serverInfo.getUseHTTPS())
-                    .setHost(serverInfo.getBOSHhostname())
-                    .setFile(serverInfo.getBOSHpath())
-                    .setPort(serverInfo.getPort())
-                    .setXmppDomain(serverInfo.getXMPPDomain())
-                    .setDebuggerEnabled(smackDebug)
-                    .performSaslAnonymousAuthentication()
-                    .build();
-        }
-        catch (XmppStringprepException e)
-        {
-            logger.fatal("Error creating bosh config: " + e.toString());
-            System.exit(1);
-        }
+        setupTimeline = new SetupTimeline(this.nickname);
 
         ProviderManager.addIQProvider(NewJingleIQ.ELEMENT_NAME, NewJingleIQ.NAMESPACE, new JingleProvider());
         // Note(brian): i don't think the old hammer even parsed the conference iq, and i don't think it's needed,
@@ -271,64 +294,19 @@ public class FakeUser implements StanzaListener
                 ConferenceInitiationIQ.ELEMENT_NAME,
                 ConferenceInitiationIQ.NAMESPACE,
                 new ConferenceInitiationIQProvider());
-        ProviderManager.addExtensionProvider(
-                NewContentPacketExtension.ELEMENT_NAME,
-                NewContentPacketExtension.NAMESPACE,
-                new NewAbstractExtensionElementProvider<>(NewContentPacketExtension.class));
-        ProviderManager.addExtensionProvider(
-                RtpDescriptionPacketExtension.ELEMENT_NAME,
-                RtpDescriptionPacketExtension.NAMESPACE,
-                new NewAbstractExtensionElementProvider<>(NewRtpDescriptionPacketExtension.class));
-        ProviderManager.addExtensionProvider(
-                NewPayloadTypePacketExtension.ELEMENT_NAME,
-                NewPayloadTypePacketExtension.NAMESPACE,
-                new NewAbstractExtensionElementProvider<>(NewPayloadTypePacketExtension.class));
-        ProviderManager.addExtensionProvider(
-                NewParameterPacketExtension.ELEMENT_NAME,
-                "urn:xmpp:jingle:apps:rtp:1",
-                new NewAbstractExtensionElementProvider<>(NewParameterPacketExtension.class));
-        ProviderManager.addExtensionProvider(
-                NewParameterPacketExtension.ELEMENT_NAME,
-                "urn:xmpp:jingle:apps:rtp:ssma:0",
-                new NewAbstractExtensionElementProvider<>(NewParameterPacketExtension.class));
-        ProviderManager.addExtensionProvider(
-                NewRtcpFbPacketExtension.ELEMENT_NAME,
-                NewRtcpFbPacketExtension.NAMESPACE,
-                new NewAbstractExtensionElementProvider<>(NewRtcpFbPacketExtension.class));
-        ProviderManager.addExtensionProvider(
-                NewRTPHdrExtPacketExtension.ELEMENT_NAME,
-                NewRTPHdrExtPacketExtension.NAMESPACE,
-                new NewAbstractExtensionElementProvider<>(NewRTPHdrExtPacketExtension.class));
-        ProviderManager.addExtensionProvider(
-                NewSourcePacketExtension.ELEMENT_NAME,
-                NewSourcePacketExtension.NAMESPACE,
-                new NewAbstractExtensionElementProvider<>(NewSourcePacketExtension.class));
-        ProviderManager.addExtensionProvider(
-                NewSSRCInfoPacketExtension.ELEMENT_NAME,
-                NewSSRCInfoPacketExtension.NAMESPACE,
-                new NewAbstractExtensionElementProvider<>(NewSSRCInfoPacketExtension.class));
-        ProviderManager.addExtensionProvider(
-                NewIceUdpTransportPacketExtension.ELEMENT_NAME,
-                NewIceUdpTransportPacketExtension.NAMESPACE,
-                new NewAbstractExtensionElementProvider<>(NewIceUdpTransportPacketExtension.class));
-        ProviderManager.addExtensionProvider(
-                NewDtlsFingerprintPacketExtension.ELEMENT_NAME,
-                NewDtlsFingerprintPacketExtension.NAMESPACE,
-                new NewAbstractExtensionElementProvider<>(NewDtlsFingerprintPacketExtension.class));
-        ProviderManager.addExtensionProvider(
-                NewCandidatePacketExtension.ELEMENT_NAME,
-                "urn:xmpp:jingle:transports:ice-udp:1",
-                new NewAbstractExtensionElementProvider<>(NewCandidatePacketExtension.class));
-        ProviderManager.addExtensionProvider(
-                NewCandidatePacketExtension.ELEMENT_NAME,
-                "urn:xmpp:jingle:transports:raw-udp:1",
-                new NewAbstractExtensionElementProvider<>(NewCandidatePacketExtension.class));
-        ProviderManager.addExtensionProvider(
-                NewSourceGroupPacketExtension.ELEMENT_NAME,
-                NewSourceGroupPacketExtension.NAMESPACE,
-                new NewAbstractExtensionElementProvider<>(NewSourceGroupPacketExtension.class));
-
-        connection = new XMPPBOSHConnection(config);
+        JingleElementParser.registerProviders();
+
+        try
+        {
+            connection
+                = hammer.getConnectionFactory().createConnection(
+                        this.nickname, smackDebug);
+        }
+        catch (XmppStringprepException e)
+        {
+            logger.fatal("Error creating connection: " + e.toString());
+            System.exit(1);
+        }
 
         connection.registerIQRequestHandler(new AbstractIqRequestHandler(NewJingleIQ.ELEMENT_NAME, NewJingleIQ.NAMESPACE, IQ.Type.set, IQRequestHandler.Mode.sync)
         {
@@ -336,13 +314,21 @@ public class FakeUser implements StanzaListener
             public IQ handleIQRequest(IQ iq)
             {
                 NewJingleIQ jiq = (NewJingleIQ)iq;
-                System.out.println("iq request handler got jingle iq: " + jiq.toXML());
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug(
+                        "iq request handler got jingle iq: " + jiq.toXML());
+                }
                 IQ result = IQ.createResultIQ(iq);
                 switch (jiq.getAction())
                 {
                     case SESSION_INITIATE:
                         logger.info("Received session-initiate");
+                        setupTimeline.mark(
+                            SetupTimeline.Phase.SESSION_INITIATE);
                         sessionInitiate = jiq;
+                        // Returns right away, so that the result is sent
+                        // without waiting for ICE.
                         acceptJingleSession();
                 }
                 return result;
@@ -360,6 +346,13 @@ public class FakeUser implements StanzaListener
             fakeUserStats.setMediaStreamStats(
                     mediaStreamMap.get(MediaType.VIDEO.toString()));
         }
+        // The DTLS handshake and the first RTP packet sent are only seen by
+        // libjitsi, the first RTP packet received is marked by the
+        // ReceiveSink.
+        new MediaPhaseDetector(setupTimeline).attach(
+            dtlsControl,
+            mediaStreamMap.values(),
+            fakeUserStats);
 
 
         ServiceDiscoveryManager discoManager =
@@ -374,9 +367,6 @@ public class FakeUser implements StanzaListener
         discoManager.addFeature("urn:xmpp:jingle:apps:rtp:video");
         discoManager.addFeature("urn:ietf:rfc:5761"); //rtcp-mux
         discoManager.addFeature("urn:ietf:rfc:5888"); //bundle
-
-        // added to address bosh timeout issues causing early termination of the hammer
-        org.jivesoftware.smackx.ping.PingManager.getInstanceFor(connection).setPingInterval(15);
     }
 
     /**
@@ -391,16 +381,29 @@ public class FakeUser implements StanzaListener
             XMPPException
     {
         logger.info(this.nickname + " : Login anonymously to the XMPP server.");
+        TransportStats transportStats
+            = hammer.getConnectionFactory().getStats();
+        long setupStart = System.nanoTime();
+        setupTimeline.start();
         try
         {
             connection.connect();
+            setupTimeline.mark(SetupTimeline.Phase.CONNECT);
             connection.login();
+            setupTimeline.mark(SetupTimeline.Phase.LOGIN);
+            transportStats.setupSucceeded(System.nanoTime() - setupStart);
         }
         catch (InterruptedException e)
         {
             logger.fatal("Interrupted while making xmpp connection: " + e.toString());
             System.exit(1);
         }
+        catch (SmackException | IOException | XMPPException e)
+        {
+            transportStats.setupFailed();
+            setupTimeline.fail();
+            throw e;
+        }
         connectMUC();
     }
 
@@ -475,6 +478,7 @@ public class FakeUser implements StanzaListener
         {
             this.connection.sendStanza(conferenceInitiationIQ);
             this.hammer.setFocusInvited(true);
+            setupTimeline.mark(SetupTimeline.Phase.FOCUS_INVITE);
             logger.info("Conference initiation IQ is sent to the focus user");
         }
         catch (SmackException.NotConnectedException e) {
@@ -513,6 +517,7 @@ public class FakeUser implements StanzaListener
             try
             {
                 muc.join(Resourcepart.from(nickname));
+                setupTimeline.mark(SetupTimeline.Phase.MUC_JOIN);
 
                 muc.sendMessage("Goodbye cruel World!");
 
@@ -529,13 +534,18 @@ public class FakeUser implements StanzaListener
                  * Make an attempt to send an IQ to Focus user 
                  * in order to enable Jingle for the conference
                  */
-                synchronized (this.hammer.getFocusInvitationSyncRoot())
+                Lock focusInvitationLock
+                    = this.hammer.getFocusInvitationLock();
+                focusInvitationLock.lock();
+                try
                 {
-                    
                     if (!this.hammer.getFocusInvited()) {
                         inviteFocus();
                     }
-                    
+                }
+                finally
+                {
+                    focusInvitationLock.unlock();
                 }
             }
             catch (XMPPException.XMPPErrorException e)
@@ -556,6 +566,7 @@ public class FakeUser implements StanzaListener
                 else
                 {
                     logger.fatal(this.nickname + " : could not enter MUC",e);
+                    setupTimeline.fail();
                     muc = null;
                 }
             }
@@ -586,8 +597,26 @@ public class FakeUser implements StanzaListener
     {
         logger.info(this.nickname + " : stopping the streams, leaving the MUC"
             + " and disconnecting from the XMPP server");
+        stopped = true;
+        CompletableFuture<?>[] stages = sessionStages;
+        if(stages != null)
+        {
+            for(CompletableFuture<?> stage : stages)
+                stage.cancel(false);
+        }
         if(agent != null)
             agent.free();
+        synchronized(this)
+        {
+            if(mediaDestinations != null)
+            {
+                for(MediaSender.Destination destination : mediaDestinations)
+                    destination.remove();
+                mediaDestinations = null;
+            }
+            if(receiveSink != null)
+                receiveSink.stop();
+        }
         for(MediaStream stream : mediaStreamMap.values())
         {
             stream.close();
@@ -620,13 +649,95 @@ public class FakeUser implements StanzaListener
 
 
     /**
-     * acceptJingleSession create a accept-session Jingle message and
+     * acceptJingleSession accepts the Jingle session initiated by
+     * <tt>sessionInitiate</tt>, without blocking the calling thread : the
+     * answer, the ICE connectivity establishment, the start of the DTLS/SRTP
+     * encryption and the start of the <tt>MediaStream</tt>s are chained on
+     * the <tt>SessionAcceptPipeline</tt> of the <tt>Hammer</tt>.
+     */
+    private void acceptJingleSession()
+    {
+        final SessionAcceptPipeline pipeline
+            = hammer.getSessionAcceptPipeline();
+        final NewJingleIQ initiate = sessionInitiate;
+
+        CompletableFuture<Set<String>> answered
+            = pipeline.supply(
+                SessionAcceptPipeline.Stage.ANSWER,
+                () -> sendSessionAccept(initiate));
+        CompletableFuture<Set<String>> connected
+            = pipeline.thenAwait(
+                answered,
+                SessionAcceptPipeline.Stage.ICE,
+                this::startIce);
+        CompletableFuture<Set<String>> encrypted
+            = pipeline.then(
+                connected,
+                SessionAcceptPipeline.Stage.DTLS_SRTP,
+                this::startEncryption);
+
+        // Completed once the MediaStreams are started (or the acceptance
+        // failed).
+        CompletableFuture<Void> sessionSetup = pipeline.then(
+                encrypted,
+                SessionAcceptPipeline.Stage.STREAM_START,
+                this::startMediaStreams)
+            .whenComplete((r, t) -> {
+                if (t == null)
+                {
+                    logger.info(this.nickname + " : Jingle session accepted"
+                        + " and media streams started. Setup timeline of "
+                        + setupTimeline);
+                }
+                else
+                {
+                    Throwable cause
+                        = (t instanceof CompletionException
+                                && t.getCause() != null)
+                            ? t.getCause() : t;
+                    logger.error(this.nickname + " : could not accept the"
+                        + " Jingle session : " + cause);
+                    // The setups cancelled by the stop of the user did not
+                    // fail.
+                    if (!(cause instanceof CancellationException))
+                        setupTimeline.fail();
+                }
+            });
+        sessionStages = new CompletableFuture<?>[] {
+            answered, connected, encrypted, sessionSetup
+        };
+        // stop() may have been called before the stages were kept.
+        if (stopped)
+        {
+            for (CompletableFuture<?> stage : sessionStages)
+                stage.cancel(false);
+        }
+    }
+
+    /**
+     * Throw a <tt>CancellationException</tt> if this <tt>FakeUser</tt> was
+     * stopped, so that the stage of the acceptance of the Jingle session
+     * calling it does not run.
+     */
+    private void checkNotStopped()
+    {
+        if (stopped)
+            throw new CancellationException(nickname + " was stopped");
+    }
+
+    /**
+     * sendSessionAccept create a accept-session Jingle message and
      * send it to the initiator of the session.
      * The initiator is taken from the From attribute
      * of the initiate-session message.
+     *
+     * @param sessionInitiate the session-initiate to answer.
+     * @return the names of the contents accepted in the session-accept.
      */
-    private void acceptJingleSession()
+    private Set<String> sendSessionAccept(NewJingleIQ sessionInitiate)
     {
+        checkNotStopped();
+
         Map<String, NewContentPacketExtension> contentMap = new HashMap<>();
         /*
          * A Map mapping of media type (audio, video, data), to a <tt>MediaFormat</tt>
@@ -657,46 +768,33 @@ public class FakeUser implements StanzaListener
         DynamicRTPExtensionsRegistry rtpExtRegistry =
                 new DynamicRTPExtensionsRegistry();
 
-        for (NewContentPacketExtension cpe : sessionInitiate.getContentList())
+        /*
+         * The negotiation of the offer (formats, RTP extensions and content
+         * of the answer) is shared by all the users receiving the same one :
+         * we only register its mappings and clone its contents.
+         */
+        final List<NewContentPacketExtension> offer
+            = sessionInitiate.getContentList();
+        OfferCache.NegotiatedOffer negotiatedOffer
+            = hammer.getOfferCache().get(
+                OfferCache.getKey(offer, this::getExtensionsForType),
+                () -> negotiateOffer(offer));
+
+        negotiatedOffer.register(ptRegistry, rtpExtRegistry);
+        for (OfferCache.NegotiatedContent content
+                : negotiatedOffer.getContents())
         {
-            NewContentPacketExtension localContent;
-            //TODO(brian): do we still need this special treatment for data?
-            if (cpe.getName().equalsIgnoreCase("data"))
+            if (content.getSelectedFormat() != null)
             {
-                 localContent = HammerUtils.createDescriptionForDataContent(
-                         NewContentPacketExtension.CreatorEnum.responder,
-                         NewContentPacketExtension.SendersEnum.both);
+                selectedRtpExtensions.put(
+                    content.getName(),
+                    content.getRtpExtensions());
+                selectedFormats.put(
+                    content.getName(),
+                    content.getSelectedFormat());
             }
-            else
-            {
-                NewRtpDescriptionPacketExtension description =
-                        cpe.getFirstChildOfType(NewRtpDescriptionPacketExtension.class);
-                if (description == null)
-                {
-                    continue;
-                }
-                List<MediaFormat> mediaFormats = HammerJingleUtils.extractFormats(description, ptRegistry);
-                List<RTPExtension> remoteRtpExtensions =
-                        HammerJingleUtils.extractRTPExtensions(description, rtpExtRegistry);
-                List<RTPExtension> supportedRtpExtension = getExtensionsForType(MediaType.parseString(cpe.getName()));
-                List<RTPExtension> rtpExtensionIntersection =
-                        intersectRTPExtensions(remoteRtpExtensions, supportedRtpExtension);
-
-                selectedRtpExtensions.put(cpe.getName(), rtpExtensionIntersection);
 
-                selectedFormats.put(cpe.getName(), HammerUtils.selectFormat(cpe.getName(), mediaFormats));
-
-                localContent = HammerJingleUtils.createDescription(
-                        NewContentPacketExtension.CreatorEnum.responder,
-                        cpe.getName(),
-                        NewContentPacketExtension.SendersEnum.both,
-                        mediaFormats,
-                        rtpExtensionIntersection,
-                        ptRegistry,
-                        rtpExtRegistry);
-            }
-
-            contentMap.put(cpe.getName(), localContent);
+            contentMap.put(content.getName(), content.createContent());
         }
         /*
          * We remove the content for the data (because data is not handle
@@ -748,9 +846,24 @@ public class FakeUser implements StanzaListener
 
         /*
          * Now that the MediaStreams are configured, add their SSRCs to the
-         *   content list of the future session-accept
+         *   content list of the future session-accept, with the SSRCs of
+         *   the simulcast layers of the video stream if it is sent in
+         *   simulcast
          */
-        HammerUtils.addSSRCToContent(contentMap, mediaStreamMap);
+        Map<String, long[]> simulcastSsrcMap = new HashMap<>();
+        int layers = mediaDeviceChooser.getSimulcastLayerCount();
+        String videoKey = MediaType.VIDEO.toString();
+        if(layers > 0 && mediaStreamMap.containsKey(videoKey))
+        {
+            simulcastSsrcs = HammerUtils.createSimulcastSsrcs(
+                mediaStreamMap.get(videoKey).getLocalSourceID(),
+                layers);
+            simulcastSsrcMap.put(videoKey, simulcastSsrcs);
+        }
+        HammerUtils.addSSRCToContent(
+            contentMap,
+            mediaStreamMap,
+            simulcastSsrcMap);
 
         /*
          * Send the SSRC of the different media in a "media" tag
@@ -793,7 +906,11 @@ public class FakeUser implements StanzaListener
 
         try
         {
-            System.out.println("Sending presence packet with ssrc: " + presencePacketWithSSRC.toXML());
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Sending presence packet with ssrc: "
+                    + presencePacketWithSSRC.toXML());
+            }
             connection.sendStanza(presencePacketWithSSRC);
             // Create the session-accept
             sessionAccept = new NewJingleIQ();
@@ -817,9 +934,14 @@ public class FakeUser implements StanzaListener
                 sessionAccept.getContentList(),
                 sessionInitiate.getContentList());
 
-            System.out.println("Sending session accept: " + sessionAccept.toXML());
+            if (logger.isDebugEnabled())
+            {
+                logger.debug(
+                    "Sending session accept: " + sessionAccept.toXML());
+            }
             // Send the session-accept IQ
             connection.sendStanza(sessionAccept);
+            setupTimeline.mark(SetupTimeline.Phase.SESSION_ACCEPT);
             logger.info(
                     this.nickname + " : Jingle accept-session message sent");
         }
@@ -834,106 +956,249 @@ public class FakeUser implements StanzaListener
             System.exit(1);
         }
 
-        // A listener to wake us up when the Agent enters a final state.
-        final Object syncRoot = new Object();
-        PropertyChangeListener propertyChangeListener
+        return contentMap.keySet();
+    }
+
+    /**
+     * Negotiate the offer made of <tt>offer</tt> : select the formats and
+     * the RTP extensions of each content, and create the contents of the
+     * answer (without transport nor sources).
+     *
+     * @param offer the contents of the session-initiate.
+     * @return the negotiated offer.
+     */
+    private OfferCache.NegotiatedOffer negotiateOffer(
+            List<NewContentPacketExtension> offer)
+    {
+        /*
+         * The registry containing the dynamic payload types learned in the
+         * session-initiate (to use back in the session-accept)
+         */
+        DynamicPayloadTypeRegistry ptRegistry =
+                new DynamicPayloadTypeRegistry();
+
+        /*
+         * The registry containing the dynamic RTP extensions learned in the
+         * session-initiate
+         */
+        DynamicRTPExtensionsRegistry rtpExtRegistry =
+                new DynamicRTPExtensionsRegistry();
+
+        List<OfferCache.NegotiatedContent> contents = new ArrayList<>();
+        for (NewContentPacketExtension cpe : offer)
+        {
+            //TODO(brian): do we still need this special treatment for data?
+            if (cpe.getName().equalsIgnoreCase("data"))
+            {
+                contents.add(new OfferCache.NegotiatedContent(
+                    cpe.getName(),
+                    null,
+                    null,
+                    HammerUtils.createDescriptionForDataContent(
+                         NewContentPacketExtension.CreatorEnum.responder,
+                         NewContentPacketExtension.SendersEnum.both)));
+            }
+            else
+            {
+                NewRtpDescriptionPacketExtension description =
+                        cpe.getFirstChildOfType(NewRtpDescriptionPacketExtension.class);
+                if (description == null)
+                {
+                    continue;
+                }
+                List<MediaFormat> mediaFormats = HammerJingleUtils.extractFormats(description, ptRegistry);
+                List<RTPExtension> remoteRtpExtensions =
+                        HammerJingleUtils.extractRTPExtensions(description, rtpExtRegistry);
+                List<RTPExtension> supportedRtpExtension = getExtensionsForType(MediaType.parseString(cpe.getName()));
+                List<RTPExtension> rtpExtensionIntersection =
+                        intersectRTPExtensions(remoteRtpExtensions, supportedRtpExtension);
+
+                NewContentPacketExtension localContent = HammerJingleUtils.createDescription(
+                        NewContentPacketExtension.CreatorEnum.responder,
+                        cpe.getName(),
+                        NewContentPacketExtension.SendersEnum.both,
+                        mediaFormats,
+                        rtpExtensionIntersection,
+                        ptRegistry,
+                        rtpExtRegistry);
+
+                contents.add(new OfferCache.NegotiatedContent(
+                    cpe.getName(),
+                    HammerUtils.selectFormat(cpe.getName(), mediaFormats),
+                    rtpExtensionIntersection,
+                    localContent));
+            }
+        }
+
+        return new OfferCache.NegotiatedOffer(
+            contents,
+            ptRegistry,
+            rtpExtRegistry);
+    }
+
+    /**
+     * Start the ICE connectivity establishment of the <tt>Agent</tt> of this
+     * <tt>FakeUser</tt>.
+     *
+     * @param contents the names of the contents accepted in the
+     * session-accept.
+     * @return a future completed with <tt>contents</tt> when the
+     * <tt>Agent</tt> is connected, or exceptionally if ICE failed.
+     */
+    private CompletableFuture<Set<String>> startIce(final Set<String> contents)
+    {
+        checkNotStopped();
+
+        final CompletableFuture<Set<String>> iceDone
+            = new CompletableFuture<>();
+
+        // A listener completing iceDone when the Agent enters a final state.
+        final PropertyChangeListener propertyChangeListener
                 = new PropertyChangeListener()
         {
             @Override
             public void propertyChange(PropertyChangeEvent ev)
             {
-                Object newValue = ev.getNewValue();
-
-                if (IceProcessingState.COMPLETED.equals(newValue)
-                        || IceProcessingState.FAILED.equals(newValue)
-                        || IceProcessingState.TERMINATED.equals(newValue))
+                if (ev.getSource() == FakeUser.this.agent)
                 {
-                    Agent iceAgent = (Agent) ev.getSource();
-
-                    iceAgent.removeStateChangeListener(this);
-                    if (iceAgent == FakeUser.this.agent)
-                    {
-                        synchronized (syncRoot)
-                        {
-                            syncRoot.notify();
-                        }
-                    }
+                    completeIce(iceDone, contents);
                 }
             }
         };
 
         agent.addStateChangeListener(propertyChangeListener);
+        iceDone.whenComplete(
+            (r, t) -> agent.removeStateChangeListener(propertyChangeListener));
         agent.startConnectivityEstablishment();
 
-        synchronized (syncRoot)
-        {
-            long startWait = System.currentTimeMillis();
-            do
-            {
-                IceProcessingState iceState = agent.getState();
-                if (IceProcessingState.COMPLETED.equals(iceState)
-                        || IceProcessingState.TERMINATED.equals(iceState)
-                        || IceProcessingState.FAILED.equals(iceState))
-                    break;
-
-                if (System.currentTimeMillis() - startWait > ICE_TIMEOUT_MS)
-		{
-		    logger.error("ICE for user " + nickname + " is still in " +
-			iceState + " state after " + ICE_TIMEOUT_MS + " ms, " +
-                        "giving up");
-                    break;
-		}
+        // The Agent may have reached a final state before the listener was
+        // added.
+        completeIce(iceDone, contents);
 
-                try
-                {
-                    syncRoot.wait(1000);
-                }
-                catch (InterruptedException ie)
-                {
-                    logger.fatal("Interrupted: " + ie);
-                    break;
-                }
-            }
-            while (true);
-        }
-
-        agent.removeStateChangeListener(propertyChangeListener);
+        return iceDone;
+    }
 
+    /**
+     * Complete <tt>iceDone</tt> if the <tt>Agent</tt> of this
+     * <tt>FakeUser</tt> is in a final state.
+     *
+     * @param iceDone the future of the ICE stage.
+     * @param contents the names of the contents accepted in the
+     * session-accept.
+     */
+    private void completeIce(
+            CompletableFuture<Set<String>> iceDone,
+            Set<String> contents)
+    {
         IceProcessingState iceState = agent.getState();
-        if (!IceProcessingState.COMPLETED.equals(iceState)
-                && !IceProcessingState.TERMINATED.equals(iceState))
+        if (IceProcessingState.COMPLETED.equals(iceState)
+                || IceProcessingState.TERMINATED.equals(iceState))
         {
-            logger.fatal("ICE failed for user " + nickname + ". Agent state: "
-                                 + iceState);
-            return;
+            setupTimeline.mark(SetupTimeline.Phase.ICE_COMPLETED);
+            iceDone.complete(contents);
         }
+        else if (IceProcessingState.FAILED.equals(iceState))
+        {
+            iceDone.completeExceptionally(new IOException(
+                "ICE failed for user " + nickname + ". Agent state: "
+                    + iceState));
+        }
+    }
+
+    /**
+     * Start the DTLS/SRTP encryption of the <tt>MediaStream</tt>s of the
+     * accepted contents, once ICE is connected.
+     *
+     * @param contents the names of the contents accepted in the
+     * session-accept.
+     * @return <tt>contents</tt>.
+     */
+    private Set<String> startEncryption(Set<String> contents)
+    {
+        checkNotStopped();
 
         // Add socket created by ice4j to their associated MediaStreams
         // We drop incoming RTP packets when statistics are disabled in order
-        // to improve performance.
+        // to improve performance, and only account their headers otherwise.
+        synchronized(this)
+        {
+            if (fakeUserStats != null && mediaDestinations != null)
+            {
+                receiveSink = new ReceiveSink(
+                    nickname,
+                    mediaStreamMap.values(),
+                    fakeUserStats,
+                    setupTimeline);
+                fakeUserStats.setReceiveSink(receiveSink);
+            }
+        }
         HammerUtils.addSocketToMediaStream(agent,
                                            mediaStreamMap,
-                                           fakeUserStats == null);
-
+                                           receiveSink);
 
         //Start the encryption of the MediaStreams
-        for(String key : contentMap.keySet())
+        for(String key : contents)
         {
             MediaStream stream = mediaStreamMap.get(key);
             SrtpControl control = stream.getSrtpControl();
             MediaType type = stream.getFormat().getMediaType();
             control.start(type);
         }
+        return contents;
+    }
+
+    /**
+     * Start the <tt>MediaStream</tt>s of the accepted contents.
+     *
+     * @param contents the names of the contents accepted in the
+     * session-accept.
+     * @return <tt>null</tt>.
+     */
+    private Void startMediaStreams(Set<String> contents)
+    {
+        checkNotStopped();
 
         //Start the MediaStream
-        for(String key : contentMap.keySet())
+        for(String key : contents)
         {
             MediaStream stream = mediaStreamMap.get(key);
             logger.info("Starting media stream " + stream.getFormat().getMediaType() +
                 " with direction " + stream.getDirection() + " and srtpcontrol: " +
                     stream.getSrtpControl());
             stream.start();
+
+            /*
+             * The streams without MediaDevice are sent by a MediaSender, with
+             * the SSRCs of all the layers for the video sent in simulcast.
+             */
+            MediaSender sender;
+            long[] ssrcs;
+            if (simulcastSsrcs != null
+                    && MediaType.VIDEO.toString().equals(key))
+            {
+                sender = mediaDeviceChooser.getSimulcastSender();
+                ssrcs = Arrays.copyOf(
+                    simulcastSsrcs,
+                    mediaDeviceChooser.getSimulcastLayerCount());
+            }
+            else
+            {
+                sender = mediaDeviceChooser.getMediaSender(
+                    stream.getFormat().getMediaType());
+                ssrcs = new long[] { stream.getLocalSourceID() };
+            }
+            synchronized(this)
+            {
+                if (sender != null && mediaDestinations != null)
+                {
+                    MediaSender.Destination destination
+                        = sender.addStream(stream, ssrcs);
+                    if (destination != null)
+                        mediaDestinations.add(destination);
+                }
+            }
         }
+        return null;
     }
 
 
@@ -945,12 +1210,14 @@ public class FakeUser implements StanzaListener
     public void processStanza(Stanza packet)
     {
         NewJingleIQ jiq = (NewJingleIQ)packet;
-        System.out.println("Got jingle iq: " + jiq.toXML());
+        if (logger.isDebugEnabled())
+            logger.debug("Got jingle iq: " + jiq.toXML());
         ackJingleIQ(jiq);
         switch(jiq.getAction())
         {
         case SESSION_INITIATE:
             logger.info(this.nickname + " : Jingle session-initiate received");
+            setupTimeline.mark(SetupTimeline.Phase.SESSION_INITIATE);
             if(sessionInitiate == null)
             {
                 sessionInitiate = jiq;
@@ -1015,7 +1282,12 @@ public class FakeUser implements StanzaListener
      */
     protected List<RTPExtension> getExtensionsForType(MediaType type)
     {
-        return mediaDeviceChooser.getMediaDevice(type).getSupportedExtensions();
+        MediaDevice device = mediaDeviceChooser.getMediaDevice(type);
+        // The pre-encoded frames are sent without MediaDevice, and without
+        // RTP header extension.
+        return (device != null)
+            ? device.getSupportedExtensions()
+            : new ArrayList<RTPExtension>();
     }
 
 
@@ -1111,4 +1383,14 @@ public class FakeUser implements StanzaListener
     {
         return this.fakeUserStats;
     }
+
+    /**
+     * Returns the <tt>SetupTimeline</tt> recording when this
+     * <tt>FakeUser</tt> reaches each phase of its session setup.
+     * @return the <tt>SetupTimeline</tt> of this <tt>FakeUser</tt>.
+     */
+    SetupTimeline getSetupTimeline()
+    {
+        return this.setupTimeline;
+    }
 }
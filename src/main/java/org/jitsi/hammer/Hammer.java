@@ -28,11 +28,14 @@ import org.jitsi.impl.osgi.framework.launch.*;
 import org.jitsi.impl.neomedia.*;
 
 import org.jitsi.hammer.extension.*;
+import org.jitsi.hammer.transport.*;
 import org.jitsi.hammer.utils.*;
 import org.jitsi.util.Logger;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 /**
  *
@@ -101,16 +104,17 @@ public class Hammer
     private static final Object frameworkSyncRoot = new Object();
 
     /**
-     * The <tt>Object</tt> that will be used 
-     * as synchronization root when initiating the conference
+     * The <tt>Lock</tt> held by the <tt>FakeUser</tt> inviting the focus
+     * when initiating the conference. A <tt>Lock</tt> rather than a monitor,
+     * so that virtual threads waiting for it are not pinned.
      */
-    private final Object focusInvitationSyncRoot = new Object();
+    private final Lock focusInvitationLock = new ReentrantLock();
 
     /**
      * The boolean flag identifying whether focus has been invited
      * to the conference targeted by this <tt>Hammer</tt> or not
      */
-    private boolean focusInvited = false;
+    private volatile boolean focusInvited = false;
     
     /**
      * The locations of the OSGi bundles (or rather of the path of the class
@@ -145,6 +149,42 @@ public class Hammer
      */
     private Thread hammerStatsThread;
 
+    /**
+     * The <tt>RampUpScheduler</tt> used to start the fake users (if they have
+     * been started).
+     */
+    private volatile RampUpScheduler rampUpScheduler;
+
+    /**
+     * The <tt>SessionAcceptPipeline</tt> used by all the <tt>FakeUser</tt>
+     * to accept their Jingle session.
+     */
+    private final SessionAcceptPipeline sessionAcceptPipeline;
+
+    /**
+     * The <tt>FakeUserConnectionFactory</tt> creating the XMPP connections of
+     * all the <tt>FakeUser</tt>.
+     */
+    private final FakeUserConnectionFactory connectionFactory;
+
+    /**
+     * The <tt>DtlsControlPool</tt> from which the <tt>FakeUser</tt> take their
+     * <tt>DtlsControl</tt>.
+     */
+    private final DtlsControlPool dtlsControlPool;
+
+    /**
+     * The <tt>OfferCache</tt> sharing the negotiation of the session-initiates
+     * between all the <tt>FakeUser</tt>.
+     */
+    private final OfferCache offerCache = new OfferCache();
+
+    /**
+     * The <tt>MetricsServer</tt> exposing the metrics of this <tt>Hammer</tt>,
+     * or <tt>null</tt>.
+     */
+    private MetricsServer metricsServer;
+
     /**
      * boolean used to know if the <tt>Hammer</tt> is started or not.
      */
@@ -174,13 +214,62 @@ public class Hammer
             int numberOfUser, 
             ConferenceInfo conferenceInfo,
             boolean disableStats)
+    {
+        this(
+            host,
+            mdc,
+            nickname,
+            numberOfUser,
+            conferenceInfo,
+            disableStats,
+            new SessionAcceptPipeline(),
+            new BOSHConnectionFactory(host, !disableStats),
+            new DtlsControlPool());
+    }
+
+    /**
+     * Instantiate a <tt>Hammer</tt> object with <tt>numberOfUser</tt> virtual
+     * users that will try to connect to the XMPP server and its videobridge
+     * contained in <tt>host</tt>.
+     *
+     * @param host The information about the XMPP server to which all
+     * virtual users will try to connect.
+     * @param mdc The media device chooser instance
+     * @param nickname The base of the nickname used by all the virtual users.
+     * @param numberOfUser The number of virtual users this <tt>Hammer</tt>
+     * will create and handle.
+     * @param conferenceInfo The information
+     *                       regarding the conference properties
+     *                       for the video conference to be initiated
+     * @param disableStats whether statistics should be disabled.
+     * @param sessionAcceptPipeline the <tt>SessionAcceptPipeline</tt> used by
+     * the virtual users to accept their Jingle session.
+     * @param connectionFactory the <tt>FakeUserConnectionFactory</tt> creating
+     * the XMPP connections of the virtual users.
+     * @param dtlsControlPool the <tt>DtlsControlPool</tt> creating the
+     * <tt>DtlsControl</tt>s of the virtual users.
+     */
+    public Hammer(
+            HostInfo host,
+            MediaDeviceChooser mdc,
+            String nickname,
+            int numberOfUser,
+            ConferenceInfo conferenceInfo,
+            boolean disableStats,
+            SessionAcceptPipeline sessionAcceptPipeline,
+            FakeUserConnectionFactory connectionFactory,
+            DtlsControlPool dtlsControlPool)
     {
         this.disableStats = disableStats;
+        this.sessionAcceptPipeline = sessionAcceptPipeline;
+        this.connectionFactory = connectionFactory;
+        this.dtlsControlPool = dtlsControlPool;
         this.nickname = nickname;
         this.serverInfo = host;
         this.conferenceInfo = conferenceInfo;
         this.mediaDeviceChooser = mdc;
         fakeUsers = new FakeUser[numberOfUser];
+        dtlsControlPool.fill(numberOfUser);
         if (!disableStats)
             hammerStats = new HammerStats();
 
@@ -191,6 +280,8 @@ public class Hammer
                 this.mediaDeviceChooser,
                 this.nickname+"_"+i,
                 (hammerStats != null));
+            if (hammerStats != null)
+                hammerStats.addSetupTimeline(fakeUsers[i].getSetupTimeline());
         }
         logger.info(String.format("Hammer created : %d fake users were created"
             + " with a base nickname %s", numberOfUser, nickname));
@@ -329,22 +420,65 @@ public class Hammer
         int statsPollingTime)
     {
         if(wait <= 0) wait = 1;
+        start(
+            new RampUpScheduler(1000D / wait),
+            credentials,
+            overallStats,
+            allStats,
+            summaryStats,
+            statsPollingTime);
+    }
+
+    /**
+     * Start the connection of all the virtual user that this <tt>Hammer</tt>
+     * handles to the XMPP server(and then a MUC), admitting them following
+     * the rate and profile of <tt>rampUpScheduler</tt>, and using the
+     * <tt>Credential</tt> given as arguments for the login.
+     *
+     * @param rampUpScheduler the <tt>RampUpScheduler</tt> deciding when each
+     * fake user is started, and how many can be starting at the same time.
+     * @param credentials a list of <tt>Credentials</tt> used for the login
+     * of the fake users.
+     * @param overallStats enable or not the logging of the overall stats
+     * computed at the end of the run.
+     * @param allStats enable or not the logging of the all the stats collected
+     * by the <tt>HammerStats</tt> during the run.
+     * @param summaryStats enable or not the logging of the dummary stats
+     * computed from all the streams' stats collected by the
+     * <tt>HammerStats</tt> during the run.
+     * @param statsPollingTime the number of seconds between two polling of stats
+     * by the <tt>HammerStats</tt> run method.
+     */
+    public void start(
+        RampUpScheduler rampUpScheduler,
+        List<Credential> credentials,
+        boolean overallStats,
+        boolean allStats,
+        boolean summaryStats,
+        int statsPollingTime)
+    {
         if(started)
         {
             logger.warn("Hammer already started");
             return;
         }
-        
+        this.rampUpScheduler = rampUpScheduler;
 
-        if (credentials != null)
-            startUsersWithCredentials(credentials, wait);
-        else
-            startUsersAnonymous(wait);
-        this.started = true;
-        logger.info("The Hammer has correctly been started");
+        if (metricsServer != null)
+            startMetrics();
 
+        // The stats (and the service level objectives) are polled during
+        // the ramp-up, when a saturated bridge is the most likely to show,
+        // and the users are added to them as they are started.
         if (!disableStats)
             startStats(overallStats, allStats, summaryStats, statsPollingTime);
+        this.started = true;
+
+        if (credentials != null)
+            startUsersWithCredentials(credentials);
+        else
+            startUsersAnonymous();
+        logger.info("The Hammer has correctly been started");
     }
 
     /**
@@ -352,73 +486,79 @@ public class Hammer
      *
      * @param credentials a list of <tt>Credentials</tt> used for the login of
      * the fake users.
-     * @param wait the number of milliseconds the Hammer will wait during the
-     * start of two consecutive fake users.
      */
-    private void startUsersWithCredentials(List<Credential> credentials, int wait)
+    private void startUsersWithCredentials(List<Credential> credentials)
     {
         logger.info("Starting the Hammer : starting all FakeUsers "
                             + "with username/password login");
-        try
+        List<Runnable> tasks = new ArrayList<>(fakeUsers.length);
+        Iterator<FakeUser> userIt = Arrays.asList(fakeUsers).iterator();
+        Iterator<Credential> credIt = credentials.iterator();
+
+        while(credIt.hasNext() && userIt.hasNext())
         {
-            Iterator<FakeUser> userIt = Arrays.asList(fakeUsers).iterator();
-            Iterator<Credential> credIt = credentials.iterator();
-            FakeUser user = null;
-            FakeUserStats userStats;
-            Credential credential = null;
+            final FakeUser user = userIt.next();
+            final Credential credential = credIt.next();
 
-            while(credIt.hasNext() && userIt.hasNext())
-            {
-                user = userIt.next();
-                credential = credIt.next();
-
-                user.start(credential.getUsername(),credential.getPassword());
-                if (hammerStats != null
-                        && (userStats = user.getFakeUserStats()) != null)
-                    hammerStats.addFakeUsersStats(userStats);
-                Thread.sleep(wait);
-            }
+            tasks.add(() -> startUser(user, credential));
         }
-        catch (XMPPException e)
+        runRampUp(tasks);
+    }
+
+    /**
+     * Start all fake users with anonymous login.
+     */
+    private void startUsersAnonymous()
+    {
+        logger.info("Starting the Hammer : starting all "
+                            + "FakeUsers with anonymous login");
+        List<Runnable> tasks = new ArrayList<>(fakeUsers.length);
+
+        for(final FakeUser user : fakeUsers)
         {
-            e.printStackTrace();
-            System.exit(1);
+            tasks.add(() -> startUser(user, null));
         }
-        catch (IOException e)
+        runRampUp(tasks);
+    }
+
+    /**
+     * Run the start tasks of the fake users with the
+     * <tt>RampUpScheduler</tt> of this <tt>Hammer</tt>.
+     *
+     * @param tasks the start tasks of the fake users.
+     */
+    private void runRampUp(List<Runnable> tasks)
+    {
+        try
         {
-            e.printStackTrace();
+            rampUpScheduler.run(tasks);
         }
         catch (InterruptedException e)
         {
             e.printStackTrace();
         }
-        catch (SmackException e)
-        {
-            e.printStackTrace();
-            System.exit(1);
-        }
     }
 
     /**
-     * Start all fake users with anonymous login.
-     * @param wait the number of milliseconds the Hammer will wait during the
-     * start of two consecutive fake users.
+     * Start a fake user (and register its stats to the <tt>HammerStats</tt>).
+     * This method is called by the threads of the <tt>RampUpScheduler</tt>.
+     *
+     * @param user the <tt>FakeUser</tt> to start.
+     * @param credential the <tt>Credential</tt> used for the login of
+     * <tt>user</tt>, or <tt>null</tt> for an anonymous login.
      */
-    private void startUsersAnonymous(int wait)
+    private void startUser(FakeUser user, Credential credential)
     {
-        logger.info("Starting the Hammer : starting all "
-                            + "FakeUsers with anonymous login");
         try
         {
-            for(FakeUser user : fakeUsers)
-            {
-                FakeUserStats userStats;
+            FakeUserStats userStats;
+            if (credential != null)
+                user.start(credential.getUsername(), credential.getPassword());
+            else
                 user.start();
-                if (hammerStats != null
-                        && (userStats = user.getFakeUserStats()) != null)
-                    hammerStats.addFakeUsersStats(userStats);
-                Thread.sleep(wait);
-            }
+            if (hammerStats != null
+                    && (userStats = user.getFakeUserStats()) != null)
+                hammerStats.addFakeUsersStats(userStats);
         }
         catch (XMPPException e)
         {
@@ -429,17 +569,13 @@ public class Hammer
         {
             e.printStackTrace();
         }
-        catch (InterruptedException e)
-        {
-            e.printStackTrace();
-        }
         catch (SmackException e)
         {
             e.printStackTrace();
             System.exit(1);
         }
-
     }
+
     /**
      * Start the <tt>HammerStats</tt> used by this <tt>Hammer</tt> to keep track
      * of the streams stats.
@@ -473,6 +609,100 @@ public class Hammer
     }
 
 
+    /**
+     * Start the <tt>MetricsServer</tt> of this <tt>Hammer</tt>, exposing the
+     * setup counters of the users and, at each polling, their streams stats.
+     * The run goes on without it if it cannot be started.
+     */
+    private void startMetrics()
+    {
+        metricsServer.addSource(this::appendSetupMetrics);
+        if (hammerStats != null)
+            hammerStats.setMetricsServer(metricsServer);
+        try
+        {
+            metricsServer.start();
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to start the metrics server", e);
+        }
+    }
+
+    /**
+     * Append the counters of the setup of the users (ramp-up, XMPP
+     * connections, session accept, offer negotiation) in the Prometheus text
+     * format. They are all read from atomic counters.
+     *
+     * @param out the <tt>StringBuilder</tt> the metrics are appended to.
+     */
+    private void appendSetupMetrics(StringBuilder out)
+    {
+        MetricsServer.appendHeader(out, "hammer_users", "gauge",
+            "The number of users of the Hammer.");
+        MetricsServer.appendSample(out, "hammer_users", null, fakeUsers.length);
+
+        RampUpScheduler scheduler = rampUpScheduler;
+        if (scheduler != null)
+        {
+            MetricsServer.appendHeader(out, "hammer_rampup_users", "gauge",
+                "The number of users admitted by the ramp-up, by state.");
+            MetricsServer.appendSample(out, "hammer_rampup_users",
+                "state=\"admitted\"", scheduler.getAdmitted());
+            MetricsServer.appendSample(out, "hammer_rampup_users",
+                "state=\"in_flight\"", scheduler.getInFlight());
+            MetricsServer.appendSample(out, "hammer_rampup_users",
+                "state=\"completed\"", scheduler.getCompleted());
+            MetricsServer.appendSample(out, "hammer_rampup_users",
+                "state=\"failed\"", scheduler.getFailed());
+        }
+
+        TransportStats transportStats = connectionFactory.getStats();
+        String transport = MetricsServer.label(
+            "transport",
+            transportStats.getTransport().toString().toLowerCase());
+        MetricsServer.appendHeader(out, "hammer_transport_setups_total",
+            "counter", "The number of XMPP connections set up, by result.");
+        MetricsServer.appendSample(out, "hammer_transport_setups_total",
+            transport + ",result=\"success\"", transportStats.getSetups());
+        MetricsServer.appendSample(out, "hammer_transport_setups_total",
+            transport + ",result=\"failure\"",
+            transportStats.getFailedSetups());
+        MetricsServer.appendHeader(out, "hammer_transport_setup_seconds",
+            "gauge", "The time taken to set up the XMPP connections.");
+        MetricsServer.appendSample(out, "hammer_transport_setup_seconds",
+            transport + ",aggregate=\"mean\"",
+            transportStats.getMeanSetupMs() / 1000D);
+        MetricsServer.appendSample(out, "hammer_transport_setup_seconds",
+            transport + ",aggregate=\"max\"",
+            transportStats.getMaxSetupMs() / 1000D);
+        MetricsServer.appendHeader(out, "hammer_transport_bytes_total",
+            "counter", "The bytes exchanged with the XMPP server.");
+        MetricsServer.appendSample(out, "hammer_transport_bytes_total",
+            transport + ",direction=\"sent\"", transportStats.getBytesSent());
+        MetricsServer.appendSample(out, "hammer_transport_bytes_total",
+            transport + ",direction=\"received\"",
+            transportStats.getBytesReceived());
+
+        MetricsServer.appendHeader(out, "hammer_session_accept_timeouts_total",
+            "counter", "The number of session accept stages that timed out.");
+        for (SessionAcceptPipeline.Stage stage
+                : SessionAcceptPipeline.Stage.values())
+        {
+            MetricsServer.appendSample(out,
+                "hammer_session_accept_timeouts_total",
+                MetricsServer.label("stage", stage.toString().toLowerCase()),
+                sessionAcceptPipeline.getTimeouts(stage));
+        }
+
+        MetricsServer.appendHeader(out, "hammer_offer_cache_total", "counter",
+            "The number of session-initiate offers, by cache result.");
+        MetricsServer.appendSample(out, "hammer_offer_cache_total",
+            "result=\"hit\"", offerCache.getHits());
+        MetricsServer.appendSample(out, "hammer_offer_cache_total",
+            "result=\"miss\"", offerCache.getMisses());
+    }
+
     /**
      * Stop the streams of all the fake users created, and disconnect them
      * from the MUC and the XMPP server.
@@ -480,6 +710,9 @@ public class Hammer
      */
     public void stop()
     {
+        if (rampUpScheduler != null)
+            rampUpScheduler.cancel();
+
         if (!this.started)
         {
             logger.warn("Hammer already stopped !");
@@ -487,10 +720,11 @@ public class Hammer
         }
 
         logger.info("Stoppig the Hammer : stopping all FakeUser");
-        for(FakeUser user : fakeUsers)
-        {
-            user.stop();
-        }
+        stopUsers();
+        sessionAcceptPipeline.shutdown();
+        connectionFactory.close();
+        logger.info(connectionFactory.getStats());
+        logger.info(offerCache.getStats());
 
         /*
          * Stop the thread of the HammerStats, without using the Thread
@@ -510,18 +744,61 @@ public class Hammer
             e.printStackTrace();
         }
 
+        HammerExecutors.logPinningReport();
+
+        if (metricsServer != null)
+            metricsServer.stop();
+
         this.started = false;
         logger.info("The Hammer has been correctly stopped");
     }
 
     /**
-     * Get the focus invitation sync object belonging to this <tt>Hammer</tt>
+     * Stop all the fake users : one after the other, or all at the same time
+     * (each on its own virtual thread) when the virtual threads are enabled.
+     */
+    private void stopUsers()
+    {
+        if (!HammerExecutors.isVirtualThreadsEnabled())
+        {
+            for(FakeUser user : fakeUsers)
+            {
+                user.stop();
+            }
+            return;
+        }
+
+        ThreadFactory threadFactory
+            = HammerExecutors.newThreadFactory("FakeUserStop-");
+        List<Thread> threads = new ArrayList<>(fakeUsers.length);
+
+        for(FakeUser user : fakeUsers)
+        {
+            Thread thread = threadFactory.newThread(user::stop);
+            thread.start();
+            threads.add(thread);
+        }
+        try
+        {
+            for(Thread thread : threads)
+            {
+                thread.join();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get the focus invitation lock belonging to this <tt>Hammer</tt>
      * 
-     * @return the focus invitation sync object
+     * @return the focus invitation lock
      */
-    public Object getFocusInvitationSyncRoot() 
+    public Lock getFocusInvitationLock()
     {
-        return this.focusInvitationSyncRoot;
+        return this.focusInvitationLock;
     }
 
     /**
@@ -544,6 +821,73 @@ public class Hammer
         this.focusInvited = focusInvited;
     }
 
+    /**
+     * Get the <tt>SessionAcceptPipeline</tt> used by the <tt>FakeUser</tt>s
+     * of this <tt>Hammer</tt> to accept their Jingle session.
+     *
+     * @return the <tt>SessionAcceptPipeline</tt> of this <tt>Hammer</tt>
+     */
+    public SessionAcceptPipeline getSessionAcceptPipeline()
+    {
+        return this.sessionAcceptPipeline;
+    }
+
+    /**
+     * Get the <tt>DtlsControlPool</tt> from which the <tt>FakeUser</tt>s of
+     * this <tt>Hammer</tt> take their <tt>DtlsControl</tt>.
+     *
+     * @return the <tt>DtlsControlPool</tt> of this <tt>Hammer</tt>
+     */
+    public DtlsControlPool getDtlsControlPool()
+    {
+        return this.dtlsControlPool;
+    }
+
+    /**
+     * Get the <tt>OfferCache</tt> used by the <tt>FakeUser</tt>s of this
+     * <tt>Hammer</tt> to negotiate their Jingle session.
+     *
+     * @return the <tt>OfferCache</tt> of this <tt>Hammer</tt>
+     */
+    public OfferCache getOfferCache()
+    {
+        return this.offerCache;
+    }
+
+    /**
+     * Set the <tt>MetricsServer</tt> exposing the metrics of this
+     * <tt>Hammer</tt>. It is started with this <tt>Hammer</tt>.
+     *
+     * @param metricsServer the <tt>MetricsServer</tt>, or <tt>null</tt>.
+     */
+    public void setMetricsServer(MetricsServer metricsServer)
+    {
+        this.metricsServer = metricsServer;
+    }
+
+    /**
+     * Get the <tt>HammerStats</tt> keeping track of the streams stats of the
+     * <tt>FakeUser</tt>s of this <tt>Hammer</tt>.
+     *
+     * @return the <tt>HammerStats</tt> of this <tt>Hammer</tt>, or
+     * <tt>null</tt> if the stats are disabled.
+     */
+    public HammerStats getHammerStats()
+    {
+        return this.hammerStats;
+    }
+
+    /**
+     * Get the <tt>FakeUserConnectionFactory</tt> creating the XMPP connections
+     * of the <tt>FakeUser</tt>s of this <tt>Hammer</tt>.
+     *
+     * @return the <tt>FakeUserConnectionFactory</tt> of this <tt>Hammer</tt>
+     */
+    public FakeUserConnectionFactory getConnectionFactory()
+    {
+        return this.connectionFactory;
+    }
+
     /**
      * Get the XMPP server information object associated 
      * with this <tt>Hammer</tt>
@@ -20,11 +20,15 @@ import java.awt.*;
 import java.io.*;
 import java.net.*;
 import java.util.List;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.impl.protocol.jabber.*;
 import net.java.sip.communicator.service.protocol.jabber.*;
 
+import org.jitsi.hammer.stats.*;
 import org.jitsi.hammer.utils.*;
+import org.jitsi.util.Logger;
+import org.jxmpp.stringprep.*;
 import org.kohsuke.args4j.*;
 
 /**
@@ -37,6 +41,12 @@ import org.kohsuke.args4j.*;
  */
 public class Main
 {
+    /**
+     * The <tt>Logger</tt> used by the <tt>Main</tt> class for logging
+     * output.
+     */
+    private static final Logger logger = Logger.getLogger(Main.class);
+
     /**
      * The name of the property that stores the home dir for cache data, such
      * as avatars and spelling dictionaries.
@@ -240,6 +250,18 @@ public class Main
         
         //We call initialize the Hammer (registering OSGi bundle for example)
         Hammer.init();
+
+        if(infoCLI.getVirtualThreads())
+        {
+            HammerExecutors.enableVirtualThreads(
+                infoCLI.getPinningThreshold());
+        }
+
+        // Counted down when the run has to end before its length, because
+        // of a breached service level objective.
+        final CountDownLatch runAborted = new CountDownLatch(1);
+        SloEvaluator sloEvaluator = infoCLI.getSloEvaluatorFromArguments();
+        Hammer hammer = null;
         try
         {
             HostInfo hostInfo = infoCLI.getHostInfoFromArguments();
@@ -252,34 +274,66 @@ public class Main
             ConferenceInfo conferenceInfo = 
                     infoCLI.getConferenceInfoFromArguments();
 
-            final Hammer hammer = new Hammer(
+            hammer = new Hammer(
                 hostInfo,
                 mdc,
                 "Jitsi-Hammer",
                 numberOfFakeUsers,
                     conferenceInfo,
-                    infoCLI.getDisableStats());
+                    infoCLI.getDisableStats(),
+                    infoCLI.getSessionAcceptPipelineFromArguments(),
+                    infoCLI.getConnectionFactoryFromArguments(hostInfo),
+                    infoCLI.getDtlsControlPoolFromArguments());
 
 
             //Cleanly stop the hammer when the program shutdown
+            final Hammer stoppedHammer = hammer;
             Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
             {
                 public void run()
                 {
                         System.out.println("Stopping Jitsi-Hammer...");
 
-                        hammer.stop();
+                        stoppedHammer.stop();
     
                         System.out.println("Exiting the program...");
                         }
                 }));
 
 
+            hammer.setMetricsServer(infoCLI.getMetricsServerFromArguments());
+            final RampUpScheduler rampUpScheduler
+                = infoCLI.getRampUpSchedulerFromArguments();
+            if (hammer.getHammerStats() != null)
+            {
+                hammer.getHammerStats().setAllStatsFormat(
+                    infoCLI.getStatsFormat());
+                hammer.getHammerStats().setStatsSampling(
+                    infoCLI.getStatsSampleFraction(),
+                    infoCLI.getStatsSampleSize());
+                if (sloEvaluator != null)
+                {
+                    // The ramp-up is cancelled as well, when the objective is
+                    // breached before all the users are started.
+                    sloEvaluator.setAbortHandler(() -> {
+                        rampUpScheduler.cancel();
+                        runAborted.countDown();
+                    });
+                    hammer.getHammerStats().setSloEvaluator(sloEvaluator);
+                }
+            }
+            else if (sloEvaluator != null)
+            {
+                logger.warn("The service level objectives can't be"
+                    + " checked without the stats, they are ignored.");
+                sloEvaluator = null;
+            }
+
             //After the initialization we start the Hammer (all its users will
             //connect to the XMPP server and try to setup media stream
             // with it bridge
             hammer.start(
-                infoCLI.getInterval(),
+                rampUpScheduler,
                 (credentials.size() > 0) ? credentials : null,
                 infoCLI.getOverallStats(),
                 infoCLI.getAllStats(),
@@ -295,17 +349,37 @@ public class Main
             e.printStackTrace();
             System.exit(-1);
         }
+        catch (XmppStringprepException e)
+        {
+            System.out.println("You provided an invalid component domain" +
+                    ". Will now print an exception stack trace " +
+                    "caused by this issue and exit.");
+            e.printStackTrace();
+            System.exit(-1);
+        }
         if(infoCLI.getRunLength() > 0)
         {
-            Thread.sleep(infoCLI.getRunLength() * 1000);
+            runAborted.await(infoCLI.getRunLength(), TimeUnit.SECONDS);
         }
         else
         {
-            while(true) Thread.sleep(3600000);
+            runAborted.await();
+        }
+
+        // The verdict is final once the stats are stopped, at the stop of the
+        // hammer (the shutdown hook then finds it stopped).
+        int status = 0;
+        if (sloEvaluator != null)
+        {
+            hammer.stop();
+            if (sloEvaluator.isAborted())
+                status = 2;
+            else if (!sloEvaluator.isPassed())
+                status = 3;
         }
 
         //It's necessary to finish Main() with an exit, to trigger the shutdown
         //hook that will stop the hammer
-        System.exit(0);
+        System.exit(status);
     }
 }
@@ -0,0 +1,711 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.media;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.hammer.utils.*;
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.format.*;
+import org.jitsi.util.Logger;
+
+/**
+ * Sends RTP packets in <tt>MediaStream</tt>s which have no
+ * <tt>MediaDevice</tt> : periodically, on the shared <tt>MediaClock</tt>,
+ * the packets that are due are produced once and fanned out to all the
+ * streams added to the sender, so that only the SRTP encryption and the
+ * statistics of libjitsi are left to do for each stream.
+ *
+ * The streams are split in shards, up to one per clock thread : each shard
+ * produces the packets for its own streams on its own clock thread, and the
+ * first runs of the shards are staggered over the period, so that a sender
+ * with many streams neither runs on a single core nor sends all their packets
+ * in one burst.
+ *
+ * For each stream, only the RTP header is rewritten : the packets have the
+ * SSRC of the stream (or of one of its simulcast layers), the payload type
+ * negotiated for its format, and their own sequence numbers and RTP
+ * timestamps, from random bases. The layers of a stream share the base of
+ * their RTP timestamps, and libjitsi only sends the RTCP sender reports of
+ * the SSRC of the stream, so the ones of the other layers are sent by the
+ * sender. A layer starts with the first packet a receiver can decode from
+ * (e.g. a VP8 key frame), whenever the stream is added, and the first audio
+ * packet of a stream has the marker bit of the start of a talkspurt.
+ */
+public abstract class MediaSender
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>MediaSender</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(MediaSender.class);
+
+    /**
+     * The size of the RTP header of the packets (without CSRC nor
+     * extension).
+     */
+    private static final int RTP_HEADER_SIZE = 12;
+
+    /**
+     * The room left at the end of the buffers of the packets, for the
+     * authentication tag added by SRTP without reallocating them.
+     */
+    private static final int SRTP_TRAILER_SIZE = 16;
+
+    /**
+     * The size of a RTCP sender report without report block.
+     */
+    private static final int SR_SIZE = 28;
+
+    /**
+     * The time (in milliseconds) between two sender reports of a layer.
+     */
+    private static final long REPORT_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The number of seconds from the NTP epoch (1900) to the Java epoch
+     * (1970).
+     */
+    private static final long NTP_EPOCH_OFFSET_SECONDS = 2208988800L;
+
+    /**
+     * The <tt>MediaClock</tt> running the shards.
+     */
+    private final MediaClock clock = MediaClock.getShared();
+
+    /**
+     * The shards of the streams, one per clock thread at most, created as
+     * the streams are added.
+     */
+    private final Shard[] shards = new Shard[clock.getThreadCount()];
+
+    /**
+     * The clock thread of the first shard, the next shards being on the
+     * next clock threads. It is random, so that the senders of different
+     * users do not all start on the same clock thread.
+     */
+    private final int firstThread
+        = ThreadLocalRandom.current().nextInt(shards.length);
+
+    /**
+     * The fraction of the period before the first run of the first shard,
+     * the first runs of the next shards being spread over the rest of the
+     * period.
+     */
+    private final double phase = ThreadLocalRandom.current().nextDouble();
+
+    /**
+     * Get whether the media of this sender can be sent in a stream of a
+     * given format.
+     *
+     * @param format the <tt>MediaFormat</tt> of the stream.
+     * @return <tt>true</tt> if the media is in the encoding of
+     * <tt>format</tt>.
+     */
+    protected abstract boolean matches(MediaFormat format);
+
+    /**
+     * Get the time between two runs of this sender.
+     *
+     * @return the time (in nanoseconds) between two runs of this sender.
+     */
+    protected abstract long getPeriodNanos();
+
+    /**
+     * Create a <tt>Shard</tt>, which produces the packets of this sender
+     * from its own position in the media.
+     *
+     * @return the new <tt>Shard</tt>.
+     */
+    protected abstract Shard createShard();
+
+    /**
+     * Start sending the packets in a <tt>MediaStream</tt>, with its SSRC, if
+     * it is in the encoding of the media.
+     *
+     * @param stream the <tt>MediaStream</tt>.
+     * @return the <tt>Destination</tt> to remove to stop sending the
+     * packets in <tt>stream</tt>, or <tt>null</tt> if the format of
+     * <tt>stream</tt> is not the one of the media.
+     */
+    public Destination addStream(MediaStream stream)
+    {
+        return addStream(stream, stream.getLocalSourceID());
+    }
+
+    /**
+     * Start sending the packets in a <tt>MediaStream</tt>, with given SSRCs
+     * (e.g. the SSRCs of the simulcast layers), if it is in the encoding of
+     * the media. The stream is added to a new shard while there are fewer
+     * shards than clock threads, then to the shard with the fewest streams.
+     *
+     * @param stream the <tt>MediaStream</tt>.
+     * @param ssrcs the SSRCs of the packets of the layers of the media,
+     * lowest first. The layers without SSRC are not sent.
+     * @return the <tt>Destination</tt> to remove to stop sending the
+     * packets in <tt>stream</tt>, or <tt>null</tt> if the format of
+     * <tt>stream</tt> is not the one of the media.
+     */
+    public synchronized Destination addStream(
+        MediaStream stream,
+        long... ssrcs)
+    {
+        MediaFormat format = stream.getFormat();
+        if (!matches(format))
+        {
+            logger.warn("Cannot send " + this + " in a stream of format "
+                + format);
+            return null;
+        }
+
+        byte payloadType = format.getRTPPayloadType();
+        if (payloadType == MediaFormat.RTP_PAYLOAD_TYPE_UNKNOWN)
+        {
+            for (Map.Entry<Byte, MediaFormat> e
+                    : stream.getDynamicRTPPayloadTypes().entrySet())
+            {
+                if (format.equals(e.getValue()))
+                {
+                    payloadType = e.getKey();
+                    break;
+                }
+            }
+        }
+
+        Shard shard = null;
+        for (int i = 0; i < shards.length; i++)
+        {
+            if (shards[i] == null)
+            {
+                shard = shards[i] = createShard();
+                shard.index = i;
+                break;
+            }
+            if (shard == null
+                || shards[i].destinations.size() < shard.destinations.size())
+            {
+                shard = shards[i];
+            }
+        }
+
+        Destination destination
+            = new Destination(
+                shard,
+                stream,
+                ssrcs,
+                payloadType,
+                MediaType.AUDIO.equals(format.getMediaType()));
+        shard.destinations.add(destination);
+        if (shard.timer == null)
+        {
+            long periodNanos = getPeriodNanos();
+            double offset = (phase + (double) shard.index / shards.length) % 1;
+            shard.timer = clock.schedule(
+                shard,
+                periodNanos,
+                (long) (offset * periodNanos),
+                TimeUnit.NANOSECONDS,
+                firstThread + shard.index);
+        }
+        return destination;
+    }
+
+    /**
+     * Stop sending the packets in the stream of a <tt>Destination</tt>, and
+     * stop the timer of its shard if it was its last destination.
+     *
+     * @param destination the <tt>Destination</tt>.
+     */
+    private synchronized void remove(Destination destination)
+    {
+        Shard shard = destination.shard;
+        shard.destinations.remove(destination);
+        if (shard.destinations.isEmpty() && shard.timer != null)
+        {
+            shard.timer.cancel();
+            shard.timer = null;
+        }
+    }
+
+    /**
+     * A shard of the streams of a <tt>MediaSender</tt> : it produces the
+     * packets of the sender for its streams, from its own position in the
+     * media, on its own clock thread.
+     */
+    protected abstract class Shard
+        implements Runnable
+    {
+        /**
+         * The <tt>Destination</tt>s of the packets of this shard.
+         */
+        private final List<Destination> destinations
+            = new CopyOnWriteArrayList<>();
+
+        /**
+         * The index of this shard in the shards of its sender.
+         */
+        private int index;
+
+        /**
+         * The <tt>Timer</tt> of the <tt>MediaClock</tt> running this shard,
+         * or <tt>null</tt> if it has no destination.
+         */
+        private MediaClock.Timer timer;
+
+        /**
+         * Produce the packets that are due, and <tt>emit</tt> them. It runs
+         * on the clock thread of this shard, at each period, and never
+         * concurrently.
+         */
+        protected abstract void send();
+
+        /**
+         * {@inheritDoc}
+         *
+         * Sends the packets that are due, if this shard has destinations.
+         */
+        @Override
+        public final void run()
+        {
+            if (!destinations.isEmpty())
+                send();
+        }
+
+        /**
+         * Send a packet in the streams of all the destinations of this
+         * shard.
+         *
+         * @param payload the buffer of the payload of the packet.
+         * @param offset the offset of the payload in <tt>payload</tt>.
+         * @param length the length of the payload.
+         * @param marker whether the marker bit is set.
+         * @param timestamp the RTP timestamp of the packet, before the offset
+         * of each destination is added.
+         * @param decodable whether a receiver can start decoding from the
+         * packet.
+         */
+        protected void emit(
+            byte[] payload,
+            int offset,
+            int length,
+            boolean marker,
+            long timestamp,
+            boolean decodable)
+        {
+            emit(0, payload, offset, length, marker, timestamp, decodable);
+        }
+
+        /**
+         * Send a packet of a layer in the streams of all the destinations of
+         * this shard which have the layer. The packets of the layers of a
+         * frame must have the same RTP timestamp, so that the layers stay
+         * aligned in the streams.
+         *
+         * @param layer the index of the layer.
+         * @param payload the buffer of the payload of the packet.
+         * @param offset the offset of the payload in <tt>payload</tt>.
+         * @param length the length of the payload.
+         * @param marker whether the marker bit is set.
+         * @param timestamp the RTP timestamp of the packet, before the offset
+         * of each destination is added.
+         * @param decodable whether a receiver can start decoding the layer
+         * from the packet.
+         */
+        protected void emit(
+            int layer,
+            byte[] payload,
+            int offset,
+            int length,
+            boolean marker,
+            long timestamp,
+            boolean decodable)
+        {
+            for (Destination destination : destinations)
+            {
+                destination.send(
+                    layer,
+                    payload,
+                    offset,
+                    length,
+                    marker,
+                    timestamp,
+                    decodable);
+            }
+        }
+    }
+
+    /**
+     * A <tt>MediaStream</tt> the packets of a <tt>MediaSender</tt> are sent
+     * in, with the RTP timestamps of its packets, shared by its layers.
+     */
+    public class Destination
+    {
+        /**
+         * The <tt>Shard</tt> producing the packets.
+         */
+        private final Shard shard;
+
+        /**
+         * The <tt>MediaStream</tt> the packets are sent in.
+         */
+        private final MediaStream stream;
+
+        /**
+         * The layers of the packets, with their own SSRC.
+         */
+        private final Layer[] layers;
+
+        /**
+         * The buffer the packets are built in, grown to the largest packet.
+         * SRTP encrypts the packets in place, so each stream needs its own
+         * copy of the payload, but libjitsi is done with it (it sent the
+         * packet, or queued a copy of it) once <tt>injectPacket</tt>
+         * returns, so it is reused for the next packet.
+         */
+        private byte[] buffer = new byte[0];
+
+        /**
+         * The <tt>RawPacket</tt> of <tt>buffer</tt>, reused as well.
+         */
+        private final RawPacket packet = new RawPacket();
+
+        /**
+         * The buffer the RTCP sender reports are built in.
+         */
+        private final byte[] report = new byte[SR_SIZE + SRTP_TRAILER_SIZE];
+
+        /**
+         * The <tt>RawPacket</tt> of <tt>report</tt>.
+         */
+        private final RawPacket reportPacket = new RawPacket();
+
+        /**
+         * The RTP timestamp of the first packet.
+         */
+        private final long timestampBase;
+
+        /**
+         * The offset added to the RTP timestamps of the packets of all the
+         * layers, set at the first packet so that it has the timestamp
+         * <tt>timestampBase</tt>.
+         */
+        private long timestampOffset;
+
+        /**
+         * Whether a packet was sent in a layer, and <tt>timestampOffset</tt>
+         * is set.
+         */
+        private boolean started = false;
+
+        /**
+         * Whether the packets are audio packets, whose first one starts a
+         * talkspurt.
+         */
+        private final boolean audio;
+
+        /**
+         * The number of packets that could not be injected.
+         */
+        private long failures = 0;
+
+        /**
+         * Whether this destination was removed.
+         */
+        private volatile boolean removed = false;
+
+        /**
+         * Initializes a <tt>Destination</tt>.
+         *
+         * @param shard the <tt>Shard</tt> producing the packets.
+         * @param stream the <tt>MediaStream</tt> the packets are sent in.
+         * @param ssrcs the SSRCs of the layers of the packets.
+         * @param payloadType the payload type of the packets.
+         * @param audio whether the packets are audio packets.
+         */
+        private Destination(
+            Shard shard,
+            MediaStream stream,
+            long[] ssrcs,
+            byte payloadType,
+            boolean audio)
+        {
+            this.shard = shard;
+            this.stream = stream;
+            this.audio = audio;
+
+            Random random = ThreadLocalRandom.current();
+            layers = new Layer[ssrcs.length];
+            for (int i = 0; i < ssrcs.length; i++)
+            {
+                layers[i] = new Layer(
+                    ssrcs[i],
+                    payloadType,
+                    random.nextInt(0x10000),
+                    ssrcs[i] != stream.getLocalSourceID());
+            }
+            timestampBase = random.nextInt() & 0xffffffffL;
+        }
+
+        /**
+         * Stop sending the packets in the stream. A packet being sent may
+         * still be injected when this method returns, before the stream is
+         * closed.
+         */
+        public void remove()
+        {
+            removed = true;
+            MediaSender.this.remove(this);
+        }
+
+        /**
+         * Inject a packet of a layer in the RTP send path of the stream,
+         * unless no packet was sent yet in the layer and a receiver cannot
+         * start decoding from it.
+         *
+         * @param index the index of the layer, the packets of the layers
+         * this destination does not have being dropped.
+         * @param payload the buffer of the payload of the packet.
+         * @param offset the offset of the payload in <tt>payload</tt>.
+         * @param length the length of the payload.
+         * @param marker whether the marker bit is set.
+         * @param timestamp the RTP timestamp of the packet, before the offset
+         * of this destination is added.
+         * @param decodable whether a receiver can start decoding from the
+         * packet.
+         */
+        private void send(
+            int index,
+            byte[] payload,
+            int offset,
+            int length,
+            boolean marker,
+            long timestamp,
+            boolean decodable)
+        {
+            if (index >= layers.length)
+                return;
+
+            Layer layer = layers[index];
+            if (!layer.started)
+            {
+                if (!decodable)
+                    return;
+
+                // The first audio packet starts a talkspurt.
+                layer.started = true;
+                marker |= audio;
+                if (!started)
+                {
+                    started = true;
+                    timestampOffset = timestampBase - timestamp;
+                }
+            }
+
+            long ts = (timestamp + timestampOffset) & 0xffffffffL;
+            byte[] header = layer.header;
+            int sequenceNumber = layer.sequenceNumber;
+            header[1] = (byte) ((marker ? 0x80 : 0) | (header[1] & 0x7f));
+            header[2] = (byte) (sequenceNumber >> 8);
+            header[3] = (byte) sequenceNumber;
+            header[4] = (byte) (ts >> 24);
+            header[5] = (byte) (ts >> 16);
+            header[6] = (byte) (ts >> 8);
+            header[7] = (byte) ts;
+            layer.sequenceNumber = (sequenceNumber + 1) & 0xffff;
+            layer.packetCount++;
+            layer.octetCount += length;
+
+            int size = RTP_HEADER_SIZE + length;
+            if (buffer.length < size + SRTP_TRAILER_SIZE)
+                buffer = new byte[size + SRTP_TRAILER_SIZE];
+            System.arraycopy(header, 0, buffer, 0, RTP_HEADER_SIZE);
+            System.arraycopy(payload, offset, buffer, RTP_HEADER_SIZE, length);
+            inject(packet, buffer, size, true, layer);
+
+            // libjitsi only reports the local SSRC of the stream, the
+            // sender reports of the other layers are sent at their frame
+            // ends.
+            if (marker && layer.reported)
+            {
+                long now = System.currentTimeMillis();
+                if (now - layer.lastReportMillis >= REPORT_INTERVAL_MILLIS)
+                {
+                    layer.lastReportMillis = now;
+                    writeSenderReport(layer, now, ts);
+                    inject(reportPacket, report, SR_SIZE, false, layer);
+                }
+            }
+        }
+
+        /**
+         * Write the RTCP sender report (RFC 3550) of a layer in
+         * <tt>report</tt>.
+         *
+         * @param layer the layer.
+         * @param now the current time (in milliseconds since the epoch).
+         * @param ts the RTP timestamp of the current frame of the layer.
+         */
+        private void writeSenderReport(Layer layer, long now, long ts)
+        {
+            long ntpSeconds = now / 1000 + NTP_EPOCH_OFFSET_SECONDS;
+            long ntpFraction = ((now % 1000) << 32) / 1000;
+
+            report[0] = (byte) 0x80;
+            report[1] = (byte) 200;
+            report[2] = 0;
+            report[3] = (byte) (SR_SIZE / 4 - 1);
+            System.arraycopy(layer.header, 8, report, 4, 4);
+            writeInt(report, 8, ntpSeconds);
+            writeInt(report, 12, ntpFraction);
+            writeInt(report, 16, ts);
+            writeInt(report, 20, layer.packetCount);
+            writeInt(report, 24, layer.octetCount);
+        }
+
+        /**
+         * Inject a packet in the send path of the stream.
+         *
+         * @param packet the <tt>RawPacket</tt> of the packet.
+         * @param buffer the buffer of the packet.
+         * @param size the size of the packet, from the start of
+         * <tt>buffer</tt>.
+         * @param data <tt>true</tt> for a RTP packet, <tt>false</tt> for a
+         * RTCP packet.
+         * @param layer the layer of the packet.
+         */
+        private void inject(
+            RawPacket packet,
+            byte[] buffer,
+            int size,
+            boolean data,
+            Layer layer)
+        {
+            // The transformers of the stream may have moved the packet to
+            // another buffer, or changed its bounds.
+            packet.setBuffer(buffer);
+            packet.setOffset(0);
+            packet.setLength(size);
+
+            try
+            {
+                stream.injectPacket(packet, data, null);
+            }
+            catch (TransmissionFailedException e)
+            {
+                if (failures++ == 0 && !removed)
+                {
+                    logger.warn("Failed to inject a packet of "
+                        + MediaSender.this + " with the SSRC "
+                        + (layer.ssrc & 0xffffffffL)
+                        + ", the next failures are not logged : " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the 32 low bits of a value in a buffer, in network order.
+     *
+     * @param buffer the buffer.
+     * @param offset the offset of the value in <tt>buffer</tt>.
+     * @param value the value.
+     */
+    private static void writeInt(byte[] buffer, int offset, long value)
+    {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * A layer of the packets of a <tt>Destination</tt> (e.g. a simulcast
+     * layer), with the fields of the RTP header of its packets.
+     */
+    private static class Layer
+    {
+        /**
+         * The SSRC of the packets.
+         */
+        private final long ssrc;
+
+        /**
+         * The header of the packets : the version, the payload type and the
+         * SSRC are written once, the other fields are rewritten for each
+         * packet.
+         */
+        private final byte[] header = new byte[RTP_HEADER_SIZE];
+
+        /**
+         * The sequence number of the next packet.
+         */
+        private int sequenceNumber;
+
+        /**
+         * Whether a packet was sent, so that the next packets are sent even
+         * if a receiver cannot start decoding from them.
+         */
+        private boolean started = false;
+
+        /**
+         * Whether the sender reports of the layer are sent by the
+         * <tt>Destination</tt>, rather than by libjitsi.
+         */
+        private final boolean reported;
+
+        /**
+         * The number of packets sent.
+         */
+        private long packetCount = 0;
+
+        /**
+         * The number of payload octets sent.
+         */
+        private long octetCount = 0;
+
+        /**
+         * The time (in milliseconds since the epoch) of the last sender
+         * report.
+         */
+        private long lastReportMillis = 0;
+
+        /**
+         * Initializes a <tt>Layer</tt>.
+         *
+         * @param ssrc the SSRC of the packets.
+         * @param payloadType the payload type of the packets.
+         * @param sequenceNumber the sequence number of the first packet.
+         * @param reported whether the sender reports of the layer are sent
+         * by the <tt>Destination</tt>.
+         */
+        private Layer(
+            long ssrc,
+            byte payloadType,
+            int sequenceNumber,
+            boolean reported)
+        {
+            this.ssrc = ssrc;
+            this.sequenceNumber = sequenceNumber;
+            this.reported = reported;
+
+            header[0] = (byte) 0x80;
+            header[1] = (byte) (payloadType & 0x7f);
+            writeInt(header, 8, ssrc);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.media;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+import javax.media.*;
+import javax.media.control.*;
+import javax.media.format.*;
+import javax.media.protocol.*;
+
+import org.jitsi.hammer.utils.*;
+import org.jitsi.impl.neomedia.codec.*;
+import org.jitsi.impl.neomedia.jmfext.media.protocol.*;
+import org.jitsi.service.neomedia.codec.*;
+
+/**
+ * Implements a <tt>CaptureDevice</tt> which provides the VP8 frames of a
+ * shared <tt>PreEncodedSource</tt>, already encoded, so that libjitsi only
+ * packetizes them. Each stream reads the frames from its own position, in a
+ * loop from a random key frame, and is ticked by the shared
+ * <tt>MediaClock</tt> at the frame rate of the source.
+ */
+public class PreEncodedCaptureDevice
+    extends AbstractPushBufferCaptureDevice
+{
+    /**
+     * The frames provided by this <tt>CaptureDevice</tt>.
+     */
+    private final PreEncodedSource source;
+
+    /**
+     * Initializes a <tt>PreEncodedCaptureDevice</tt>.
+     *
+     * @param source the VP8 frames provided by the new instance.
+     */
+    public PreEncodedCaptureDevice(PreEncodedSource source)
+    {
+        this.source = source;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Implements
+     * {@link AbstractPushBufferCaptureDevice#createStream(int, FormatControl)}.
+     */
+    @Override
+    protected PreEncodedStream createStream(
+            int streamIndex,
+            FormatControl formatControl)
+    {
+        return new PreEncodedStream(this, formatControl);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Overrides the super implementation in order to return the VP8 format
+     * because the super looks it up by <tt>CaptureDeviceInfo</tt> and this
+     * instance does not have one.
+     */
+    @Override
+    protected Format[] getSupportedFormats(int streamIndex)
+    {
+        return new Format[] { new VideoFormat(Constants.VP8) };
+    }
+
+    /**
+     * Implements a <tt>PushBufferStream</tt> which provides the frames of
+     * the <tt>PreEncodedSource</tt> of its <tt>PreEncodedCaptureDevice</tt>.
+     */
+    private static class PreEncodedStream
+        extends AbstractPushBufferStream<PreEncodedCaptureDevice>
+        implements Runnable
+    {
+        /**
+         * The frames provided by this instance.
+         */
+        private final PreEncodedSource source;
+
+        /**
+         * The view of the buffer of the frames the frames are read from.
+         */
+        private final ByteBuffer view;
+
+        /**
+         * The index of the next frame.
+         */
+        private int frameIndex;
+
+        /**
+         * The indicator which determines whether {@link #start()} has been
+         * invoked on this instance without an intervening {@link #stop()}.
+         */
+        private boolean started;
+
+        /**
+         * The <tt>Timer</tt> of the shared <tt>MediaClock</tt> which ticks
+         * the clock of this instance, or <tt>null</tt> if it is not started.
+         */
+        private MediaClock.Timer timer;
+
+        /**
+         * The <tt>Thread</tt> of the <tt>MediaClock</tt> which is pushing
+         * available media data out of this instance to its consumer i.e.
+         * <tt>BufferTransferHandler</tt>, or <tt>null</tt>.
+         */
+        private Thread tickThread;
+
+        /**
+         * Initializes a new <tt>PreEncodedStream</tt> which is to be exposed
+         * by a specific <tt>PreEncodedCaptureDevice</tt> and which is to have
+         * its <tt>Format</tt>-related information abstracted by a specific
+         * <tt>FormatControl</tt>.
+         *
+         * @param dataSource the <tt>PreEncodedCaptureDevice</tt> which is
+         * initializing the new instance and which is to expose it in its array
+         * of <tt>PushBufferStream</tt>s
+         * @param formatControl the <tt>FormatControl</tt> which is to abstract
+         * the <tt>Format</tt>-related information of the new instance
+         */
+        public PreEncodedStream(
+                PreEncodedCaptureDevice dataSource,
+                FormatControl formatControl)
+        {
+            super(dataSource, formatControl);
+            source = dataSource.source;
+            view = source.createView();
+            frameIndex
+                = source.getRandomStartIndex(ThreadLocalRandom.current());
+        }
+
+        /**
+         * Reads the next frame into a specific <tt>Buffer</tt>.
+         *
+         * @param buffer the <tt>Buffer</tt> to write the frame into
+         * @throws IOException never, the frames being in memory
+         */
+        @Override
+        public void read(Buffer buffer)
+            throws IOException
+        {
+            int size = source.getFrameSize(frameIndex);
+            byte[] data
+                = AbstractCodec2.validateByteArraySize(buffer, size, false);
+
+            view.position(source.getFrameOffset(frameIndex));
+            view.get(data, 0, size);
+            buffer.setFlags(
+                Buffer.FLAG_SYSTEM_TIME
+                    | Buffer.FLAG_LIVE_DATA
+                    | (source.isKeyFrame(frameIndex)
+                        ? Buffer.FLAG_KEY_FRAME : 0));
+            frameIndex = (frameIndex + 1) % source.getFrameCount();
+
+            buffer.setFormat(getFormat());
+            buffer.setLength(size);
+            buffer.setOffset(0);
+            buffer.setTimeStamp(System.nanoTime());
+        }
+
+        /**
+         * Runs on a thread of the shared <tt>MediaClock</tt> at each frame,
+         * and pushes the frame out of this instance to its consumer i.e.
+         * <tt>BufferTransferHandler</tt>.
+         */
+        @Override
+        public void run()
+        {
+            synchronized (this)
+            {
+                /*
+                 * If this PreEncodedStream has been stopped, the clock no
+                 * longer has the right to touch it.
+                 */
+                if (!started)
+                    return;
+                tickThread = Thread.currentThread();
+            }
+
+            try
+            {
+                BufferTransferHandler transferHandler = this.transferHandler;
+
+                if (transferHandler != null)
+                    transferHandler.transferData(this);
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    tickThread = null;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Starts the transfer of media data from this instance.
+         *
+         * @throws IOException if an error has prevented the start of the
+         * transfer of media from this instance
+         */
+        @Override
+        public synchronized void start()
+            throws IOException
+        {
+            if (timer == null)
+            {
+                timer
+                    = MediaClock.getShared().schedule(
+                            this,
+                            source.getFrameNanos(),
+                            TimeUnit.NANOSECONDS);
+                started = true;
+            }
+        }
+
+        /**
+         * Stops the transfer of media data from this instance.
+         *
+         * @throws IOException if an error has prevented the stopping of the
+         * transfer of media from this instance
+         */
+        @Override
+        public synchronized void stop()
+            throws IOException
+        {
+            this.started = false;
+            if (timer != null)
+            {
+                timer.cancel();
+                timer = null;
+            }
+
+            /*
+             * Wait for the tick in progress, unless it is the one stopping
+             * this instance.
+             */
+            boolean interrupted = false;
+
+            while ((tickThread != null)
+                    && (tickThread != Thread.currentThread()))
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ie)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
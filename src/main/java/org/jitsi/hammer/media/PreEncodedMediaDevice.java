@@ -0,0 +1,82 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.media;
+
+import javax.media.protocol.*;
+
+import org.jitsi.impl.neomedia.device.*;
+import org.jitsi.service.neomedia.*;
+
+/**
+ * Implements a video <tt>MediaDevice</tt> which provides the VP8 frames of a
+ * <tt>PreEncodedSource</tt> shared by all the users, in place of the
+ * <tt>IVFMediaDevice</tt> of libjitsi which reads its IVF file for each
+ * stream.
+ */
+public class PreEncodedMediaDevice
+    extends MediaDeviceImpl
+{
+    /**
+     * The frames provided by this <tt>MediaDevice</tt>.
+     */
+    private final PreEncodedSource source;
+
+    /**
+     * Initializes a <tt>PreEncodedMediaDevice</tt>.
+     *
+     * @param source the VP8 frames provided by the new instance.
+     */
+    public PreEncodedMediaDevice(PreEncodedSource source)
+    {
+        super(MediaType.VIDEO);
+        this.source = source;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Overrides the super implementation to initialize a <tt>CaptureDevice</tt>
+     * without asking FMJ to initialize one for a <tt>CaptureDeviceInfo</tt>.
+     */
+    @Override
+    protected CaptureDevice createCaptureDevice()
+    {
+        return new PreEncodedCaptureDevice(source);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Overrides the super implementation to always return
+     * {@link MediaDirection#SENDRECV} because the super bases the
+     * <tt>MediaDirection</tt> on the <tt>CaptureDeviceInfo</tt> which this
+     * instance does not have.
+     */
+    @Override
+    public MediaDirection getDirection()
+    {
+        return MediaDirection.SENDRECV;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + " of " + source;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.media;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.service.neomedia.format.*;
+
+/**
+ * Sends the frames of a <tt>PreEncodedSource</tt>, or of the
+ * <tt>PreEncodedSource</tt>s of the simulcast layers of a video, in a loop
+ * from a random key frame : at each frame, each shard of the streams reads
+ * and packetizes its frame once in RTP packets, which are sent in all its
+ * streams.
+ *
+ * The layers are sent from the same frame index, with the same RTP
+ * timestamps, as the layers of a WebRTC endpoint, so that a receiver
+ * switching from a layer to another one does not see the video jump. The
+ * layers should have the same frame rate, and they loop at the end of the
+ * shortest one.
+ *
+ * The Opus frames are sent in a single packet each, the VP8 frames are
+ * split in packets with a payload descriptor (RFC 7741) carrying a
+ * PictureID.
+ */
+public class PreEncodedSender
+    extends MediaSender
+{
+    /**
+     * The size of the VP8 payload descriptor of the packets : the X and I
+     * bits set, with a 15 bits PictureID.
+     */
+    private static final int VP8_DESCRIPTOR_SIZE = 4;
+
+    /**
+     * The maximum size of the payload of a packet.
+     */
+    private static final int MAX_PAYLOAD_SIZE = 1200;
+
+    /**
+     * The frames sent, one <tt>PreEncodedSource</tt> per layer, lowest
+     * first.
+     */
+    private final PreEncodedSource[] layers;
+
+    /**
+     * Whether the frames are VP8 frames.
+     */
+    private final boolean vp8;
+
+    /**
+     * The number of frames sent in a loop : the number of frames of the
+     * shortest layer.
+     */
+    private final int frameCount;
+
+    /**
+     * The indexes of the frames the shards start from : the frames which
+     * are key frames in all the layers, or in the first layer if there are
+     * none.
+     */
+    private final int[] startIndexes;
+
+    /**
+     * Initializes a <tt>PreEncodedSender</tt>.
+     *
+     * @param layers the frames sent, one <tt>PreEncodedSource</tt> per
+     * layer, lowest first.
+     */
+    public PreEncodedSender(PreEncodedSource... layers)
+    {
+        this.layers = layers;
+        this.vp8 = PreEncodedSource.VP8.equals(layers[0].getEncoding());
+
+        int count = Integer.MAX_VALUE;
+        for (PreEncodedSource layer : layers)
+            count = Math.min(count, layer.getFrameCount());
+        frameCount = count;
+
+        int[] indexes = getKeyFrameIndexes(layers);
+        if (indexes.length == 0)
+            indexes = getKeyFrameIndexes(layers[0]);
+        if (indexes.length == 0)
+            indexes = new int[] { 0 };
+        startIndexes = indexes;
+    }
+
+    /**
+     * Get the indexes of the frames, in the loop of this sender, which are
+     * key frames in all of a set of layers.
+     *
+     * @param sources the layers.
+     * @return the indexes of the frames which are key frames in all the
+     * layers of <tt>sources</tt>.
+     */
+    private int[] getKeyFrameIndexes(PreEncodedSource... sources)
+    {
+        int[] indexes = new int[frameCount];
+        int count = 0;
+        for (int i = 0; i < frameCount; i++)
+        {
+            boolean keyFrame = true;
+            for (PreEncodedSource source : sources)
+                keyFrame &= source.isKeyFrame(i);
+            if (keyFrame)
+                indexes[count++] = i;
+        }
+        return Arrays.copyOf(indexes, count);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean matches(MediaFormat format)
+    {
+        return layers[0].matches(format);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The frames are sent one at a time, at the rate of the first layer.
+     */
+    @Override
+    protected long getPeriodNanos()
+    {
+        return layers[0].getFrameNanos();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Shard createShard()
+    {
+        return new FrameShard();
+    }
+
+    /**
+     * A shard of the streams of a <tt>PreEncodedSender</tt>, which reads
+     * the frames of all the layers from its own random key frame.
+     */
+    private class FrameShard
+        extends Shard
+    {
+        /**
+         * The views of the buffers of the frames of the layers the frames
+         * are read from.
+         */
+        private final ByteBuffer[] views = new ByteBuffer[layers.length];
+
+        /**
+         * The buffer in which the payloads of the packets are built.
+         */
+        private final byte[] payload;
+
+        /**
+         * The RTP timestamp of the next frame, shared by the layers.
+         */
+        private long timestamp = 0;
+
+        /**
+         * The VP8 PictureID of the next frame.
+         */
+        private int pictureId = 0;
+
+        /**
+         * The index of the next frame in the <tt>PreEncodedSource</tt>s.
+         */
+        private int frameIndex = startIndexes[
+            ThreadLocalRandom.current().nextInt(startIndexes.length)];
+
+        /**
+         * Initializes a <tt>FrameShard</tt>.
+         */
+        private FrameShard()
+        {
+            int maxFrameSize = 0;
+            for (int i = 0; i < layers.length; i++)
+            {
+                views[i] = layers[i].createView();
+                maxFrameSize
+                    = Math.max(maxFrameSize, layers[i].getMaxFrameSize());
+            }
+            payload = new byte[vp8 ? MAX_PAYLOAD_SIZE : maxFrameSize];
+        }
+
+        /**
+         * Send the next frame of all the layers.
+         */
+        @Override
+        protected void send()
+        {
+            for (int i = 0; i < layers.length; i++)
+                send(i);
+
+            pictureId = (pictureId + 1) & 0x7fff;
+            timestamp = (timestamp + layers[0].getTimestampIncrement())
+                & 0xffffffffL;
+            frameIndex = (frameIndex + 1) % frameCount;
+        }
+
+        /**
+         * Send the next frame of a layer.
+         *
+         * @param layer the index of the layer.
+         */
+        private void send(int layer)
+        {
+            PreEncodedSource source = layers[layer];
+            ByteBuffer view = views[layer];
+            int size = source.getFrameSize(frameIndex);
+            view.position(source.getFrameOffset(frameIndex));
+            if (vp8)
+            {
+                boolean keyFrame = source.isKeyFrame(frameIndex);
+                int maxLength = MAX_PAYLOAD_SIZE - VP8_DESCRIPTOR_SIZE;
+                for (int offset = 0; offset < size; offset += maxLength)
+                {
+                    int length = Math.min(maxLength, size - offset);
+                    payload[0] = (byte) (0x80 | (offset == 0 ? 0x10 : 0));
+                    payload[1] = (byte) 0x80;
+                    payload[2] = (byte) (0x80 | (pictureId >> 8));
+                    payload[3] = (byte) pictureId;
+                    view.get(payload, VP8_DESCRIPTOR_SIZE, length);
+                    emit(
+                        layer,
+                        payload,
+                        0,
+                        VP8_DESCRIPTOR_SIZE + length,
+                        offset + length == size,
+                        timestamp,
+                        keyFrame && offset == 0);
+                }
+            }
+            else
+            {
+                // The marker bit of the first packet of the talkspurt is set
+                // by each destination.
+                view.get(payload, 0, size);
+                emit(layer, payload, 0, size, false, timestamp, true);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return (layers.length == 1)
+            ? layers[0].toString() : Arrays.toString(layers);
+    }
+}
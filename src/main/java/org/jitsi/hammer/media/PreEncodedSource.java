@@ -0,0 +1,462 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.media;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.service.neomedia.format.*;
+
+/**
+ * A sequence of pre-encoded frames, shared by all the fake users : they loop
+ * over it instead of encoding their own media, so the frames are encoded (or
+ * read) only once for the whole run.
+ *
+ * The frames of an IVF file are not copied in the heap : the file is
+ * memory-mapped once, and indexed into a table of the offset, size, key
+ * frame flag and timestamp of each frame. The users read the frames through
+ * their own view of the mapping, from their own position.
+ */
+public class PreEncodedSource
+{
+    /**
+     * The encoding of the Opus frames.
+     */
+    public static final String OPUS = "opus";
+
+    /**
+     * The encoding of the VP8 frames.
+     */
+    public static final String VP8 = "VP8";
+
+    /**
+     * The Opus frame of 20 ms of silence (a CELT-only, full band, 20 ms
+     * frame with no coded data), as sent by the WebRTC endpoints during
+     * their discontinuous transmission.
+     */
+    private static final byte[] OPUS_SILENCE_FRAME
+        = { (byte) 0xf8, (byte) 0xff, (byte) 0xfe };
+
+    /**
+     * The RTP clock rate of Opus.
+     */
+    private static final int OPUS_CLOCK_RATE = 48000;
+
+    /**
+     * The RTP clock rate of VP8.
+     */
+    private static final int VP8_CLOCK_RATE = 90000;
+
+    /**
+     * The size of the header of an IVF file.
+     */
+    private static final int IVF_HEADER_SIZE = 32;
+
+    /**
+     * The size of the header of a frame of an IVF file.
+     */
+    private static final int IVF_FRAME_HEADER_SIZE = 12;
+
+    /**
+     * The encoding of the frames.
+     */
+    private final String encoding;
+
+    /**
+     * The buffer of the frames (the memory-mapped IVF file). Its position and
+     * limit are never changed, it is read through duplicates.
+     */
+    private final ByteBuffer data;
+
+    /**
+     * The offsets of the frames in <tt>data</tt>, in the order they are sent.
+     */
+    private final int[] offsets;
+
+    /**
+     * The sizes of the frames.
+     */
+    private final int[] sizes;
+
+    /**
+     * The frames from which a receiver can start decoding, as a set of
+     * indexes.
+     */
+    private final BitSet keyFrames;
+
+    /**
+     * The indexes of the frames from which a receiver can start decoding.
+     */
+    private final int[] keyFrameIndexes;
+
+    /**
+     * The presentation timestamps of the frames, in the time base of the
+     * file.
+     */
+    private final long[] pts;
+
+    /**
+     * The maximum size of the frames.
+     */
+    private final int maxFrameSize;
+
+    /**
+     * The duration (in nanoseconds) of a frame.
+     */
+    private final long frameNanos;
+
+    /**
+     * The increment of the RTP timestamp from one frame to the next.
+     */
+    private final int timestampIncrement;
+
+    /**
+     * The width of the video frames, or 0.
+     */
+    private final int width;
+
+    /**
+     * The height of the video frames, or 0.
+     */
+    private final int height;
+
+    /**
+     * Initializes a <tt>PreEncodedSource</tt>.
+     *
+     * @param encoding the encoding of the frames.
+     * @param data the buffer of the frames.
+     * @param offsets the offsets of the frames in <tt>data</tt>, in the order
+     * they are sent.
+     * @param sizes the sizes of the frames.
+     * @param keyFrames the frames from which a receiver can start decoding.
+     * @param pts the presentation timestamps of the frames.
+     * @param frameNanos the duration (in nanoseconds) of a frame.
+     * @param clockRate the RTP clock rate of the encoding.
+     * @param width the width of the video frames, or 0.
+     * @param height the height of the video frames, or 0.
+     */
+    private PreEncodedSource(
+        String encoding,
+        ByteBuffer data,
+        int[] offsets,
+        int[] sizes,
+        BitSet keyFrames,
+        long[] pts,
+        long frameNanos,
+        int clockRate,
+        int width,
+        int height)
+    {
+        this.encoding = encoding;
+        this.data = data;
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.keyFrames = keyFrames;
+        this.pts = pts;
+        this.frameNanos = frameNanos;
+        this.timestampIncrement
+            = (int) (clockRate * frameNanos / TimeUnit.SECONDS.toNanos(1));
+        this.width = width;
+        this.height = height;
+
+        int maxFrameSize = 0;
+        for (int size : sizes)
+            maxFrameSize = Math.max(maxFrameSize, size);
+        this.maxFrameSize = maxFrameSize;
+
+        keyFrameIndexes = new int[keyFrames.cardinality()];
+        for (int i = keyFrames.nextSetBit(0), j = 0;
+                i >= 0;
+                i = keyFrames.nextSetBit(i + 1))
+        {
+            keyFrameIndexes[j++] = i;
+        }
+    }
+
+    /**
+     * Create a <tt>PreEncodedSource</tt> of Opus silence : the same 20 ms
+     * frame over and over.
+     *
+     * @return the <tt>PreEncodedSource</tt> of Opus silence.
+     */
+    public static PreEncodedSource createOpusSilence()
+    {
+        BitSet keyFrames = new BitSet();
+        keyFrames.set(0);
+        return new PreEncodedSource(
+            OPUS,
+            ByteBuffer.wrap(OPUS_SILENCE_FRAME).asReadOnlyBuffer(),
+            new int[] { 0 },
+            new int[] { OPUS_SILENCE_FRAME.length },
+            keyFrames,
+            new long[] { 0 },
+            TimeUnit.MILLISECONDS.toNanos(20),
+            OPUS_CLOCK_RATE,
+            0,
+            0);
+    }
+
+    /**
+     * Create a <tt>PreEncodedSource</tt> of the VP8 frames of an IVF file,
+     * at its frame rate. The file is memory-mapped, and its frames are
+     * indexed. It has to start with a key frame, which is the case of the
+     * files written by the encoders, so that the loop restarts on it.
+     *
+     * @param path the path of the IVF file.
+     * @return the <tt>PreEncodedSource</tt> of the frames of the file.
+     * @throws IOException if the file cannot be mapped, or is not a VP8 IVF
+     * file.
+     */
+    public static PreEncodedSource readIVF(String path)
+        throws IOException
+    {
+        ByteBuffer buf;
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"))
+        {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Too large IVF file : " + path);
+            // The mapping stays valid once the channel is closed.
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (buf.limit() < IVF_HEADER_SIZE
+                || buf.getInt(0) != 0x46494b44 /* DKIF */
+                || buf.getInt(8) != 0x30385056 /* VP80 */)
+        {
+            throw new IOException("Not a VP8 IVF file : " + path);
+        }
+        int width = buf.getShort(12) & 0xffff;
+        int height = buf.getShort(14) & 0xffff;
+        long rate = buf.getInt(16) & 0xffffffffL;
+        long scale = buf.getInt(20) & 0xffffffffL;
+        long frameNanos
+            = (rate == 0 || scale == 0)
+                ? TimeUnit.SECONDS.toNanos(1) / 30
+                : TimeUnit.SECONDS.toNanos(1) * scale / rate;
+
+        int capacity = 1024;
+        int[] offsets = new int[capacity];
+        int[] sizes = new int[capacity];
+        long[] pts = new long[capacity];
+        BitSet keyFrames = new BitSet();
+        int count = 0;
+        int position = buf.getShort(6) & 0xffff;
+        while (position + IVF_FRAME_HEADER_SIZE <= buf.limit())
+        {
+            int size = buf.getInt(position);
+            int offset = position + IVF_FRAME_HEADER_SIZE;
+            if (size <= 0 || size > buf.limit() - offset)
+                break;
+
+            if (count == capacity)
+            {
+                capacity *= 2;
+                offsets = Arrays.copyOf(offsets, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                pts = Arrays.copyOf(pts, capacity);
+            }
+            offsets[count] = offset;
+            sizes[count] = size;
+            pts[count] = buf.getLong(position + 4);
+            // The P bit of the VP8 payload header is 0 for a key frame.
+            if ((buf.get(offset) & 0x01) == 0)
+                keyFrames.set(count);
+            count++;
+            position = offset + size;
+        }
+        if (count == 0 || !keyFrames.get(0))
+            throw new IOException("No VP8 key frame at the start of " + path);
+
+        return new PreEncodedSource(
+            VP8,
+            buf.order(ByteOrder.BIG_ENDIAN),
+            Arrays.copyOf(offsets, count),
+            Arrays.copyOf(sizes, count),
+            keyFrames,
+            Arrays.copyOf(pts, count),
+            frameNanos,
+            VP8_CLOCK_RATE,
+            width,
+            height);
+    }
+
+    /**
+     * Get whether the frames can be sent in a stream of a given format.
+     *
+     * @param format the <tt>MediaFormat</tt> of the stream.
+     * @return <tt>true</tt> if the frames are in the encoding of
+     * <tt>format</tt>.
+     */
+    public boolean matches(MediaFormat format)
+    {
+        return format != null
+            && encoding.equalsIgnoreCase(format.getEncoding());
+    }
+
+    /**
+     * Get the encoding of the frames.
+     *
+     * @return the encoding of the frames.
+     */
+    public String getEncoding()
+    {
+        return encoding;
+    }
+
+    /**
+     * Get a view of the buffer of the frames, with its own position and
+     * limit, to read the frames without copying the whole buffer.
+     *
+     * @return a view of the buffer of the frames.
+     */
+    public ByteBuffer createView()
+    {
+        return data.duplicate();
+    }
+
+    /**
+     * Get the number of frames.
+     *
+     * @return the number of frames.
+     */
+    public int getFrameCount()
+    {
+        return offsets.length;
+    }
+
+    /**
+     * Get the offset of a frame in the buffer of the frames.
+     *
+     * @param index the index of the frame.
+     * @return the offset of the frame.
+     */
+    public int getFrameOffset(int index)
+    {
+        return offsets[index];
+    }
+
+    /**
+     * Get the size of a frame.
+     *
+     * @param index the index of the frame.
+     * @return the size of the frame.
+     */
+    public int getFrameSize(int index)
+    {
+        return sizes[index];
+    }
+
+    /**
+     * Get the maximum size of the frames.
+     *
+     * @return the maximum size of the frames.
+     */
+    public int getMaxFrameSize()
+    {
+        return maxFrameSize;
+    }
+
+    /**
+     * Get the presentation timestamp of a frame.
+     *
+     * @param index the index of the frame.
+     * @return the presentation timestamp of the frame, in the time base of
+     * the file.
+     */
+    public long getPts(int index)
+    {
+        return pts[index];
+    }
+
+    /**
+     * Get whether a receiver can start decoding from a frame : a VP8 key
+     * frame, or any Opus frame.
+     *
+     * @param index the index of the frame.
+     * @return <tt>true</tt> if a receiver can start decoding from the frame.
+     */
+    public boolean isKeyFrame(int index)
+    {
+        return keyFrames.get(index);
+    }
+
+    /**
+     * Get the index of a randomly chosen frame from which a receiver can
+     * start decoding, so that the users do not send the same frames at the
+     * same time.
+     *
+     * @param random the <tt>Random</tt> choosing the frame.
+     * @return the index of the frame.
+     */
+    public int getRandomStartIndex(Random random)
+    {
+        return keyFrameIndexes[random.nextInt(keyFrameIndexes.length)];
+    }
+
+    /**
+     * Get the duration of a frame.
+     *
+     * @return the duration (in nanoseconds) of a frame.
+     */
+    public long getFrameNanos()
+    {
+        return frameNanos;
+    }
+
+    /**
+     * Get the increment of the RTP timestamp from one frame to the next.
+     *
+     * @return the increment of the RTP timestamp from one frame to the next.
+     */
+    public int getTimestampIncrement()
+    {
+        return timestampIncrement;
+    }
+
+    /**
+     * Get the width of the video frames.
+     *
+     * @return the width of the video frames, or 0 if unknown.
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * Get the height of the video frames.
+     *
+     * @return the height of the video frames, or 0 if unknown.
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return offsets.length + " pre-encoded " + encoding + " frames of "
+            + TimeUnit.NANOSECONDS.toMillis(frameNanos) + " ms";
+    }
+}
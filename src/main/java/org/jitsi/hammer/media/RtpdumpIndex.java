@@ -0,0 +1,556 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.media;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.jitsi.service.neomedia.format.*;
+
+/**
+ * The RTP packets of a rtpdump file, shared by the <tt>RtpdumpSender</tt>s of
+ * all the fake users : the file is memory-mapped once, and its records are
+ * parsed once into a table of the offset and length of their payload, their
+ * RTP timestamp and marker bit, and the time they were recorded at. The
+ * senders read the payloads from the mapping with their own cursor, so the
+ * memory used does not grow with the number of users.
+ *
+ * A rtpdump file (see rtptools) starts with a text line
+ * (<tt>#!rtpplay1.0 address/port</tt>) and a 16 bytes binary header, and
+ * then has a record per packet : its <tt>short</tt> length (header
+ * included), the <tt>short</tt> length of the RTP packet (0 for RTCP), the
+ * <tt>int</tt> time (in milliseconds) since the start of the recording, and
+ * the packet. Only the RTP packets of the first SSRC of the file are
+ * indexed.
+ */
+public class RtpdumpIndex
+{
+    /**
+     * The size of the binary header of a rtpdump file.
+     */
+    private static final int FILE_HEADER_SIZE = 16;
+
+    /**
+     * The size of the header of a record.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * The size of the fixed RTP header.
+     */
+    private static final int RTP_HEADER_SIZE = 12;
+
+    /**
+     * The maximum length of the text line starting a rtpdump file.
+     */
+    private static final int MAX_TEXT_LINE_LENGTH = 1024;
+
+    /**
+     * The encoding of the packets.
+     */
+    private final String encoding;
+
+    /**
+     * The memory-mapped file. Its position and limit are never changed, it
+     * is read through duplicates.
+     */
+    private final ByteBuffer mapping;
+
+    /**
+     * The number of packets.
+     */
+    private final int count;
+
+    /**
+     * The offsets of the payloads of the packets in the mapping.
+     */
+    private final int[] offsets;
+
+    /**
+     * The lengths of the payloads of the packets (without RTP padding).
+     */
+    private final int[] lengths;
+
+    /**
+     * The RTP timestamps of the packets.
+     */
+    private final int[] timestamps;
+
+    /**
+     * The times (in milliseconds since the first packet) the packets were
+     * recorded at.
+     */
+    private final int[] times;
+
+    /**
+     * The marker bits of the packets.
+     */
+    private final BitSet markers;
+
+    /**
+     * The indexes of the packets at which a sender can start : the first
+     * packets of the VP8 key frames, or all the packets for the other
+     * encodings.
+     */
+    private final int[] startIndexes;
+
+    /**
+     * The packets at which a sender can start, as a set of indexes.
+     */
+    private final BitSet starts;
+
+    /**
+     * The maximum length of the payloads of the packets.
+     */
+    private final int maxPayloadLength;
+
+    /**
+     * The duration (in milliseconds) of a loop over the packets.
+     */
+    private final int loopMillis;
+
+    /**
+     * The increment of the RTP timestamps from a loop over the packets to
+     * the next.
+     */
+    private final int loopTimestampIncrement;
+
+    /**
+     * Map a rtpdump file and index its RTP packets.
+     *
+     * @param path the path of the rtpdump file.
+     * @param encoding the encoding of the packets.
+     * @throws IOException if the file cannot be mapped, is not a rtpdump
+     * file, or has no RTP packet.
+     */
+    public RtpdumpIndex(String path, String encoding)
+        throws IOException
+    {
+        this.encoding = encoding;
+
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"))
+        {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Too large rtpdump file : " + path);
+            // The mapping stays valid once the channel is closed.
+            mapping = channel.map(
+                FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int position = skipFileHeader(mapping);
+        if (position < 0)
+            throw new IOException("Not a rtpdump file : " + path);
+
+        int capacity = 1024;
+        int[] offsets = new int[capacity];
+        int[] lengths = new int[capacity];
+        int[] timestamps = new int[capacity];
+        int[] times = new int[capacity];
+        BitSet markers = new BitSet();
+        BitSet startSet = new BitSet();
+        int[] startIndexes = new int[capacity];
+        int count = 0;
+        int starts = 0;
+        int maxPayloadLength = 0;
+        boolean vp8 = PreEncodedSource.VP8.equalsIgnoreCase(encoding);
+        boolean ssrcKnown = false;
+        int ssrc = 0;
+        long firstTime = 0;
+
+        while (position + RECORD_HEADER_SIZE <= mapping.limit())
+        {
+            int recordLength = mapping.getShort(position) & 0xffff;
+            int packetLength = mapping.getShort(position + 2) & 0xffff;
+            long time = mapping.getInt(position + 4) & 0xffffffffL;
+            int packet = position + RECORD_HEADER_SIZE;
+            if (recordLength < RECORD_HEADER_SIZE
+                    || position + recordLength > mapping.limit())
+            {
+                // A record cut by the end of the recording.
+                break;
+            }
+            position += recordLength;
+
+            if (packetLength < RTP_HEADER_SIZE
+                    || packetLength > recordLength - RECORD_HEADER_SIZE
+                    || (mapping.get(packet) & 0xc0) != 0x80)
+            {
+                continue;
+            }
+            int payloadType = mapping.get(packet + 1) & 0x7f;
+            if (payloadType >= 72 && payloadType <= 76)
+            {
+                // RTCP.
+                continue;
+            }
+            int packetSsrc = mapping.getInt(packet + 8);
+            if (!ssrcKnown)
+            {
+                ssrc = packetSsrc;
+                ssrcKnown = true;
+                firstTime = time;
+            }
+            else if (packetSsrc != ssrc)
+            {
+                continue;
+            }
+
+            int payload = getPayloadOffset(mapping, packet, packetLength);
+            if (payload < 0)
+                continue;
+
+            if (count == offsets.length)
+            {
+                capacity *= 2;
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                times = Arrays.copyOf(times, capacity);
+            }
+            offsets[count] = payload;
+            lengths[count]
+                = getPayloadLength(mapping, packet, packetLength, payload);
+            maxPayloadLength = Math.max(maxPayloadLength, lengths[count]);
+            timestamps[count] = mapping.getInt(packet + 4);
+            times[count] = (int) Math.max(0, time - firstTime);
+            if ((mapping.get(packet + 1) & 0x80) != 0)
+                markers.set(count);
+            if (!vp8
+                    || isVP8KeyFrameStart(mapping, payload, lengths[count]))
+            {
+                if (starts == startIndexes.length)
+                    startIndexes = Arrays.copyOf(startIndexes, starts * 2);
+                startIndexes[starts++] = count;
+                startSet.set(count);
+            }
+            count++;
+        }
+        if (count == 0)
+            throw new IOException("No RTP packet in " + path);
+        if (starts == 0)
+            throw new IOException("No " + encoding + " key frame in " + path);
+
+        this.count = count;
+        this.offsets = Arrays.copyOf(offsets, count);
+        this.lengths = Arrays.copyOf(lengths, count);
+        this.timestamps = Arrays.copyOf(timestamps, count);
+        this.times = Arrays.copyOf(times, count);
+        this.markers = markers;
+        this.startIndexes = Arrays.copyOf(startIndexes, starts);
+        this.starts = startSet;
+        this.maxPayloadLength = maxPayloadLength;
+
+        /*
+         * The loop restarts one frame after the last packet : the last
+         * increment of the times and of the RTP timestamps is repeated.
+         */
+        int frameMillis = 0;
+        int frameTimestampIncrement = 0;
+        for (int i = count - 1; i > 0; i--)
+        {
+            int increment = timestamps[i] - timestamps[i - 1];
+            if (increment > 0)
+            {
+                frameMillis = Math.max(0, times[i] - times[i - 1]);
+                frameTimestampIncrement = increment;
+                break;
+            }
+        }
+        this.loopMillis = Math.max(1, times[count - 1] + frameMillis);
+        this.loopTimestampIncrement
+            = timestamps[count - 1] - timestamps[0] + frameTimestampIncrement;
+    }
+
+    /**
+     * Skip the text line and the binary header of a rtpdump file.
+     *
+     * @param mapping the content of the file.
+     * @return the offset of the first record, or -1 if the file is not a
+     * rtpdump file.
+     */
+    private static int skipFileHeader(ByteBuffer mapping)
+    {
+        if (mapping.limit() < 2
+                || mapping.get(0) != '#' || mapping.get(1) != '!')
+        {
+            return -1;
+        }
+        int end = Math.min(mapping.limit(), MAX_TEXT_LINE_LENGTH);
+        for (int i = 2; i < end; i++)
+        {
+            if (mapping.get(i) == '\n')
+            {
+                int position = i + 1 + FILE_HEADER_SIZE;
+                return (position <= mapping.limit()) ? position : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the offset of the payload of a RTP packet, after its CSRCs and its
+     * header extension.
+     *
+     * @param mapping the content of the file.
+     * @param packet the offset of the packet.
+     * @param packetLength the length of the packet.
+     * @return the offset of the payload, or -1 if the packet is malformed.
+     */
+    private static int getPayloadOffset(
+        ByteBuffer mapping,
+        int packet,
+        int packetLength)
+    {
+        int b0 = mapping.get(packet);
+        int headerLength = RTP_HEADER_SIZE + 4 * (b0 & 0x0f);
+        if ((b0 & 0x10) != 0)
+        {
+            if (headerLength + 4 > packetLength)
+                return -1;
+            int extensionLength
+                = mapping.getShort(packet + headerLength + 2) & 0xffff;
+            headerLength += 4 + 4 * extensionLength;
+        }
+        return (headerLength <= packetLength) ? packet + headerLength : -1;
+    }
+
+    /**
+     * Get the length of the payload of a RTP packet, without its padding.
+     *
+     * @param mapping the content of the file.
+     * @param packet the offset of the packet.
+     * @param packetLength the length of the packet.
+     * @param payload the offset of the payload.
+     * @return the length of the payload.
+     */
+    private static int getPayloadLength(
+        ByteBuffer mapping,
+        int packet,
+        int packetLength,
+        int payload)
+    {
+        int length = packet + packetLength - payload;
+        if ((mapping.get(packet) & 0x20) != 0 && length > 0)
+        {
+            int padding = mapping.get(packet + packetLength - 1) & 0xff;
+            length = Math.max(0, length - padding);
+        }
+        return length;
+    }
+
+    /**
+     * Get whether a VP8 payload (RFC 7741) is the first one of a key frame.
+     *
+     * @param mapping the content of the file.
+     * @param payload the offset of the payload.
+     * @param length the length of the payload.
+     * @return <tt>true</tt> if the payload starts a key frame.
+     */
+    private static boolean isVP8KeyFrameStart(
+        ByteBuffer mapping,
+        int payload,
+        int length)
+    {
+        if (length < 1)
+            return false;
+        int b0 = mapping.get(payload);
+        // The S bit, and the partition 0.
+        if ((b0 & 0x10) == 0 || (b0 & 0x0f) != 0)
+            return false;
+
+        int descriptorLength = 1;
+        if ((b0 & 0x80) != 0)
+        {
+            if (length < 2)
+                return false;
+            int b1 = mapping.get(payload + 1);
+            descriptorLength++;
+            if ((b1 & 0x80) != 0)
+            {
+                // The PictureID, on 7 or 15 bits.
+                if (length < descriptorLength + 1)
+                    return false;
+                descriptorLength
+                    += ((mapping.get(payload + descriptorLength) & 0x80) != 0)
+                        ? 2 : 1;
+            }
+            if ((b1 & 0x40) != 0)
+                descriptorLength++; // TL0PICIDX
+            if ((b1 & 0x30) != 0)
+                descriptorLength++; // TID, Y and KEYIDX
+        }
+        // The P bit of the VP8 payload header is 0 for a key frame.
+        return length > descriptorLength
+            && (mapping.get(payload + descriptorLength) & 0x01) == 0;
+    }
+
+    /**
+     * Get whether the packets can be sent in a stream of a given format.
+     *
+     * @param format the <tt>MediaFormat</tt> of the stream.
+     * @return <tt>true</tt> if the packets are in the encoding of
+     * <tt>format</tt>.
+     */
+    public boolean matches(MediaFormat format)
+    {
+        return format != null
+            && encoding.equalsIgnoreCase(format.getEncoding());
+    }
+
+    /**
+     * Get a view of the memory-mapped file, with its own position and limit,
+     * to read the payloads of the packets without copying the file.
+     *
+     * @return a view of the memory-mapped file.
+     */
+    public ByteBuffer createView()
+    {
+        return mapping.duplicate();
+    }
+
+    /**
+     * Get the number of packets.
+     *
+     * @return the number of packets.
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Get the offset of the payload of a packet in the memory-mapped file.
+     *
+     * @param index the index of the packet.
+     * @return the offset of the payload of the packet.
+     */
+    public int getPayloadOffset(int index)
+    {
+        return offsets[index];
+    }
+
+    /**
+     * Get the length of the payload of a packet.
+     *
+     * @param index the index of the packet.
+     * @return the length of the payload of the packet.
+     */
+    public int getPayloadLength(int index)
+    {
+        return lengths[index];
+    }
+
+    /**
+     * Get the RTP timestamp of a packet.
+     *
+     * @param index the index of the packet.
+     * @return the RTP timestamp of the packet.
+     */
+    public int getTimestamp(int index)
+    {
+        return timestamps[index];
+    }
+
+    /**
+     * Get the time a packet was recorded at.
+     *
+     * @param index the index of the packet.
+     * @return the time (in milliseconds since the first packet) the packet
+     * was recorded at.
+     */
+    public int getTime(int index)
+    {
+        return times[index];
+    }
+
+    /**
+     * Get the marker bit of a packet.
+     *
+     * @param index the index of the packet.
+     * @return <tt>true</tt> if the marker bit of the packet is set.
+     */
+    public boolean getMarker(int index)
+    {
+        return markers.get(index);
+    }
+
+    /**
+     * Get the maximum length of the payloads of the packets.
+     *
+     * @return the maximum length of the payloads of the packets.
+     */
+    public int getMaxPayloadLength()
+    {
+        return maxPayloadLength;
+    }
+
+    /**
+     * Get whether a sender can start at a packet : whether a receiver can
+     * start decoding from it.
+     *
+     * @param index the index of the packet.
+     * @return <tt>true</tt> if a sender can start at the packet.
+     */
+    public boolean isStart(int index)
+    {
+        return starts.get(index);
+    }
+
+    /**
+     * Get the index of a randomly chosen packet at which a sender can start.
+     *
+     * @param random the <tt>Random</tt> choosing the packet.
+     * @return the index of the packet.
+     */
+    public int getRandomStartIndex(Random random)
+    {
+        return startIndexes[random.nextInt(startIndexes.length)];
+    }
+
+    /**
+     * Get the duration of a loop over the packets.
+     *
+     * @return the duration (in milliseconds) of a loop over the packets.
+     */
+    public int getLoopMillis()
+    {
+        return loopMillis;
+    }
+
+    /**
+     * Get the increment of the RTP timestamps from a loop over the packets
+     * to the next.
+     *
+     * @return the increment of the RTP timestamps from a loop to the next.
+     */
+    public int getLoopTimestampIncrement()
+    {
+        return loopTimestampIncrement;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return count + " rtpdump " + encoding + " packets of "
+            + (mapping.limit() / 1024) + " KiB";
+    }
+}
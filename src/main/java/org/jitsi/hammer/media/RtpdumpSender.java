@@ -0,0 +1,176 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.media;
+
+import java.nio.*;
+import java.util.concurrent.*;
+
+import org.jitsi.service.neomedia.format.*;
+
+/**
+ * Sends the packets of a shared <tt>RtpdumpIndex</tt> at the times they were
+ * recorded at, in a loop. Each shard of the streams of a sender starts at a
+ * random packet of the index (the start of a key frame for VP8), so that the
+ * shards do not send the same packets at the same time.
+ *
+ * Each payload is read once from the memory-mapped file by a shard, and sent
+ * in all its streams.
+ */
+public class RtpdumpSender
+    extends MediaSender
+{
+    /**
+     * The time (in nanoseconds) between two runs of a sender.
+     */
+    private static final long PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * The packets sent.
+     */
+    private final RtpdumpIndex index;
+
+    /**
+     * Initializes a <tt>RtpdumpSender</tt>.
+     *
+     * @param index the packets sent.
+     */
+    public RtpdumpSender(RtpdumpIndex index)
+    {
+        this.index = index;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean matches(MediaFormat format)
+    {
+        return index.matches(format);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected long getPeriodNanos()
+    {
+        return PERIOD_NANOS;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Shard createShard()
+    {
+        return new DumpShard();
+    }
+
+    /**
+     * A shard of the streams of a <tt>RtpdumpSender</tt>, which sends the
+     * packets from its own random packet of the index.
+     */
+    private class DumpShard
+        extends Shard
+    {
+        /**
+         * The view of the memory-mapped file of the index the payloads are
+         * read from.
+         */
+        private final ByteBuffer view = index.createView();
+
+        /**
+         * The buffer the payloads are read in.
+         */
+        private final byte[] payload = new byte[index.getMaxPayloadLength()];
+
+        /**
+         * The index of the next packet sent.
+         */
+        private int cursor
+            = index.getRandomStartIndex(ThreadLocalRandom.current());
+
+        /**
+         * The time (in milliseconds since the first packet of the index) the
+         * first packet sent was recorded at.
+         */
+        private final int startTime = index.getTime(cursor);
+
+        /**
+         * The time (in milliseconds) added to the recording times of the
+         * packets of the current loop.
+         */
+        private long loopOffsetMillis = 0;
+
+        /**
+         * The offset added to the RTP timestamps of the packets of the
+         * current loop.
+         */
+        private int timestampOffset = 0;
+
+        /**
+         * The time (from <tt>System.nanoTime()</tt>) of the first run, or -1
+         * before it.
+         */
+        private long startNanos = -1;
+
+        /**
+         * Send the packets recorded up to the time elapsed since the first
+         * run.
+         */
+        @Override
+        protected void send()
+        {
+            long now = System.nanoTime();
+            if (startNanos == -1)
+                startNanos = now;
+            long elapsedMillis
+                = TimeUnit.NANOSECONDS.toMillis(now - startNanos);
+
+            while (index.getTime(cursor) - startTime + loopOffsetMillis
+                    <= elapsedMillis)
+            {
+                int length = index.getPayloadLength(cursor);
+                view.position(index.getPayloadOffset(cursor));
+                view.get(payload, 0, length);
+                emit(
+                    payload,
+                    0,
+                    length,
+                    index.getMarker(cursor),
+                    (index.getTimestamp(cursor) + timestampOffset)
+                        & 0xffffffffL,
+                    index.isStart(cursor));
+
+                if (++cursor == index.getCount())
+                {
+                    cursor = 0;
+                    loopOffsetMillis += index.getLoopMillis();
+                    timestampOffset += index.getLoopTimestampIncrement();
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return index.toString();
+    }
+}
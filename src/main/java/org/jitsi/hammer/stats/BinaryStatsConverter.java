@@ -0,0 +1,381 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Converts a binary stats file written by <tt>BinaryStatsWriter</tt> to JSON
+ * (the same content as the <tt>users</tt> of
+ * <tt>AllAndSummaryStats.json</tt>) or to CSV (one line per user and
+ * polling).
+ *
+ * Usage :
+ * <pre>
+ * java -cp target/classes org.jitsi.hammer.stats.BinaryStatsConverter
+ *     &lt;allStats.bin&gt; json|csv [&lt;output file&gt;]
+ * </pre>
+ * The converted stats are written on the standard output if no output file
+ * is given. A file truncated in the middle of a block (e.g. by a killed run)
+ * is converted up to its last complete block.
+ */
+public class BinaryStatsConverter
+{
+    /**
+     * The names of the media types, in the order of the file.
+     */
+    private String[] mediaNames;
+
+    /**
+     * The names of the stats, in the order of the file.
+     */
+    private String[] statNames;
+
+    /**
+     * The usernames of the users, by id.
+     */
+    private final Map<Integer, String> usernames
+        = new HashMap<Integer, String>();
+
+    /**
+     * Whether the output is CSV (or JSON).
+     */
+    private final boolean csv;
+
+    /**
+     * The output of the converted stats.
+     */
+    private final PrintWriter out;
+
+    /**
+     * The number of polling blocks converted so far.
+     */
+    private int pollings = 0;
+
+    /**
+     * Initializes a <tt>BinaryStatsConverter</tt>.
+     *
+     * @param csv <tt>true</tt> to convert to CSV, <tt>false</tt> to convert
+     * to JSON.
+     * @param out the output of the converted stats.
+     */
+    public BinaryStatsConverter(boolean csv, PrintWriter out)
+    {
+        this.csv = csv;
+        this.out = out;
+    }
+
+    /**
+     * Convert the binary stats file given as first argument to the format
+     * given as second argument (<tt>json</tt> or <tt>csv</tt>), in the file
+     * given as third argument or on the standard output.
+     *
+     * @param args the arguments of the program.
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 2
+                || !(args[1].equalsIgnoreCase("json")
+                    || args[1].equalsIgnoreCase("csv")))
+        {
+            System.err.println("Usage : BinaryStatsConverter"
+                + " <stats file> json|csv [<output file>]");
+            System.exit(1);
+        }
+
+        try (InputStream in = new FileInputStream(args[0]);
+            Writer writer = (args.length > 2)
+                ? new OutputStreamWriter(
+                    new FileOutputStream(args[2]), StandardCharsets.UTF_8)
+                : new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+        {
+            PrintWriter out = new PrintWriter(new BufferedWriter(writer));
+            new BinaryStatsConverter(args[1].equalsIgnoreCase("csv"), out)
+                .convert(new DataInputStream(new BufferedInputStream(in)));
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Convert a binary stats file.
+     *
+     * @param in the content of the binary stats file.
+     * @throws IOException if the file cannot be read or is not a binary stats
+     * file.
+     */
+    public void convert(DataInputStream in)
+        throws IOException
+    {
+        if (in.readInt() != BinaryStatsWriter.MAGIC)
+            throw new IOException("Not a binary stats file");
+        short version = in.readShort();
+        if (version != BinaryStatsWriter.VERSION)
+            throw new IOException("Unsupported version : " + version);
+        mediaNames = readNames(in);
+        statNames = readNames(in);
+
+        if (csv)
+            writeCSVHeader();
+        else
+            out.print("[\n");
+
+        try
+        {
+            int type;
+            while ((type = in.read()) != -1)
+            {
+                switch (type)
+                {
+                case BinaryStatsWriter.USERS_BLOCK:
+                    readUsers(in);
+                    break;
+                case BinaryStatsWriter.POLLING_BLOCK:
+                    readPolling(in);
+                    break;
+                default:
+                    throw new IOException("Unknown block type : " + type);
+                }
+            }
+        }
+        catch (EOFException e)
+        {
+            System.err.println("The stats file is truncated, its last block"
+                + " is ignored");
+        }
+
+        if (!csv)
+            out.print("]\n");
+    }
+
+    /**
+     * Read a users block.
+     *
+     * @param in the content of the binary stats file.
+     * @throws IOException if the file cannot be read.
+     */
+    private void readUsers(DataInputStream in)
+        throws IOException
+    {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++)
+        {
+            int id = in.readInt();
+            usernames.put(id, readName(in));
+        }
+    }
+
+    /**
+     * Read a polling block, and write its stats. The whole block is read
+     * before anything is written, so that a truncated block is not written.
+     *
+     * @param in the content of the binary stats file.
+     * @throws IOException if the file cannot be read.
+     */
+    private void readPolling(DataInputStream in)
+        throws IOException
+    {
+        long timestamp = in.readLong();
+        int count = in.readInt();
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++)
+            ids[i] = in.readInt();
+
+        long[][] ssrcs = new long[mediaNames.length][count];
+        double[][][] values
+            = new double[mediaNames.length][statNames.length][count];
+        for (int media = 0; media < mediaNames.length; media++)
+        {
+            for (int i = 0; i < count; i++)
+                ssrcs[media][i] = in.readLong();
+            for (int stat = 0; stat < statNames.length; stat++)
+            {
+                for (int i = 0; i < count; i++)
+                    values[media][stat][i] = in.readDouble();
+            }
+        }
+
+        if (csv)
+            writeCSV(timestamp, ids, ssrcs, values);
+        else
+            writeJSON(timestamp, ids, ssrcs, values);
+        pollings++;
+    }
+
+    /**
+     * Write the header line of the CSV output.
+     */
+    private void writeCSVHeader()
+    {
+        StringBuilder line = new StringBuilder("timestamp,username");
+        for (String media : mediaNames)
+        {
+            line.append(',').append(media).append(".ssrc");
+            for (String stat : statNames)
+                line.append(',').append(media).append('.').append(stat);
+        }
+        out.print(line.append('\n'));
+    }
+
+    /**
+     * Write the stats of a polling in CSV.
+     *
+     * @param timestamp the time of the polling.
+     * @param ids the ids of the users.
+     * @param ssrcs the SSRCs of the streams, by media type and user.
+     * @param values the values of the stats, by media type, stat and user.
+     */
+    private void writeCSV(
+        long timestamp,
+        int[] ids,
+        long[][] ssrcs,
+        double[][][] values)
+    {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < ids.length; i++)
+        {
+            line.setLength(0);
+            line.append(timestamp).append(',').append(getUsername(ids[i]));
+            for (int media = 0; media < mediaNames.length; media++)
+            {
+                line.append(',').append(ssrcs[media][i]);
+                for (int stat = 0; stat < statNames.length; stat++)
+                {
+                    line.append(',');
+                    appendValue(line, values[media][stat][i], "");
+                }
+            }
+            out.print(line.append('\n'));
+        }
+    }
+
+    /**
+     * Write the stats of a polling in JSON.
+     *
+     * @param timestamp the time of the polling.
+     * @param ids the ids of the users.
+     * @param ssrcs the SSRCs of the streams, by media type and user.
+     * @param values the values of the stats, by media type, stat and user.
+     */
+    private void writeJSON(
+        long timestamp,
+        int[] ids,
+        long[][] ssrcs,
+        double[][][] values)
+    {
+        StringBuilder line = new StringBuilder();
+        out.print((pollings == 0) ? "{\n" : ",\n{\n");
+        out.print("  \"timestamp\":" + timestamp + ",\n");
+        out.print("  \"users\":\n");
+        out.print("  [\n");
+        for (int i = 0; i < ids.length; i++)
+        {
+            line.setLength(0);
+            line.append("    { \"username\" : \"")
+                .append(getUsername(ids[i]))
+                .append("\" , \"streams\" : {");
+            for (int media = 0; media < mediaNames.length; media++)
+            {
+                line.append((media == 0) ? " \"" : " , \"")
+                    .append(mediaNames[media])
+                    .append("\" : { \"ssrc\":")
+                    .append(ssrcs[media][i]);
+                for (int stat = 0; stat < statNames.length; stat++)
+                {
+                    line.append(" , \"").append(statNames[stat]).append("\":");
+                    appendValue(line, values[media][stat][i], "null");
+                }
+                line.append(" }");
+            }
+            line.append(" } }");
+            if (i < ids.length - 1)
+                line.append(',');
+            out.print(line.append('\n'));
+        }
+        out.print("  ]\n");
+        out.print("}");
+    }
+
+    /**
+     * Append a value of a stat, without a fraction if it has none (the
+     * stats that are counters are written as <tt>double</tt>s).
+     *
+     * @param bldr the <tt>StringBuilder</tt> the value is appended to.
+     * @param value the value, <tt>NaN</tt> if unknown.
+     * @param unknown what is appended if the value is unknown.
+     */
+    private static void appendValue(
+        StringBuilder bldr,
+        double value,
+        String unknown)
+    {
+        if (Double.isNaN(value))
+            bldr.append(unknown);
+        else if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            bldr.append((long) value);
+        else
+            bldr.append(value);
+    }
+
+    /**
+     * Get the username of a user.
+     *
+     * @param id the id of the user.
+     * @return the username of the user, or its id if it is unknown.
+     */
+    private String getUsername(int id)
+    {
+        String username = usernames.get(id);
+        return (username != null) ? username : String.valueOf(id);
+    }
+
+    /**
+     * Read a list of names, preceded by their number.
+     *
+     * @param in the content of the binary stats file.
+     * @return the names.
+     * @throws IOException if the file cannot be read.
+     */
+    private static String[] readNames(DataInputStream in)
+        throws IOException
+    {
+        String[] names = new String[in.readShort()];
+        for (int i = 0; i < names.length; i++)
+            names[i] = readName(in);
+        return names;
+    }
+
+    /**
+     * Read a name, preceded by its length.
+     *
+     * @param in the content of the binary stats file.
+     * @return the name.
+     * @throws IOException if the file cannot be read.
+     */
+    private static String readName(DataInputStream in)
+        throws IOException
+    {
+        byte[] bytes = new byte[in.readShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
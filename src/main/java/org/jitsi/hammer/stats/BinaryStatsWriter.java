@@ -0,0 +1,291 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import org.jitsi.service.neomedia.MediaType;
+
+/**
+ * Appends the snapshots of the stats of the users to a binary, columnar
+ * stats file, instead of formatting them in JSON.
+ *
+ * All the values are big-endian. The file starts with a header :
+ * <pre>
+ * int    MAGIC
+ * short  VERSION
+ * short  number of media types, then for each : short length, UTF-8 name
+ * short  number of stats (the stats of the <tt>MediaStreamStats</tt>, then
+ *        the interval stats), then for each : short length, UTF-8 name
+ * </pre>
+ * followed by blocks, each starting with its type :
+ * <pre>
+ * byte   USERS_BLOCK
+ * int    number of users, then for each : int id, short length, UTF-8 name
+ *
+ * byte   POLLING_BLOCK
+ * long   timestamp of the polling
+ * int    number of users N
+ * int[N] ids of the users
+ * for each media type : long[N] SSRCs, then for each stat : double[N] values
+ * </pre>
+ * A polling block stores its values column by column, and gives each user a
+ * record of the same size. A users block is written before a polling block
+ * when that polling has users not seen before.
+ *
+ * The blocks are built in a reused <tt>ByteBuffer</tt> and written with a
+ * <tt>FileChannel</tt>. <tt>BinaryStatsConverter</tt> converts the file to
+ * JSON or CSV.
+ */
+public class BinaryStatsWriter
+    implements Closeable
+{
+    /**
+     * The first bytes of a binary stats file ("HMST").
+     */
+    static final int MAGIC = 0x484d5354;
+
+    /**
+     * The version of the format of the binary stats files.
+     */
+    static final short VERSION = 1;
+
+    /**
+     * The type of the blocks giving the names of new users.
+     */
+    static final byte USERS_BLOCK = 'U';
+
+    /**
+     * The type of the blocks containing the stats of one polling.
+     */
+    static final byte POLLING_BLOCK = 'P';
+
+    /**
+     * The media types whose stats are written, in the order they are
+     * written.
+     */
+    private static final MediaType[] MEDIA_TYPES
+        = { MediaType.AUDIO, MediaType.VIDEO };
+
+    /**
+     * The channel of the binary stats file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The buffer in which the blocks are built. It is reused for all the
+     * blocks, and replaced by a bigger one when a block does not fit.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    /**
+     * The ids of the users already written in a users block, by username.
+     */
+    private final Map<String, Integer> userIds
+        = new HashMap<String, Integer>();
+
+    /**
+     * Create the binary stats file <tt>file</tt> and write its header.
+     *
+     * @param file the binary stats file.
+     * @throws IOException if the file cannot be created or written.
+     */
+    public BinaryStatsWriter(File file)
+        throws IOException
+    {
+        channel = new FileOutputStream(file).getChannel();
+
+        List<byte[]> mediaNames = new ArrayList<byte[]>();
+        for (MediaType mediaType : MEDIA_TYPES)
+            mediaNames.add(encode(mediaType.toString()));
+        List<byte[]> statNames = new ArrayList<byte[]>();
+        for (String name : FakeUserStatsSnapshot.StreamSnapshot.NAMES)
+            statNames.add(encode(name));
+        for (String name
+                : FakeUserStatsSnapshot.StreamSnapshot.INTERVAL_NAMES)
+            statNames.add(encode(name));
+
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        putNames(mediaNames);
+        putNames(statNames);
+        flush();
+    }
+
+    /**
+     * Append the snapshots of one polling to the binary stats file.
+     *
+     * @param timestamp the time of the polling.
+     * @param snapshots the snapshots of the stats of the users.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(long timestamp, List<FakeUserStatsSnapshot> snapshots)
+        throws IOException
+    {
+        int count = snapshots.size();
+        int[] ids = new int[count];
+        List<byte[]> newNames = new ArrayList<byte[]>();
+        List<Integer> newIds = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++)
+        {
+            String username = snapshots.get(i).getUsername();
+            Integer id = userIds.get(username);
+            if (id == null)
+            {
+                id = userIds.size();
+                userIds.put(username, id);
+                newNames.add(encode(username));
+                newIds.add(id);
+            }
+            ids[i] = id;
+        }
+
+        if (!newNames.isEmpty())
+        {
+            int size = 1 + 4;
+            for (byte[] name : newNames)
+                size += 4 + 2 + name.length;
+            ensureCapacity(size);
+
+            buffer.put(USERS_BLOCK);
+            buffer.putInt(newNames.size());
+            for (int i = 0; i < newNames.size(); i++)
+            {
+                buffer.putInt(newIds.get(i));
+                putName(newNames.get(i));
+            }
+            flush();
+        }
+
+        int statCount = FakeUserStatsSnapshot.StreamSnapshot.NAMES.length;
+        int intervalCount
+            = FakeUserStatsSnapshot.StreamSnapshot.INTERVAL_NAMES.length;
+        ensureCapacity(
+            1 + 8 + 4 + count * (4 + MEDIA_TYPES.length
+                * (8 + (statCount + intervalCount) * 8)));
+
+        buffer.put(POLLING_BLOCK);
+        buffer.putLong(timestamp);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++)
+            buffer.putInt(ids[i]);
+        for (MediaType mediaType : MEDIA_TYPES)
+        {
+            for (FakeUserStatsSnapshot snapshot : snapshots)
+                buffer.putLong(snapshot.getStreamSnapshot(mediaType).getSSRC());
+            for (int stat = 0; stat < statCount; stat++)
+            {
+                for (FakeUserStatsSnapshot snapshot : snapshots)
+                {
+                    buffer.putDouble(
+                        snapshot.getStreamSnapshot(mediaType).getValue(stat));
+                }
+            }
+            for (int stat = 0; stat < intervalCount; stat++)
+            {
+                for (FakeUserStatsSnapshot snapshot : snapshots)
+                {
+                    buffer.putDouble(snapshot.getStreamSnapshot(mediaType)
+                        .getIntervalValue(stat));
+                }
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Close the binary stats file.
+     *
+     * @throws IOException if the file cannot be closed.
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * Clear the buffer, replacing it by a bigger one if <tt>size</tt> bytes
+     * do not fit in it.
+     *
+     * @param size the number of bytes of the next block.
+     */
+    private void ensureCapacity(int size)
+    {
+        if (buffer.capacity() < size)
+        {
+            buffer = ByteBuffer.allocateDirect(
+                Math.max(size, 2 * buffer.capacity()));
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write the content of the buffer to the binary stats file.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    private void flush()
+        throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Put a list of names in the buffer, preceded by their number.
+     *
+     * @param names the UTF-8 encoded names.
+     */
+    private void putNames(List<byte[]> names)
+    {
+        buffer.putShort((short) names.size());
+        for (byte[] name : names)
+            putName(name);
+    }
+
+    /**
+     * Put a name in the buffer, preceded by its length.
+     *
+     * @param name the UTF-8 encoded name.
+     */
+    private void putName(byte[] name)
+    {
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+    }
+
+    /**
+     * Encode a name in UTF-8, truncated to the length a short can hold.
+     *
+     * @param name the name.
+     * @return the UTF-8 encoded name.
+     */
+    private static byte[] encode(String name)
+    {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return (bytes.length > Short.MAX_VALUE)
+            ? Arrays.copyOf(bytes, Short.MAX_VALUE) : bytes;
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.zip.*;
+
+import org.apache.commons.math3.stat.descriptive.*;
+import org.jitsi.service.neomedia.MediaType;
+
+/**
+ * Appends checkpoints of the aggregated stats of a run to a log, so that the
+ * overall stats can be rebuilt by <tt>CheckpointRecovery</tt> when the run
+ * does not end cleanly (e.g. killed, or stopped by <tt>System.exit</tt>).
+ *
+ * All the values are big-endian. The log starts with a header :
+ * <pre>
+ * int    MAGIC
+ * short  VERSION
+ * short  number of media types, then for each : short length, UTF-8 name
+ * short  number of stats, then for each : short length, UTF-8 name
+ * short  number of setup phases, then for each : short length, UTF-8 name
+ * </pre>
+ * followed by the checkpoints, one per polling :
+ * <pre>
+ * int    length of the payload
+ * int    CRC32 of the payload
+ * payload :
+ * long   timestamp of the polling
+ * for each media type and stat : the aggregate summary of the stat
+ * for each media type and stat : the histogram of the stat since the
+ *        previous checkpoint
+ * byte   1 if the setup latencies changed since the previous checkpoint, then
+ *        for each phase : the summary and the histogram of its latencies
+ * </pre>
+ * A summary is its <tt>long</tt> number of values, then its <tt>double</tt>
+ * mean, variance, min, max and sum. A histogram is its <tt>int</tt> number
+ * of non-empty buckets, then the <tt>int</tt> index and <tt>long</tt> count
+ * of each. The summaries are the ones of the whole run, so only the last
+ * checkpoint is needed for them, while the histograms of the stats are
+ * written as deltas to keep the checkpoints small.
+ *
+ * Each checkpoint is written with a single write, so that it reaches the
+ * page cache of the OS (and survives the death of the JVM) as soon as the
+ * polling is aggregated. It is only forced to the disk every
+ * <tt>syncIntervalMillis</tt> (and on close), to batch the fsyncs. A last
+ * checkpoint cut by a crash is detected by its length and CRC and ignored.
+ */
+public class CheckpointLog
+    implements Closeable
+{
+    /**
+     * The first bytes of a checkpoint log ("HMCK").
+     */
+    static final int MAGIC = 0x484d434b;
+
+    /**
+     * The version of the format of the checkpoint logs.
+     */
+    static final short VERSION = 1;
+
+    /**
+     * The default time (in milliseconds) between two fsyncs of the log.
+     */
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10000;
+
+    /**
+     * The media types whose stats are written, in the order they are
+     * written.
+     */
+    static final MediaType[] MEDIA_TYPES
+        = { MediaType.AUDIO, MediaType.VIDEO };
+
+    /**
+     * The channel of the log.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The time (in milliseconds) between two fsyncs of the log.
+     */
+    private final long syncIntervalMillis;
+
+    /**
+     * The buffer in which the payload of the checkpoints are built.
+     */
+    private final ByteArrayOutputStream payload
+        = new ByteArrayOutputStream(64 * 1024);
+
+    /**
+     * The <tt>DataOutputStream</tt> writing to <tt>payload</tt>.
+     */
+    private final DataOutputStream out = new DataOutputStream(payload);
+
+    /**
+     * The indexes of the non-empty buckets of the histogram being written.
+     */
+    private final int[] bucketIndexes
+        = new int[PercentileHistogram.COUNTER_COUNT];
+
+    /**
+     * The counts of the non-empty buckets of the histogram being written.
+     */
+    private final long[] bucketCounts
+        = new long[PercentileHistogram.COUNTER_COUNT];
+
+    /**
+     * The number of setup latencies written in the previous checkpoint.
+     */
+    private long setupLatencyCount = 0;
+
+    /**
+     * The time (from <tt>System.currentTimeMillis()</tt>) of the last fsync.
+     */
+    private long lastSyncMillis;
+
+    /**
+     * Whether checkpoints were written since the last fsync.
+     */
+    private boolean unsynced = false;
+
+    /**
+     * Create the checkpoint log <tt>file</tt> and write its header.
+     *
+     * @param file the checkpoint log.
+     * @param syncIntervalMillis the time (in milliseconds) between two fsyncs
+     * of the log.
+     * @throws IOException if the file cannot be created or written.
+     */
+    public CheckpointLog(File file, long syncIntervalMillis)
+        throws IOException
+    {
+        this.channel = new FileOutputStream(file).getChannel();
+        this.syncIntervalMillis = syncIntervalMillis;
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        String[] mediaNames = new String[MEDIA_TYPES.length];
+        for (int i = 0; i < MEDIA_TYPES.length; i++)
+            mediaNames[i] = MEDIA_TYPES[i].toString();
+        writeNames(mediaNames);
+        writeNames(FakeUserStatsSnapshot.StreamSnapshot.NAMES);
+        SetupTimeline.Phase[] phases = SetupTimeline.Phase.values();
+        String[] phaseNames = new String[phases.length];
+        for (int i = 0; i < phases.length; i++)
+            phaseNames[i] = phases[i].toString();
+        writeNames(phaseNames);
+        writeFully(ByteBuffer.wrap(payload.toByteArray()));
+        channel.force(false);
+        lastSyncMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Append a checkpoint of the aggregated stats of a run.
+     *
+     * @param timestamp the time of the polling.
+     * @param summaries the aggregate summary statistics of the stats of the
+     * whole run, by media type (in the order of <tt>MEDIA_TYPES</tt>) and
+     * stat.
+     * @param histograms the histograms of the stats since the previous
+     * checkpoint, by media type (in the order of <tt>MEDIA_TYPES</tt>) and
+     * stat.
+     * @param setupLatencies the latencies of the setup phases of the users.
+     * @throws IOException if the log cannot be written.
+     */
+    public void write(
+        long timestamp,
+        StatisticalSummary[][] summaries,
+        PercentileHistogram[][] histograms,
+        SetupLatencies setupLatencies)
+        throws IOException
+    {
+        payload.reset();
+        out.writeLong(timestamp);
+        for (StatisticalSummary[] mediaSummaries : summaries)
+        {
+            for (StatisticalSummary summary : mediaSummaries)
+                writeSummary(summary);
+        }
+        for (PercentileHistogram[] mediaHistograms : histograms)
+        {
+            for (PercentileHistogram histogram : mediaHistograms)
+                writeHistogram(histogram);
+        }
+
+        long count = setupLatencies.getCount();
+        if (count != setupLatencyCount)
+        {
+            setupLatencyCount = count;
+            out.writeByte(1);
+            for (SetupTimeline.Phase phase : SetupTimeline.Phase.values())
+            {
+                writeSummary(setupLatencies.getSummary(phase));
+                writeHistogram(setupLatencies.getHistogram(phase));
+            }
+        }
+        else
+        {
+            out.writeByte(0);
+        }
+        out.flush();
+
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+        record.putInt(bytes.length);
+        record.putInt((int) crc.getValue());
+        record.put(bytes);
+        record.flip();
+        writeFully(record);
+        unsynced = true;
+
+        long now = System.currentTimeMillis();
+        if (now - lastSyncMillis >= syncIntervalMillis)
+            sync(now);
+    }
+
+    /**
+     * Force the checkpoints written to the disk, and close the log.
+     *
+     * @throws IOException if the log cannot be forced or closed.
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        try
+        {
+            if (unsynced)
+                sync(System.currentTimeMillis());
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Force the checkpoints written to the disk.
+     *
+     * @param now the current time, in milliseconds.
+     * @throws IOException if the log cannot be forced.
+     */
+    private void sync(long now)
+        throws IOException
+    {
+        channel.force(false);
+        lastSyncMillis = now;
+        unsynced = false;
+    }
+
+    /**
+     * Write the content of a buffer to the log.
+     *
+     * @param buffer the buffer.
+     * @throws IOException if the log cannot be written.
+     */
+    private void writeFully(ByteBuffer buffer)
+        throws IOException
+    {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Write a summary to the payload.
+     *
+     * @param summary the summary.
+     * @throws IOException never, the payload being in memory.
+     */
+    private void writeSummary(StatisticalSummary summary)
+        throws IOException
+    {
+        out.writeLong(summary.getN());
+        out.writeDouble(summary.getMean());
+        out.writeDouble(summary.getVariance());
+        out.writeDouble(summary.getMin());
+        out.writeDouble(summary.getMax());
+        out.writeDouble(summary.getSum());
+    }
+
+    /**
+     * Write the non-empty buckets of a histogram to the payload. They are
+     * read once, as the histogram may be recorded in at the same time.
+     *
+     * @param histogram the histogram.
+     * @throws IOException never, the payload being in memory.
+     */
+    private void writeHistogram(PercentileHistogram histogram)
+        throws IOException
+    {
+        int buckets = 0;
+        for (int i = 0; i < PercentileHistogram.COUNTER_COUNT; i++)
+        {
+            long count = histogram.getCount(i);
+            if (count != 0)
+            {
+                bucketIndexes[buckets] = i;
+                bucketCounts[buckets] = count;
+                buckets++;
+            }
+        }
+        out.writeInt(buckets);
+        for (int i = 0; i < buckets; i++)
+        {
+            out.writeInt(bucketIndexes[i]);
+            out.writeLong(bucketCounts[i]);
+        }
+    }
+
+    /**
+     * Write a list of names to the payload, preceded by their number.
+     *
+     * @param names the names.
+     * @throws IOException never, the payload being in memory.
+     */
+    private void writeNames(String[] names)
+        throws IOException
+    {
+        out.writeShort(names.length);
+        for (String name : names)
+        {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.zip.*;
+
+import org.apache.commons.math3.stat.descriptive.*;
+
+/**
+ * Rebuilds the overall stats of a run (the content of
+ * <tt>overallStats.json</tt>) from the checkpoint log written by
+ * <tt>CheckpointLog</tt>, e.g. when the run was killed before writing them.
+ *
+ * Usage :
+ * <pre>
+ * java -cp target/classes org.jitsi.hammer.stats.CheckpointRecovery
+ *     &lt;overallStats.checkpoint&gt; [&lt;output file&gt;]
+ * </pre>
+ * The overall stats are written on the standard output if no output file is
+ * given. They are rebuilt up to the last complete checkpoint : a checkpoint
+ * cut by a crash is ignored.
+ */
+public class CheckpointRecovery
+{
+    /**
+     * The number of media types.
+     */
+    private static final int MEDIA_COUNT = CheckpointLog.MEDIA_TYPES.length;
+
+    /**
+     * The number of stats of a media type.
+     */
+    private static final int STAT_COUNT
+        = FakeUserStatsSnapshot.StreamSnapshot.NAMES.length;
+
+    /**
+     * The number of setup phases.
+     */
+    private static final int PHASE_COUNT = SetupTimeline.Phase.values().length;
+
+    /**
+     * The maximum length of the payload of a checkpoint : a longer one can
+     * only be read from a corrupted log.
+     */
+    private static final int MAX_PAYLOAD_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * The aggregate summary statistics of the last checkpoint, by media type
+     * and stat.
+     */
+    private final StatisticalSummary[][] summaries
+        = new StatisticalSummary[MEDIA_COUNT][STAT_COUNT];
+
+    /**
+     * The histograms of the stats of all the checkpoints, by media type and
+     * stat.
+     */
+    private final PercentileHistogram[][] histograms
+        = new PercentileHistogram[MEDIA_COUNT][STAT_COUNT];
+
+    /**
+     * The latencies of the setup phases of the last checkpoint that changed
+     * them.
+     */
+    private SetupLatencies setupLatencies = new SetupLatencies();
+
+    /**
+     * The number of checkpoints read.
+     */
+    private int checkpoints = 0;
+
+    /**
+     * The timestamp of the last checkpoint read.
+     */
+    private long lastTimestamp = 0;
+
+    /**
+     * Initializes a <tt>CheckpointRecovery</tt>.
+     */
+    public CheckpointRecovery()
+    {
+        for (PercentileHistogram[] mediaHistograms : histograms)
+        {
+            for (int i = 0; i < mediaHistograms.length; i++)
+                mediaHistograms[i] = new PercentileHistogram();
+        }
+    }
+
+    /**
+     * Rebuild the overall stats from the checkpoint log given as first
+     * argument, in the file given as second argument or on the standard
+     * output.
+     *
+     * @param args the arguments of the program.
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Usage : CheckpointRecovery"
+                + " <checkpoint log> [<output file>]");
+            System.exit(1);
+        }
+
+        try (InputStream in = new FileInputStream(args[0]))
+        {
+            CheckpointRecovery recovery = new CheckpointRecovery();
+            recovery.read(new DataInputStream(new BufferedInputStream(in)));
+            if (recovery.checkpoints == 0)
+            {
+                System.err.println("No complete checkpoint in " + args[0]);
+                System.exit(1);
+            }
+            System.err.println("Rebuilt the overall stats from "
+                + recovery.checkpoints + " checkpoints, the last one at "
+                + recovery.lastTimestamp);
+
+            String json = recovery.getOverallStatsJSON();
+            if (args.length > 1)
+            {
+                try (Writer writer = new OutputStreamWriter(
+                        new FileOutputStream(args[1]), StandardCharsets.UTF_8))
+                {
+                    writer.write(json);
+                }
+            }
+            else
+            {
+                System.out.print(json);
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Read a checkpoint log, up to its last complete checkpoint.
+     *
+     * @param in the content of the checkpoint log.
+     * @throws IOException if the file cannot be read or is not a checkpoint
+     * log of this version of the Hammer.
+     */
+    public void read(DataInputStream in)
+        throws IOException
+    {
+        if (in.readInt() != CheckpointLog.MAGIC)
+            throw new IOException("Not a checkpoint log");
+        short version = in.readShort();
+        if (version != CheckpointLog.VERSION)
+            throw new IOException("Unsupported version : " + version);
+        if (readNames(in) != MEDIA_COUNT
+                || readNames(in) != STAT_COUNT
+                || readNames(in) != PHASE_COUNT)
+        {
+            throw new IOException("The checkpoint log was written by another"
+                + " version of the Hammer");
+        }
+
+        while (true)
+        {
+            byte[] payload;
+            try
+            {
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length < 0 || length > MAX_PAYLOAD_LENGTH)
+                {
+                    System.err.println("The checkpoint log is corrupted after"
+                        + " its checkpoint " + checkpoints);
+                    return;
+                }
+                payload = new byte[length];
+                in.readFully(payload);
+
+                CRC32 actual = new CRC32();
+                actual.update(payload, 0, payload.length);
+                if ((int) actual.getValue() != crc)
+                {
+                    System.err.println("The checkpoint log is corrupted after"
+                        + " its checkpoint " + checkpoints);
+                    return;
+                }
+            }
+            catch (EOFException e)
+            {
+                // The end of the log, or a checkpoint cut by a crash.
+                return;
+            }
+
+            readCheckpoint(
+                new DataInputStream(new ByteArrayInputStream(payload)));
+        }
+    }
+
+    /**
+     * Read the payload of a checkpoint.
+     *
+     * @param in the payload of the checkpoint.
+     * @throws IOException if the payload cannot be read.
+     */
+    private void readCheckpoint(DataInputStream in)
+        throws IOException
+    {
+        lastTimestamp = in.readLong();
+        for (StatisticalSummary[] mediaSummaries : summaries)
+        {
+            for (int i = 0; i < mediaSummaries.length; i++)
+                mediaSummaries[i] = readSummary(in);
+        }
+        for (PercentileHistogram[] mediaHistograms : histograms)
+        {
+            for (PercentileHistogram histogram : mediaHistograms)
+                readHistogram(in, histogram);
+        }
+
+        if (in.readByte() != 0)
+        {
+            StatisticalSummary[] phaseSummaries
+                = new StatisticalSummary[PHASE_COUNT];
+            PercentileHistogram[] phaseHistograms
+                = new PercentileHistogram[PHASE_COUNT];
+            for (int i = 0; i < PHASE_COUNT; i++)
+            {
+                phaseSummaries[i] = readSummary(in);
+                phaseHistograms[i] = new PercentileHistogram();
+                readHistogram(in, phaseHistograms[i]);
+            }
+            setupLatencies
+                = new SetupLatencies(phaseSummaries, phaseHistograms);
+        }
+        checkpoints++;
+    }
+
+    /**
+     * Get the overall stats rebuilt from the checkpoints read, in the format
+     * of <tt>overallStats.json</tt>.
+     *
+     * @return the overall stats, in JSON.
+     */
+    public String getOverallStatsJSON()
+    {
+        return HammerStats.getOverallStatsJSON(
+            summaries[0],
+            summaries[1],
+            histograms[0],
+            histograms[1],
+            setupLatencies,
+            null);
+    }
+
+    /**
+     * Read a summary.
+     *
+     * @param in the payload of a checkpoint.
+     * @return the summary.
+     * @throws IOException if the payload cannot be read.
+     */
+    private static StatisticalSummary readSummary(DataInputStream in)
+        throws IOException
+    {
+        long n = in.readLong();
+        double mean = in.readDouble();
+        double variance = in.readDouble();
+        double min = in.readDouble();
+        double max = in.readDouble();
+        double sum = in.readDouble();
+        return new StatisticalSummaryValues(mean, variance, n, max, min, sum);
+    }
+
+    /**
+     * Read the non-empty buckets of a histogram, and add them to
+     * <tt>histogram</tt>.
+     *
+     * @param in the payload of a checkpoint.
+     * @param histogram the histogram the buckets are added to.
+     * @throws IOException if the payload cannot be read.
+     */
+    private static void readHistogram(
+        DataInputStream in,
+        PercentileHistogram histogram)
+        throws IOException
+    {
+        int buckets = in.readInt();
+        for (int i = 0; i < buckets; i++)
+        {
+            int index = in.readInt();
+            long count = in.readLong();
+            if (index < 0 || index >= PercentileHistogram.COUNTER_COUNT)
+                throw new IOException("Invalid histogram bucket : " + index);
+            histogram.add(index, count);
+        }
+    }
+
+    /**
+     * Read a list of names, preceded by their number.
+     *
+     * @param in the content of the checkpoint log.
+     * @return the number of names.
+     * @throws IOException if the file cannot be read.
+     */
+    private static int readNames(DataInputStream in)
+        throws IOException
+    {
+        int count = in.readShort();
+        for (int i = 0; i < count; i++)
+        {
+            byte[] bytes = new byte[in.readShort()];
+            in.readFully(bytes);
+        }
+        return count;
+    }
+}
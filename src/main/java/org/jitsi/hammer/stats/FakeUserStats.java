@@ -100,6 +100,45 @@ public class FakeUserStats
      */
     private MediaStreamStats videoStats;
 
+    /**
+     * The <tt>StreamCounters</tt> of the audio <tt>MediaStream</tt> of the
+     * <tt>FakeUser</tt> corresponding to this <tt>FakeUserStats</tt>.
+     */
+    private final StreamCounters audioCounters = new StreamCounters();
+
+    /**
+     * The <tt>StreamCounters</tt> of the video <tt>MediaStream</tt> of the
+     * <tt>FakeUser</tt> corresponding to this <tt>FakeUserStats</tt>.
+     */
+    private final StreamCounters videoCounters = new StreamCounters();
+
+    /**
+     * The <tt>ReceiveSink</tt> receiving the RTP packets of the
+     * <tt>FakeUser</tt> corresponding to this <tt>FakeUserStats</tt> in
+     * place of libjitsi, or <tt>null</tt> if it has none (yet).
+     */
+    private volatile ReceiveSink receiveSink;
+
+    /**
+     * The values of the counters of the audio then video stream at the
+     * previous call to updateSnapshot(), used to compute the interval stats.
+     */
+    private final long[] previousCounters
+        = new long[2 * FakeUserStatsSnapshot.StreamSnapshot.COUNTER_INDEXES
+            .length];
+
+    /**
+     * The time (from <tt>System.nanoTime()</tt>) of the previous call to
+     * updateSnapshot(), or -1 if it was never called.
+     */
+    private long previousUpdateNanos = -1;
+
+    /**
+     * The <tt>FakeUserStatsSnapshot</tt> overwritten by each call to
+     * updateSnapshot().
+     */
+    private final FakeUserStatsSnapshot snapshot = new FakeUserStatsSnapshot();
+
     public FakeUserStats(String username)
     {
         this.username = username;
@@ -130,6 +169,18 @@ public class FakeUserStats
         //other MediaType are not tracked.
     }
 
+    /**
+     * Set the <tt>ReceiveSink</tt> receiving the RTP packets in place of
+     * libjitsi : the download stats of the snapshots are then taken from it
+     * instead of the <tt>MediaStreamStats</tt>.
+     * @param receiveSink the <tt>ReceiveSink</tt> of the corresponding
+     * FakeUser.
+     */
+    public void setReceiveSink(ReceiveSink receiveSink)
+    {
+        this.receiveSink = receiveSink;
+    }
+
     /**
      * Set the username of used by this <tt>FakeUserStats</tt>.
      * @param username the username that will be set.
@@ -176,6 +227,81 @@ public class FakeUserStats
         return stats;
     }
 
+    /**
+     * Get the <tt>StreamCounters</tt> that count the packets of mediaStream,
+     * depending of the stream type.
+     * @param mediaStream the <tt>MediaStream</tt> of the corresponding
+     * FakeUser.
+     * @return the audio or video <tt>StreamCounters</tt> of this
+     * <tt>FakeUserStats</tt>, or null if the stream type is not tracked.
+     */
+    public StreamCounters getStreamCounters(MediaStream mediaStream)
+    {
+        if(mediaStream instanceof AudioMediaStream)
+            return audioCounters;
+        else if(mediaStream instanceof VideoMediaStream)
+            return videoCounters;
+        //other MediaType are not tracked.
+        return null;
+    }
+
+    /**
+     * Add the current values of the audio or video <tt>StreamCounters</tt>
+     * of this <tt>FakeUserStats</tt> to totals, without updating any
+     * <tt>MediaStreamStats</tt>.
+     * @param type the MediaType of the counters.
+     * @param totals the totals, in the order of <tt>StreamCounters.NAMES</tt>.
+     */
+    public void addCountersTo(MediaType type, long[] totals)
+    {
+        switch(type)
+        {
+        case AUDIO:
+            audioCounters.addTo(totals);
+            break;
+        case VIDEO:
+            videoCounters.addTo(totals);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Update the 2 <tt>MediaStreamStats</tt> of this <tt>FakeUserStats</tt>
+     * and copy their values, with their interval stats since the previous
+     * call to this method.
+     *
+     * It must not be called by several threads at the same time.
+     * @return the <tt>FakeUserStatsSnapshot</tt> of the updated stats, which
+     * is the same at each call : it is only valid until the next one.
+     */
+    public FakeUserStatsSnapshot updateSnapshot()
+    {
+        updateStats();
+        long now = System.nanoTime();
+        double elapsedSeconds
+            = (previousUpdateNanos < 0)
+                ? 0 : (now - previousUpdateNanos) / 1000000000D;
+        previousUpdateNanos = now;
+        snapshot.update(
+            username, audioSSRC, audioStats, videoSSRC, videoStats,
+            receiveSink, previousCounters, elapsedSeconds);
+        return snapshot;
+    }
+
+    /**
+     * Take a new copy of the current values of the 2
+     * <tt>MediaStreamStats</tt> of this <tt>FakeUserStats</tt>.
+     * @return the <tt>FakeUserStatsSnapshot</tt> of the current stats.
+     */
+    public FakeUserStatsSnapshot getSnapshot()
+    {
+        return new FakeUserStatsSnapshot(
+            username, audioSSRC, audioStats, videoSSRC, videoStats,
+            receiveSink);
+    }
+
     /**
      * Get the stats of the audio and video stream from the corresponding
      * <tt>MediaStreamStats</tt> in JSON.
@@ -186,65 +312,6 @@ public class FakeUserStats
      */
     public String getStatsJSON(int spaceIndent)
     {
-        String indent = new String(new char[spaceIndent]).replace("\0" ,  " ");
-        StringBuilder builder = new StringBuilder();
-        builder.append(indent + "{\n");
-        builder.append(indent + "  \"username\" : \""+ this.username +"\" , \n");
-        builder.append(indent + "  \"streams\" :\n");
-
-        String str = String.format(jsonTemplate,
-            audioSSRC ,
-            audioStats.getDownloadJitterMs() ,
-            audioStats.getDownloadPercentLoss() ,
-            audioStats.getDownloadRateKiloBitPerSec() ,
-            audioStats.getJitterBufferDelayMs() ,
-            audioStats.getJitterBufferDelayPackets() ,
-            audioStats.getNbDiscarded() ,
-            audioStats.getNbDiscardedFull() ,
-            audioStats.getNbDiscardedLate() ,
-            audioStats.getNbDiscardedReset() ,
-            audioStats.getNbDiscardedShrink() ,
-            audioStats.getNbFec() ,
-            audioStats.getNbPackets() ,
-            audioStats.getNbPacketsLost() ,
-            audioStats.getNbReceivedBytes() ,
-            audioStats.getNbSentBytes() ,
-            audioStats.getPacketQueueCountPackets() ,
-            audioStats.getPacketQueueSize() ,
-            audioStats.getPercentDiscarded() ,
-            audioStats.getRttMs() ,
-            audioStats.getUploadJitterMs(),
-            audioStats.getUploadPercentLoss() ,
-            audioStats.getUploadRateKiloBitPerSec() ,
-
-            videoSSRC ,
-            videoStats.getDownloadJitterMs() ,
-            videoStats.getDownloadPercentLoss() ,
-            videoStats.getDownloadRateKiloBitPerSec() ,
-            videoStats.getJitterBufferDelayMs() ,
-            videoStats.getJitterBufferDelayPackets() ,
-            videoStats.getNbDiscarded() ,
-            videoStats.getNbDiscardedFull() ,
-            videoStats.getNbDiscardedLate() ,
-            videoStats.getNbDiscardedReset() ,
-            videoStats.getNbDiscardedShrink() ,
-            videoStats.getNbFec() ,
-            videoStats.getNbPackets() ,
-            videoStats.getNbPacketsLost() ,
-            videoStats.getNbReceivedBytes() ,
-            videoStats.getNbSentBytes() ,
-            videoStats.getPacketQueueCountPackets() ,
-            videoStats.getPacketQueueSize() ,
-            videoStats.getPercentDiscarded() ,
-            videoStats.getRttMs() ,
-            videoStats.getUploadJitterMs(),
-            videoStats.getUploadPercentLoss() ,
-            videoStats.getUploadRateKiloBitPerSec());
-        str = indent + str.replaceAll("\n", "\n"+indent);
-        builder.append(str + '\n');
-
-        builder.append(indent + "}");
-
-        return builder.toString();
+        return getSnapshot().getStatsJSON(spaceIndent);
     }
 }
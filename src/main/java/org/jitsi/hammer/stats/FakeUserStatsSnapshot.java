@@ -0,0 +1,490 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import java.util.*;
+
+import org.jitsi.service.neomedia.*;
+
+/**
+ * A copy of the stats of the audio and video streams of a <tt>FakeUser</tt>,
+ * taken at one polling of the <tt>HammerStats</tt>. Once taken, it can be
+ * read, formatted and aggregated from another thread while the
+ * <tt>MediaStreamStats</tt> it was copied from keep being updated.
+ *
+ * The <tt>FakeUserStats</tt> of a user keeps one <tt>FakeUserStatsSnapshot</tt>
+ * whose values are overwritten at each polling, so that polling the stats of
+ * many users does not allocate anything per user : it must not be read
+ * anymore once the next polling started, which the <tt>HammerStats</tt> only
+ * starts when the previous one was written.
+ */
+public final class FakeUserStatsSnapshot
+{
+    /**
+     * The username of the <tt>FakeUser</tt>.
+     */
+    private String username;
+
+    /**
+     * The stats of the audio stream of the <tt>FakeUser</tt>.
+     */
+    private final StreamSnapshot audio;
+
+    /**
+     * The stats of the video stream of the <tt>FakeUser</tt>.
+     */
+    private final StreamSnapshot video;
+
+    /**
+     * Initializes a <tt>FakeUserStatsSnapshot</tt> to be set by
+     * <tt>update</tt>.
+     */
+    FakeUserStatsSnapshot()
+    {
+        this.audio = new StreamSnapshot();
+        this.video = new StreamSnapshot();
+    }
+
+    /**
+     * Initializes a <tt>FakeUserStatsSnapshot</tt> with the current values
+     * of the stats of the streams of a <tt>FakeUser</tt>.
+     *
+     * @param username the username of the <tt>FakeUser</tt>.
+     * @param audioSSRC the SSRC of the audio stream.
+     * @param audioStats the <tt>MediaStreamStats</tt> of the audio stream.
+     * @param videoSSRC the SSRC of the video stream.
+     * @param videoStats the <tt>MediaStreamStats</tt> of the video stream.
+     * @param receiveSink the <tt>ReceiveSink</tt> the download stats are
+     * taken from, or <tt>null</tt> to take them from the
+     * <tt>MediaStreamStats</tt>.
+     */
+    FakeUserStatsSnapshot(
+            String username,
+            long audioSSRC,
+            MediaStreamStats audioStats,
+            long videoSSRC,
+            MediaStreamStats videoStats,
+            ReceiveSink receiveSink)
+    {
+        this();
+        update(username, audioSSRC, audioStats, videoSSRC, videoStats,
+            receiveSink, null, 0);
+    }
+
+    /**
+     * Overwrite the values of this <tt>FakeUserStatsSnapshot</tt> with the
+     * current values of the stats of the streams of a <tt>FakeUser</tt>, and
+     * their interval stats since the values of the counters of its previous
+     * snapshot.
+     *
+     * @param username the username of the <tt>FakeUser</tt>.
+     * @param audioSSRC the SSRC of the audio stream.
+     * @param audioStats the <tt>MediaStreamStats</tt> of the audio stream.
+     * @param videoSSRC the SSRC of the video stream.
+     * @param videoStats the <tt>MediaStreamStats</tt> of the video stream.
+     * @param receiveSink the <tt>ReceiveSink</tt> the download stats are
+     * taken from, or <tt>null</tt> to take them from the
+     * <tt>MediaStreamStats</tt>.
+     * @param previousCounters the values of the counters of the audio then
+     * video stream at the previous snapshot, replaced by their current
+     * values, or <tt>null</tt> to leave the interval stats unknown.
+     * @param elapsedSeconds the time since the previous snapshot, or 0 if
+     * there was none.
+     */
+    void update(
+            String username,
+            long audioSSRC,
+            MediaStreamStats audioStats,
+            long videoSSRC,
+            MediaStreamStats videoStats,
+            ReceiveSink receiveSink,
+            long[] previousCounters,
+            double elapsedSeconds)
+    {
+        this.username = username;
+        audio.update(
+            audioSSRC, audioStats, receiveSink, MediaType.AUDIO,
+            previousCounters, 0, elapsedSeconds);
+        video.update(
+            videoSSRC, videoStats, receiveSink, MediaType.VIDEO,
+            previousCounters, StreamSnapshot.COUNTER_INDEXES.length,
+            elapsedSeconds);
+    }
+
+    /**
+     * Get the username of the <tt>FakeUser</tt>.
+     * @return the username of the <tt>FakeUser</tt>.
+     */
+    public String getUsername()
+    {
+        return username;
+    }
+
+    /**
+     * Get the stats of the audio or video stream depending on <tt>type</tt>.
+     * @param type the <tt>MediaType</tt> of the stream.
+     * @return the stats of the audio or video stream, or <tt>null</tt> for
+     * the other <tt>MediaType</tt>s.
+     */
+    public StreamSnapshot getStreamSnapshot(MediaType type)
+    {
+        switch(type)
+        {
+        case AUDIO:
+            return audio;
+        case VIDEO:
+            return video;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Get the stats of the audio and video stream in JSON, in the same
+     * format as <tt>FakeUserStats.getStatsJSON</tt>.
+     * @param spaceIndent the number of space added to indent each line
+     * of the returned JSON.
+     * @return the stats of the audio and video stream in JSON.
+     */
+    public String getStatsJSON(int spaceIndent)
+    {
+        String indent = new String(new char[spaceIndent]).replace("\0" ,  " ");
+        StringBuilder builder = new StringBuilder();
+        builder.append(indent + "{\n");
+        builder.append(indent + "  \"username\" : \""+ this.username +"\" , \n");
+        builder.append(indent + "  \"streams\" :\n");
+
+        Object[] args = new Object[2 * StreamSnapshot.SIZE];
+        audio.copyFormatArgs(args, 0);
+        video.copyFormatArgs(args, StreamSnapshot.SIZE);
+        String str = String.format(FakeUserStats.jsonTemplate, args);
+        str = indent + str.replace("\n", "\n"+indent);
+        builder.append(str + " ,\n");
+        builder.append(indent + "  \"intervals\" : { \"audio\" : "
+            + audio.getIntervalsJSON() + " , \"video\" : "
+            + video.getIntervalsJSON() + " }\n");
+
+        builder.append(indent + "}");
+
+        return builder.toString();
+    }
+
+    /**
+     * A copy of the values of a <tt>MediaStreamStats</tt>, overwritten at
+     * each polling. The values are kept as doubles, and the ones returned as
+     * integers by the <tt>MediaStreamStats</tt> are formatted as integers.
+     */
+    public static final class StreamSnapshot
+    {
+        /**
+         * The number of values of a <tt>StreamSnapshot</tt> (the SSRC
+         * included), i.e. the number of values of
+         * <tt>FakeUserStats.jsonMediaStreamStatsTemplate</tt>.
+         */
+        static final int SIZE = 23;
+
+        /**
+         * The names of the stats, in the order of
+         * <tt>FakeUserStats.jsonMediaStreamStatsTemplate</tt> (without the
+         * SSRC).
+         */
+        static final String[] NAMES = {
+            "DownloadJitterMs",
+            "DownloadPercentLoss",
+            "DownloadRateKiloBitPerSec",
+            "JitterBufferDelayMs",
+            "JitterBufferDelayPackets",
+            "NbDiscarded",
+            "NbDiscardedFull",
+            "NbDiscardedLate",
+            "NbDiscardedReset",
+            "NbDiscardedShrink",
+            "NbFec",
+            "NbPackets",
+            "NbPacketsLost",
+            "NbReceivedBytes",
+            "NbSentBytes",
+            "PacketQueueCountPackets",
+            "PacketQueueSize",
+            "PercentDiscarded",
+            "RttMs",
+            "UploadJitterMs",
+            "UploadPercentLoss",
+            "UploadRateKiloBitPerSec"
+        };
+
+        /**
+         * The names of the interval stats, computed from the counters of the
+         * stream since its previous snapshot.
+         */
+        static final String[] INTERVAL_NAMES = {
+            "PacketsPerSec",
+            "PacketsLostPerSec",
+            "IntervalPercentLoss",
+            "ReceivedBytesPerSec",
+            "SentBytesPerSec"
+        };
+
+        /**
+         * The indexes (in the order of <tt>NAMES</tt>) of the counters the
+         * interval stats are computed from : NbPackets, NbPacketsLost,
+         * NbReceivedBytes and NbSentBytes.
+         */
+        static final int[] COUNTER_INDEXES = { 11, 12, 13, 14 };
+
+        /**
+         * Whether the <tt>MediaStreamStats</tt> returns the stats as
+         * integers, in the order of <tt>NAMES</tt> : from
+         * JitterBufferDelayMs to PacketQueueSize, and RttMs.
+         */
+        private static final boolean[] INTEGERS = {
+            false, false, false,
+            true, true, true, true, true, true, true, true,
+            true, true, true, true, true, true,
+            false, true, false, false, false
+        };
+
+        /**
+         * The SSRC of the stream.
+         */
+        private long ssrc;
+
+        /**
+         * The values of the stats, in the order of
+         * <tt>FakeUserStats.jsonMediaStreamStatsTemplate</tt> (without the
+         * SSRC).
+         */
+        private final double[] values = new double[NAMES.length];
+
+        /**
+         * The values of the interval stats, in the order of
+         * <tt>INTERVAL_NAMES</tt>, <tt>NaN</tt> if unknown.
+         */
+        private final double[] intervalValues
+            = new double[INTERVAL_NAMES.length];
+
+        /**
+         * Overwrite the values of this <tt>StreamSnapshot</tt> with the
+         * current values of <tt>stats</tt>, and their interval stats since
+         * the values of the counters of the previous snapshot of the stream.
+         *
+         * @param ssrc the SSRC of the stream.
+         * @param stats the <tt>MediaStreamStats</tt> of the stream.
+         * @param receiveSink the <tt>ReceiveSink</tt> the download stats are
+         * taken from, or <tt>null</tt> to take them from <tt>stats</tt>.
+         * @param type the <tt>MediaType</tt> of the stream.
+         * @param previousCounters the values of the counters at the previous
+         * snapshot, in the order of <tt>COUNTER_INDEXES</tt>, replaced by
+         * their current values, or <tt>null</tt> to leave the interval stats
+         * unknown.
+         * @param offset the index of the counters of the stream in
+         * <tt>previousCounters</tt>.
+         * @param elapsedSeconds the time since the previous snapshot, or 0 if
+         * there was none.
+         */
+        void update(
+            long ssrc,
+            MediaStreamStats stats,
+            ReceiveSink receiveSink,
+            MediaType type,
+            long[] previousCounters,
+            int offset,
+            double elapsedSeconds)
+        {
+            this.ssrc = ssrc;
+            int i = 0;
+            values[i++] = stats.getDownloadJitterMs();
+            values[i++] = stats.getDownloadPercentLoss();
+            values[i++] = stats.getDownloadRateKiloBitPerSec();
+            values[i++] = stats.getJitterBufferDelayMs();
+            values[i++] = stats.getJitterBufferDelayPackets();
+            values[i++] = stats.getNbDiscarded();
+            values[i++] = stats.getNbDiscardedFull();
+            values[i++] = stats.getNbDiscardedLate();
+            values[i++] = stats.getNbDiscardedReset();
+            values[i++] = stats.getNbDiscardedShrink();
+            values[i++] = stats.getNbFec();
+            values[i++] = stats.getNbPackets();
+            values[i++] = stats.getNbPacketsLost();
+            values[i++] = stats.getNbReceivedBytes();
+            values[i++] = stats.getNbSentBytes();
+            values[i++] = stats.getPacketQueueCountPackets();
+            values[i++] = stats.getPacketQueueSize();
+            values[i++] = stats.getPercentDiscarded();
+            values[i++] = stats.getRttMs();
+            values[i++] = stats.getUploadJitterMs();
+            values[i++] = stats.getUploadPercentLoss();
+            values[i++] = stats.getUploadRateKiloBitPerSec();
+            if (receiveSink != null)
+                setDownloadValues(receiveSink, type);
+
+            Arrays.fill(intervalValues, Double.NaN);
+            if (previousCounters != null)
+            {
+                computeIntervals(previousCounters, offset, elapsedSeconds);
+                for (i = 0; i < COUNTER_INDEXES.length; i++)
+                {
+                    previousCounters[offset + i]
+                        = (long) values[COUNTER_INDEXES[i]];
+                }
+            }
+        }
+
+        /**
+         * Replace the download stats of the <tt>MediaStreamStats</tt>, which
+         * never sees the packets received by a <tt>ReceiveSink</tt>, by the
+         * ones of <tt>receiveSink</tt>.
+         *
+         * @param receiveSink the <tt>ReceiveSink</tt> of the user.
+         * @param type the <tt>MediaType</tt> of the stream.
+         */
+        private void setDownloadValues(ReceiveSink receiveSink, MediaType type)
+        {
+            StreamCounters counters = receiveSink.getCounters(type);
+            if (counters == null)
+                return;
+
+            long packets = counters.get(StreamCounters.PACKETS_RECEIVED);
+            long lost = counters.get(StreamCounters.PACKETS_LOST);
+            values[0] = receiveSink.getJitterMs(type);
+            values[1]
+                = (packets + lost > 0) ? 100D * lost / (packets + lost) : 0;
+            values[11] = packets;
+            values[12] = lost;
+            values[13] = counters.get(StreamCounters.BYTES_RECEIVED);
+        }
+
+        /**
+         * Compute the interval stats from the deltas of the counters since
+         * the previous snapshot. They are left unknown for the first
+         * snapshot, or if a counter went backwards (e.g. reset by libjitsi).
+         *
+         * @param previousCounters the values of the counters at the previous
+         * snapshot.
+         * @param offset the index of the counters of the stream in
+         * <tt>previousCounters</tt>.
+         * @param elapsedSeconds the time since the previous snapshot, or 0 if
+         * there was none.
+         */
+        private void computeIntervals(
+            long[] previousCounters,
+            int offset,
+            double elapsedSeconds)
+        {
+            if (!(elapsedSeconds > 0))
+                return;
+
+            long packets = getDelta(previousCounters, offset, 0);
+            long lost = getDelta(previousCounters, offset, 1);
+            long receivedBytes = getDelta(previousCounters, offset, 2);
+            long sentBytes = getDelta(previousCounters, offset, 3);
+            if (packets < 0 || lost < 0 || receivedBytes < 0 || sentBytes < 0)
+                return;
+
+            intervalValues[0] = packets / elapsedSeconds;
+            intervalValues[1] = lost / elapsedSeconds;
+            if (packets + lost > 0)
+                intervalValues[2] = 100D * lost / (packets + lost);
+            intervalValues[3] = receivedBytes / elapsedSeconds;
+            intervalValues[4] = sentBytes / elapsedSeconds;
+        }
+
+        /**
+         * Get the delta of a counter since the previous snapshot.
+         *
+         * @param previousCounters the values of the counters at the previous
+         * snapshot.
+         * @param offset the index of the counters of the stream in
+         * <tt>previousCounters</tt>.
+         * @param counter the index of the counter in
+         * <tt>COUNTER_INDEXES</tt>.
+         * @return the delta of the counter.
+         */
+        private long getDelta(long[] previousCounters, int offset, int counter)
+        {
+            return (long) values[COUNTER_INDEXES[counter]]
+                - previousCounters[offset + counter];
+        }
+
+        /**
+         * Get the SSRC of the stream.
+         * @return the SSRC of the stream.
+         */
+        public long getSSRC()
+        {
+            return ssrc;
+        }
+
+        /**
+         * Get the value of a stat of the stream.
+         * @param index the index of the stat, in the order of
+         * <tt>FakeUserStats.jsonMediaStreamStatsTemplate</tt> (without the
+         * SSRC).
+         * @return the value of the stat.
+         */
+        public double getValue(int index)
+        {
+            return values[index];
+        }
+
+        /**
+         * Get the value of an interval stat of the stream.
+         * @param index the index of the interval stat, in the order of
+         * <tt>INTERVAL_NAMES</tt>.
+         * @return the value of the interval stat, <tt>NaN</tt> if unknown.
+         */
+        public double getIntervalValue(int index)
+        {
+            return intervalValues[index];
+        }
+
+        /**
+         * Get the interval stats of the stream in JSON, the unknown ones
+         * being <tt>null</tt>.
+         * @return the interval stats of the stream in JSON.
+         */
+        public String getIntervalsJSON()
+        {
+            StringBuilder bldr = new StringBuilder("{");
+            for (int i = 0; i < INTERVAL_NAMES.length; i++)
+            {
+                bldr.append((i == 0) ? " \"" : " , \"");
+                bldr.append(INTERVAL_NAMES[i]).append("\":");
+                bldr.append(Double.isNaN(intervalValues[i])
+                    ? "null" : String.valueOf(intervalValues[i]));
+            }
+            return bldr.append(" }").toString();
+        }
+
+        /**
+         * Copy the SSRC and the values of this <tt>StreamSnapshot</tt> in
+         * <tt>args</tt>, in the order of
+         * <tt>FakeUserStats.jsonMediaStreamStatsTemplate</tt>.
+         *
+         * @param args the arguments of <tt>String.format</tt>.
+         * @param offset the index in <tt>args</tt> of the SSRC.
+         */
+        void copyFormatArgs(Object[] args, int offset)
+        {
+            args[offset] = ssrc;
+            for (int i = 0; i < values.length; i++)
+            {
+                args[offset + 1 + i]
+                    = INTEGERS[i] ? (Object) (long) values[i] : values[i];
+            }
+        }
+    }
+}
@@ -20,10 +20,13 @@ package org.jitsi.hammer.stats;
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 import org.apache.commons.math3.stat.descriptive.*;
 import org.jitsi.hammer.*;
-import org.jitsi.service.neomedia.MediaStreamStats;
+import org.jitsi.hammer.utils.*;
 import org.jitsi.service.neomedia.MediaType;
 import org.jitsi.util.Logger;
 
@@ -47,7 +50,39 @@ public class HammerStats implements Runnable
     /**
      * A boolean used to stop the run method of this <tt>HammerStats</tt>.
      */
-    private boolean threadStop = false;
+    private volatile boolean threadStop = false;
+
+    /**
+     * The number of users whose stats are updated by one task of the update
+     * stage, at most.
+     */
+    private static final int MAX_USERS_PER_UPDATE_TASK = 64;
+
+    /**
+     * The number of tasks waiting for the writer stage, at most : a polling,
+     * then the closing of the stats files. A polling is only handed to the
+     * writer stage once it wrote the previous one, so it never rejects a task.
+     */
+    private static final int WRITER_QUEUE_CAPACITY = 2;
+
+    /**
+     * The percentiles of the stats written next to the summary and overall
+     * stats.
+     */
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    /**
+     * The names of the <tt>PERCENTILES</tt> in the stats files.
+     */
+    private static final String[] PERCENTILE_NAMES
+        = { "p50", "p90", "p99", "p99_9" };
+
+    /**
+     * The names of the aggregates of the interval stats written before their
+     * <tt>PERCENTILES</tt>.
+     */
+    private static final String[] INTERVAL_SUMMARY_NAMES
+        = { "min", "mean", "max", "sum" };
 
     /**
      * The name (not the path or location) of the directory where
@@ -75,15 +110,89 @@ public class HammerStats implements Runnable
      * An <tt>List</tt> of <tt>FakeUserStats</tt> that contains the
      * <tt>MediaStreamStats</tt>s of the <tt>FakeUser</tt>.
      * It is used to keep track of the streams' stats.
+     *
+     * It is copied on write, so that the users being started register their
+     * stats without ever waiting for a polling of the stats, and each polling
+     * iterates over the users registered when it started.
+     */
+    private final List<FakeUserStats> fakeUserStatsList =
+        new CopyOnWriteArrayList<FakeUserStats>();
+
+    /**
+     * The file that will contain all the stats recorded by run(), when they
+     * are written in the binary format.
+     */
+    private final File allStatsBinaryFile;
+
+    /**
+     * The file that will contain the checkpoints of the overall stats,
+     * written at each polling.
+     */
+    private final File checkpointFile;
+
+    /**
+     * The file that will contain the setup timelines of the users.
+     */
+    private final File setupTimelineFile;
+
+    /**
+     * The file that will contain the verdict of the <tt>SloEvaluator</tt>.
+     */
+    private final File verdictFile;
+
+    /**
+     * The <tt>SetupTimeline</tt>s of the <tt>FakeUser</tt>, registered when
+     * the users are created so that the timelines of the users that never
+     * completed their setup are also written.
      */
-    private final ArrayList<FakeUserStats> fakeUserStatsList =
-        new ArrayList<FakeUserStats>();
+    private final List<SetupTimeline> setupTimelines =
+        new CopyOnWriteArrayList<SetupTimeline>();
+
+    /**
+     * The latencies of the setup phases of the <tt>FakeUser</tt>, recorded by
+     * their <tt>SetupTimeline</tt>s.
+     */
+    private final SetupLatencies setupLatencies = new SetupLatencies();
+
+    /**
+     * The format in which all the stats are written.
+     */
+    private StatsFormat allStatsFormat = StatsFormat.JSON;
+
+    /**
+     * The <tt>MetricsServer</tt> to which the stats are published at each
+     * polling, or <tt>null</tt>.
+     */
+    private volatile MetricsServer metricsServer;
+
+    /**
+     * The <tt>SloEvaluator</tt> checking the objectives of the run at each
+     * polling, or <tt>null</tt>.
+     */
+    private volatile SloEvaluator sloEvaluator;
 
     /**
      * The time (in seconds) the HammerStats wait between two updates.
      */
     private int timeBetweenUpdate = 5;
 
+    /**
+     * The fraction of the users whose stats are polled at each polling.
+     */
+    private double sampleFraction = 1;
+
+    /**
+     * The number of users whose stats are polled at each polling, or 0 to
+     * use <tt>sampleFraction</tt> instead.
+     */
+    private int sampleSize = 0;
+
+    /**
+     * The index of the first user of the next sample. It is only used by the
+     * thread running run().
+     */
+    private int sampleOffset = 0;
+
     /**
      * The boolean used to know if the logging of all the stats in the
      * run method is enable.
@@ -115,6 +224,61 @@ public class HammerStats implements Runnable
      */
     HammerSummaryStats videoSummaryStats = new HammerSummaryStats();
 
+    /**
+     * The <tt>PrintWriter</tt> of the file containing all the stats and the
+     * summary stats. It is only used by the writer stage.
+     */
+    private PrintWriter allStatsWriter;
+
+    /**
+     * The <tt>BinaryStatsWriter</tt> of the binary file containing all the
+     * stats. It is only used by the writer stage.
+     */
+    private BinaryStatsWriter binaryStatsWriter;
+
+    /**
+     * The <tt>CheckpointLog</tt> of the overall stats. It is only used by the
+     * writer stage.
+     */
+    private CheckpointLog checkpointLog;
+
+    /**
+     * Whether the checkpoints were disabled after a write error. It is only
+     * used by the writer stage.
+     */
+    private boolean checkpointFailed = false;
+
+    /**
+     * The delimiter written before the next polling in the file containing
+     * all the stats and the summary stats. It is only used by the writer
+     * stage.
+     */
+    private String allStatsDelimiter = "";
+
+    /**
+     * The number of tasks of the update stage that failed, so that the
+     * users they updated are missing from their polling.
+     */
+    private final AtomicInteger failedUpdateTasks = new AtomicInteger();
+
+    /**
+     * The number of users missing from their polling because the task of the
+     * update stage updating them failed.
+     */
+    private final AtomicInteger failedUpdateUsers = new AtomicInteger();
+
+    /**
+     * The number of pollings skipped because the writer stage was still
+     * busy with the previous one.
+     */
+    private final AtomicInteger skippedPollings = new AtomicInteger();
+
+    /**
+     * Whether the writer stage has not written the last polling handed to
+     * it yet, so that the <tt>FakeUserStatsSnapshot</tt>s it reads must not
+     * be overwritten by a new polling.
+     */
+    private final AtomicBoolean writing = new AtomicBoolean();
 
     /**
      * Initialize an instance of a <tt>HammerStats</tt> with the default
@@ -150,6 +314,22 @@ public class HammerStats implements Runnable
             this.statsDirectoryPath
             + File.separator
             + "AllAndSummaryStats.json");
+        this.allStatsBinaryFile = new File(
+            this.statsDirectoryPath
+            + File.separator
+            + "allStats.bin");
+        this.checkpointFile = new File(
+            this.statsDirectoryPath
+            + File.separator
+            + "overallStats.checkpoint");
+        this.setupTimelineFile = new File(
+            this.statsDirectoryPath
+            + File.separator
+            + "setupTimeline.json");
+        this.verdictFile = new File(
+            this.statsDirectoryPath
+            + File.separator
+            + "verdict.json");
 
         logger.info("Stats directory : " + this.statsDirectoryPath);
     }
@@ -159,7 +339,7 @@ public class HammerStats implements Runnable
      * Add a <tt>FakeUserStats</tt> to the list this <tt>HammerStats</tt> is watching
      * @param fakeUserStats the <tt>FakeUserStats</tt> that will added.
      */
-    public synchronized void addFakeUsersStats(
+    public void addFakeUsersStats(
         FakeUserStats fakeUserStats)
     {
         if(fakeUserStats == null)
@@ -169,153 +349,66 @@ public class HammerStats implements Runnable
         fakeUserStatsList.add(fakeUserStats);
     }
 
+    /**
+     * Add the <tt>SetupTimeline</tt> of a <tt>FakeUser</tt> : the latencies
+     * of its setup phases are recorded from now on, and its timeline is
+     * written with all the stats at the end of the run.
+     * @param setupTimeline the <tt>SetupTimeline</tt> that will added.
+     */
+    public void addSetupTimeline(SetupTimeline setupTimeline)
+    {
+        if(setupTimeline == null)
+        {
+            throw new NullPointerException("SetupTimeline can't be null");
+        }
+        setupTimeline.setLatencies(setupLatencies);
+        setupTimelines.add(setupTimeline);
+    }
+
     /**
      * Keep track, collect and update the stats of all the
      * <tt>MediaStreamStats</tt> this <tt>HammerStats</tt> handles.
      *
      * Also write the results in the stats files.
+     *
+     * At each polling, the stats of the users are updated in parallel, each
+     * user overwriting its <tt>FakeUserStatsSnapshot</tt>. The snapshots
+     * are then handed to a single writer thread that aggregates them and
+     * writes the stats files, while this thread waits for the next polling.
+     * If the writer thread has not written the previous polling yet, the
+     * new one is skipped (and counted) rather than overwrite its snapshots.
      */
     public void run()
     {
-        PrintWriter writer = null;
-        StringBuilder allBldr = new StringBuilder();
-        String delim;
-        String delim_ = "";
-        synchronized(this)
-        {
-            threadStop = false;
-        }
+        threadStop = false;
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService updateStage
+            = Executors.newFixedThreadPool(
+                    threads,
+                    HammerExecutors.newThreadFactory("HammerStatsUpdate-"));
+        ExecutorService writerStage
+            = new ThreadPoolExecutor(
+                    1, 1,
+                    0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(WRITER_QUEUE_CAPACITY),
+                    HammerExecutors.newThreadFactory("HammerStatsWriter-"));
 
         logger.info("Running the main loop");
         while (!threadStop)
         {
-            synchronized(this)
+            if(overallStatsLogging || allStatsLogging || summaryStatsLogging
+                || metricsServer != null || sloEvaluator != null)
             {
-                if(overallStatsLogging || allStatsLogging || summaryStatsLogging)
+                if(!writing.compareAndSet(false, true))
                 {
-                    if(allStatsLogging || summaryStatsLogging)
-                    {
-                        if(writer == null)
-                        {
-                            try
-                            {
-                                writer = new PrintWriter(allStatsFile, "UTF-8");
-                                writer.print("[\n");
-                            }
-                            catch (FileNotFoundException e)
-                            {
-                                logger.fatal("HammerStats stopping due to FileNotFound",e);
-                                stop();
-                            }
-                            catch (UnsupportedEncodingException e)
-                            {
-                                logger.fatal("HammerStats stopping due to "
-                                    + "UnsupportedEncoding", e);
-                            }
-                        }
-
-                        //Clear the StringBuilder
-                        allBldr.setLength(0);
-
-                        writer.print(delim_ + '\n');
-                        delim_ = ",";
-                        writer.print("{\n");
-                        writer.print("  \"timestamp\":" + System.currentTimeMillis()+",\n");
-                    }
-
-                    delim = "";
-                    logger.info("Updating the MediaStreamStats");
-                    for(FakeUserStats stats : fakeUserStatsList)
-                    {
-                        //We update the stats before using/reading them.
-                        stats.updateStats();
-                    }
-
-                    for(FakeUserStats stats : fakeUserStatsList)
-                    {
-                        if(allStatsLogging)
-                        {
-                            allBldr.append(delim + stats.getStatsJSON(2) + '\n');
-                            delim = ",";
-                        }
-
-                        if(summaryStatsLogging || overallStatsLogging)
-                        {
-                            logger.info("Adding stats values from the"
-                                + " MediaStreamStats to their"
-                                + " HammerSummaryStats objects");
-                            audioSummaryStats.add(
-                                stats.getMediaStreamStats(MediaType.AUDIO));
-                            videoSummaryStats.add(
-                                stats.getMediaStreamStats(MediaType.VIDEO));
-                        }
-                    }
-
-                    if(allStatsLogging)
-                    {
-                        logger.info("Writing all stats to file");
-                        writer.print("  \"users\":\n");
-                        writer.print("  [\n");
-                        writer.print(allBldr.toString());
-                        writer.print("  ]");
-                        if(summaryStatsLogging) writer.print(',');
-                        writer.print('\n');
-                    }
-                    if(summaryStatsLogging)
-                    {
-                        logger.info("Writing summary stats to file");
-                        writer.print("  \"summary\":\n");
-                        writer.print("  {\n");
-
-
-                        writer.print("    \"max\":\n");
-                        writer.print("    {\n");
-                        writer.print("        \"audio\":");
-                        writer.print(audioSummaryStats.getMaxJSON() + ",\n");
-                        writer.print("        \"video\":");
-                        writer.print(videoSummaryStats.getMaxJSON() + '\n');
-                        writer.print("    },\n");
-
-                        writer.print("    \"mean\":\n");
-                        writer.print("    {\n");
-                        writer.print("       \"audio\":");
-                        writer.print(audioSummaryStats.getMeanJSON() + ",\n");
-                        writer.print("        \"video\":");
-                        writer.print(videoSummaryStats.getMeanJSON() + '\n');
-                        writer.print("    },\n");
-
-                        writer.print("    \"min\":\n");
-                        writer.print("    {\n");
-                        writer.print("        \"audio\":");
-                        writer.print(audioSummaryStats.getMinJSON() + ",\n");
-                        writer.print("        \"video\":");
-                        writer.print(videoSummaryStats.getMinJSON() + '\n');
-                        writer.print("    },\n");
-
-                        writer.print("    \"standard_deviation\":\n");
-                        writer.print("    {\n");
-                        writer.print("        \"audio\":");
-                        writer.print(audioSummaryStats.getStandardDeviationJSON() + ",\n");
-                        writer.print("        \"video\":");
-                        writer.print(videoSummaryStats.getStandardDeviationJSON() + '\n');
-                        writer.print("    }\n");
-
-
-                        writer.print("  }\n");
-                    }
-                    if(allStatsLogging || summaryStatsLogging)
-                    {
-                        writer.append("}");
-                        writer.flush();
-                    }
+                    int skipped = skippedPollings.incrementAndGet();
+                    logger.warn("The stats writer is late, skipped "
+                        + skipped + " pollings so far");
                 }
-
-                if(summaryStatsLogging || overallStatsLogging)
+                else if(!poll(updateStage, writerStage, threads))
                 {
-                    logger.info("Clearing the HammerSummaryStats by creating new"
-                        + " SummaryStats objects for each watched stats");
-                    audioSummaryStats.clear();
-                    videoSummaryStats.clear();
+                    break;
                 }
             }
 
@@ -330,14 +423,706 @@ public class HammerStats implements Runnable
             }
         }
         logger.info("Exiting the main loop");
+        updateStage.shutdownNow();
+
+        writerStage.execute(() -> {
+            if(allStatsWriter != null)
+            {
+                allStatsWriter.print("]\n");
+                allStatsWriter.close();
+                allStatsWriter = null;
+            }
+
+            if(binaryStatsWriter != null)
+            {
+                try
+                {
+                    binaryStatsWriter.close();
+                }
+                catch (IOException e)
+                {
+                    logger.error("Binary stats file closing error", e);
+                }
+                binaryStatsWriter = null;
+            }
 
-        if(writer != null)
+            if(checkpointLog != null)
+            {
+                try
+                {
+                    checkpointLog.close();
+                }
+                catch (IOException e)
+                {
+                    logger.error("Checkpoint log closing error", e);
+                }
+                checkpointLog = null;
+            }
+
+            if(allStatsLogging) writeSetupTimelines();
+            if(overallStatsLogging) writeOverallStats();
+            if(sloEvaluator != null) writeVerdict();
+
+            if(failedUpdateTasks.get() > 0 || skippedPollings.get() > 0)
+            {
+                logger.warn("The stats miss " + failedUpdateUsers.get()
+                    + " user pollings of " + failedUpdateTasks.get()
+                    + " failed update tasks, and " + skippedPollings.get()
+                    + " pollings skipped for the late writer");
+            }
+        });
+        writerStage.shutdown();
+        try
         {
-            writer.print("]\n");
-            writer.close();
+            // Wait for the stats files to be written.
+            writerStage.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            logger.fatal("Interrupted while writing the stats files : " + e);
         }
+    }
 
-        if(overallStatsLogging) writeOverallStats();
+    /**
+     * Update the stats of the users, and hand their snapshots to the writer
+     * stage, which clears <tt>writing</tt> once it wrote them.
+     *
+     * @param updateStage the <tt>ExecutorService</tt> updating the stats.
+     * @param writerStage the <tt>ExecutorService</tt> writing the stats.
+     * @param threads the number of threads of <tt>updateStage</tt>.
+     * @return <tt>false</tt> if interrupted.
+     */
+    private boolean poll(
+        ExecutorService updateStage,
+        ExecutorService writerStage,
+        int threads)
+    {
+        final long timestamp = System.currentTimeMillis();
+
+        final List<FakeUserStats> users
+            = new ArrayList<FakeUserStats>(fakeUserStatsList);
+        final long[][] traffic = getTraffic(users);
+        List<FakeUserStats> sample = nextSample(users);
+
+        logger.info("Updating the MediaStreamStats of "
+            + sample.size() + " users out of " + users.size());
+        final List<FakeUserStatsSnapshot> snapshots
+            = updateSnapshots(updateStage, threads, sample);
+        if (snapshots == null)
+            return false;
+
+        writerStage.execute(() -> {
+            try
+            {
+                writeStats(timestamp, users.size(), traffic, snapshots);
+            }
+            finally
+            {
+                writing.set(false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Sum the packets and bytes counted for all the users. Unlike their
+     * <tt>MediaStreamStats</tt>, this does not update anything, so all the
+     * users are counted even when only a sample of them is polled.
+     *
+     * @param users the users.
+     * @return the totals of the audio and video streams of the users, in the
+     * order of <tt>StreamCounters.NAMES</tt>.
+     */
+    private static long[][] getTraffic(List<FakeUserStats> users)
+    {
+        long[] audio = new long[StreamCounters.NAMES.length];
+        long[] video = new long[StreamCounters.NAMES.length];
+        for(FakeUserStats user : users)
+        {
+            user.addCountersTo(MediaType.AUDIO, audio);
+            user.addCountersTo(MediaType.VIDEO, video);
+        }
+        return new long[][] { audio, video };
+    }
+
+    /**
+     * Get the users whose stats are polled at this polling : all of them, or
+     * the next <tt>sampleSize</tt> (or <tt>sampleFraction</tt>) of them after
+     * the previous sample, so that the sample is rotated over all the users.
+     *
+     * @param users the users.
+     * @return the users of the sample, in the order in which they were
+     * registered (from the first one after the previous sample).
+     */
+    private List<FakeUserStats> nextSample(List<FakeUserStats> users)
+    {
+        int count = users.size();
+        int size
+            = (sampleSize > 0)
+                ? Math.min(sampleSize, count)
+                : (int) Math.ceil(count * sampleFraction);
+        if(size >= count)
+            return users;
+
+        int from = sampleOffset % count;
+        List<FakeUserStats> sample = new ArrayList<FakeUserStats>(size);
+        for(int i = 0; i < size; i++)
+            sample.add(users.get((from + i) % count));
+        sampleOffset = (from + size) % count;
+        return sample;
+    }
+
+    /**
+     * Update the stats of the users in parallel on the threads of
+     * <tt>updateStage</tt>, and take their snapshots.
+     *
+     * @param updateStage the <tt>ExecutorService</tt> updating the stats.
+     * @param threads the number of threads of <tt>updateStage</tt>.
+     * @param users the users whose stats are updated.
+     * @return the snapshots of the stats of the users, in the order of
+     * <tt>users</tt>, or <tt>null</tt> if interrupted.
+     */
+    private List<FakeUserStatsSnapshot> updateSnapshots(
+        ExecutorService updateStage,
+        int threads,
+        final List<FakeUserStats> users)
+    {
+        int usersPerTask = (users.size() + threads - 1) / threads;
+        if(usersPerTask > MAX_USERS_PER_UPDATE_TASK)
+            usersPerTask = MAX_USERS_PER_UPDATE_TASK;
+
+        List<Future<FakeUserStatsSnapshot[]>> tasks
+            = new ArrayList<Future<FakeUserStatsSnapshot[]>>();
+        for(int from = 0; from < users.size(); from += usersPerTask)
+        {
+            final int start = from;
+            final int end = Math.min(from + usersPerTask, users.size());
+            tasks.add(updateStage.submit(() -> {
+                //We update the stats before using/reading them.
+                FakeUserStatsSnapshot[] snapshots
+                    = new FakeUserStatsSnapshot[end - start];
+                for(int i = start; i < end; i++)
+                {
+                    snapshots[i - start] = users.get(i).updateSnapshot();
+                }
+                return snapshots;
+            }));
+        }
+
+        List<FakeUserStatsSnapshot> snapshots
+            = new ArrayList<FakeUserStatsSnapshot>(users.size());
+        for(int i = 0; i < tasks.size(); i++)
+        {
+            try
+            {
+                Collections.addAll(snapshots, tasks.get(i).get());
+            }
+            catch (InterruptedException e)
+            {
+                logger.fatal("Interrupted while updating the stats : " + e);
+                stop();
+                return null;
+            }
+            catch (ExecutionException e)
+            {
+                int from = i * usersPerTask;
+                int count = Math.min(usersPerTask, users.size() - from);
+                failedUpdateTasks.incrementAndGet();
+                failedUpdateUsers.addAndGet(count);
+                logger.error("Error while updating the stats of " + count
+                    + " users", e.getCause());
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Aggregate the snapshots taken at one polling, and write them in the
+     * stats files. It is only called by the writer stage.
+     *
+     * @param timestamp the time of the polling.
+     * @param userCount the number of users.
+     * @param traffic the totals of the packets and bytes of the audio and
+     * video streams of all the users.
+     * @param snapshots the snapshots of the stats of the users that were
+     * polled.
+     */
+    private void writeStats(
+        long timestamp,
+        int userCount,
+        long[][] traffic,
+        List<FakeUserStatsSnapshot> snapshots)
+    {
+        boolean jsonUsers
+            = allStatsLogging && allStatsFormat == StatsFormat.JSON;
+        boolean aggregate
+            = summaryStatsLogging || overallStatsLogging
+                || metricsServer != null || sloEvaluator != null;
+        if(allStatsLogging && allStatsFormat == StatsFormat.BINARY)
+        {
+            try
+            {
+                if(binaryStatsWriter == null)
+                    binaryStatsWriter = new BinaryStatsWriter(allStatsBinaryFile);
+                logger.info("Writing all stats to binary file");
+                binaryStatsWriter.write(timestamp, snapshots);
+            }
+            catch (IOException e)
+            {
+                logger.fatal("HammerStats stopping due to IOException", e);
+                stop();
+                return;
+            }
+        }
+
+        PrintWriter writer = allStatsWriter;
+        if(jsonUsers || summaryStatsLogging)
+        {
+            if(writer == null)
+            {
+                try
+                {
+                    writer = new PrintWriter(allStatsFile, "UTF-8");
+                    writer.print("[\n");
+                    allStatsWriter = writer;
+                }
+                catch (FileNotFoundException e)
+                {
+                    logger.fatal("HammerStats stopping due to FileNotFound",e);
+                    stop();
+                    return;
+                }
+                catch (UnsupportedEncodingException e)
+                {
+                    logger.fatal("HammerStats stopping due to "
+                        + "UnsupportedEncoding", e);
+                    stop();
+                    return;
+                }
+            }
+
+            writer.print(allStatsDelimiter + '\n');
+            allStatsDelimiter = ",";
+            writer.print("{\n");
+            writer.print("  \"timestamp\":" + timestamp + ",\n");
+        }
+
+        StringBuilder allBldr = new StringBuilder();
+        String delim = "";
+        if(aggregate)
+        {
+            logger.info("Adding stats values from the"
+                + " MediaStreamStats to their"
+                + " HammerSummaryStats objects");
+        }
+        for(FakeUserStatsSnapshot stats : snapshots)
+        {
+            if(jsonUsers)
+            {
+                allBldr.append(delim + stats.getStatsJSON(2) + '\n');
+                delim = ",";
+            }
+
+            if(aggregate)
+            {
+                audioSummaryStats.add(
+                    stats.getStreamSnapshot(MediaType.AUDIO));
+                videoSummaryStats.add(
+                    stats.getStreamSnapshot(MediaType.VIDEO));
+            }
+        }
+
+        if(jsonUsers)
+        {
+            logger.info("Writing all stats to file");
+            writer.print("  \"users\":\n");
+            writer.print("  [\n");
+            writer.print(allBldr.toString());
+            writer.print("  ]");
+            if(summaryStatsLogging) writer.print(',');
+            writer.print('\n');
+        }
+        if(summaryStatsLogging)
+        {
+            logger.info("Writing summary stats to file");
+            writer.print("  \"summary\":\n");
+            writer.print("  {\n");
+
+
+            writer.print("    \"max\":\n");
+            writer.print("    {\n");
+            writer.print("        \"audio\":");
+            writer.print(audioSummaryStats.getMaxJSON() + ",\n");
+            writer.print("        \"video\":");
+            writer.print(videoSummaryStats.getMaxJSON() + '\n');
+            writer.print("    },\n");
+
+            writer.print("    \"mean\":\n");
+            writer.print("    {\n");
+            writer.print("       \"audio\":");
+            writer.print(audioSummaryStats.getMeanJSON() + ",\n");
+            writer.print("        \"video\":");
+            writer.print(videoSummaryStats.getMeanJSON() + '\n');
+            writer.print("    },\n");
+
+            writer.print("    \"min\":\n");
+            writer.print("    {\n");
+            writer.print("        \"audio\":");
+            writer.print(audioSummaryStats.getMinJSON() + ",\n");
+            writer.print("        \"video\":");
+            writer.print(videoSummaryStats.getMinJSON() + '\n');
+            writer.print("    },\n");
+
+            writer.print("    \"standard_deviation\":\n");
+            writer.print("    {\n");
+            writer.print("        \"audio\":");
+            writer.print(audioSummaryStats.getStandardDeviationJSON() + ",\n");
+            writer.print("        \"video\":");
+            writer.print(videoSummaryStats.getStandardDeviationJSON() + '\n');
+            writer.print("    },\n");
+
+            writer.print("    \"traffic\":\n");
+            writer.print("    {\n");
+            writer.print("        \"users\":" + userCount + ",\n");
+            writer.print("        \"audio\":");
+            writer.print(getTrafficJSON(traffic[0]) + ",\n");
+            writer.print("        \"video\":");
+            writer.print(getTrafficJSON(traffic[1]) + '\n');
+            writer.print("    },\n");
+
+            writer.print("    \"polling\":\n");
+            writer.print("    {\n");
+            writer.print(getPollingJSON("        "));
+            writer.print("    },\n");
+
+            writer.print("    \"intervals\":\n");
+            writer.print("    {\n");
+            writer.print(getIntervalsJSON("        "));
+            writer.print("    },\n");
+
+            writer.print(getPercentilesJSON("    ",
+                audioSummaryStats.histograms, videoSummaryStats.histograms));
+
+
+            writer.print("  }\n");
+        }
+        if(jsonUsers || summaryStatsLogging)
+        {
+            writer.append("}");
+            writer.flush();
+        }
+
+        if(metricsServer != null)
+            publishMetrics(userCount, traffic, snapshots);
+
+        if(sloEvaluator != null)
+            sloEvaluator.check(timestamp, this::getObjectiveValue);
+
+        if(overallStatsLogging)
+            writeCheckpoint(timestamp);
+
+        if(aggregate)
+        {
+            logger.info("Clearing the HammerSummaryStats by creating new"
+                + " SummaryStats objects for each watched stats");
+            audioSummaryStats.clear();
+            videoSummaryStats.clear();
+        }
+    }
+
+    /**
+     * Get the value of an objective of the <tt>SloEvaluator</tt> at the
+     * current polling. It is only called by the writer stage, before the
+     * stats of the polling are cleared.
+     *
+     * @param objective the objective.
+     * @return the value of the objective, <tt>NaN</tt> if unknown.
+     */
+    private double getObjectiveValue(SloEvaluator.Objective objective)
+    {
+        HammerSummaryStats stats
+            = (objective.media == MediaType.AUDIO)
+                ? audioSummaryStats : videoSummaryStats;
+        switch (objective.source)
+        {
+        case STREAM:
+            return objective.getValue(
+                stats.statistics[objective.index],
+                stats.histograms[objective.index]);
+        case INTERVAL:
+            return objective.getValue(
+                stats.intervalStatistics[objective.index],
+                stats.intervalHistograms[objective.index]);
+        case SETUP_ELAPSED:
+            return objective.getValue(
+                null,
+                setupLatencies.getElapsedHistogram(objective.phase));
+        default:
+            return setupLatencies.getSuccessPercent(objective.phase);
+        }
+    }
+
+    /**
+     * Append a checkpoint of the aggregated stats to the checkpoint log, so
+     * that the overall stats can be rebuilt if the run does not end cleanly.
+     * It is only called by the writer stage, before the histograms of the
+     * polling are cleared.
+     *
+     * @param timestamp the time of the polling.
+     */
+    private void writeCheckpoint(long timestamp)
+    {
+        if(checkpointFailed)
+            return;
+
+        try
+        {
+            if(checkpointLog == null)
+            {
+                checkpointLog = new CheckpointLog(
+                    checkpointFile,
+                    CheckpointLog.DEFAULT_SYNC_INTERVAL_MILLIS);
+            }
+            checkpointLog.write(
+                timestamp,
+                new StatisticalSummary[][] {
+                    audioSummaryStats.getAggregateSummaries(),
+                    videoSummaryStats.getAggregateSummaries() },
+                new PercentileHistogram[][] {
+                    audioSummaryStats.histograms,
+                    videoSummaryStats.histograms },
+                setupLatencies);
+        }
+        catch (IOException e)
+        {
+            logger.error("Checkpoint log writing error, no more checkpoints"
+                + " will be written", e);
+            checkpointFailed = true;
+        }
+    }
+
+    /**
+     * Render the aggregated stats of a polling (and the stats of each user
+     * if asked) in the Prometheus text format, and publish them to the
+     * <tt>MetricsServer</tt>. It is only called by the writer stage.
+     *
+     * @param snapshots the snapshots of the stats of the users.
+     */
+    private void publishMetrics(
+        int userCount,
+        long[][] traffic,
+        List<FakeUserStatsSnapshot> snapshots)
+    {
+        StringBuilder out = new StringBuilder();
+        MetricsServer.appendHeader(out, "hammer_stats_users", "gauge",
+            "The number of users whose stats were polled.");
+        MetricsServer.appendSample(out, "hammer_stats_users", null,
+            snapshots.size());
+        MetricsServer.appendHeader(out,
+            "hammer_stats_failed_update_tasks_total", "counter",
+            "The number of tasks updating the stats of users that failed.");
+        MetricsServer.appendSample(out,
+            "hammer_stats_failed_update_tasks_total", null,
+            failedUpdateTasks.get());
+        MetricsServer.appendHeader(out,
+            "hammer_stats_failed_update_users_total", "counter",
+            "The number of user pollings missed by the failed update tasks.");
+        MetricsServer.appendSample(out,
+            "hammer_stats_failed_update_users_total", null,
+            failedUpdateUsers.get());
+        MetricsServer.appendHeader(out,
+            "hammer_stats_skipped_pollings_total", "counter",
+            "The number of pollings skipped for the late stats writer.");
+        MetricsServer.appendSample(out,
+            "hammer_stats_skipped_pollings_total", null,
+            skippedPollings.get());
+
+        String audio = MediaType.AUDIO.toString();
+        String video = MediaType.VIDEO.toString();
+        MetricsServer.appendHeader(out, "hammer_traffic_users", "gauge",
+            "The number of users whose packets are counted.");
+        MetricsServer.appendSample(out, "hammer_traffic_users", null,
+            userCount);
+        for (int i = 0; i < StreamCounters.NAMES.length; i++)
+        {
+            String name = StreamCounters.NAMES[i];
+            String metric = "hammer_traffic_" + toMetricName(name) + "_total";
+            MetricsServer.appendHeader(out, metric, "counter",
+                "The " + name + " of the RTP streams of all the users.");
+            MetricsServer.appendSample(out, metric,
+                "media=\"" + audio + '"', traffic[0][i]);
+            MetricsServer.appendSample(out, metric,
+                "media=\"" + video + '"', traffic[1][i]);
+        }
+
+        String[] names = FakeUserStatsSnapshot.StreamSnapshot.NAMES;
+        for (int i = 0; i < names.length; i++)
+        {
+            String metric = "hammer_stream_" + toMetricName(names[i]);
+            MetricsServer.appendHeader(out, metric, "gauge",
+                "The " + names[i] + " of the streams at the last polling,"
+                    + " aggregated over the users.");
+            audioSummaryStats.appendMetrics(out, metric, audio, i);
+            videoSummaryStats.appendMetrics(out, metric, video, i);
+        }
+        String[] intervalNames
+            = FakeUserStatsSnapshot.StreamSnapshot.INTERVAL_NAMES;
+        for (int i = 0; i < intervalNames.length; i++)
+        {
+            String metric = "hammer_stream_" + toMetricName(intervalNames[i]);
+            MetricsServer.appendHeader(out, metric, "gauge",
+                "The " + intervalNames[i] + " of the streams since their"
+                    + " previous polling, aggregated over the users.");
+            audioSummaryStats.appendIntervalMetrics(out, metric, audio, i);
+            videoSummaryStats.appendIntervalMetrics(out, metric, video, i);
+        }
+
+        if (metricsServer.isPerUserStats())
+        {
+            for (int i = 0; i < names.length; i++)
+            {
+                String metric = "hammer_user_" + toMetricName(names[i]);
+                MetricsServer.appendHeader(out, metric, "gauge",
+                    "The " + names[i] + " of the streams of each user at the"
+                        + " last polling.");
+                for (FakeUserStatsSnapshot snapshot : snapshots)
+                {
+                    String user
+                        = MetricsServer.label("user", snapshot.getUsername());
+                    MetricsServer.appendSample(out, metric,
+                        user + ",media=\"" + audio + '"',
+                        snapshot.getStreamSnapshot(MediaType.AUDIO)
+                            .getValue(i));
+                    MetricsServer.appendSample(out, metric,
+                        user + ",media=\"" + video + '"',
+                        snapshot.getStreamSnapshot(MediaType.VIDEO)
+                            .getValue(i));
+                }
+            }
+            for (int i = 0; i < intervalNames.length; i++)
+            {
+                String metric = "hammer_user_" + toMetricName(intervalNames[i]);
+                MetricsServer.appendHeader(out, metric, "gauge",
+                    "The " + intervalNames[i] + " of the streams of each user"
+                        + " since their previous polling.");
+                for (FakeUserStatsSnapshot snapshot : snapshots)
+                {
+                    String user
+                        = MetricsServer.label("user", snapshot.getUsername());
+                    MetricsServer.appendSample(out, metric,
+                        user + ",media=\"" + audio + '"',
+                        snapshot.getStreamSnapshot(MediaType.AUDIO)
+                            .getIntervalValue(i));
+                    MetricsServer.appendSample(out, metric,
+                        user + ",media=\"" + video + '"',
+                        snapshot.getStreamSnapshot(MediaType.VIDEO)
+                            .getIntervalValue(i));
+                }
+            }
+        }
+
+        metricsServer.publishStreamMetrics(out);
+    }
+
+    /**
+     * Create and return the String that contains the aggregates of the
+     * interval stats of the last polling (in JSON), as the members of an
+     * object, one per aggregate.
+     * @param indent the indentation of the members.
+     * @return the String that contains the aggregates of the interval stats.
+     */
+    private String getIntervalsJSON(String indent)
+    {
+        StringBuilder bldr = new StringBuilder();
+        int aggregates = INTERVAL_SUMMARY_NAMES.length + PERCENTILES.length;
+        for (int aggregate = 0; aggregate < aggregates; aggregate++)
+        {
+            bldr.append(indent + "\"" + getIntervalAggregateName(aggregate)
+                + "\":\n");
+            bldr.append(indent + "{\n");
+            bldr.append(indent + "    \"audio\":");
+            bldr.append(audioSummaryStats.getIntervalJSON(aggregate) + ",\n");
+            bldr.append(indent + "    \"video\":");
+            bldr.append(videoSummaryStats.getIntervalJSON(aggregate) + '\n');
+            bldr.append(indent + "}");
+            bldr.append((aggregate < aggregates - 1) ? ",\n" : "\n");
+        }
+        return bldr.toString();
+    }
+
+    /**
+     * Create and return the String that contains the counts of the pollings
+     * of the stats that failed or were skipped since the start of the run (in
+     * JSON), as the members of an object.
+     * @param indent the indentation of the members.
+     * @return the String that contains the counts.
+     */
+    private String getPollingJSON(String indent)
+    {
+        return indent + "\"failed_update_tasks\":" + failedUpdateTasks.get()
+            + ",\n"
+            + indent + "\"failed_update_users\":" + failedUpdateUsers.get()
+            + ",\n"
+            + indent + "\"skipped_pollings\":" + skippedPollings.get()
+            + '\n';
+    }
+
+    /**
+     * Get the name of an aggregate of the interval stats.
+     * @param aggregate the index of the aggregate : the
+     * <tt>INTERVAL_SUMMARY_NAMES</tt>, then the <tt>PERCENTILES</tt>.
+     * @return the name of the aggregate.
+     */
+    private static String getIntervalAggregateName(int aggregate)
+    {
+        return (aggregate < INTERVAL_SUMMARY_NAMES.length)
+            ? INTERVAL_SUMMARY_NAMES[aggregate]
+            : PERCENTILE_NAMES[aggregate - INTERVAL_SUMMARY_NAMES.length];
+    }
+
+    /**
+     * Get the totals of the packets and bytes of the streams of a media type
+     * in JSON.
+     *
+     * @param totals the totals, in the order of <tt>StreamCounters.NAMES</tt>.
+     * @return the totals in JSON.
+     */
+    private static String getTrafficJSON(long[] totals)
+    {
+        StringBuilder bldr = new StringBuilder("{");
+        for (int i = 0; i < totals.length; i++)
+        {
+            bldr.append((i == 0) ? " \"" : " , \"");
+            bldr.append(StreamCounters.NAMES[i] + "\":" + totals[i]);
+        }
+        return bldr.append(" }").toString();
+    }
+
+    /**
+     * Convert the name of a stat (e.g. <tt>DownloadJitterMs</tt>) to the
+     * name of a metric (e.g. <tt>download_jitter_ms</tt>).
+     *
+     * @param name the name of the stat.
+     * @return the name of the metric.
+     */
+    private static String toMetricName(String name)
+    {
+        StringBuilder bldr = new StringBuilder();
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            if (Character.isUpperCase(c))
+            {
+                if (i > 0)
+                    bldr.append('_');
+                bldr.append(Character.toLowerCase(c));
+            }
+            else
+            {
+                bldr.append(c);
+            }
+        }
+        return bldr.toString();
     }
 
     /**
@@ -379,6 +1164,58 @@ public class HammerStats implements Runnable
         }
     }
 
+    /**
+     * Write the verdict of the <tt>SloEvaluator</tt> in its file.
+     */
+    private void writeVerdict()
+    {
+        try
+        {
+            logger.info("Writing the SLO verdict to file");
+            new File(this.statsDirectoryPath).mkdirs();
+            PrintWriter writer = new PrintWriter(verdictFile, "UTF-8");
+            writer.print(sloEvaluator.getVerdictJSON() + '\n');
+            writer.close();
+        }
+        catch (FileNotFoundException e)
+        {
+            logger.fatal("SLO verdict file opening error",e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            logger.fatal("SLO verdict file opening error",e);
+        }
+    }
+
+    /**
+     * Write the <tt>SetupTimeline</tt>s of the users in their file.
+     */
+    private void writeSetupTimelines()
+    {
+        try
+        {
+            logger.info("Writing setup timelines to file");
+            PrintWriter writer = new PrintWriter(setupTimelineFile, "UTF-8");
+            writer.print("[\n");
+            String delim = "";
+            for (SetupTimeline timeline : setupTimelines)
+            {
+                writer.print(delim + timeline.getTimelineJSON(2));
+                delim = ",\n";
+            }
+            writer.print("\n]\n");
+            writer.close();
+        }
+        catch (FileNotFoundException e)
+        {
+            logger.fatal("Setup timeline file opening error",e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            logger.fatal("Setup timeline file opening error",e);
+        }
+    }
+
     /**
      * print the overall stats of the <tt>MediaStream</tt> this
      * <tt>MediaStreamStats</tt> keep track to the PrintStream given as argument.
@@ -394,6 +1231,41 @@ public class HammerStats implements Runnable
      * @return the String that contains the overall stats.
      */
     protected String getOverallStatsJSON()
+    {
+        return getOverallStatsJSON(
+            audioSummaryStats.getAggregateSummaries(),
+            videoSummaryStats.getAggregateSummaries(),
+            audioSummaryStats.aggregateHistograms,
+            videoSummaryStats.aggregateHistograms,
+            setupLatencies,
+            getPollingJSON("      "));
+    }
+
+    /**
+     * Create and return the String that contains the overall stats (in JSON)
+     * of the aggregated stats of a run : the ones of this
+     * <tt>HammerStats</tt>, or the ones restored from a checkpoint log.
+     * @param audioSummaries the aggregate summary statistics of the audio
+     * streams' stats, in the order of jsonMediaStreamStatsTemplate.
+     * @param videoSummaries the aggregate summary statistics of the video
+     * streams' stats, in the order of jsonMediaStreamStatsTemplate.
+     * @param audioHistograms the aggregate histograms of the audio streams'
+     * stats, in the order of jsonMediaStreamStatsTemplate.
+     * @param videoHistograms the aggregate histograms of the video streams'
+     * stats, in the order of jsonMediaStreamStatsTemplate.
+     * @param setupLatencies the latencies of the setup phases of the users.
+     * @param pollingJSON the counts of the pollings of the stats that failed
+     * or were skipped, as returned by <tt>getPollingJSON</tt>, or
+     * <tt>null</tt> if they are unknown.
+     * @return the String that contains the overall stats.
+     */
+    static String getOverallStatsJSON(
+        StatisticalSummary[] audioSummaries,
+        StatisticalSummary[] videoSummaries,
+        PercentileHistogram[] audioHistograms,
+        PercentileHistogram[] videoHistograms,
+        SetupLatencies setupLatencies,
+        String pollingJSON)
     {
         StringBuilder bldr = new StringBuilder();
         bldr.append("{\n");
@@ -402,49 +1274,143 @@ public class HammerStats implements Runnable
         bldr.append("  \"max\":\n");
         bldr.append("  {\n");
         bldr.append("      \"audio\":");
-        bldr.append(audioSummaryStats.getAggregateMaxJSON() + ",\n");
+        bldr.append(getSummaryJSON(audioSummaries, StatisticalSummary::getMax)
+            + ",\n");
         bldr.append("      \"video\":");
-        bldr.append(videoSummaryStats.getAggregateMaxJSON() + '\n');
+        bldr.append(getSummaryJSON(videoSummaries, StatisticalSummary::getMax)
+            + '\n');
         bldr.append("  },\n");
 
         bldr.append("  \"mean\":\n");
         bldr.append("  {\n");
         bldr.append("     \"audio\":");
-        bldr.append(audioSummaryStats.getAggregateMeanJSON() + ",\n");
+        bldr.append(getSummaryJSON(audioSummaries, StatisticalSummary::getMean)
+            + ",\n");
         bldr.append("      \"video\":");
-        bldr.append(videoSummaryStats.getAggregateMeanJSON() + '\n');
+        bldr.append(getSummaryJSON(videoSummaries, StatisticalSummary::getMean)
+            + '\n');
         bldr.append("  },\n");
             
 
         bldr.append("  \"min\":\n");
         bldr.append("  {\n");
         bldr.append("      \"audio\":");
-        bldr.append(audioSummaryStats.getAggregateMinJSON() + ",\n");
+        bldr.append(getSummaryJSON(audioSummaries, StatisticalSummary::getMin)
+            + ",\n");
         bldr.append("      \"video\":");
-        bldr.append(videoSummaryStats.getAggregateMinJSON() + '\n');
+        bldr.append(getSummaryJSON(videoSummaries, StatisticalSummary::getMin)
+            + '\n');
         bldr.append("  },\n");
 
         bldr.append("  \"standard_deviation\":\n");
         bldr.append("  {\n");
         bldr.append("      \"audio\":");
-        bldr.append(audioSummaryStats.getAggregateStandardDeviationJSON() + ",\n");
+        bldr.append(getSummaryJSON(
+            audioSummaries, StatisticalSummary::getStandardDeviation) + ",\n");
         bldr.append("      \"video\":");
-        bldr.append(videoSummaryStats.getAggregateStandardDeviationJSON() + '\n');
+        bldr.append(getSummaryJSON(
+            videoSummaries, StatisticalSummary::getStandardDeviation) + '\n');
         bldr.append("  },\n");
 
         bldr.append("  \"sum\":\n");
         bldr.append("  {\n");
         bldr.append("      \"audio\":");
-        bldr.append(audioSummaryStats.getAggregateSumJSON() + ",\n");
+        bldr.append(getSummaryJSON(audioSummaries, StatisticalSummary::getSum)
+            + ",\n");
         bldr.append("      \"video\":");
-        bldr.append(videoSummaryStats.getAggregateSumJSON() + '\n');
-        bldr.append("  }\n");
+        bldr.append(getSummaryJSON(videoSummaries, StatisticalSummary::getSum)
+            + '\n');
+        bldr.append("  },\n");
+
+        bldr.append("  \"setup_latency_ms\":\n");
+        bldr.append("  {\n");
+        bldr.append(setupLatencies.getLatenciesJSON(
+            "      ", PERCENTILES, PERCENTILE_NAMES));
+        bldr.append("  },\n");
+
+        if (pollingJSON != null)
+        {
+            bldr.append("  \"polling\":\n");
+            bldr.append("  {\n");
+            bldr.append(pollingJSON);
+            bldr.append("  },\n");
+        }
+
+        bldr.append(getPercentilesJSON("  ", audioHistograms, videoHistograms));
 
 
         bldr.append("}\n");
         return bldr.toString();
     }
 
+    /**
+     * Create and return the String that contains a value of the summary
+     * statistics of the stats of a media type (in JSON).
+     * @param summaries the summary statistics of the stats, in the order of
+     * jsonMediaStreamStatsTemplate.
+     * @param value the value of the summary statistics.
+     * @return the String that contains the value of the summary statistics.
+     */
+    private static String getSummaryJSON(
+        StatisticalSummary[] summaries,
+        ToDoubleFunction<StatisticalSummary> value)
+    {
+        Object[] args = new Object[summaries.length + 1];
+        args[0] = -1; //ssrc not needed here
+        for (int i = 0; i < summaries.length; i++)
+            args[i + 1] = value.applyAsDouble(summaries[i]);
+        return String.format(FakeUserStats.jsonMediaStreamStatsTemplate, args);
+    }
+
+    /**
+     * Create and return the String that contains the percentiles of the
+     * stats (in JSON), as the members of an object, one per percentile.
+     * @param indent the indentation of the members.
+     * @param audioHistograms the histograms of the audio streams' stats.
+     * @param videoHistograms the histograms of the video streams' stats.
+     * @return the String that contains the percentiles of the stats.
+     */
+    private static String getPercentilesJSON(
+        String indent,
+        PercentileHistogram[] audioHistograms,
+        PercentileHistogram[] videoHistograms)
+    {
+        StringBuilder bldr = new StringBuilder();
+        for (int i = 0; i < PERCENTILES.length; i++)
+        {
+            bldr.append(indent + "\"" + PERCENTILE_NAMES[i] + "\":\n");
+            bldr.append(indent + "{\n");
+            bldr.append(indent + "    \"audio\":");
+            bldr.append(getPercentileJSON(audioHistograms, PERCENTILES[i])
+                + ",\n");
+            bldr.append(indent + "    \"video\":");
+            bldr.append(getPercentileJSON(videoHistograms, PERCENTILES[i])
+                + '\n');
+            bldr.append(indent + "}");
+            bldr.append((i < PERCENTILES.length - 1) ? ",\n" : "\n");
+        }
+        return bldr.toString();
+    }
+
+    /**
+     * Create and return the String that contains a percentile of the stats
+     * of a media type (in JSON).
+     * @param histograms the histograms of the stats, in the order of
+     * jsonMediaStreamStatsTemplate.
+     * @param percentile the percentile, between 0 and 100.
+     * @return the String that contains the percentile of the stats.
+     */
+    private static String getPercentileJSON(
+        PercentileHistogram[] histograms,
+        double percentile)
+    {
+        Object[] args = new Object[histograms.length + 1];
+        args[0] = -1; //ssrc not needed here
+        for (int i = 0; i < histograms.length; i++)
+            args[i + 1] = histograms[i].getValueAtPercentile(percentile);
+        return String.format(FakeUserStats.jsonMediaStreamStatsTemplate, args);
+    }
+
     /**
      * Set the time this <tt>HammerStats</tt> will wait between 2 updates of
      * stats.
@@ -456,6 +1422,31 @@ public class HammerStats implements Runnable
         this.timeBetweenUpdate = timeval;
     }
 
+    /**
+     * Set the part of the users whose stats are polled at each polling, to
+     * lower the cost of the stats with a lot of users. The sample is rotated
+     * over the users from one polling to the next, while the packets and
+     * bytes of all the users are still counted at each polling.
+     * @param fraction the fraction of the users, in ]0, 1].
+     * @param size the number of users, or 0 to use <tt>fraction</tt>.
+     * @throws IllegalArgumentException if fraction or size is out of range.
+     */
+    public void setStatsSampling(double fraction, int size)
+    {
+        if(!(fraction > 0 && fraction <= 1))
+        {
+            throw new IllegalArgumentException(
+                "The fraction of the users must be in ]0, 1] : " + fraction);
+        }
+        if(size < 0)
+        {
+            throw new IllegalArgumentException(
+                "The number of users can't be negative : " + size);
+        }
+        this.sampleFraction = fraction;
+        this.sampleSize = size;
+    }
+
     /**
      * Get the time (in seconds) this <tt>HammerStats</tt> will wait
      * between 2 updates of stats.
@@ -485,6 +1476,43 @@ public class HammerStats implements Runnable
         }
     }
 
+    /**
+     * Set the <tt>MetricsServer</tt> to which the stats collected by this
+     * <tt>HammerStats</tt> are published at each polling. The latencies of
+     * the setup phases of the users are read by it at each scrape.
+     * @param metricsServer the <tt>MetricsServer</tt>, or <tt>null</tt>.
+     */
+    public void setMetricsServer(MetricsServer metricsServer)
+    {
+        this.metricsServer = metricsServer;
+        if(metricsServer != null)
+        {
+            metricsServer.addSource(out -> setupLatencies.appendMetrics(
+                out, PERCENTILES, PERCENTILE_NAMES));
+        }
+    }
+
+    /**
+     * Set the <tt>SloEvaluator</tt> checking the objectives of the run at
+     * each polling of this <tt>HammerStats</tt>. Its verdict is written with
+     * the stats files at the end of the run.
+     * @param sloEvaluator the <tt>SloEvaluator</tt>, or <tt>null</tt>.
+     */
+    public void setSloEvaluator(SloEvaluator sloEvaluator)
+    {
+        this.sloEvaluator = sloEvaluator;
+    }
+
+    /**
+     * Set the format in which all the stats collected by this
+     * <tt>HammerStats</tt> are written.
+     * @param allStatsFormat the format of all the stats.
+     */
+    public void setAllStatsFormat(StatsFormat allStatsFormat)
+    {
+        this.allStatsFormat = allStatsFormat;
+    }
+
     /**
      * Enable or disable the logging of the summary stats computed with all
      * the stats collected by this <tt>HammerStats</tt>.
@@ -594,6 +1622,37 @@ public class HammerStats implements Runnable
         AggregateSummaryStatistics aggregateUploadRateKiloBitPerSec
                 = new AggregateSummaryStatistics();
 
+        /*
+         * The histograms of the stats, in the order of
+         * jsonMediaStreamStatsTemplate, used to compute their percentiles.
+         * The stats are recorded in the histograms of the current iteration,
+         * which are added to the histograms of the whole run and cleared by
+         * clear().
+         */
+        final PercentileHistogram[] aggregateHistograms
+            = newHistograms();
+        final PercentileHistogram[] histograms
+            = newHistograms();
+
+        /*
+         * The SummaryStatistics and histograms of the interval stats of the
+         * current iteration, in the order of StreamSnapshot.INTERVAL_NAMES.
+         * The unknown values are not added. They only describe one
+         * iteration, so they are reset by clear() instead of being
+         * aggregated.
+         */
+        final SummaryStatistics[] intervalStatistics
+            = new SummaryStatistics[
+                FakeUserStatsSnapshot.StreamSnapshot.INTERVAL_NAMES.length];
+        final PercentileHistogram[] intervalHistograms
+            = new PercentileHistogram[intervalStatistics.length];
+
+        /*
+         * The SummaryStatistics of the current iteration, in the order of
+         * jsonMediaStreamStatsTemplate.
+         */
+        SummaryStatistics[] statistics;
+
         SummaryStatistics downloadJitterMs;
         SummaryStatistics downloadPercentLoss;
         SummaryStatistics downloadRateKiloBitPerSec;
@@ -622,39 +1681,59 @@ public class HammerStats implements Runnable
          */
         public HammerSummaryStats()
         {
+            for (int i = 0; i < intervalStatistics.length; i++)
+            {
+                intervalStatistics[i] = new SummaryStatistics();
+                intervalHistograms[i] = new PercentileHistogram();
+            }
             clear();
         }
 
         /**
          * Add the stats contained by <tt>stats<tt> to their corresponding
          * <tt>SummaryStats</tt> objects.
-         * @param stats the stats of a stream that will be added.
+         * @param stats the snapshot of the stats of a stream that will be
+         * added.
          */
-        public void add(MediaStreamStats stats)
+        public void add(FakeUserStatsSnapshot.StreamSnapshot stats)
         {
-            downloadJitterMs.addValue(stats.getDownloadJitterMs());
-            downloadPercentLoss.addValue(stats.getDownloadPercentLoss());
-            downloadRateKiloBitPerSec.addValue(stats.getDownloadRateKiloBitPerSec());
-            jitterBufferDelayMs.addValue(stats.getJitterBufferDelayMs());
-            jitterBufferDelayPackets.addValue(stats.getJitterBufferDelayPackets());
-            nbDiscarded.addValue(stats.getNbDiscarded());
-            nbDiscardedFull.addValue(stats.getNbDiscardedFull());
-            nbDiscardedLate.addValue(stats.getNbDiscardedLate());
-            nbDiscardedReset.addValue(stats.getNbDiscardedReset());
-            nbDiscardedShrink.addValue(stats.getNbDiscardedShrink());
-            nbFec.addValue(stats.getNbFec());
-            nbPackets.addValue(stats.getNbPackets());
-            nbPacketsLost.addValue(stats.getNbPacketsLost());
-            nbReceivedBytes.addValue(stats.getNbReceivedBytes());
-            nbSentBytes.addValue(stats.getNbSentBytes());
-            packetQueueCountPackets.addValue(stats.getPacketQueueCountPackets());
-            packetQueueSize.addValue(stats.getPacketQueueSize());
-            percentDiscarded.addValue(stats.getPercentDiscarded());
-            rttMs.addValue(stats.getRttMs());
-            uploadJitterMs.addValue(stats.getUploadJitterMs());
-            uploadPercentLoss.addValue(stats.getUploadPercentLoss());
-            uploadRateKiloBitPerSec.addValue(stats.getUploadRateKiloBitPerSec());
-
+            // The values are in the order of jsonMediaStreamStatsTemplate.
+            int i = 0;
+            downloadJitterMs.addValue(stats.getValue(i++));
+            downloadPercentLoss.addValue(stats.getValue(i++));
+            downloadRateKiloBitPerSec.addValue(stats.getValue(i++));
+            jitterBufferDelayMs.addValue(stats.getValue(i++));
+            jitterBufferDelayPackets.addValue(stats.getValue(i++));
+            nbDiscarded.addValue(stats.getValue(i++));
+            nbDiscardedFull.addValue(stats.getValue(i++));
+            nbDiscardedLate.addValue(stats.getValue(i++));
+            nbDiscardedReset.addValue(stats.getValue(i++));
+            nbDiscardedShrink.addValue(stats.getValue(i++));
+            nbFec.addValue(stats.getValue(i++));
+            nbPackets.addValue(stats.getValue(i++));
+            nbPacketsLost.addValue(stats.getValue(i++));
+            nbReceivedBytes.addValue(stats.getValue(i++));
+            nbSentBytes.addValue(stats.getValue(i++));
+            packetQueueCountPackets.addValue(stats.getValue(i++));
+            packetQueueSize.addValue(stats.getValue(i++));
+            percentDiscarded.addValue(stats.getValue(i++));
+            rttMs.addValue(stats.getValue(i++));
+            uploadJitterMs.addValue(stats.getValue(i++));
+            uploadPercentLoss.addValue(stats.getValue(i++));
+            uploadRateKiloBitPerSec.addValue(stats.getValue(i++));
+
+            for (i = 0; i < histograms.length; i++)
+                histograms[i].record(stats.getValue(i));
+
+            for (i = 0; i < intervalStatistics.length; i++)
+            {
+                double value = stats.getIntervalValue(i);
+                if (value >= 0)
+                {
+                    intervalStatistics[i].addValue(value);
+                    intervalHistograms[i].record(value);
+                }
+            }
         }
 
         /**
@@ -708,6 +1787,167 @@ public class HammerStats implements Runnable
                 aggregateUploadPercentLoss.createContributingStatistics();
             uploadRateKiloBitPerSec =
                 aggregateUploadRateKiloBitPerSec.createContributingStatistics();
+
+            statistics = new SummaryStatistics[] {
+                downloadJitterMs,
+                downloadPercentLoss,
+                downloadRateKiloBitPerSec,
+                jitterBufferDelayMs,
+                jitterBufferDelayPackets,
+                nbDiscarded,
+                nbDiscardedFull,
+                nbDiscardedLate,
+                nbDiscardedReset,
+                nbDiscardedShrink,
+                nbFec,
+                nbPackets,
+                nbPacketsLost,
+                nbReceivedBytes,
+                nbSentBytes,
+                packetQueueCountPackets,
+                packetQueueSize,
+                percentDiscarded,
+                rttMs,
+                uploadJitterMs,
+                uploadPercentLoss,
+                uploadRateKiloBitPerSec
+            };
+
+            for (int i = 0; i < histograms.length; i++)
+            {
+                aggregateHistograms[i].add(histograms[i]);
+                histograms[i].clear();
+            }
+
+            for (int i = 0; i < intervalStatistics.length; i++)
+            {
+                intervalStatistics[i].clear();
+                intervalHistograms[i].clear();
+            }
+        }
+
+        /**
+         * Get an aggregate of an interval stat, for all the stats added with
+         * add() since the last call to clear().
+         * @param index the index of the interval stat, in the order of
+         * StreamSnapshot.INTERVAL_NAMES.
+         * @param aggregate the index of the aggregate : the
+         * <tt>INTERVAL_SUMMARY_NAMES</tt>, then the <tt>PERCENTILES</tt>.
+         * @return the aggregate of the interval stat, <tt>NaN</tt> if no
+         * value was added.
+         */
+        public double getIntervalAggregate(int index, int aggregate)
+        {
+            SummaryStatistics stats = intervalStatistics[index];
+            switch (aggregate)
+            {
+            case 0:
+                return stats.getMin();
+            case 1:
+                return stats.getMean();
+            case 2:
+                return stats.getMax();
+            case 3:
+                return (stats.getN() == 0) ? Double.NaN : stats.getSum();
+            default:
+                return intervalHistograms[index].getValueAtPercentile(
+                    PERCENTILES[aggregate - INTERVAL_SUMMARY_NAMES.length]);
+            }
+        }
+
+        /**
+         * Get an aggregate of all the interval stats, for all the stats added
+         * with add() since the last call to clear(), in JSON.
+         * @param aggregate the index of the aggregate : the
+         * <tt>INTERVAL_SUMMARY_NAMES</tt>, then the <tt>PERCENTILES</tt>.
+         * @return the aggregate of the interval stats in JSON, with null for
+         * the interval stats without values.
+         */
+        public String getIntervalJSON(int aggregate)
+        {
+            StringBuilder bldr = new StringBuilder("{");
+            for (int i = 0; i < intervalStatistics.length; i++)
+            {
+                double value = getIntervalAggregate(i, aggregate);
+                bldr.append((i == 0) ? " \"" : " , \"");
+                bldr.append(
+                    FakeUserStatsSnapshot.StreamSnapshot.INTERVAL_NAMES[i]);
+                bldr.append("\":");
+                bldr.append(Double.isNaN(value) ? "null" : value);
+            }
+            return bldr.append(" }").toString();
+        }
+
+        /**
+         * Append the aggregates of an interval stat, for all the stats added
+         * with add() since the last call to clear(), as samples of a metric
+         * in the Prometheus text format.
+         * @param out the <tt>StringBuilder</tt> the samples are appended to.
+         * @param metric the name of the metric.
+         * @param media the name of the media type of the stats.
+         * @param index the index of the interval stat, in the order of
+         * StreamSnapshot.INTERVAL_NAMES.
+         */
+        public void appendIntervalMetrics(
+            StringBuilder out,
+            String metric,
+            String media,
+            int index)
+        {
+            String labels = "media=\"" + media + "\",aggregate=";
+            int aggregates = INTERVAL_SUMMARY_NAMES.length + PERCENTILES.length;
+            for (int aggregate = 0; aggregate < aggregates; aggregate++)
+            {
+                MetricsServer.appendSample(out, metric,
+                    labels + '"' + getIntervalAggregateName(aggregate) + '"',
+                    getIntervalAggregate(index, aggregate));
+            }
+        }
+
+        /**
+         * Append the min, mean, max and percentiles of a stat, for all the
+         * stats added with add() since the last call to clear(), as samples
+         * of a metric in the Prometheus text format.
+         * @param out the <tt>StringBuilder</tt> the samples are appended to.
+         * @param metric the name of the metric.
+         * @param media the name of the media type of the stats.
+         * @param index the index of the stat, in the order of
+         * jsonMediaStreamStatsTemplate (without the ssrc).
+         */
+        public void appendMetrics(
+            StringBuilder out,
+            String metric,
+            String media,
+            int index)
+        {
+            String labels = "media=\"" + media + "\",aggregate=";
+            SummaryStatistics stats = statistics[index];
+            MetricsServer.appendSample(out, metric,
+                labels + "\"min\"", stats.getMin());
+            MetricsServer.appendSample(out, metric,
+                labels + "\"mean\"", stats.getMean());
+            MetricsServer.appendSample(out, metric,
+                labels + "\"max\"", stats.getMax());
+            for (int i = 0; i < PERCENTILES.length; i++)
+            {
+                MetricsServer.appendSample(out, metric,
+                    labels + '"' + PERCENTILE_NAMES[i] + '"',
+                    histograms[index].getValueAtPercentile(PERCENTILES[i]));
+            }
+        }
+
+        /**
+         * Create one <tt>PercentileHistogram</tt> per stat of a stream.
+         * @return the new <tt>PercentileHistogram</tt>s.
+         */
+        private PercentileHistogram[] newHistograms()
+        {
+            PercentileHistogram[] hists
+                = new PercentileHistogram[
+                    FakeUserStatsSnapshot.StreamSnapshot.SIZE - 1];
+            for (int i = 0; i < hists.length; i++)
+                hists[i] = new PercentileHistogram();
+            return hists;
         }
 
         /**
@@ -916,208 +2156,38 @@ public class HammerStats implements Runnable
         }
 
         /**
-         * Get the Max of all the stats that are watched, for all the stats
-         * added with add() since the creation of this <tt>HammerSummaryStats</tt>
-         * @return The Max of all the stats in JSON.
-         */
-        public String getAggregateMaxJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                aggregateDownloadJitterMs.getMax(),
-                aggregateDownloadPercentLoss.getMax(),
-                aggregateDownloadRateKiloBitPerSec.getMax(),
-                aggregateJitterBufferDelayMs.getMax(),
-                aggregateJitterBufferDelayPackets.getMax(),
-                aggregateNbDiscarded.getMax(),
-                aggregateNbDiscardedFull.getMax(),
-                aggregateNbDiscardedLate.getMax(),
-                aggregateNbDiscardedReset.getMax(),
-                aggregateNbDiscardedShrink.getMax(),
-                aggregateNbFec.getMax(),
-                aggregateNbPackets.getMax(),
-                aggregateNbPacketsLost.getMax(),
-                aggregateNbReceivedBytes.getMax(),
-                aggregateNbSentBytes.getMax(),
-                aggregatePacketQueueCountPackets.getMax(),
-                aggregatePacketQueueSize.getMax(),
-                aggregatePercentDiscarded.getMax(),
-                aggregateRttMs.getMax(),
-                aggregateUploadJitterMs.getMax(),
-                aggregateUploadPercentLoss.getMax(),
-                aggregateUploadRateKiloBitPerSec.getMax());
-            return str;
-        }
-
-        /**
-         * Get the Mean of all the stats that are watched, for all the stats
-         * added with add() since the creation of this <tt>HammerSummaryStats</tt>
-         * @return The Mean of all the stats in JSON.
+         * Get a copy of the aggregate summary statistics of all the stats that
+         * are watched, for all the stats added with add() since the creation
+         * of this <tt>HammerSummaryStats</tt>.
+         * @return the aggregate summary statistics, in the order of
+         * jsonMediaStreamStatsTemplate (without the ssrc).
          */
-        public String getAggregateMeanJSON()
+        public StatisticalSummary[] getAggregateSummaries()
         {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                aggregateDownloadJitterMs.getMean(),
-                aggregateDownloadPercentLoss.getMean(),
-                aggregateDownloadRateKiloBitPerSec.getMean(),
-                aggregateJitterBufferDelayMs.getMean(),
-                aggregateJitterBufferDelayPackets.getMean(),
-                aggregateNbDiscarded.getMean(),
-                aggregateNbDiscardedFull.getMean(),
-                aggregateNbDiscardedLate.getMean(),
-                aggregateNbDiscardedReset.getMean(),
-                aggregateNbDiscardedShrink.getMean(),
-                aggregateNbFec.getMean(),
-                aggregateNbPackets.getMean(),
-                aggregateNbPacketsLost.getMean(),
-                aggregateNbReceivedBytes.getMean(),
-                aggregateNbSentBytes.getMean(),
-                aggregatePacketQueueCountPackets.getMean(),
-                aggregatePacketQueueSize.getMean(),
-                aggregatePercentDiscarded.getMean(),
-                aggregateRttMs.getMean(),
-                aggregateUploadJitterMs.getMean(),
-                aggregateUploadPercentLoss.getMean(),
-                aggregateUploadRateKiloBitPerSec.getMean());
-            return str;
-        }
-
-        /**
-         * Get the Min of all the stats that are watched, for all the stats
-         * added with add() since the creation of this <tt>HammerSummaryStats</tt>
-         * @return The Min of all the stats in JSON.
-         */
-        public String getAggregateMinJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                aggregateDownloadJitterMs.getMin(),
-                aggregateDownloadPercentLoss.getMin(),
-                aggregateDownloadRateKiloBitPerSec.getMin(),
-                aggregateJitterBufferDelayMs.getMin(),
-                aggregateJitterBufferDelayPackets.getMin(),
-                aggregateNbDiscarded.getMin(),
-                aggregateNbDiscardedFull.getMin(),
-                aggregateNbDiscardedLate.getMin(),
-                aggregateNbDiscardedReset.getMin(),
-                aggregateNbDiscardedShrink.getMin(),
-                aggregateNbFec.getMin(),
-                aggregateNbPackets.getMin(),
-                aggregateNbPacketsLost.getMin(),
-                aggregateNbReceivedBytes.getMin(),
-                aggregateNbSentBytes.getMin(),
-                aggregatePacketQueueCountPackets.getMin(),
-                aggregatePacketQueueSize.getMin(),
-                aggregatePercentDiscarded.getMin(),
-                aggregateRttMs.getMin(),
-                aggregateUploadJitterMs.getMin(),
-                aggregateUploadPercentLoss.getMin(),
-                aggregateUploadRateKiloBitPerSec.getMin());
-            return str;
-        }
-
-        /**
-         * Get the Standard Deviation of all the stats that are watched, for
-         * all the stats added with add() since the creation of this
-         *  <tt>HammerSummaryStats</tt>
-         * @return The Variance of all the stats in JSON.
-         */
-        public String getAggregateStandardDeviationJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                aggregateDownloadJitterMs.getStandardDeviation(),
-                aggregateDownloadPercentLoss.getStandardDeviation(),
-                aggregateDownloadRateKiloBitPerSec.getStandardDeviation(),
-                aggregateJitterBufferDelayMs.getStandardDeviation(),
-                aggregateJitterBufferDelayPackets.getStandardDeviation(),
-                aggregateNbDiscarded.getStandardDeviation(),
-                aggregateNbDiscardedFull.getStandardDeviation(),
-                aggregateNbDiscardedLate.getStandardDeviation(),
-                aggregateNbDiscardedReset.getStandardDeviation(),
-                aggregateNbDiscardedShrink.getStandardDeviation(),
-                aggregateNbFec.getStandardDeviation(),
-                aggregateNbPackets.getStandardDeviation(),
-                aggregateNbPacketsLost.getStandardDeviation(),
-                aggregateNbReceivedBytes.getStandardDeviation(),
-                aggregateNbSentBytes.getStandardDeviation(),
-                aggregatePacketQueueCountPackets.getStandardDeviation(),
-                aggregatePacketQueueSize.getStandardDeviation(),
-                aggregatePercentDiscarded.getStandardDeviation(),
-                aggregateRttMs.getStandardDeviation(),
-                aggregateUploadJitterMs.getStandardDeviation(),
-                aggregateUploadPercentLoss.getStandardDeviation(),
-                aggregateUploadRateKiloBitPerSec.getStandardDeviation());
-            return str;
-        }
-
-        /**
-         * Get the Sum of all the stats that are watched, for all the stats
-         * added with add() since the creation of this <tt>HammerSummaryStats</tt>
-         * @return The Sum of all the stats in JSON.
-         */
-        public String getAggregateSumJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                aggregateDownloadJitterMs.getSum(),
-                aggregateDownloadPercentLoss.getSum(),
-                aggregateDownloadRateKiloBitPerSec.getSum(),
-                aggregateJitterBufferDelayMs.getSum(),
-                aggregateJitterBufferDelayPackets.getSum(),
-                aggregateNbDiscarded.getSum(),
-                aggregateNbDiscardedFull.getSum(),
-                aggregateNbDiscardedLate.getSum(),
-                aggregateNbDiscardedReset.getSum(),
-                aggregateNbDiscardedShrink.getSum(),
-                aggregateNbFec.getSum(),
-                aggregateNbPackets.getSum(),
-                aggregateNbPacketsLost.getSum(),
-                aggregateNbReceivedBytes.getSum(),
-                aggregateNbSentBytes.getSum(),
-                aggregatePacketQueueCountPackets.getSum(),
-                aggregatePacketQueueSize.getSum(),
-                aggregatePercentDiscarded.getSum(),
-                aggregateRttMs.getSum(),
-                aggregateUploadJitterMs.getSum(),
-                aggregateUploadPercentLoss.getSum(),
-                aggregateUploadRateKiloBitPerSec.getSum());
-            return str;
-        }
-
-        /**
-         * Get the Variance of all the stats that are watched, for all the stats
-         * added with add() since the creation of this <tt>HammerSummaryStats</tt>
-         * @return The Variance of all the stats JSON.
-         */
-        public String getAggregateVarianceJSON()
-        {
-            String str = String.format(FakeUserStats.jsonMediaStreamStatsTemplate,
-                -1, //ssrc not needed here
-                aggregateDownloadJitterMs.getVariance(),
-                aggregateDownloadPercentLoss.getVariance(),
-                aggregateDownloadRateKiloBitPerSec.getVariance(),
-                aggregateJitterBufferDelayMs.getVariance(),
-                aggregateJitterBufferDelayPackets.getVariance(),
-                aggregateNbDiscarded.getVariance(),
-                aggregateNbDiscardedFull.getVariance(),
-                aggregateNbDiscardedLate.getVariance(),
-                aggregateNbDiscardedReset.getVariance(),
-                aggregateNbDiscardedShrink.getVariance(),
-                aggregateNbFec.getVariance(),
-                aggregateNbPackets.getVariance(),
-                aggregateNbPacketsLost.getVariance(),
-                aggregateNbReceivedBytes.getVariance(),
-                aggregateNbSentBytes.getVariance(),
-                aggregatePacketQueueCountPackets.getVariance(),
-                aggregatePacketQueueSize.getVariance(),
-                aggregatePercentDiscarded.getVariance(),
-                aggregateRttMs.getVariance(),
-                aggregateUploadJitterMs.getVariance(),
-                aggregateUploadPercentLoss.getVariance(),
-                aggregateUploadRateKiloBitPerSec.getVariance());
-            return str;
+            return new StatisticalSummary[] {
+                aggregateDownloadJitterMs.getSummary(),
+                aggregateDownloadPercentLoss.getSummary(),
+                aggregateDownloadRateKiloBitPerSec.getSummary(),
+                aggregateJitterBufferDelayMs.getSummary(),
+                aggregateJitterBufferDelayPackets.getSummary(),
+                aggregateNbDiscarded.getSummary(),
+                aggregateNbDiscardedFull.getSummary(),
+                aggregateNbDiscardedLate.getSummary(),
+                aggregateNbDiscardedReset.getSummary(),
+                aggregateNbDiscardedShrink.getSummary(),
+                aggregateNbFec.getSummary(),
+                aggregateNbPackets.getSummary(),
+                aggregateNbPacketsLost.getSummary(),
+                aggregateNbReceivedBytes.getSummary(),
+                aggregateNbSentBytes.getSummary(),
+                aggregatePacketQueueCountPackets.getSummary(),
+                aggregatePacketQueueSize.getSummary(),
+                aggregatePercentDiscarded.getSummary(),
+                aggregateRttMs.getSummary(),
+                aggregateUploadJitterMs.getSummary(),
+                aggregateUploadPercentLoss.getSummary(),
+                aggregateUploadRateKiloBitPerSec.getSummary()
+            };
         }
     }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.event.*;
+
+/**
+ * Marks the media phases of a <tt>SetupTimeline</tt> from the callbacks of
+ * libjitsi : the end of the DTLS handshake, as the <tt>SrtpListener</tt> of
+ * the <tt>DtlsControl</tt> of the user, and the first RTP packet sent, as the
+ * external <tt>TransformEngine</tt> of its <tt>MediaStream</tt>s. The RTP
+ * packets received never reach libjitsi, whose sockets only get the DTLS
+ * packets, so the first one is marked by the <tt>ReceiveSink</tt> of the
+ * user.
+ *
+ * The packets are neither modified nor copied : once the first packet is
+ * sent, each packet only costs a volatile read.
+ */
+public class MediaPhaseDetector
+    implements TransformEngine,
+               SrtpListener
+{
+    /**
+     * The <tt>SetupTimeline</tt> whose media phases are marked.
+     */
+    private final SetupTimeline timeline;
+
+    /**
+     * The <tt>PacketTransformer</tt> marking the first RTP packet sent.
+     */
+    private final PacketTransformer rtpTransformer = new PacketTransformer()
+    {
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public RawPacket[] transform(RawPacket[] pkts)
+        {
+            if (!firstSent && containsPacket(pkts))
+                firstSent = timeline.mark(SetupTimeline.Phase.FIRST_RTP_SENT);
+            return pkts;
+        }
+
+        @Override
+        public RawPacket[] reverseTransform(RawPacket[] pkts)
+        {
+            return pkts;
+        }
+    };
+
+    /**
+     * Whether the first RTP packet was sent.
+     */
+    private volatile boolean firstSent = false;
+
+    /**
+     * Initializes a <tt>MediaPhaseDetector</tt>.
+     *
+     * @param timeline the <tt>SetupTimeline</tt> whose media phases are
+     * marked.
+     */
+    public MediaPhaseDetector(SetupTimeline timeline)
+    {
+        this.timeline = timeline;
+    }
+
+    /**
+     * Detect the media phases of the streams of a user : the end of the DTLS
+     * handshake of <tt>srtpControl</tt> and the first RTP packet sent in
+     * <tt>streams</tt>. A stream can only have one external
+     * <tt>TransformEngine</tt>, so the packets are also counted here in the
+     * <tt>StreamCounters</tt> of <tt>stats</tt>.
+     *
+     * @param srtpControl the <tt>SrtpControl</tt> shared by the streams.
+     * @param streams the <tt>MediaStream</tt>s of the user.
+     * @param stats the <tt>FakeUserStats</tt> of the user, or <tt>null</tt>
+     * if the statistics are disabled.
+     */
+    public void attach(
+        SrtpControl srtpControl,
+        Iterable<MediaStream> streams,
+        FakeUserStats stats)
+    {
+        srtpControl.setSrtpListener(this);
+        for (MediaStream stream : streams)
+        {
+            StreamCounters counters
+                = (stats == null) ? null : stats.getStreamCounters(stream);
+            stream.setExternalTransformer(
+                (counters == null)
+                    ? this
+                    : new TransformEngineChain(
+                            new TransformEngine[] { this, counters }));
+        }
+    }
+
+    /**
+     * Get whether <tt>pkts</tt> contains a packet.
+     *
+     * @param pkts the packets given to the <tt>PacketTransformer</tt>.
+     * @return <tt>true</tt> if <tt>pkts</tt> contains a packet.
+     */
+    private static boolean containsPacket(RawPacket[] pkts)
+    {
+        if (pkts != null)
+        {
+            for (RawPacket pkt : pkts)
+            {
+                if (pkt != null)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketTransformer getRTPTransformer()
+    {
+        return rtpTransformer;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The RTCP packets are not watched.
+     */
+    @Override
+    public PacketTransformer getRTCPTransformer()
+    {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Marks the end of the DTLS handshake.
+     */
+    @Override
+    public void securityTurnedOn(
+        int sessionType,
+        String cipher,
+        SrtpControl sender)
+    {
+        timeline.mark(SetupTimeline.Phase.DTLS_DONE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void securityTurnedOff(int sessionType)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void securityMessageReceived(
+        String message,
+        String i18nMessage,
+        int severity)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void securityNegotiationStarted(
+        int sessionType,
+        SrtpControl sender)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void securityTimeout(int sessionType)
+    {
+    }
+}
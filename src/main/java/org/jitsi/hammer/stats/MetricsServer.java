@@ -0,0 +1,345 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.sun.net.httpserver.*;
+import org.jitsi.hammer.utils.*;
+import org.jitsi.util.Logger;
+
+/**
+ * An embedded HTTP server exposing the metrics of the Hammer in the
+ * Prometheus text format, on <tt>/metrics</tt>.
+ *
+ * The stream stats are rendered by the <tt>HammerStats</tt> once per
+ * polling and published here as an immutable block of bytes, so that a
+ * scrape only copies them. The other metrics (the setup counters given by
+ * the <tt>Source</tt>s, and the threads, heap and GC of the JVM) are read
+ * from atomic counters at each scrape.
+ */
+public class MetricsServer
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>MetricsServer</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MetricsServer.class);
+
+    /**
+     * The path of the metrics.
+     */
+    public static final String PATH = "/metrics";
+
+    /**
+     * The content type of the Prometheus text format.
+     */
+    private static final String CONTENT_TYPE
+        = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * A source of metrics read at each scrape.
+     */
+    public interface Source
+    {
+        /**
+         * Append the metrics of this source, in the Prometheus text format.
+         * It must not block, as it is called at each scrape.
+         *
+         * @param out the <tt>StringBuilder</tt> the metrics are appended to.
+         */
+        void appendMetrics(StringBuilder out);
+    }
+
+    /**
+     * The port the server listens on.
+     */
+    private final int port;
+
+    /**
+     * Whether the stats of each user are exposed, next to the aggregated
+     * ones.
+     */
+    private final boolean perUserStats;
+
+    /**
+     * The sources of metrics read at each scrape.
+     */
+    private final List<Source> sources = new CopyOnWriteArrayList<Source>();
+
+    /**
+     * The stream stats of the last polling, in the Prometheus text format.
+     */
+    private final AtomicReference<byte[]> streamMetrics
+        = new AtomicReference<byte[]>(new byte[0]);
+
+    /**
+     * The number of scrapes served.
+     */
+    private final AtomicLong scrapes = new AtomicLong();
+
+    /**
+     * The HTTP server, or <tt>null</tt> if not started.
+     */
+    private HttpServer server;
+
+    /**
+     * The thread serving the scrapes.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Initializes a <tt>MetricsServer</tt>.
+     *
+     * @param port the port the server listens on.
+     * @param perUserStats whether the stats of each user are exposed, next
+     * to the aggregated ones.
+     */
+    public MetricsServer(int port, boolean perUserStats)
+    {
+        this.port = port;
+        this.perUserStats = perUserStats;
+    }
+
+    /**
+     * Start listening for scrapes.
+     *
+     * @throws IOException if the server cannot listen on its port.
+     */
+    public synchronized void start()
+        throws IOException
+    {
+        if (server != null)
+            return;
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor
+            = Executors.newSingleThreadExecutor(
+                    HammerExecutors.newThreadFactory("MetricsServer-"));
+        server.setExecutor(executor);
+        server.createContext(PATH, this::handle);
+        server.start();
+        logger.info("Metrics served on http://localhost:" + port + PATH);
+    }
+
+    /**
+     * Stop listening for scrapes.
+     */
+    public synchronized void stop()
+    {
+        if (server == null)
+            return;
+
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        logger.info("Metrics server stopped after " + scrapes.get()
+            + " scrapes");
+    }
+
+    /**
+     * Add a source of metrics, read at each scrape.
+     *
+     * @param source the source of metrics.
+     */
+    public void addSource(Source source)
+    {
+        sources.add(source);
+    }
+
+    /**
+     * Get whether the stats of each user are exposed, next to the aggregated
+     * ones.
+     *
+     * @return <tt>true</tt> if the stats of each user are exposed.
+     */
+    public boolean isPerUserStats()
+    {
+        return perUserStats;
+    }
+
+    /**
+     * Publish the stream stats of a polling, replacing the previous ones.
+     *
+     * @param metrics the stream stats, in the Prometheus text format.
+     */
+    public void publishStreamMetrics(CharSequence metrics)
+    {
+        streamMetrics.set(metrics.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Serve a scrape.
+     *
+     * @param exchange the HTTP exchange of the scrape.
+     * @throws IOException if the response cannot be sent.
+     */
+    private void handle(HttpExchange exchange)
+        throws IOException
+    {
+        try
+        {
+            if (!"GET".equals(exchange.getRequestMethod()))
+            {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            scrapes.incrementAndGet();
+
+            StringBuilder live = new StringBuilder(4096);
+            appendJvmMetrics(live);
+            for (Source source : sources)
+                source.appendMetrics(live);
+            byte[] liveBytes = live.toString().getBytes(StandardCharsets.UTF_8);
+            byte[] streamBytes = streamMetrics.get();
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(
+                200, liveBytes.length + streamBytes.length);
+            OutputStream body = exchange.getResponseBody();
+            body.write(liveBytes);
+            body.write(streamBytes);
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Append the metrics of the health of the JVM running the Hammer :
+     * threads, heap and garbage collections.
+     *
+     * @param out the <tt>StringBuilder</tt> the metrics are appended to.
+     */
+    private static void appendJvmMetrics(StringBuilder out)
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        appendHeader(out, "hammer_jvm_threads", "gauge",
+            "The number of live threads of the JVM.");
+        appendSample(out, "hammer_jvm_threads", null, threads.getThreadCount());
+
+        MemoryUsage heap
+            = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        appendHeader(out, "hammer_jvm_heap_bytes", "gauge",
+            "The heap of the JVM.");
+        appendSample(out, "hammer_jvm_heap_bytes", "area=\"used\"",
+            heap.getUsed());
+        appendSample(out, "hammer_jvm_heap_bytes", "area=\"committed\"",
+            heap.getCommitted());
+        appendSample(out, "hammer_jvm_heap_bytes", "area=\"max\"",
+            heap.getMax());
+
+        List<GarbageCollectorMXBean> gcs
+            = ManagementFactory.getGarbageCollectorMXBeans();
+        appendHeader(out, "hammer_jvm_gc_collections_total", "counter",
+            "The number of garbage collections, by collector.");
+        for (GarbageCollectorMXBean gc : gcs)
+        {
+            appendSample(out, "hammer_jvm_gc_collections_total",
+                label("gc", gc.getName()), gc.getCollectionCount());
+        }
+        appendHeader(out, "hammer_jvm_gc_seconds_total", "counter",
+            "The time spent in garbage collections, by collector.");
+        for (GarbageCollectorMXBean gc : gcs)
+        {
+            appendSample(out, "hammer_jvm_gc_seconds_total",
+                label("gc", gc.getName()), gc.getCollectionTime() / 1000D);
+        }
+    }
+
+    /**
+     * Append the <tt>HELP</tt> and <tt>TYPE</tt> lines of a metric.
+     *
+     * @param out the <tt>StringBuilder</tt> the lines are appended to.
+     * @param name the name of the metric.
+     * @param type the type of the metric (<tt>counter</tt>,
+     * <tt>gauge</tt>...).
+     * @param help the description of the metric.
+     */
+    public static void appendHeader(
+        StringBuilder out,
+        String name,
+        String type,
+        String help)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help)
+            .append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type)
+            .append('\n');
+    }
+
+    /**
+     * Append a sample of a metric.
+     *
+     * @param out the <tt>StringBuilder</tt> the sample is appended to.
+     * @param name the name of the metric.
+     * @param labels the labels of the sample (<tt>name="value",...</tt>), or
+     * <tt>null</tt>.
+     * @param value the value of the sample.
+     */
+    public static void appendSample(
+        StringBuilder out,
+        String name,
+        String labels,
+        double value)
+    {
+        out.append(name);
+        if (labels != null && labels.length() != 0)
+            out.append('{').append(labels).append('}');
+        out.append(' ');
+        if (Double.isNaN(value))
+            out.append("NaN");
+        else if (Double.isInfinite(value))
+            out.append((value > 0) ? "+Inf" : "-Inf");
+        else if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            out.append((long) value);
+        else
+            out.append(value);
+        out.append('\n');
+    }
+
+    /**
+     * Format a label, escaping its value.
+     *
+     * @param name the name of the label.
+     * @param value the value of the label.
+     * @return the label, as <tt>name="value"</tt>.
+     */
+    public static String label(String name, String value)
+    {
+        StringBuilder bldr = new StringBuilder(name).append("=\"");
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"')
+                bldr.append('\\').append(c);
+            else if (c == '\n')
+                bldr.append("\\n");
+            else
+                bldr.append(c);
+        }
+        return bldr.append('"').toString();
+    }
+}
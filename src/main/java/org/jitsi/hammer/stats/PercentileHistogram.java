@@ -0,0 +1,244 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A high dynamic range histogram of non-negative values, used to compute
+ * their percentiles.
+ *
+ * The values are recorded with a resolution of 1/<tt>SCALE</tt>, in
+ * log-linear buckets : the values below <tt>2 * SUB_BUCKET_COUNT</tt> units
+ * are counted exactly, and each power of two above is split in
+ * <tt>SUB_BUCKET_COUNT</tt> buckets of the same width, so that any value is
+ * known within 1/<tt>SUB_BUCKET_COUNT</tt> of its value. The whole range of
+ * <tt>long</tt> is covered with a fixed number of counters, allocated once.
+ *
+ * Recording is lock-free and can be done from several threads. Histograms
+ * can be merged, e.g. to compute the percentiles of a whole run from the
+ * histograms of its intervals.
+ */
+public class PercentileHistogram
+{
+    /**
+     * The number of units a value is recorded with : the values are
+     * recorded with a resolution of 1/<tt>SCALE</tt>.
+     */
+    private static final double SCALE = 1000;
+
+    /**
+     * The log2 of <tt>SUB_BUCKET_COUNT</tt>.
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    /**
+     * The number of buckets each power of two is split in.
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The number of counters of a <tt>PercentileHistogram</tt> : the values
+     * below <tt>2 * SUB_BUCKET_COUNT</tt> units are counted exactly, then
+     * each of the powers of two from <tt>SUB_BUCKET_BITS + 1</tt> to 62 has
+     * <tt>SUB_BUCKET_COUNT</tt> counters.
+     */
+    static final int COUNTER_COUNT
+        = 2 * SUB_BUCKET_COUNT + (62 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    /**
+     * The number of values recorded in each bucket.
+     */
+    private final AtomicLongArray counts
+        = new AtomicLongArray(COUNTER_COUNT);
+
+    /**
+     * The total number of values recorded.
+     */
+    private final AtomicLong totalCount = new AtomicLong();
+
+    /**
+     * Record a value in this <tt>PercentileHistogram</tt>. The negative
+     * values (used by the <tt>MediaStreamStats</tt> for the unknown values)
+     * and <tt>NaN</tt> are ignored.
+     *
+     * @param value the value to record.
+     */
+    public void record(double value)
+    {
+        // Also false for NaN.
+        if (!(value >= 0))
+            return;
+
+        counts.incrementAndGet(getIndex(toUnits(value)));
+        totalCount.incrementAndGet();
+    }
+
+    /**
+     * Add the values recorded by <tt>other</tt> to this
+     * <tt>PercentileHistogram</tt>.
+     *
+     * @param other the <tt>PercentileHistogram</tt> whose values are added.
+     */
+    public void add(PercentileHistogram other)
+    {
+        for (int i = 0; i < COUNTER_COUNT; i++)
+        {
+            long count = other.counts.get(i);
+            if (count != 0)
+            {
+                counts.addAndGet(i, count);
+                totalCount.addAndGet(count);
+            }
+        }
+    }
+
+    /**
+     * Forget all the values recorded by this <tt>PercentileHistogram</tt>.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < COUNTER_COUNT; i++)
+            counts.set(i, 0);
+        totalCount.set(0);
+    }
+
+    /**
+     * Get the number of values recorded in a bucket, e.g. to save this
+     * <tt>PercentileHistogram</tt>.
+     *
+     * @param index the index of the bucket, lower than
+     * <tt>COUNTER_COUNT</tt>.
+     * @return the number of values recorded in the bucket.
+     */
+    long getCount(int index)
+    {
+        return counts.get(index);
+    }
+
+    /**
+     * Add values to a bucket, e.g. to restore a saved
+     * <tt>PercentileHistogram</tt>.
+     *
+     * @param index the index of the bucket, lower than
+     * <tt>COUNTER_COUNT</tt>.
+     * @param count the number of values added to the bucket.
+     */
+    void add(int index, long count)
+    {
+        counts.addAndGet(index, count);
+        totalCount.addAndGet(count);
+    }
+
+    /**
+     * Get the number of values recorded by this <tt>PercentileHistogram</tt>.
+     *
+     * @return the number of values recorded.
+     */
+    public long getTotalCount()
+    {
+        return totalCount.get();
+    }
+
+    /**
+     * Get the value at a percentile of the values recorded : the highest
+     * value of the bucket that contains it, so that at least
+     * <tt>percentile</tt> percents of the values recorded are lower or equal.
+     *
+     * @param percentile the percentile, between 0 and 100.
+     * @return the value at <tt>percentile</tt>, or <tt>NaN</tt> if no value
+     * was recorded.
+     */
+    public double getValueAtPercentile(double percentile)
+    {
+        long total = totalCount.get();
+        if (total == 0)
+            return Double.NaN;
+
+        long rank = (long) Math.ceil(
+                Math.min(Math.max(percentile, 0), 100) / 100 * total);
+        if (rank < 1)
+            rank = 1;
+
+        long count = 0;
+        int last = 0;
+        for (int i = 0; i < COUNTER_COUNT; i++)
+        {
+            long bucketCount = counts.get(i);
+            if (bucketCount == 0)
+                continue;
+
+            last = i;
+            count += bucketCount;
+            if (count >= rank)
+                break;
+        }
+        return getHighestUnits(last) / SCALE;
+    }
+
+    /**
+     * Convert a value to the units it is recorded with.
+     *
+     * @param value the value.
+     * @return the value in units, rounded to the nearest one.
+     */
+    private static long toUnits(double value)
+    {
+        double units = Math.rint(value * SCALE);
+        return (units >= Long.MAX_VALUE) ? Long.MAX_VALUE : (long) units;
+    }
+
+    /**
+     * Get the index of the bucket counting a value.
+     *
+     * @param units the value, in units.
+     * @return the index of the bucket counting <tt>units</tt>.
+     */
+    private static int getIndex(long units)
+    {
+        if (units < 2 * SUB_BUCKET_COUNT)
+            return (int) units;
+
+        // The power of two of units, at least SUB_BUCKET_BITS + 1.
+        int exponent = 63 - Long.numberOfLeadingZeros(units);
+        int subBucket
+            = (int) (units >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+
+        return 2 * SUB_BUCKET_COUNT
+            + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT
+            + subBucket;
+    }
+
+    /**
+     * Get the highest value, in units, counted by a bucket.
+     *
+     * @param index the index of the bucket.
+     * @return the highest value counted by the bucket, in units.
+     */
+    private static long getHighestUnits(int index)
+    {
+        if (index < 2 * SUB_BUCKET_COUNT)
+            return index;
+
+        int exponent
+            = (index - 2 * SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT
+                + SUB_BUCKET_BITS + 1;
+        int subBucket = (index - 2 * SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        int shift = exponent - SUB_BUCKET_BITS;
+
+        return ((((long) (SUB_BUCKET_COUNT + subBucket)) + 1) << shift) - 1;
+    }
+}
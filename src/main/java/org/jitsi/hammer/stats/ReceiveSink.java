@@ -0,0 +1,699 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.socket.*;
+import org.jitsi.hammer.utils.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.format.*;
+import org.jitsi.util.Logger;
+
+/**
+ * Receives the RTP packets sent to a <tt>FakeUser</tt> in place of libjitsi,
+ * whose receive chain (SRTP, jitter buffer, depacketizer and decoder) would
+ * cost as much CPU as a real client. Only the RTP header of each packet is
+ * read, the SRTP header being in clear, and the payload is discarded.
+ *
+ * The socket of each user is read by a thread of its own, blocked in
+ * <tt>receive</tt> until a packet comes, so that the arrival time of a packet
+ * is taken as soon as ice4j hands it over and the jitter measures the bridge
+ * rather than the reading. It is a virtual thread when the virtual threads
+ * are enabled and do not pin their carrier thread while waiting in the
+ * sockets of ice4j (Java 24 or newer), and a daemon platform thread
+ * otherwise. The first RTP packet read marks the
+ * <tt>FIRST_RTP_RECEIVED</tt> phase of the setup of the user, libjitsi not
+ * seeing the received RTP packets.
+ *
+ * For each remote SSRC, the packets and bytes received, the gaps in the
+ * sequence numbers, the packets received out of order and the interarrival
+ * jitter (RFC 3550, A.8) are kept in primitive arrays, only written by the
+ * receiving thread of the user. The packets, bytes, losses and reordering
+ * are added to the <tt>StreamCounters</tt> of the stream of their payload
+ * type, and the mean jitter of the SSRCs of each media type is kept up to
+ * date, so that they can be read at each polling without stopping the
+ * receiving thread.
+ *
+ * The SRTP authentication tag is not checked : the keys of the SRTP
+ * contexts are kept inside libjitsi.
+ */
+public class ReceiveSink
+    implements Runnable
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>ReceiveSink</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(ReceiveSink.class);
+
+    /**
+     * The <tt>DatagramPacketFilter</tt> accepting the RTP packets (and
+     * rejecting the RTCP, STUN and DTLS ones), to get the socket of a
+     * <tt>ReceiveSink</tt> from the <tt>MultiplexingDatagramSocket</tt> of
+     * the ICE pair.
+     */
+    public static final DatagramPacketFilter RTP_FILTER
+        = new DatagramPacketFilter()
+    {
+        @Override
+        public boolean accept(DatagramPacket p)
+        {
+            if (p.getLength() < HEADER_LENGTH)
+                return false;
+
+            byte[] buf = p.getData();
+            int off = p.getOffset();
+            // Version 2, and not an RTCP packet type (200 to 204, RFC 5761).
+            int pt = buf[off + 1] & 0x7f;
+            return (buf[off] & 0xc0) == 0x80 && (pt < 64 || pt > 95);
+        }
+    };
+
+    /**
+     * The length of the fixed RTP header.
+     */
+    private static final int HEADER_LENGTH = 12;
+
+    /**
+     * The size of the buffer the packets are received in.
+     */
+    private static final int MAX_PACKET_LENGTH = 1500;
+
+    /**
+     * The <tt>ThreadFactory</tt> of the threads reading the sockets, or
+     * <tt>null</tt> if it was not created yet.
+     */
+    private static ThreadFactory threadFactory;
+
+    /**
+     * The number of sequence numbers ahead of the highest one received
+     * beyond which a packet is not taken as a gap but as a restart of the
+     * sender (RFC 3550, A.1).
+     */
+    private static final int MAX_DROPOUT = 3000;
+
+    /**
+     * The number of sequence numbers behind the highest one received beyond
+     * which a packet is not taken as reordered but as a restart of the
+     * sender (RFC 3550, A.1).
+     */
+    private static final int MAX_MISORDER = 100;
+
+    /**
+     * The initial number of SSRC slots. It is a power of 2.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The index of the audio SSRCs in <tt>jitterTotals</tt>.
+     */
+    private static final int AUDIO = 0;
+
+    /**
+     * The index of the video SSRCs in <tt>jitterTotals</tt>.
+     */
+    private static final int VIDEO = 1;
+
+    /**
+     * The <tt>StreamCounters</tt> of each payload type, <tt>null</tt> for
+     * the payload types of no stream.
+     */
+    private final StreamCounters[] countersByPt = new StreamCounters[128];
+
+    /**
+     * The clock rate of each payload type, 0 if unknown.
+     */
+    private final int[] clockRatesByPt = new int[128];
+
+    /**
+     * The media type (<tt>AUDIO</tt> or <tt>VIDEO</tt>) of each payload
+     * type, -1 for the payload types of no stream.
+     */
+    private final int[] mediaByPt = new int[128];
+
+    /**
+     * The <tt>StreamCounters</tt> of the audio and video streams, by media
+     * type.
+     */
+    private final StreamCounters[] counters = new StreamCounters[2];
+
+    /**
+     * The sum of the jitters (in microseconds) of the SSRCs of each media
+     * type, then their number, by media type.
+     */
+    private final AtomicLongArray jitterTotals = new AtomicLongArray(4);
+
+    /**
+     * The name of the user.
+     */
+    private final String name;
+
+    /**
+     * The SSRCs, by slot, -1 for the free slots. The slots are found by
+     * open addressing.
+     */
+    private long[] ssrcs = newSlots(INITIAL_CAPACITY);
+
+    /**
+     * The number of packets received from each SSRC, by slot.
+     */
+    private long[] packets = new long[INITIAL_CAPACITY];
+
+    /**
+     * The number of bytes received from each SSRC, by slot.
+     */
+    private long[] bytes = new long[INITIAL_CAPACITY];
+
+    /**
+     * The number of packets lost by each SSRC, by slot.
+     */
+    private long[] lost = new long[INITIAL_CAPACITY];
+
+    /**
+     * The number of packets of each SSRC received out of order, by slot.
+     */
+    private long[] reordered = new long[INITIAL_CAPACITY];
+
+    /**
+     * The highest sequence number received from each SSRC, by slot.
+     */
+    private int[] maxSeqs = new int[INITIAL_CAPACITY];
+
+    /**
+     * The relative transit time of the last packet of each SSRC, by slot.
+     */
+    private int[] transits = new int[INITIAL_CAPACITY];
+
+    /**
+     * The interarrival jitter of each SSRC, in RTP timestamp units scaled
+     * by 16 (RFC 3550, A.8), by slot.
+     */
+    private int[] jitters = new int[INITIAL_CAPACITY];
+
+    /**
+     * The jitter of each SSRC (in microseconds) last added to
+     * <tt>jitterTotals</tt>, by slot.
+     */
+    private long[] jitterMicros = new long[INITIAL_CAPACITY];
+
+    /**
+     * The payload type of the first packet of each SSRC, by slot. It gives
+     * the media type and the clock rate of the SSRC.
+     */
+    private byte[] payloadTypes = new byte[INITIAL_CAPACITY];
+
+    /**
+     * The number of used slots.
+     */
+    private int size = 0;
+
+    /**
+     * The time (from <tt>System.nanoTime()</tt>) the arrival times are
+     * counted from.
+     */
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * The socket the packets are received from, or <tt>null</tt> if this
+     * <tt>ReceiveSink</tt> is not started.
+     */
+    private DatagramSocket socket;
+
+    /**
+     * The <tt>SetupTimeline</tt> of the user, whose
+     * <tt>FIRST_RTP_RECEIVED</tt> phase is marked at the first packet.
+     */
+    private final SetupTimeline timeline;
+
+    /**
+     * Whether the first RTP packet was received and marked in
+     * <tt>timeline</tt>. It is only accessed by the receiving thread.
+     */
+    private boolean firstReceived = false;
+
+    /**
+     * Whether this <tt>ReceiveSink</tt> was stopped.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Initializes a <tt>ReceiveSink</tt> counting the packets of the payload
+     * types of the <tt>MediaStream</tt>s of a user.
+     *
+     * @param name the name of the user.
+     * @param streams the <tt>MediaStream</tt>s of the user, with their
+     * dynamic payload types.
+     * @param stats the <tt>FakeUserStats</tt> of the user, whose
+     * <tt>StreamCounters</tt> count the packets.
+     * @param timeline the <tt>SetupTimeline</tt> of the user, whose
+     * <tt>FIRST_RTP_RECEIVED</tt> phase is marked at the first packet.
+     */
+    public ReceiveSink(
+        String name,
+        Iterable<MediaStream> streams,
+        FakeUserStats stats,
+        SetupTimeline timeline)
+    {
+        this.name = name;
+        this.timeline = timeline;
+        Arrays.fill(mediaByPt, -1);
+        for (MediaStream stream : streams)
+        {
+            int media;
+            if (stream instanceof AudioMediaStream)
+                media = AUDIO;
+            else if (stream instanceof VideoMediaStream)
+                media = VIDEO;
+            else
+                continue;
+
+            StreamCounters streamCounters = stats.getStreamCounters(stream);
+            counters[media] = streamCounters;
+
+            MediaFormat format = stream.getFormat();
+            if (format != null)
+            {
+                addPayloadType(
+                    format.getRTPPayloadType(), format, media, streamCounters);
+            }
+            for (Map.Entry<Byte, MediaFormat> e
+                    : stream.getDynamicRTPPayloadTypes().entrySet())
+            {
+                addPayloadType(e.getKey(), e.getValue(), media, streamCounters);
+            }
+        }
+    }
+
+    /**
+     * Map a payload type to a media type and its <tt>StreamCounters</tt>.
+     *
+     * @param pt the payload type.
+     * @param format the <tt>MediaFormat</tt> of the payload type.
+     * @param media the media type (<tt>AUDIO</tt> or <tt>VIDEO</tt>).
+     * @param streamCounters the <tt>StreamCounters</tt> of the stream.
+     */
+    private void addPayloadType(
+        byte pt,
+        MediaFormat format,
+        int media,
+        StreamCounters streamCounters)
+    {
+        if (pt < 0)
+            return;
+
+        countersByPt[pt] = streamCounters;
+        mediaByPt[pt] = media;
+        clockRatesByPt[pt] = (int) format.getClockRate();
+    }
+
+    /**
+     * Start receiving the packets from <tt>socket</tt> in a new thread.
+     *
+     * @param socket the socket the RTP packets are received from.
+     */
+    public synchronized void start(DatagramSocket socket)
+    {
+        if (this.socket != null || stopped)
+            return;
+
+        this.socket = socket;
+        getThreadFactory().newThread(this).start();
+    }
+
+    /**
+     * Stop receiving the packets, and close the socket.
+     */
+    public synchronized void stop()
+    {
+        stopped = true;
+        if (socket != null)
+            socket.close();
+    }
+
+    /**
+     * Receive the packets until this <tt>ReceiveSink</tt> is stopped or its
+     * socket is closed.
+     */
+    @Override
+    public void run()
+    {
+        byte[] buf = new byte[MAX_PACKET_LENGTH];
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
+        while (!stopped)
+        {
+            try
+            {
+                p.setData(buf, 0, buf.length);
+                socket.receive(p);
+            }
+            catch (IOException e)
+            {
+                if (!stopped && !socket.isClosed())
+                {
+                    logger.warn(name + " : stopped receiving the RTP packets : "
+                        + e);
+                }
+                break;
+            }
+            receive(p.getData(), p.getOffset(), p.getLength(),
+                System.nanoTime());
+        }
+    }
+
+    /**
+     * Get the <tt>ThreadFactory</tt> of the threads reading the sockets,
+     * creating it at the first call, once the virtual threads are enabled or
+     * not.
+     *
+     * @return the <tt>ThreadFactory</tt> of the threads reading the sockets.
+     */
+    private static synchronized ThreadFactory getThreadFactory()
+    {
+        if (threadFactory == null)
+        {
+            threadFactory
+                = HammerExecutors.newBlockingThreadFactory("ReceiveSink-");
+        }
+        return threadFactory;
+    }
+
+    /**
+     * Account an RTP packet, from its header.
+     *
+     * @param buf the buffer of the packet.
+     * @param off the offset of the packet in <tt>buf</tt>.
+     * @param len the length of the packet.
+     * @param nanos the arrival time of the packet, from
+     * <tt>System.nanoTime()</tt>.
+     */
+    private void receive(byte[] buf, int off, int len, long nanos)
+    {
+        if (len < HEADER_LENGTH)
+            return;
+
+        if (!firstReceived)
+        {
+            firstReceived
+                = timeline.mark(SetupTimeline.Phase.FIRST_RTP_RECEIVED);
+        }
+
+        int pt = buf[off + 1] & 0x7f;
+        StreamCounters streamCounters = countersByPt[pt];
+        if (streamCounters == null)
+            return;
+
+        int seq = ((buf[off + 2] & 0xff) << 8) | (buf[off + 3] & 0xff);
+        int timestamp
+            = ((buf[off + 4] & 0xff) << 24)
+                | ((buf[off + 5] & 0xff) << 16)
+                | ((buf[off + 6] & 0xff) << 8)
+                | (buf[off + 7] & 0xff);
+        long ssrc
+            = (((buf[off + 8] & 0xff) << 24)
+                | ((buf[off + 9] & 0xff) << 16)
+                | ((buf[off + 10] & 0xff) << 8)
+                | (buf[off + 11] & 0xff)) & 0xffffffffL;
+
+        int slot = getSlot(ssrc, pt, seq);
+        packets[slot]++;
+        bytes[slot] += len;
+        streamCounters.add(StreamCounters.PACKETS_RECEIVED, 1);
+        streamCounters.add(StreamCounters.BYTES_RECEIVED, len);
+
+        if (packets[slot] > 1)
+        {
+            updateSequence(slot, seq, streamCounters);
+            updateJitter(slot, timestamp, nanos);
+        }
+        else
+        {
+            transits[slot] = getArrival(slot, nanos) - timestamp;
+        }
+    }
+
+    /**
+     * Account the sequence number of a packet of an SSRC that already sent
+     * packets : count the gap to the highest sequence number received as
+     * lost, or the packet as reordered if it is behind it (and then no
+     * longer lost).
+     *
+     * @param slot the slot of the SSRC.
+     * @param seq the sequence number of the packet.
+     * @param streamCounters the <tt>StreamCounters</tt> of the packet.
+     */
+    private void updateSequence(
+        int slot,
+        int seq,
+        StreamCounters streamCounters)
+    {
+        int delta = (short) (seq - maxSeqs[slot]);
+        if (delta > 0 && delta < MAX_DROPOUT)
+        {
+            if (delta > 1)
+            {
+                lost[slot] += delta - 1;
+                streamCounters.add(StreamCounters.PACKETS_LOST, delta - 1);
+            }
+            maxSeqs[slot] = seq;
+        }
+        else if (delta < 0 && delta > -MAX_MISORDER)
+        {
+            reordered[slot]++;
+            streamCounters.add(StreamCounters.PACKETS_REORDERED, 1);
+            if (lost[slot] > 0)
+            {
+                lost[slot]--;
+                streamCounters.add(StreamCounters.PACKETS_LOST, -1);
+            }
+        }
+        else if (delta != 0)
+        {
+            // The sender restarted its sequence numbers.
+            maxSeqs[slot] = seq;
+        }
+    }
+
+    /**
+     * Update the interarrival jitter of an SSRC with a packet (RFC 3550,
+     * A.8), and its share of the mean jitter of its media type.
+     *
+     * @param slot the slot of the SSRC.
+     * @param timestamp the RTP timestamp of the packet.
+     * @param nanos the arrival time of the packet, from
+     * <tt>System.nanoTime()</tt>.
+     */
+    private void updateJitter(int slot, int timestamp, long nanos)
+    {
+        int clockRate = clockRatesByPt[payloadTypes[slot]];
+        if (clockRate <= 0)
+            return;
+
+        int transit = getArrival(slot, nanos) - timestamp;
+        int d = transit - transits[slot];
+        transits[slot] = transit;
+        if (d < 0)
+            d = -d;
+        jitters[slot] += d - ((jitters[slot] + 8) >> 4);
+
+        long micros = jitters[slot] * 1000000L / (16L * clockRate);
+        if (micros != jitterMicros[slot])
+        {
+            jitterTotals.addAndGet(
+                mediaByPt[payloadTypes[slot]], micros - jitterMicros[slot]);
+            jitterMicros[slot] = micros;
+        }
+    }
+
+    /**
+     * Get the arrival time of a packet of an SSRC, in the RTP timestamp
+     * units of the SSRC.
+     *
+     * @param slot the slot of the SSRC.
+     * @param nanos the arrival time of the packet, from
+     * <tt>System.nanoTime()</tt>.
+     * @return the arrival time of the packet, in RTP timestamp units.
+     */
+    private int getArrival(int slot, long nanos)
+    {
+        long micros = (nanos - startNanos) / 1000;
+        return (int) (micros * clockRatesByPt[payloadTypes[slot]] / 1000000);
+    }
+
+    /**
+     * Get the slot of an SSRC, taking a free one for the first packet of
+     * the SSRC.
+     *
+     * @param ssrc the SSRC.
+     * @param pt the payload type of the packet.
+     * @param seq the sequence number of the packet.
+     * @return the slot of <tt>ssrc</tt>.
+     */
+    private int getSlot(long ssrc, int pt, int seq)
+    {
+        int mask = ssrcs.length - 1;
+        int slot = hash(ssrc) & mask;
+        while (ssrcs[slot] != -1)
+        {
+            if (ssrcs[slot] == ssrc)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+
+        if (2 * (size + 1) > ssrcs.length)
+        {
+            grow();
+            return getSlot(ssrc, pt, seq);
+        }
+
+        ssrcs[slot] = ssrc;
+        payloadTypes[slot] = (byte) pt;
+        maxSeqs[slot] = seq;
+        size++;
+        jitterTotals.incrementAndGet(2 + mediaByPt[pt]);
+        return slot;
+    }
+
+    /**
+     * Double the number of slots, keeping the values of the SSRCs.
+     */
+    private void grow()
+    {
+        long[] oldSsrcs = ssrcs;
+        long[] oldPackets = packets;
+        long[] oldBytes = bytes;
+        long[] oldLost = lost;
+        long[] oldReordered = reordered;
+        int[] oldMaxSeqs = maxSeqs;
+        int[] oldTransits = transits;
+        int[] oldJitters = jitters;
+        long[] oldJitterMicros = jitterMicros;
+        byte[] oldPayloadTypes = payloadTypes;
+
+        int capacity = 2 * oldSsrcs.length;
+        ssrcs = newSlots(capacity);
+        packets = new long[capacity];
+        bytes = new long[capacity];
+        lost = new long[capacity];
+        reordered = new long[capacity];
+        maxSeqs = new int[capacity];
+        transits = new int[capacity];
+        jitters = new int[capacity];
+        jitterMicros = new long[capacity];
+        payloadTypes = new byte[capacity];
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldSsrcs.length; i++)
+        {
+            long ssrc = oldSsrcs[i];
+            if (ssrc == -1)
+                continue;
+
+            int slot = hash(ssrc) & mask;
+            while (ssrcs[slot] != -1)
+                slot = (slot + 1) & mask;
+            ssrcs[slot] = ssrc;
+            packets[slot] = oldPackets[i];
+            bytes[slot] = oldBytes[i];
+            lost[slot] = oldLost[i];
+            reordered[slot] = oldReordered[i];
+            maxSeqs[slot] = oldMaxSeqs[i];
+            transits[slot] = oldTransits[i];
+            jitters[slot] = oldJitters[i];
+            jitterMicros[slot] = oldJitterMicros[i];
+            payloadTypes[slot] = oldPayloadTypes[i];
+        }
+    }
+
+    /**
+     * Get the <tt>StreamCounters</tt> counting the packets of a media type.
+     *
+     * @param type the <tt>MediaType</tt>.
+     * @return the <tt>StreamCounters</tt> of <tt>type</tt>, or <tt>null</tt>
+     * if it is not received.
+     */
+    StreamCounters getCounters(MediaType type)
+    {
+        int media = getMedia(type);
+        return (media < 0) ? null : counters[media];
+    }
+
+    /**
+     * Get the mean interarrival jitter of the SSRCs of a media type.
+     *
+     * @param type the <tt>MediaType</tt>.
+     * @return the mean jitter (in milliseconds) of the SSRCs of
+     * <tt>type</tt>, 0 if none was received.
+     */
+    double getJitterMs(MediaType type)
+    {
+        int media = getMedia(type);
+        if (media < 0)
+            return 0;
+
+        long count = jitterTotals.get(2 + media);
+        return (count == 0) ? 0 : jitterTotals.get(media) / 1000D / count;
+    }
+
+    /**
+     * Get the index of a media type in <tt>counters</tt> and
+     * <tt>jitterTotals</tt>.
+     *
+     * @param type the <tt>MediaType</tt>.
+     * @return <tt>AUDIO</tt>, <tt>VIDEO</tt>, or -1 for the other types.
+     */
+    private static int getMedia(MediaType type)
+    {
+        switch (type)
+        {
+        case AUDIO:
+            return AUDIO;
+        case VIDEO:
+            return VIDEO;
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * Hash an SSRC, to find its slot.
+     *
+     * @param ssrc the SSRC.
+     * @return the hash of <tt>ssrc</tt>.
+     */
+    private static int hash(long ssrc)
+    {
+        int h = (int) ssrc * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Allocate the free slots of the SSRCs.
+     *
+     * @param capacity the number of slots.
+     * @return the slots, all free.
+     */
+    private static long[] newSlots(int capacity)
+    {
+        long[] slots = new long[capacity];
+        Arrays.fill(slots, -1);
+        return slots;
+    }
+}
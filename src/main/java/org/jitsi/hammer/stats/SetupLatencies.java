@@ -0,0 +1,297 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import java.util.concurrent.atomic.*;
+
+import org.apache.commons.math3.stat.descriptive.*;
+
+/**
+ * The latencies of the phases of the session setup of all the
+ * <tt>FakeUser</tt>s : for each phase, the distribution of the time it took
+ * (since the latest of the previous phases reached by the user), recorded by
+ * the <tt>SetupTimeline</tt>s of the users as they reach it.
+ *
+ * Comparing the phases tells which of the XMPP server, the focus or the
+ * videobridge saturates as the users are ramped up.
+ */
+public class SetupLatencies
+{
+    /**
+     * The phases, by ordinal.
+     */
+    private static final SetupTimeline.Phase[] PHASES
+        = SetupTimeline.Phase.values();
+
+    /**
+     * The histograms of the time (in milliseconds) elapsed from the start of
+     * the users to each phase, by ordinal. They are not restored from the
+     * checkpoint logs.
+     */
+    private final PercentileHistogram[] elapsedHistograms
+        = new PercentileHistogram[PHASES.length];
+
+    /**
+     * The number of users whose setup failed at each phase, by ordinal. They
+     * are not restored from the checkpoint logs.
+     */
+    private final AtomicLongArray failures
+        = new AtomicLongArray(PHASES.length);
+
+    /**
+     * The histograms of the latencies (in milliseconds) of each phase, by
+     * ordinal.
+     */
+    private final PercentileHistogram[] histograms;
+
+    /**
+     * The summary statistics recording the latencies (in milliseconds) of
+     * each phase, by ordinal, or <tt>null</tt> if the latencies were restored
+     * from a checkpoint log.
+     */
+    private final SummaryStatistics[] statistics;
+
+    /**
+     * The summary statistics of the latencies (in milliseconds) of each
+     * phase, by ordinal : <tt>statistics</tt>, or the ones restored from a
+     * checkpoint log.
+     */
+    private final StatisticalSummary[] summaries;
+
+    /**
+     * Initializes a <tt>SetupLatencies</tt>.
+     */
+    public SetupLatencies()
+    {
+        histograms = new PercentileHistogram[PHASES.length];
+        statistics = new SummaryStatistics[PHASES.length];
+        for (int i = 0; i < PHASES.length; i++)
+        {
+            histograms[i] = new PercentileHistogram();
+            statistics[i] = new SynchronizedSummaryStatistics();
+            elapsedHistograms[i] = new PercentileHistogram();
+        }
+        summaries = statistics;
+    }
+
+    /**
+     * Initializes a <tt>SetupLatencies</tt> restored from a checkpoint log.
+     * No latency can be recorded in it.
+     *
+     * @param summaries the summary statistics of the latencies of each
+     * phase, by ordinal.
+     * @param histograms the histograms of the latencies of each phase, by
+     * ordinal.
+     */
+    SetupLatencies(
+        StatisticalSummary[] summaries,
+        PercentileHistogram[] histograms)
+    {
+        this.histograms = histograms;
+        this.statistics = null;
+        this.summaries = summaries;
+        for (int i = 0; i < PHASES.length; i++)
+            elapsedHistograms[i] = new PercentileHistogram();
+    }
+
+    /**
+     * Record the latency of a phase reached by a user.
+     *
+     * @param phase the phase.
+     * @param nanos the time (in nanoseconds) the phase took.
+     * @param elapsedNanos the time (in nanoseconds) elapsed from the start of
+     * the user to the phase.
+     */
+    void record(SetupTimeline.Phase phase, long nanos, long elapsedNanos)
+    {
+        double ms = nanos / 1000000D;
+        histograms[phase.ordinal()].record(ms);
+        statistics[phase.ordinal()].addValue(ms);
+        elapsedHistograms[phase.ordinal()].record(elapsedNanos / 1000000D);
+    }
+
+    /**
+     * Record that the setup of a user failed at a phase : the phase will
+     * never be reached by the user.
+     *
+     * @param phase the phase.
+     */
+    void recordFailure(SetupTimeline.Phase phase)
+    {
+        failures.incrementAndGet(phase.ordinal());
+    }
+
+    /**
+     * Get a copy of the summary statistics of the latencies of a phase.
+     *
+     * @param phase the phase.
+     * @return the summary statistics of the latencies of <tt>phase</tt>.
+     */
+    StatisticalSummary getSummary(SetupTimeline.Phase phase)
+    {
+        StatisticalSummary summary = summaries[phase.ordinal()];
+        return (summary instanceof SummaryStatistics)
+            ? ((SummaryStatistics) summary).getSummary() : summary;
+    }
+
+    /**
+     * Get the histogram of the latencies of a phase.
+     *
+     * @param phase the phase.
+     * @return the histogram of the latencies of <tt>phase</tt>.
+     */
+    PercentileHistogram getHistogram(SetupTimeline.Phase phase)
+    {
+        return histograms[phase.ordinal()];
+    }
+
+    /**
+     * Get the histogram of the time elapsed from the start of the users to a
+     * phase.
+     *
+     * @param phase the phase.
+     * @return the histogram of the time (in milliseconds) elapsed from the
+     * start of the users to <tt>phase</tt>.
+     */
+    PercentileHistogram getElapsedHistogram(SetupTimeline.Phase phase)
+    {
+        return elapsedHistograms[phase.ordinal()];
+    }
+
+    /**
+     * Get the percentage of the users whose setup reached a phase, among the
+     * ones that either reached it or failed at it : the users still on their
+     * way to the phase are not counted.
+     *
+     * @param phase the phase.
+     * @return the success rate of <tt>phase</tt>, between 0 and 100, or
+     * <tt>NaN</tt> if no user reached it or failed at it.
+     */
+    double getSuccessPercent(SetupTimeline.Phase phase)
+    {
+        long reached = summaries[phase.ordinal()].getN();
+        long total = reached + failures.get(phase.ordinal());
+        return (total == 0) ? Double.NaN : 100D * reached / total;
+    }
+
+    /**
+     * Get the number of latencies recorded, all phases included.
+     *
+     * @return the number of latencies recorded.
+     */
+    long getCount()
+    {
+        long count = 0;
+        for (StatisticalSummary summary : summaries)
+            count += summary.getN();
+        return count;
+    }
+
+    /**
+     * Get the latencies of the phases in JSON, as the members of an object,
+     * one per phase : the number of users that reached it, and the mean, max
+     * and percentiles of its latency (in milliseconds).
+     *
+     * @param indent the indentation of the members.
+     * @param percentiles the percentiles, between 0 and 100.
+     * @param percentileNames the names of the percentiles.
+     * @return the latencies of the phases in JSON.
+     */
+    public String getLatenciesJSON(
+        String indent,
+        double[] percentiles,
+        String[] percentileNames)
+    {
+        StringBuilder bldr = new StringBuilder();
+        for (int i = 0; i < PHASES.length; i++)
+        {
+            StatisticalSummary stats = summaries[i];
+            long count = stats.getN();
+            bldr.append(indent + "\"" + PHASES[i] + "\": { ");
+            bldr.append("\"users\":" + count);
+            bldr.append(" , \"mean\":" + toJSON(stats.getMean()));
+            bldr.append(" , \"max\":" + toJSON(stats.getMax()));
+            for (int j = 0; j < percentiles.length; j++)
+            {
+                bldr.append(" , \"" + percentileNames[j] + "\":");
+                bldr.append(toJSON(
+                    histograms[i].getValueAtPercentile(percentiles[j])));
+            }
+            bldr.append(" }");
+            bldr.append((i < PHASES.length - 1) ? ",\n" : "\n");
+        }
+        return bldr.toString();
+    }
+
+    /**
+     * Append the latencies of the phases in the Prometheus text format.
+     *
+     * @param out the <tt>StringBuilder</tt> the metrics are appended to.
+     * @param percentiles the percentiles, between 0 and 100.
+     * @param percentileNames the names of the percentiles.
+     */
+    public void appendMetrics(
+        StringBuilder out,
+        double[] percentiles,
+        String[] percentileNames)
+    {
+        MetricsServer.appendHeader(out, "hammer_setup_phase_users", "counter",
+            "The number of users that reached each phase of the setup.");
+        for (int i = 0; i < PHASES.length; i++)
+        {
+            MetricsServer.appendSample(out, "hammer_setup_phase_users",
+                "phase=\"" + PHASES[i] + '"', summaries[i].getN());
+        }
+
+        MetricsServer.appendHeader(out, "hammer_setup_phase_failures",
+            "counter", "The number of users whose setup failed at each phase.");
+        for (int i = 0; i < PHASES.length; i++)
+        {
+            MetricsServer.appendSample(out, "hammer_setup_phase_failures",
+                "phase=\"" + PHASES[i] + '"', failures.get(i));
+        }
+
+        MetricsServer.appendHeader(out, "hammer_setup_phase_seconds", "gauge",
+            "The time taken by each phase of the setup, since the previous"
+                + " one.");
+        for (int i = 0; i < PHASES.length; i++)
+        {
+            String labels = "phase=\"" + PHASES[i] + "\",aggregate=";
+            MetricsServer.appendSample(out, "hammer_setup_phase_seconds",
+                labels + "\"mean\"", summaries[i].getMean() / 1000D);
+            MetricsServer.appendSample(out, "hammer_setup_phase_seconds",
+                labels + "\"max\"", summaries[i].getMax() / 1000D);
+            for (int j = 0; j < percentiles.length; j++)
+            {
+                MetricsServer.appendSample(out, "hammer_setup_phase_seconds",
+                    labels + '"' + percentileNames[j] + '"',
+                    histograms[i].getValueAtPercentile(percentiles[j])
+                        / 1000D);
+            }
+        }
+    }
+
+    /**
+     * Format a latency in JSON.
+     *
+     * @param ms the latency, in milliseconds, or <tt>NaN</tt> if unknown.
+     * @return the latency in JSON, <tt>null</tt> if unknown.
+     */
+    private static String toJSON(double ms)
+    {
+        return Double.isNaN(ms) ? "null" : String.valueOf(ms);
+    }
+}
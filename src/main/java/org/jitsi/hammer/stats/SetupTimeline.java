@@ -0,0 +1,333 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * The timeline of the session setup of a <tt>FakeUser</tt> : the time at
+ * which each of its setup phases was first reached, from the start of the
+ * user.
+ *
+ * The phases are marked by the threads on which they happen (the ramp-up
+ * thread, the XMPP threads, the stages of the session accept and the media
+ * threads), so marking is lock-free and only the first mark of a phase is
+ * kept. When the timeline is registered to a <tt>SetupLatencies</tt>, the
+ * time taken by each phase (since the latest of the previous phases) is also
+ * recorded there as it is marked.
+ */
+public class SetupTimeline
+{
+    /**
+     * The phases of the session setup of a <tt>FakeUser</tt>, in the order
+     * in which they are expected to happen.
+     */
+    public enum Phase
+    {
+        /**
+         * The XMPP connection is established.
+         */
+        CONNECT("connect"),
+
+        /**
+         * The user is logged in to the XMPP server.
+         */
+        LOGIN("login"),
+
+        /**
+         * The user joined the MUC.
+         */
+        MUC_JOIN("muc_join"),
+
+        /**
+         * The conference initiation IQ was sent to the focus (only by the
+         * user inviting the focus).
+         */
+        FOCUS_INVITE("focus_invite"),
+
+        /**
+         * The session-initiate of the focus was received.
+         */
+        SESSION_INITIATE("session_initiate"),
+
+        /**
+         * The session-accept was sent.
+         */
+        SESSION_ACCEPT("session_accept"),
+
+        /**
+         * The ICE connectivity establishment completed.
+         */
+        ICE_COMPLETED("ice_completed"),
+
+        /**
+         * The DTLS handshake is done, and SRTP is on.
+         */
+        DTLS_DONE("dtls_done"),
+
+        /**
+         * The first RTP packet was sent.
+         */
+        FIRST_RTP_SENT("first_rtp_sent"),
+
+        /**
+         * The first RTP packet was received, as read by the
+         * <tt>ReceiveSink</tt> of the user (only with the stats).
+         */
+        FIRST_RTP_RECEIVED("first_rtp_received");
+
+        /**
+         * The name of the phase in the stats files and metrics.
+         */
+        private final String name;
+
+        /**
+         * Initializes a <tt>Phase</tt>.
+         *
+         * @param name the name of the phase in the stats files and metrics.
+         */
+        Phase(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Get the name of the phase in the stats files and metrics.
+         *
+         * @return the name of the phase.
+         */
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    /**
+     * The phases, by ordinal.
+     */
+    private static final Phase[] PHASES = Phase.values();
+
+    /**
+     * The username of the <tt>FakeUser</tt>.
+     */
+    private final String username;
+
+    /**
+     * The time (in nanoseconds) elapsed from the start of the user to each
+     * phase, by ordinal, or -1 if the phase was not reached.
+     */
+    private final AtomicLongArray elapsedNanos
+        = new AtomicLongArray(PHASES.length);
+
+    /**
+     * Whether the setup of the user failed.
+     */
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+
+    /**
+     * The value of <tt>System.nanoTime()</tt> at the start of the user.
+     */
+    private volatile long startNanos;
+
+    /**
+     * The value of <tt>System.currentTimeMillis()</tt> at the start of the
+     * user, or 0 if it was not started.
+     */
+    private volatile long startMillis = 0;
+
+    /**
+     * The <tt>SetupLatencies</tt> recording the time taken by each phase, or
+     * <tt>null</tt>.
+     */
+    private volatile SetupLatencies latencies;
+
+    /**
+     * Initializes a <tt>SetupTimeline</tt>.
+     *
+     * @param username the username of the <tt>FakeUser</tt>.
+     */
+    public SetupTimeline(String username)
+    {
+        this.username = username;
+        for (int i = 0; i < PHASES.length; i++)
+            elapsedNanos.set(i, -1);
+    }
+
+    /**
+     * Set the <tt>SetupLatencies</tt> recording the time taken by each phase
+     * of this timeline.
+     *
+     * @param latencies the <tt>SetupLatencies</tt>.
+     */
+    void setLatencies(SetupLatencies latencies)
+    {
+        this.latencies = latencies;
+    }
+
+    /**
+     * Mark the start of the user : the phases are timed from it, and the ones
+     * marked before are ignored.
+     */
+    public void start()
+    {
+        startNanos = System.nanoTime();
+        startMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Mark that the user reached <tt>phase</tt>, if it did not reach it
+     * before. It is cheap enough to be called for each packet once the phase
+     * is reached.
+     *
+     * @param phase the phase reached.
+     * @return <tt>true</tt> if it is the first time the phase is reached.
+     */
+    public boolean mark(Phase phase)
+    {
+        int index = phase.ordinal();
+        if (startMillis == 0 || elapsedNanos.get(index) != -1)
+            return false;
+
+        long elapsed = System.nanoTime() - startNanos;
+        if (!elapsedNanos.compareAndSet(index, -1, elapsed))
+            return false;
+
+        SetupLatencies latencies = this.latencies;
+        if (latencies != null)
+        {
+            // The phase is timed from the latest of the previous phases
+            // reached before it, or from the start.
+            long previous = 0;
+            for (int i = index - 1; i >= 0; i--)
+            {
+                long e = elapsedNanos.get(i);
+                if (e != -1 && e <= elapsed)
+                {
+                    previous = e;
+                    break;
+                }
+            }
+            latencies.record(phase, elapsed - previous, elapsed);
+        }
+        return true;
+    }
+
+    /**
+     * Mark that the setup of the user failed : it will not reach the phase
+     * following the latest phase it reached. Only the first failure is kept.
+     *
+     * @return <tt>true</tt> if it is the first failure of the setup.
+     */
+    public boolean fail()
+    {
+        if (startMillis == 0)
+            return false;
+
+        int next = 0;
+        for (int i = PHASES.length - 1; i >= 0; i--)
+        {
+            if (elapsedNanos.get(i) != -1)
+            {
+                next = i + 1;
+                break;
+            }
+        }
+        // Only one of the users invites the focus, the others wait for the
+        // session-initiate after joining the MUC.
+        if (next == Phase.FOCUS_INVITE.ordinal())
+            next++;
+        if (next == PHASES.length || !failed.compareAndSet(false, true))
+            return false;
+
+        SetupLatencies latencies = this.latencies;
+        if (latencies != null)
+            latencies.recordFailure(PHASES[next]);
+        return true;
+    }
+
+    /**
+     * Get the username of the <tt>FakeUser</tt>.
+     *
+     * @return the username of the <tt>FakeUser</tt>.
+     */
+    public String getUsername()
+    {
+        return username;
+    }
+
+    /**
+     * Get the time elapsed from the start of the user to <tt>phase</tt>.
+     *
+     * @param phase the phase.
+     * @return the time (in milliseconds) elapsed from the start of the user
+     * to <tt>phase</tt>, or -1 if the phase was not reached.
+     */
+    public double getElapsedMs(Phase phase)
+    {
+        long elapsed = elapsedNanos.get(phase.ordinal());
+        return (elapsed == -1) ? -1 : elapsed / 1000000D;
+    }
+
+    /**
+     * Get this timeline in JSON : the username, the start of the user (in
+     * milliseconds since the epoch) and the time (in milliseconds) elapsed
+     * from the start to each phase, <tt>null</tt> if the phase was not
+     * reached.
+     *
+     * @param spaceIndent the number of space added to indent the returned
+     * JSON.
+     * @return this timeline in JSON.
+     */
+    public String getTimelineJSON(int spaceIndent)
+    {
+        String indent = new String(new char[spaceIndent]).replace("\0", " ");
+        StringBuilder bldr = new StringBuilder();
+        bldr.append(indent + "{ \"username\" : \"" + username + "\" , ");
+        bldr.append("\"start\" : " + startMillis + " , \"phases\" : {");
+        for (int i = 0; i < PHASES.length; i++)
+        {
+            double elapsed = getElapsedMs(PHASES[i]);
+            bldr.append((i == 0) ? " \"" : " , \"");
+            bldr.append(PHASES[i]).append("\" : ");
+            bldr.append((elapsed == -1) ? "null" : String.valueOf(elapsed));
+        }
+        bldr.append(" } }");
+        return bldr.toString();
+    }
+
+    /**
+     * Get this timeline in a single line : the time (in milliseconds) elapsed
+     * from the start of the user to each phase reached.
+     *
+     * @return this timeline in a single line.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder bldr = new StringBuilder(username).append(" :");
+        for (Phase phase : PHASES)
+        {
+            double elapsed = getElapsedMs(phase);
+            if (elapsed != -1)
+            {
+                bldr.append(' ').append(phase).append('=')
+                    .append(Math.round(elapsed)).append("ms");
+            }
+        }
+        return bldr.toString();
+    }
+}
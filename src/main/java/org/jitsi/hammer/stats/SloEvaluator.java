@@ -0,0 +1,649 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import java.util.*;
+import java.util.function.*;
+import java.util.regex.*;
+
+import org.apache.commons.math3.stat.descriptive.*;
+import org.jitsi.service.neomedia.MediaType;
+import org.jitsi.util.Logger;
+
+/**
+ * Checks the service level objectives of a run at each polling of the
+ * <tt>HammerStats</tt>, aborts the run when one of them is breached for too
+ * many consecutive pollings, and gives the verdict of the run.
+ *
+ * The objectives are given as a comma-separated list of
+ * <tt>&lt;metric&gt; &lt;op&gt; &lt;threshold&gt;</tt>, the operator being
+ * one of <tt>&lt;</tt>, <tt>&lt;=</tt>, <tt>&gt;</tt> or <tt>&gt;=</tt>, and
+ * the metric one of :
+ * <ul>
+ * <li><tt>&lt;media&gt;.&lt;stat&gt;.&lt;aggregate&gt;</tt> : an aggregate
+ * over the users of a stat of their audio or video stream (one of
+ * <tt>StreamSnapshot.NAMES</tt> or <tt>StreamSnapshot.INTERVAL_NAMES</tt>)
+ * at the polling. The aggregate is <tt>min</tt>, <tt>mean</tt>,
+ * <tt>max</tt>, <tt>sum</tt> or a percentile such as <tt>p95</tt> or
+ * <tt>p99_9</tt>;</li>
+ * <li><tt>setup.&lt;phase&gt;.&lt;percentile&gt;</tt> : a percentile of the
+ * time (in milliseconds) elapsed from the start of the users to a phase of
+ * their setup, since the start of the run;</li>
+ * <li><tt>setup.&lt;phase&gt;.success</tt> : the percentage of the users
+ * that reached a phase of their setup, among the ones that reached it or
+ * failed at it, since the start of the run.</li>
+ * </ul>
+ * For example :
+ * <tt>video.RttMs.p95&lt;300,audio.IntervalPercentLoss.mean&lt;2,
+ * setup.ice_completed.success&gt;99,setup.first_rtp_sent.p99&lt;10000</tt>.
+ *
+ * An objective without value at a polling (e.g. no user reached the phase
+ * yet) is not checked at this polling. It is only called by the writer
+ * stage of the <tt>HammerStats</tt>.
+ */
+public class SloEvaluator
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>SloEvaluator</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SloEvaluator.class);
+
+    /**
+     * The default number of consecutive pollings an objective has to be
+     * breached for the run to be aborted.
+     */
+    public static final int DEFAULT_BREACH_POLLINGS = 3;
+
+    /**
+     * The pattern of an objective : its metric, operator and threshold.
+     */
+    private static final Pattern OBJECTIVE_PATTERN = Pattern.compile(
+        "([A-Za-z0-9_.]+)\\s*(<=|>=|<|>)\\s*([-+]?[0-9.]+(?:[eE][-+]?[0-9]+)?)");
+
+    /**
+     * The sources of the values of the objectives.
+     */
+    enum Source
+    {
+        /**
+         * A stat of the streams, at the polling.
+         */
+        STREAM,
+
+        /**
+         * An interval stat of the streams, at the polling.
+         */
+        INTERVAL,
+
+        /**
+         * The time elapsed from the start of the users to a phase of their
+         * setup.
+         */
+        SETUP_ELAPSED,
+
+        /**
+         * The percentage of the users that reached a phase of their setup.
+         */
+        SETUP_SUCCESS
+    }
+
+    /**
+     * The aggregates of the values of the users.
+     */
+    enum Aggregate
+    {
+        MIN, MEAN, MAX, SUM, PERCENTILE
+    }
+
+    /**
+     * An objective, and the result of its checks.
+     */
+    static class Objective
+    {
+        /**
+         * The objective, as given.
+         */
+        private final String text;
+
+        /**
+         * The source of the value of the objective.
+         */
+        final Source source;
+
+        /**
+         * The media type of the stream stat, or <tt>null</tt>.
+         */
+        final MediaType media;
+
+        /**
+         * The index of the stream stat, in the order of
+         * <tt>StreamSnapshot.NAMES</tt> or
+         * <tt>StreamSnapshot.INTERVAL_NAMES</tt>.
+         */
+        final int index;
+
+        /**
+         * The setup phase, or <tt>null</tt>.
+         */
+        final SetupTimeline.Phase phase;
+
+        /**
+         * The aggregate of the values of the users.
+         */
+        private final Aggregate aggregate;
+
+        /**
+         * The percentile, between 0 and 100, if the aggregate is a
+         * percentile.
+         */
+        private final double percentile;
+
+        /**
+         * Whether the value has to be below the threshold (or above it).
+         */
+        private final boolean below;
+
+        /**
+         * Whether the value can be equal to the threshold.
+         */
+        private final boolean orEqual;
+
+        /**
+         * The threshold.
+         */
+        private final double threshold;
+
+        /**
+         * The number of pollings at which the objective was checked.
+         */
+        private int checks = 0;
+
+        /**
+         * The number of pollings at which the objective was breached.
+         */
+        private int breaches = 0;
+
+        /**
+         * The number of consecutive checks at which the objective was
+         * breached, up to the last one.
+         */
+        private int consecutiveBreaches = 0;
+
+        /**
+         * The highest number of consecutive checks at which the objective
+         * was breached.
+         */
+        private int maxConsecutiveBreaches = 0;
+
+        /**
+         * The value at the last check.
+         */
+        private double lastValue = Double.NaN;
+
+        /**
+         * The worst value checked.
+         */
+        private double worstValue = Double.NaN;
+
+        /**
+         * Initializes an <tt>Objective</tt>.
+         *
+         * @param text the objective, as given.
+         * @throws IllegalArgumentException if the objective is not valid.
+         */
+        Objective(String text)
+        {
+            Matcher matcher = OBJECTIVE_PATTERN.matcher(text);
+            if (!matcher.matches())
+                throw new IllegalArgumentException("Invalid objective : " + text);
+            this.text = text;
+
+            String[] metric = matcher.group(1).split("\\.");
+            if (metric.length != 3)
+            {
+                throw new IllegalArgumentException(
+                    "Invalid metric in the objective : " + text);
+            }
+            String op = matcher.group(2);
+            below = op.startsWith("<");
+            orEqual = op.endsWith("=");
+            threshold = Double.parseDouble(matcher.group(3));
+
+            String aggregateName = metric[2];
+            if ("setup".equals(metric[0]))
+            {
+                media = null;
+                index = -1;
+                phase = parsePhase(metric[1], text);
+                if ("success".equals(aggregateName))
+                {
+                    source = Source.SETUP_SUCCESS;
+                    aggregate = null;
+                    percentile = Double.NaN;
+                }
+                else if (aggregateName.startsWith("p"))
+                {
+                    source = Source.SETUP_ELAPSED;
+                    aggregate = Aggregate.PERCENTILE;
+                    percentile = parsePercentile(aggregateName, text);
+                }
+                else
+                {
+                    throw new IllegalArgumentException("Invalid aggregate"
+                        + " (success or a percentile) in the objective : "
+                        + text);
+                }
+                return;
+            }
+
+            if (aggregateName.startsWith("p"))
+            {
+                aggregate = Aggregate.PERCENTILE;
+                percentile = parsePercentile(aggregateName, text);
+            }
+            else
+            {
+                try
+                {
+                    aggregate = Aggregate.valueOf(
+                        aggregateName.toUpperCase(Locale.ROOT));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new IllegalArgumentException(
+                        "Unknown aggregate in the objective : " + text);
+                }
+                percentile = Double.NaN;
+            }
+
+            phase = null;
+            if (MediaType.AUDIO.toString().equals(metric[0]))
+                media = MediaType.AUDIO;
+            else if (MediaType.VIDEO.toString().equals(metric[0]))
+                media = MediaType.VIDEO;
+            else
+            {
+                throw new IllegalArgumentException("Invalid metric (audio,"
+                    + " video or setup) in the objective : " + text);
+            }
+
+            int i = Arrays.asList(FakeUserStatsSnapshot.StreamSnapshot.NAMES)
+                .indexOf(metric[1]);
+            if (i != -1)
+                source = Source.STREAM;
+            else
+            {
+                source = Source.INTERVAL;
+                i = Arrays.asList(
+                        FakeUserStatsSnapshot.StreamSnapshot.INTERVAL_NAMES)
+                    .indexOf(metric[1]);
+                if (i == -1)
+                {
+                    throw new IllegalArgumentException(
+                        "Unknown stat in the objective : " + text);
+                }
+            }
+            index = i;
+        }
+
+        /**
+         * Get the aggregate of the values of the users.
+         *
+         * @param summary the summary of the values, or <tt>null</tt> if only
+         * their percentiles are known.
+         * @param histogram the histogram of the values.
+         * @return the aggregate, <tt>NaN</tt> if there is no value.
+         */
+        double getValue(
+            StatisticalSummary summary,
+            PercentileHistogram histogram)
+        {
+            if (aggregate == Aggregate.PERCENTILE)
+                return histogram.getValueAtPercentile(percentile);
+            if (summary.getN() == 0)
+                return Double.NaN;
+            switch (aggregate)
+            {
+            case MIN:
+                return summary.getMin();
+            case MEAN:
+                return summary.getMean();
+            case MAX:
+                return summary.getMax();
+            default:
+                return summary.getSum();
+            }
+        }
+
+        /**
+         * Check the objective against its value at a polling.
+         *
+         * @param value the value, <tt>NaN</tt> if unknown.
+         * @return <tt>true</tt> if the objective is breached.
+         */
+        private boolean check(double value)
+        {
+            if (Double.isNaN(value))
+                return false;
+
+            checks++;
+            lastValue = value;
+            if (Double.isNaN(worstValue)
+                    || (below ? value > worstValue : value < worstValue))
+            {
+                worstValue = value;
+            }
+
+            boolean met;
+            if (below)
+                met = orEqual ? value <= threshold : value < threshold;
+            else
+                met = orEqual ? value >= threshold : value > threshold;
+            if (met)
+            {
+                consecutiveBreaches = 0;
+                return false;
+            }
+
+            breaches++;
+            consecutiveBreaches++;
+            maxConsecutiveBreaches
+                = Math.max(maxConsecutiveBreaches, consecutiveBreaches);
+            return true;
+        }
+
+        /**
+         * Get the objective, as given.
+         *
+         * @return the objective.
+         */
+        @Override
+        public String toString()
+        {
+            return text;
+        }
+    }
+
+    /**
+     * The objectives, in the order they were given.
+     */
+    private final List<Objective> objectives = new ArrayList<>();
+
+    /**
+     * The number of consecutive pollings an objective has to be breached for
+     * the run to be aborted.
+     */
+    private final int breachPollings;
+
+    /**
+     * The number of pollings checked.
+     */
+    private int pollings = 0;
+
+    /**
+     * The objective whose breach aborted the run, or <tt>null</tt>.
+     */
+    private Objective abortObjective;
+
+    /**
+     * The time of the polling at which the run was aborted.
+     */
+    private long abortTimestamp;
+
+    /**
+     * Called (once) when the run is aborted, or <tt>null</tt>.
+     */
+    private volatile Runnable abortHandler;
+
+    /**
+     * Initializes a <tt>SloEvaluator</tt>.
+     *
+     * @param objectives the objectives, separated by commas.
+     * @param breachPollings the number of consecutive pollings an objective
+     * has to be breached for the run to be aborted.
+     * @throws IllegalArgumentException if an objective is not valid, or if
+     * <tt>breachPollings</tt> is not positive.
+     */
+    public SloEvaluator(String objectives, int breachPollings)
+    {
+        if (breachPollings < 1)
+        {
+            throw new IllegalArgumentException(
+                "The number of breach pollings must be positive : "
+                    + breachPollings);
+        }
+        this.breachPollings = breachPollings;
+        for (String objective : objectives.split(","))
+        {
+            if (!objective.trim().isEmpty())
+                this.objectives.add(new Objective(objective.trim()));
+        }
+        if (this.objectives.isEmpty())
+            throw new IllegalArgumentException("No objective given");
+    }
+
+    /**
+     * Set the handler called when the run is aborted.
+     *
+     * @param abortHandler the handler called (once) when an objective is
+     * breached for too many consecutive pollings.
+     */
+    public void setAbortHandler(Runnable abortHandler)
+    {
+        this.abortHandler = abortHandler;
+    }
+
+    /**
+     * Get the objectives.
+     *
+     * @return the objectives, in the order they were given.
+     */
+    List<Objective> getObjectives()
+    {
+        return objectives;
+    }
+
+    /**
+     * Check the objectives at a polling, and abort the run if one of them
+     * was breached for too many consecutive pollings.
+     *
+     * @param timestamp the time of the polling.
+     * @param values gives the value of an objective at the polling,
+     * <tt>NaN</tt> if unknown.
+     */
+    void check(long timestamp, ToDoubleFunction<Objective> values)
+    {
+        pollings++;
+        Objective sustained = null;
+        for (Objective objective : objectives)
+        {
+            double value = values.applyAsDouble(objective);
+            if (objective.check(value))
+            {
+                logger.warn("SLO breached : " + objective + " (value "
+                    + value + ", " + objective.consecutiveBreaches
+                    + " consecutive pollings)");
+                if (sustained == null
+                        && objective.consecutiveBreaches >= breachPollings)
+                {
+                    sustained = objective;
+                }
+            }
+        }
+
+        if (sustained != null && abortObjective == null)
+        {
+            abortObjective = sustained;
+            abortTimestamp = timestamp;
+            logger.error("SLO breached for " + breachPollings
+                + " consecutive pollings, aborting the run : " + sustained);
+            Runnable handler = abortHandler;
+            if (handler != null)
+                handler.run();
+        }
+    }
+
+    /**
+     * Get whether the run was aborted because of a breached objective.
+     *
+     * @return <tt>true</tt> if the run was aborted.
+     */
+    public boolean isAborted()
+    {
+        return abortObjective != null;
+    }
+
+    /**
+     * Get whether the run passes : each objective was checked at least once,
+     * and was never breached for <tt>breachPollings</tt> consecutive
+     * pollings. It is the verdict written by <tt>getVerdictJSON</tt>.
+     *
+     * @return <tt>true</tt> if the run passes.
+     */
+    public boolean isPassed()
+    {
+        for (Objective objective : objectives)
+        {
+            if (!"pass".equals(getStatus(objective)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the status of an objective in the verdict.
+     *
+     * @param objective the objective.
+     * @return <tt>no_data</tt> if the objective was never checked,
+     * <tt>fail</tt> if it was breached for <tt>breachPollings</tt>
+     * consecutive pollings, <tt>pass</tt> otherwise.
+     */
+    private String getStatus(Objective objective)
+    {
+        if (objective.checks == 0)
+            return "no_data";
+        else if (objective.maxConsecutiveBreaches >= breachPollings)
+            return "fail";
+        else
+            return "pass";
+    }
+
+    /**
+     * Get the verdict of the run in JSON : it passes if each objective was
+     * checked at least once, and was never breached for
+     * <tt>breachPollings</tt> consecutive pollings.
+     *
+     * @return the verdict of the run in JSON.
+     */
+    public String getVerdictJSON()
+    {
+        boolean passed = true;
+        StringBuilder objectivesBldr = new StringBuilder();
+        for (int i = 0; i < objectives.size(); i++)
+        {
+            Objective objective = objectives.get(i);
+            String status = getStatus(objective);
+            passed &= "pass".equals(status);
+
+            objectivesBldr.append("    { \"objective\":\"" + objective + "\"");
+            objectivesBldr.append(" , \"status\":\"" + status + "\"");
+            objectivesBldr.append(" , \"checks\":" + objective.checks);
+            objectivesBldr.append(" , \"breaches\":" + objective.breaches);
+            objectivesBldr.append(" , \"max_consecutive_breaches\":"
+                + objective.maxConsecutiveBreaches);
+            objectivesBldr.append(" , \"last\":"
+                + toJSON(objective.lastValue));
+            objectivesBldr.append(" , \"worst\":"
+                + toJSON(objective.worstValue) + " }");
+            objectivesBldr.append(
+                (i < objectives.size() - 1) ? ",\n" : "\n");
+        }
+
+        StringBuilder bldr = new StringBuilder();
+        bldr.append("{\n");
+        bldr.append("  \"verdict\":\"" + (passed ? "pass" : "fail") + "\",\n");
+        bldr.append("  \"aborted\":" + isAborted() + ",\n");
+        bldr.append("  \"abort_objective\":" + (isAborted()
+            ? "\"" + abortObjective + "\"" : "null") + ",\n");
+        bldr.append("  \"abort_timestamp\":"
+            + (isAborted() ? String.valueOf(abortTimestamp) : "null") + ",\n");
+        bldr.append("  \"pollings\":" + pollings + ",\n");
+        bldr.append("  \"breach_pollings\":" + breachPollings + ",\n");
+        bldr.append("  \"objectives\":\n");
+        bldr.append("  [\n");
+        bldr.append(objectivesBldr);
+        bldr.append("  ]\n");
+        bldr.append("}");
+        return bldr.toString();
+    }
+
+    /**
+     * Parse the percentile of an objective, such as <tt>p95</tt> or
+     * <tt>p99_9</tt>.
+     *
+     * @param name the name of the percentile.
+     * @param text the objective.
+     * @return the percentile, between 0 and 100.
+     * @throws IllegalArgumentException if the percentile is not valid.
+     */
+    private static double parsePercentile(String name, String text)
+    {
+        try
+        {
+            double percentile
+                = Double.parseDouble(name.substring(1).replace('_', '.'));
+            if (percentile > 0 && percentile <= 100)
+                return percentile;
+        }
+        catch (NumberFormatException e)
+        {
+        }
+        throw new IllegalArgumentException(
+            "Invalid percentile in the objective : " + text);
+    }
+
+    /**
+     * Parse the setup phase of an objective.
+     *
+     * @param name the name of the phase.
+     * @param text the objective.
+     * @return the phase.
+     * @throws IllegalArgumentException if the phase is unknown.
+     */
+    private static SetupTimeline.Phase parsePhase(String name, String text)
+    {
+        for (SetupTimeline.Phase phase : SetupTimeline.Phase.values())
+        {
+            if (phase.toString().equals(name))
+                return phase;
+        }
+        throw new IllegalArgumentException(
+            "Unknown setup phase in the objective : " + text);
+    }
+
+    /**
+     * Format a value in JSON.
+     *
+     * @param value the value, or <tt>NaN</tt> if unknown.
+     * @return the value in JSON, <tt>null</tt> if unknown.
+     */
+    private static String toJSON(double value)
+    {
+        return Double.isNaN(value) ? "null" : String.valueOf(value);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+/**
+ * The formats in which the stats of all the users can be written.
+ */
+public enum StatsFormat
+{
+    /**
+     * The stats of the users are written in <tt>AllAndSummaryStats.json</tt>,
+     * next to the summary stats.
+     */
+    JSON,
+
+    /**
+     * The stats of the users are appended to <tt>allStats.bin</tt> by a
+     * <tt>BinaryStatsWriter</tt>, the summary stats are still written in
+     * <tt>AllAndSummaryStats.json</tt>.
+     */
+    BINARY;
+
+    /**
+     * Get the <tt>StatsFormat</tt> whose name is <tt>name</tt> (case
+     * insensitive).
+     *
+     * @param name the name of the format.
+     * @return the <tt>StatsFormat</tt> whose name is <tt>name</tt>.
+     * @throws IllegalArgumentException if there is no such format.
+     */
+    public static StatsFormat parseString(String name)
+    {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+
+/**
+ * Counts the RTP packets and bytes sent and received by a
+ * <tt>MediaStream</tt>, as one of its external <tt>TransformEngine</tt>s.
+ * The packets received outside of libjitsi, and their losses and
+ * reordering, are counted by the <tt>ReceiveSink</tt> of the user.
+ *
+ * Unlike its <tt>MediaStreamStats</tt>, the counters are kept up to date by
+ * the packets themselves : reading them does not need to update anything, so
+ * they can be read for all the users at each polling.
+ */
+public class StreamCounters
+    implements TransformEngine
+{
+    /**
+     * The names of the counters, in the order of their indexes.
+     */
+    public static final String[] NAMES = {
+        "PacketsSent",
+        "BytesSent",
+        "PacketsReceived",
+        "BytesReceived",
+        "PacketsLost",
+        "PacketsReordered"
+    };
+
+    /**
+     * The index of the number of RTP packets sent.
+     */
+    private static final int PACKETS_SENT = 0;
+
+    /**
+     * The index of the number of RTP bytes sent.
+     */
+    private static final int BYTES_SENT = 1;
+
+    /**
+     * The index of the number of RTP packets received.
+     */
+    static final int PACKETS_RECEIVED = 2;
+
+    /**
+     * The index of the number of RTP bytes received.
+     */
+    static final int BYTES_RECEIVED = 3;
+
+    /**
+     * The index of the number of RTP packets lost, from the gaps in the
+     * sequence numbers of the packets received.
+     */
+    static final int PACKETS_LOST = 4;
+
+    /**
+     * The index of the number of RTP packets received out of order.
+     */
+    static final int PACKETS_REORDERED = 5;
+
+    /**
+     * The counters, by index.
+     */
+    private final AtomicLongArray counters = new AtomicLongArray(NAMES.length);
+
+    /**
+     * The <tt>PacketTransformer</tt> counting the RTP packets.
+     */
+    private final PacketTransformer rtpTransformer = new PacketTransformer()
+    {
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public RawPacket[] transform(RawPacket[] pkts)
+        {
+            count(pkts, PACKETS_SENT, BYTES_SENT);
+            return pkts;
+        }
+
+        @Override
+        public RawPacket[] reverseTransform(RawPacket[] pkts)
+        {
+            count(pkts, PACKETS_RECEIVED, BYTES_RECEIVED);
+            return pkts;
+        }
+    };
+
+    /**
+     * Count packets.
+     *
+     * @param pkts the packets given to the <tt>PacketTransformer</tt>.
+     * @param packetsIndex the index of the counter of packets.
+     * @param bytesIndex the index of the counter of bytes.
+     */
+    private void count(RawPacket[] pkts, int packetsIndex, int bytesIndex)
+    {
+        if (pkts == null)
+            return;
+
+        long packets = 0;
+        long bytes = 0;
+        for (RawPacket pkt : pkts)
+        {
+            if (pkt != null)
+            {
+                packets++;
+                bytes += pkt.getLength();
+            }
+        }
+        if (packets != 0)
+        {
+            counters.addAndGet(packetsIndex, packets);
+            counters.addAndGet(bytesIndex, bytes);
+        }
+    }
+
+    /**
+     * Add <tt>delta</tt> to a counter.
+     *
+     * @param index the index of the counter.
+     * @param delta the value added to the counter.
+     */
+    void add(int index, long delta)
+    {
+        counters.addAndGet(index, delta);
+    }
+
+    /**
+     * Get the current value of a counter.
+     *
+     * @param index the index of the counter.
+     * @return the current value of the counter.
+     */
+    long get(int index)
+    {
+        return counters.get(index);
+    }
+
+    /**
+     * Add the current values of the counters to <tt>totals</tt>.
+     *
+     * @param totals the totals, in the order of <tt>NAMES</tt>.
+     */
+    public void addTo(long[] totals)
+    {
+        for (int i = 0; i < NAMES.length; i++)
+            totals[i] += counters.get(i);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketTransformer getRTPTransformer()
+    {
+        return rtpTransformer;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The RTCP packets are not counted.
+     */
+    @Override
+    public PacketTransformer getRTCPTransformer()
+    {
+        return null;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import org.jitsi.hammer.utils.*;
+import org.jitsi.util.Logger;
+import org.igniterealtime.jbosh.*;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.bosh.*;
+import org.jivesoftware.smackx.ping.*;
+import org.jxmpp.stringprep.*;
+
+import java.lang.reflect.*;
+
+/**
+ * The <tt>BOSHConnectionFactory</tt> creates one <tt>XMPPBOSHConnection</tt>
+ * (logged in anonymously) per fake user.
+ *
+ * The HTTP connections are handled by the BOSH library, so the bytes counted
+ * are the ones of the XML bodies sent and received, without the HTTP
+ * headers. They are counted from the XML the BOSH library already holds
+ * (built once to be sent, or read as is from the response), without
+ * serializing anything again, and only if the bytes are to be reported.
+ */
+public class BOSHConnectionFactory
+    implements FakeUserConnectionFactory
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>BOSHConnectionFactory</tt> class
+     * and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(BOSHConnectionFactory.class);
+
+    /**
+     * The private <tt>BOSHClient</tt> field of <tt>XMPPBOSHConnection</tt>,
+     * whose responses are counted, or <tt>null</tt> if this version of Smack
+     * has none : the bytes received are then not counted.
+     */
+    private static final Field CLIENT_FIELD = getClientField();
+
+    /**
+     * The XMPP server info to which the connections are made.
+     */
+    private final HostInfo serverInfo;
+
+    /**
+     * The stats of the connections created by this factory.
+     */
+    private final TransportStats stats = new TransportStats(Transport.BOSH);
+
+    /**
+     * Whether the bytes of the bodies are counted.
+     */
+    private final boolean countBytes;
+
+    /**
+     * Initializes a <tt>BOSHConnectionFactory</tt>.
+     *
+     * @param serverInfo the XMPP server info to which the connections are
+     * made.
+     * @param countBytes whether the bytes of the bodies are counted, i.e.
+     * whether the stats or the metrics are enabled.
+     */
+    public BOSHConnectionFactory(HostInfo serverInfo, boolean countBytes)
+    {
+        this.serverInfo = serverInfo;
+        this.countBytes = countBytes;
+    }
+
+    @Override
+    public AbstractXMPPConnection createConnection(
+            String nickname,
+            boolean smackDebug)
+        throws XmppStringprepException
+    {
+        BOSHConfiguration config = BOSHConfiguration.builder()
+                .setUseHttps(serverInfo.getUseHTTPS())
+                .setHost(serverInfo.getBOSHhostname())
+                .setFile(serverInfo.getBOSHpath())
+                .setPort(serverInfo.getPort())
+                .setXmppDomain(serverInfo.getXMPPDomain())
+                .setDebuggerEnabled(smackDebug)
+                .performSaslAnonymousAuthentication()
+                .build();
+        AbstractXMPPConnection connection
+            = countBytes
+                ? new CountingBOSHConnection(config)
+                : new XMPPBOSHConnection(config);
+
+        // added to address bosh timeout issues causing early termination of the hammer
+        PingManager.getInstanceFor(connection).setPingInterval(PING_INTERVAL);
+
+        return connection;
+    }
+
+    @Override
+    public TransportStats getStats()
+    {
+        return stats;
+    }
+
+    @Override
+    public void close()
+    {
+        // Nothing is shared between the BOSH connections.
+    }
+
+    /**
+     * Get the private <tt>BOSHClient</tt> field of
+     * <tt>XMPPBOSHConnection</tt>.
+     *
+     * @return the field, or <tt>null</tt> if it cannot be accessed.
+     */
+    private static Field getClientField()
+    {
+        try
+        {
+            Field field = XMPPBOSHConnection.class.getDeclaredField("client");
+            field.setAccessible(true);
+            return field;
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            logger.warn("The bytes received over BOSH are not counted : " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the number of bytes of <tt>xml</tt> encoded in UTF-8, without
+     * encoding it.
+     *
+     * @param xml the XML.
+     * @return the number of bytes of <tt>xml</tt> encoded in UTF-8.
+     */
+    static int getLength(String xml)
+    {
+        int length = xml.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++)
+        {
+            char c = xml.charAt(i);
+            if (c >= 0x80)
+            {
+                if (c < 0x800)
+                {
+                    bytes++;
+                }
+                else if (Character.isHighSurrogate(c))
+                {
+                    // A surrogate pair is 4 bytes for 2 chars.
+                    bytes += 2;
+                    i++;
+                }
+                else
+                {
+                    bytes += 2;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * An <tt>XMPPBOSHConnection</tt> counting the bytes of the bodies it
+     * sends and receives.
+     */
+    private class CountingBOSHConnection
+        extends XMPPBOSHConnection
+    {
+        /**
+         * Initializes a <tt>CountingBOSHConnection</tt>.
+         *
+         * @param config the configuration of the connection.
+         */
+        CountingBOSHConnection(BOSHConfiguration config)
+        {
+            super(config);
+        }
+
+        @Override
+        protected void connectInternal()
+            throws SmackException,
+                   InterruptedException
+        {
+            super.connectInternal();
+
+            // The responses of the BOSHClient created by the connection.
+            if (CLIENT_FIELD != null)
+            {
+                try
+                {
+                    BOSHClient client = (BOSHClient) CLIENT_FIELD.get(this);
+                    if (client != null)
+                    {
+                        client.addBOSHClientResponseListener(
+                            event -> stats.addBytesReceived(
+                                getLength(event.getBody().toXML())));
+                    }
+                }
+                catch (IllegalAccessException e)
+                {
+                    logger.warn("The bytes received over BOSH are not"
+                        + " counted : " + e);
+                }
+            }
+        }
+
+        @Override
+        protected void send(ComposableBody body)
+            throws BOSHException
+        {
+            super.send(body);
+            // The XML of the body was built (and kept) to send it.
+            stats.addBytesSent(getLength(body.toXML()));
+        }
+    }
+}
@@ -0,0 +1,612 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import org.jitsi.util.Logger;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.util.*;
+import org.jxmpp.jid.*;
+import org.xmlpull.v1.*;
+
+import javax.net.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A <tt>ComponentConnection</tt> is an XEP-0114 external component
+ * connection to the XMPP server, shared by many fake users : each of them
+ * has a JID in the domain of the component, and the stanzas received on the
+ * connection are given to the user they are addressed to.
+ *
+ * The connection has one thread reading and parsing the incoming stanzas,
+ * and one thread writing the outgoing ones in batches (and sending a
+ * whitespace keepalive when idle).
+ */
+public class ComponentConnection
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>ComponentConnection</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ComponentConnection.class);
+
+    /**
+     * The namespace of the XMPP streams.
+     */
+    private static final String STREAM_NAMESPACE
+        = "http://etherx.jabber.org/streams";
+
+    /**
+     * The namespace of the external component streams.
+     */
+    private static final String COMPONENT_NAMESPACE = "jabber:component:accept";
+
+    /**
+     * The time (in milliseconds) given to the server to answer the handshake.
+     */
+    private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+
+    /**
+     * The time (in milliseconds) after which an idle connection sends a
+     * whitespace keepalive.
+     */
+    private static final long KEEPALIVE_INTERVAL_MS = 30000;
+
+    /**
+     * Put in the outgoing queue to make the writer thread close the stream
+     * and return.
+     */
+    private static final String CLOSE_STREAM = "</stream:stream>";
+
+    /**
+     * The hostname of the XMPP server.
+     */
+    private final String host;
+
+    /**
+     * The port of the XMPP server for the external components.
+     */
+    private final int port;
+
+    /**
+     * The domain of the component, in which the fake users have their JID.
+     */
+    private final DomainBareJid domain;
+
+    /**
+     * The secret shared by the component and the XMPP server.
+     */
+    private final String secret;
+
+    /**
+     * The name of this connection, used to name its threads.
+     */
+    private final String name;
+
+    /**
+     * The factory of the socket of this connection.
+     */
+    private final SocketFactory socketFactory;
+
+    /**
+     * The users of this connection, by JID.
+     */
+    private final Map<Jid, ComponentUserConnection> users
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The serialized stanzas waiting to be written.
+     */
+    private final BlockingQueue<CharSequence> outgoing
+        = new LinkedBlockingQueue<>();
+
+    /**
+     * The <tt>Lock</tt> serializing the connection of the users : the first
+     * one opens the connection and does the handshake. A <tt>Lock</tt>
+     * rather than a monitor, so that virtual threads waiting for it are not
+     * pinned.
+     */
+    private final Lock connectLock = new ReentrantLock();
+
+    /**
+     * The socket connected to the XMPP server.
+     */
+    private Socket socket;
+
+    /**
+     * The output stream of the socket.
+     */
+    private OutputStream out;
+
+    /**
+     * The buffer into which the outgoing stanzas are encoded before being
+     * written to <tt>out</tt>, reused by the writer thread.
+     */
+    private final StanzaBuffer stanzaBuffer = new StanzaBuffer();
+
+    /**
+     * The id of the stream, given by the server.
+     */
+    private volatile String streamId;
+
+    /**
+     * Whether the handshake succeeded and the connection is not closed.
+     */
+    private volatile boolean connected = false;
+
+    /**
+     * Initializes a <tt>ComponentConnection</tt>.
+     *
+     * @param host the hostname of the XMPP server.
+     * @param port the port of the XMPP server for the external components.
+     * @param domain the domain of the component.
+     * @param secret the secret shared by the component and the XMPP server.
+     * @param name the name of this connection, used to name its threads.
+     * @param socketFactory the factory of the socket of this connection.
+     */
+    public ComponentConnection(
+            String host,
+            int port,
+            DomainBareJid domain,
+            String secret,
+            String name,
+            SocketFactory socketFactory)
+    {
+        this.socketFactory = socketFactory;
+        this.host = host;
+        this.port = port;
+        this.domain = domain;
+        this.secret = secret;
+        this.name = name;
+    }
+
+    /**
+     * Connect to the XMPP server and do the component handshake, if not
+     * already connected.
+     *
+     * @throws IOException if the connection failed.
+     * @throws XMPPException if the server refused the handshake.
+     * @throws SmackException if the server answered something unexpected.
+     */
+    public void connect()
+        throws IOException,
+               XMPPException,
+               SmackException
+    {
+        connectLock.lock();
+        try
+        {
+            if (connected)
+                return;
+
+            logger.info(name + " : connecting as component " + domain
+                + " to " + host + ":" + port);
+            socket = socketFactory.createSocket();
+            socket.connect(
+                new InetSocketAddress(host, port),
+                HANDSHAKE_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            XmlPullParser parser = PacketParserUtils.newXmppParser(
+                new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), "UTF-8")));
+
+            write("<stream:stream xmlns='" + COMPONENT_NAMESPACE
+                + "' xmlns:stream='" + STREAM_NAMESPACE
+                + "' to='" + domain + "'>");
+            out.flush();
+            streamId = readStreamId(parser);
+
+            write("<handshake>" + SHA1.hex(streamId + secret)
+                + "</handshake>");
+            out.flush();
+            readHandshakeReply(parser);
+
+            socket.setSoTimeout(0);
+            connected = true;
+            startThreads(parser);
+            logger.info(name + " : component handshake done (stream "
+                + streamId + ")");
+        }
+        catch (IOException | XMPPException | SmackException e)
+        {
+            closeSocket();
+            throw e;
+        }
+        catch (Exception e)
+        {
+            closeSocket();
+            throw new SmackException(e);
+        }
+        finally
+        {
+            connectLock.unlock();
+        }
+    }
+
+    /**
+     * Read the stream header sent by the server.
+     *
+     * @param parser the parser of the incoming stream.
+     * @return the id of the stream.
+     */
+    private String readStreamId(XmlPullParser parser)
+        throws XmlPullParserException,
+               IOException,
+               SmackException
+    {
+        int event = parser.getEventType();
+        while (event != XmlPullParser.END_DOCUMENT)
+        {
+            if (event == XmlPullParser.START_TAG
+                    && "stream".equals(parser.getName())
+                    && STREAM_NAMESPACE.equals(parser.getNamespace()))
+            {
+                String id = parser.getAttributeValue("", "id");
+                if (id == null)
+                    throw new SmackException("Stream header without id");
+                return id;
+            }
+            event = parser.next();
+        }
+        throw new SmackException("Stream closed before its header");
+    }
+
+    /**
+     * Read the answer of the server to the handshake.
+     *
+     * @param parser the parser of the incoming stream.
+     * @throws XMPPException.StreamErrorException if the server refused the
+     * handshake.
+     */
+    private void readHandshakeReply(XmlPullParser parser)
+        throws Exception
+    {
+        int event = parser.next();
+        while (event != XmlPullParser.END_DOCUMENT)
+        {
+            if (event == XmlPullParser.START_TAG)
+            {
+                if ("handshake".equals(parser.getName()))
+                {
+                    parser.next();
+                    return;
+                }
+                if ("error".equals(parser.getName())
+                        && STREAM_NAMESPACE.equals(parser.getNamespace()))
+                {
+                    throw new XMPPException.StreamErrorException(
+                        PacketParserUtils.parseStreamError(parser));
+                }
+                throw new SmackException("Unexpected answer to the"
+                    + " handshake : " + parser.getName());
+            }
+            event = parser.next();
+        }
+        throw new SmackException("Stream closed during the handshake");
+    }
+
+    /**
+     * Start the threads reading and writing the stanzas.
+     *
+     * @param parser the parser of the incoming stream.
+     */
+    private void startThreads(final XmlPullParser parser)
+    {
+        Thread reader = new Thread(() -> readStanzas(parser), name + "-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        Thread writer = new Thread(this::writeStanzas, name + "-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Read the incoming stanzas and give them to the users they are
+     * addressed to, until the stream is closed.
+     *
+     * @param parser the parser of the incoming stream.
+     */
+    private void readStanzas(XmlPullParser parser)
+    {
+        try
+        {
+            int event = parser.next();
+            while (connected && event != XmlPullParser.END_DOCUMENT)
+            {
+                if (event == XmlPullParser.START_TAG)
+                {
+                    switch (parser.getName())
+                    {
+                    case Message.ELEMENT:
+                    case IQ.IQ_ELEMENT:
+                    case Presence.ELEMENT:
+                        readStanza(parser);
+                        break;
+                    case "error":
+                        throw new XMPPException.StreamErrorException(
+                            PacketParserUtils.parseStreamError(parser));
+                    default:
+                        logger.warn(name + " : ignoring unexpected element "
+                            + parser.getName());
+                        break;
+                    }
+                }
+                else if (event == XmlPullParser.END_TAG
+                        && "stream".equals(parser.getName()))
+                {
+                    throw new IOException("Stream closed by the server");
+                }
+                event = parser.next();
+            }
+        }
+        catch (Exception e)
+        {
+            fail(e);
+        }
+    }
+
+    /**
+     * Parse the stanza starting at the current position of <tt>parser</tt>
+     * and give it to the user it is addressed to. A stanza which cannot be
+     * parsed is skipped.
+     *
+     * @param parser the parser of the incoming stream.
+     */
+    private void readStanza(XmlPullParser parser)
+        throws XmlPullParserException,
+               IOException,
+               InterruptedException
+    {
+        int depth = parser.getDepth();
+        Stanza stanza;
+        try
+        {
+            stanza = PacketParserUtils.parseStanza(parser);
+        }
+        catch (Exception e)
+        {
+            logger.warn(name + " : skipping a stanza that could not be"
+                + " parsed : " + e);
+            while (parser.getEventType() != XmlPullParser.END_TAG
+                    || parser.getDepth() != depth)
+            {
+                parser.next();
+            }
+            return;
+        }
+
+        Jid to = stanza.getTo();
+        ComponentUserConnection user = null;
+        if (to != null)
+        {
+            user = users.get(to);
+            if (user == null)
+                user = users.get(to.asBareJid());
+        }
+
+        if (user != null)
+            user.processIncoming(stanza);
+        else if (logger.isDebugEnabled())
+            logger.debug(name + " : no user for stanza to " + to);
+    }
+
+    /**
+     * Write the outgoing stanzas, flushing once per batch, and send a
+     * whitespace keepalive when idle, until the connection is closed.
+     */
+    private void writeStanzas()
+    {
+        List<CharSequence> batch = new ArrayList<>();
+        try
+        {
+            while (true)
+            {
+                CharSequence first = outgoing.poll(
+                    KEEPALIVE_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+                if (first == null)
+                {
+                    out.write(' ');
+                    out.flush();
+                    continue;
+                }
+
+                batch.add(first);
+                outgoing.drainTo(batch);
+                for (CharSequence element : batch)
+                {
+                    write(element);
+                    if (element == CLOSE_STREAM)
+                    {
+                        out.flush();
+                        closeSocket();
+                        return;
+                    }
+                }
+                out.flush();
+                batch.clear();
+            }
+        }
+        catch (IOException | InterruptedException e)
+        {
+            fail(e);
+        }
+    }
+
+    /**
+     * Write the XML of a stanza (or of the stream) to the socket, encoded in
+     * UTF-8 without being turned into a <tt>String</tt>.
+     *
+     * @param xml the XML to write.
+     * @throws IOException if the XML could not be written.
+     */
+    private void write(CharSequence xml)
+        throws IOException
+    {
+        stanzaBuffer.encode(xml);
+        stanzaBuffer.writeTo(out);
+    }
+
+    /**
+     * Queue a stanza to be sent on this connection.
+     *
+     * @param stanza the stanza to send.
+     * @throws SmackException.NotConnectedException if this connection is not
+     * connected.
+     */
+    public void send(Stanza stanza)
+        throws SmackException.NotConnectedException
+    {
+        if (!connected)
+        {
+            throw new SmackException.NotConnectedException(
+                name + " is not connected");
+        }
+        outgoing.add(stanza.toXML());
+    }
+
+    /**
+     * Register a user, so that it receives the stanzas addressed to its JID.
+     *
+     * @param user the user.
+     */
+    void register(ComponentUserConnection user)
+    {
+        users.put(user.getUser(), user);
+    }
+
+    /**
+     * Unregister a user.
+     *
+     * @param user the user.
+     */
+    void unregister(ComponentUserConnection user)
+    {
+        users.remove(user.getUser(), user);
+    }
+
+    /**
+     * Close the stream and the connection to the XMPP server.
+     */
+    public void close()
+    {
+        if (!connected)
+            return;
+
+        logger.info(name + " : closing the component connection");
+        connected = false;
+        outgoing.add(CLOSE_STREAM);
+    }
+
+    /**
+     * Close the connection after an error, and notify the users.
+     *
+     * @param e the error.
+     */
+    private void fail(Exception e)
+    {
+        if (!connected)
+        {
+            // Closed on purpose.
+            closeSocket();
+            return;
+        }
+
+        logger.error(name + " : component connection closed on error", e);
+        connected = false;
+        closeSocket();
+        for (ComponentUserConnection user : users.values())
+        {
+            user.componentConnectionClosedOnError(e);
+        }
+        users.clear();
+    }
+
+    /**
+     * Close the socket of this connection.
+     */
+    private void closeSocket()
+    {
+        try
+        {
+            if (socket != null)
+                socket.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn(name + " : error closing the socket : " + e);
+        }
+    }
+
+    /**
+     * Get the domain of the component.
+     *
+     * @return the domain of the component.
+     */
+    public DomainBareJid getDomain()
+    {
+        return domain;
+    }
+
+    /**
+     * Get the hostname of the XMPP server.
+     *
+     * @return the hostname of the XMPP server.
+     */
+    public String getHost()
+    {
+        return host;
+    }
+
+    /**
+     * Get the port of the XMPP server for the external components.
+     *
+     * @return the port of the XMPP server.
+     */
+    public int getPort()
+    {
+        return port;
+    }
+
+    /**
+     * Get the id of the stream, given by the server.
+     *
+     * @return the id of the stream.
+     */
+    public String getStreamId()
+    {
+        return streamId;
+    }
+
+    /**
+     * Get the number of users currently registered on this connection.
+     *
+     * @return the number of users of this connection.
+     */
+    public int getUserCount()
+    {
+        return users.size();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import org.jitsi.util.Logger;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.roster.*;
+import org.jxmpp.jid.*;
+import org.jxmpp.jid.impl.*;
+import org.jxmpp.stringprep.*;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * The <tt>ComponentConnectionFactory</tt> creates the connections of the
+ * fake users on top of a small pool of <tt>ComponentConnection</tt>s : the
+ * users are spread over the pool in a round-robin way.
+ */
+public class ComponentConnectionFactory
+    implements FakeUserConnectionFactory
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>ComponentConnectionFactory</tt>
+     * class and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ComponentConnectionFactory.class);
+
+    /**
+     * The default port of the XMPP servers for the external components.
+     */
+    public static final int DEFAULT_PORT = 5347;
+
+    /**
+     * The pool of component connections shared by the users.
+     */
+    private final ComponentConnection[] pool;
+
+    /**
+     * The number of connections created so far, used to pick the component
+     * connection of the next one.
+     */
+    private final AtomicInteger created = new AtomicInteger();
+
+    /**
+     * The stats of the component connections, and of the setup of the
+     * connections of the users.
+     */
+    private final TransportStats stats
+        = new TransportStats(Transport.COMPONENT);
+
+    /**
+     * Initializes a <tt>ComponentConnectionFactory</tt>.
+     *
+     * @param host the hostname of the XMPP server.
+     * @param port the port of the XMPP server for the external components.
+     * @param domain the domain of the component, in which the users have
+     * their JID.
+     * @param secret the secret shared by the component and the XMPP server.
+     * @param poolSize the number of component connections.
+     * @throws XmppStringprepException if <tt>domain</tt> is not a valid
+     * domain.
+     */
+    public ComponentConnectionFactory(
+            String host,
+            int port,
+            String domain,
+            String secret,
+            int poolSize)
+        throws XmppStringprepException
+    {
+        DomainBareJid domainJid = JidCreate.domainBareFrom(domain);
+
+        CountingSocketFactory socketFactory = new CountingSocketFactory(stats);
+        pool = new ComponentConnection[Math.max(1, poolSize)];
+        for (int i = 0; i < pool.length; i++)
+        {
+            pool[i] = new ComponentConnection(
+                host,
+                port,
+                domainJid,
+                secret,
+                "Component-" + i,
+                socketFactory);
+        }
+        logger.info(String.format("The users will connect as component %s"
+                + " through %d connection(s) to %s:%d",
+                domain, pool.length, host, port));
+    }
+
+    @Override
+    public AbstractXMPPConnection createConnection(
+            String nickname,
+            boolean smackDebug)
+        throws XmppStringprepException
+    {
+        ComponentConnection componentConnection
+            = pool[Math.floorMod(created.getAndIncrement(), pool.length)];
+        ComponentUserConfiguration config = ComponentUserConfiguration.builder()
+                .setXmppDomain(componentConnection.getDomain())
+                .setHost(componentConnection.getHost())
+                .setPort(componentConnection.getPort())
+                .setUsernameAndPassword(nickname, null)
+                .setDebuggerEnabled(smackDebug)
+                .build();
+
+        ComponentUserConnection connection
+            = new ComponentUserConnection(componentConnection, config);
+        // A component has no roster : do not ask for it at login.
+        Roster.getInstanceFor(connection).setRosterLoadedAtLogin(false);
+
+        return connection;
+    }
+
+    @Override
+    public TransportStats getStats()
+    {
+        return stats;
+    }
+
+    @Override
+    public void close()
+    {
+        for (ComponentConnection componentConnection : pool)
+        {
+            componentConnection.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import org.jivesoftware.smack.*;
+
+/**
+ * The <tt>ConnectionConfiguration</tt> of a
+ * <tt>ComponentUserConnection</tt> : the users are authenticated by the
+ * component handshake, so there is no security or SASL configuration.
+ */
+public class ComponentUserConfiguration
+    extends ConnectionConfiguration
+{
+    /**
+     * Initializes a <tt>ComponentUserConfiguration</tt>.
+     *
+     * @param builder the <tt>Builder</tt> of the configuration.
+     */
+    private ComponentUserConfiguration(Builder builder)
+    {
+        super(builder);
+    }
+
+    /**
+     * Get a new <tt>Builder</tt> of <tt>ComponentUserConfiguration</tt>.
+     *
+     * @return a new <tt>Builder</tt>.
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * The builder of <tt>ComponentUserConfiguration</tt>.
+     */
+    public static class Builder
+        extends ConnectionConfiguration.Builder<Builder, ComponentUserConfiguration>
+    {
+        /**
+         * Initializes a <tt>Builder</tt> of configuration without security
+         * and without initial presence (the users send their presence to the
+         * MUC only).
+         */
+        private Builder()
+        {
+            setSecurityMode(SecurityMode.disabled);
+            setSendPresence(false);
+        }
+
+        @Override
+        public ComponentUserConfiguration build()
+        {
+            return new ComponentUserConfiguration(this);
+        }
+
+        @Override
+        protected Builder getThis()
+        {
+            return this;
+        }
+    }
+}
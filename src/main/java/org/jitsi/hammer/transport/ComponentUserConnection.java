@@ -0,0 +1,180 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import org.jitsi.util.Logger;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.packet.*;
+import org.jxmpp.jid.*;
+import org.jxmpp.jid.impl.*;
+import org.jxmpp.jid.parts.*;
+
+import java.io.*;
+
+/**
+ * A <tt>ComponentUserConnection</tt> is the XMPP connection of one fake user
+ * on top of a <tt>ComponentConnection</tt> shared with other fake users.
+ *
+ * The user has the JID <tt>nickname@component-domain/resource</tt> : its
+ * stanzas are sent on the shared connection with this JID as
+ * <tt>from</tt>, and the shared connection gives it the stanzas addressed
+ * to this JID.
+ */
+public class ComponentUserConnection
+    extends AbstractXMPPConnection
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>ComponentUserConnection</tt> class
+     * and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ComponentUserConnection.class);
+
+    /**
+     * The default resource of the JIDs of the users.
+     */
+    private static final String DEFAULT_RESOURCE = "hammer";
+
+    /**
+     * The shared connection to the XMPP server.
+     */
+    private final ComponentConnection componentConnection;
+
+    /**
+     * Initializes a <tt>ComponentUserConnection</tt>.
+     *
+     * @param componentConnection the shared connection to the XMPP server.
+     * @param config the configuration of this connection. Its username is
+     * the local part of the JID of the user.
+     */
+    public ComponentUserConnection(
+            ComponentConnection componentConnection,
+            ComponentUserConfiguration config)
+    {
+        super(config);
+        this.componentConnection = componentConnection;
+        // A component must stamp the from of all its stanzas.
+        setFromMode(FromMode.USER);
+    }
+
+    @Override
+    public boolean isSecureConnection()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isUsingCompression()
+    {
+        return false;
+    }
+
+    @Override
+    protected void connectInternal()
+        throws SmackException,
+               IOException,
+               XMPPException,
+               InterruptedException
+    {
+        componentConnection.connect();
+        streamId = componentConnection.getStreamId();
+        host = componentConnection.getHost();
+        port = componentConnection.getPort();
+
+        // There is no TLS nor SASL negotiation for the users of a component.
+        tlsHandled.reportSuccess();
+        saslFeatureReceived.reportSuccess();
+    }
+
+    @Override
+    protected void loginInternal(
+            String username,
+            String password,
+            Resourcepart resource)
+        throws XMPPException,
+               SmackException,
+               IOException,
+               InterruptedException
+    {
+        if (resource == null)
+            resource = Resourcepart.from(DEFAULT_RESOURCE);
+
+        user = JidCreate.entityFullFrom(
+            Localpart.from(username),
+            componentConnection.getDomain(),
+            resource);
+        componentConnection.register(this);
+        afterSuccessfulLogin(false);
+    }
+
+    @Override
+    protected void sendStanzaInternal(Stanza packet)
+        throws SmackException.NotConnectedException,
+               InterruptedException
+    {
+        if (packet.getFrom() == null)
+            packet.setFrom(user);
+        componentConnection.send(packet);
+        firePacketSendingListeners(packet);
+    }
+
+    @Override
+    public void sendNonza(Nonza element)
+        throws SmackException.NotConnectedException,
+               InterruptedException
+    {
+        // The nonzas (stream management, CSI...) are negotiated by the
+        // component connection itself, not by its users.
+        logger.debug("Dropping nonza of a component user : "
+            + element.toXML());
+    }
+
+    @Override
+    protected void shutdown()
+    {
+        if (user != null)
+            componentConnection.unregister(this);
+        authenticated = false;
+        connected = false;
+    }
+
+    /**
+     * Handle a stanza addressed to this user, received by the shared
+     * connection.
+     *
+     * @param stanza the received stanza.
+     * @throws InterruptedException if interrupted while handing the stanza
+     * to the listeners of this connection.
+     */
+    void processIncoming(Stanza stanza)
+        throws InterruptedException
+    {
+        processStanza(stanza);
+    }
+
+    /**
+     * Notify the listeners of this connection that the shared connection
+     * was closed on error.
+     *
+     * @param e the error that closed the shared connection.
+     */
+    void componentConnectionClosedOnError(Exception e)
+    {
+        authenticated = false;
+        connected = false;
+        callConnectionClosedOnErrorListener(e);
+    }
+}
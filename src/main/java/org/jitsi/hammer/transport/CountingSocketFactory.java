@@ -0,0 +1,176 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import javax.net.*;
+import java.io.*;
+import java.net.*;
+
+/**
+ * The <tt>CountingSocketFactory</tt> creates plain TCP sockets counting the
+ * bytes they send and receive in a <tt>TransportStats</tt>. When TLS is
+ * layered over such a socket, the bytes counted are the encrypted ones, as
+ * they are on the wire.
+ */
+public class CountingSocketFactory
+    extends SocketFactory
+{
+    /**
+     * The stats in which the bytes are counted.
+     */
+    private final TransportStats stats;
+
+    /**
+     * Initializes a <tt>CountingSocketFactory</tt>.
+     *
+     * @param stats the stats in which the bytes are counted.
+     */
+    public CountingSocketFactory(TransportStats stats)
+    {
+        this.stats = stats;
+    }
+
+    @Override
+    public Socket createSocket()
+    {
+        return new CountingSocket();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port)
+        throws IOException
+    {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(
+            String host,
+            int port,
+            InetAddress localHost,
+            int localPort)
+        throws IOException
+    {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localHost, localPort));
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port)
+        throws IOException
+    {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(
+            InetAddress address,
+            int port,
+            InetAddress localAddress,
+            int localPort)
+        throws IOException
+    {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(address, port));
+        return socket;
+    }
+
+    /**
+     * A <tt>Socket</tt> counting the bytes it sends and receives.
+     */
+    private class CountingSocket
+        extends Socket
+    {
+        /**
+         * The counting stream wrapping the input stream of the socket.
+         */
+        private InputStream countingIn;
+
+        /**
+         * The counting stream wrapping the output stream of the socket.
+         */
+        private OutputStream countingOut;
+
+        @Override
+        public synchronized InputStream getInputStream()
+            throws IOException
+        {
+            if (countingIn == null)
+            {
+                countingIn = new FilterInputStream(super.getInputStream())
+                {
+                    @Override
+                    public int read()
+                        throws IOException
+                    {
+                        int b = super.read();
+                        if (b != -1)
+                            stats.addBytesReceived(1);
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len)
+                        throws IOException
+                    {
+                        int read = super.read(b, off, len);
+                        if (read > 0)
+                            stats.addBytesReceived(read);
+                        return read;
+                    }
+                };
+            }
+            return countingIn;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream()
+            throws IOException
+        {
+            if (countingOut == null)
+            {
+                countingOut = new FilterOutputStream(super.getOutputStream())
+                {
+                    @Override
+                    public void write(int b)
+                        throws IOException
+                    {
+                        out.write(b);
+                        stats.addBytesSent(1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len)
+                        throws IOException
+                    {
+                        // Write the whole array at once, not byte per byte
+                        // as FilterOutputStream does.
+                        out.write(b, off, len);
+                        stats.addBytesSent(len);
+                    }
+                };
+            }
+            return countingOut;
+        }
+    }
+}
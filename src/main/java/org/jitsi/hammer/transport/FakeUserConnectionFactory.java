@@ -0,0 +1,59 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import org.jivesoftware.smack.*;
+import org.jxmpp.stringprep.*;
+
+/**
+ * A <tt>FakeUserConnectionFactory</tt> creates the XMPP connections of the
+ * fake users, over the transport it implements.
+ */
+public interface FakeUserConnectionFactory
+{
+    /**
+     * The interval (in seconds) between two pings of a connection, keeping
+     * it alive through the proxies and load balancers closing the idle ones.
+     */
+    int PING_INTERVAL = 15;
+
+    /**
+     * Create the (not yet connected) XMPP connection of a fake user.
+     *
+     * @param nickname the nickname of the fake user.
+     * @param smackDebug whether the debug screen of smack is enabled.
+     * @return the XMPP connection of the fake user.
+     * @throws XmppStringprepException if a JID of the connection is invalid.
+     */
+    AbstractXMPPConnection createConnection(
+            String nickname,
+            boolean smackDebug)
+        throws XmppStringprepException;
+
+    /**
+     * Get the setup-latency and bytes-on-wire stats of the connections
+     * created by this <tt>FakeUserConnectionFactory</tt>.
+     *
+     * @return the stats of the transport of this factory.
+     */
+    TransportStats getStats();
+
+    /**
+     * Release the resources shared by the connections created by this
+     * <tt>FakeUserConnectionFactory</tt>, once they are all disconnected.
+     */
+    void close();
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import org.jivesoftware.smack.util.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A reusable buffer into which a connection writes the XML of its stanzas,
+ * encoded in UTF-8, right before sending them.
+ *
+ * The XML is read from the <tt>CharSequence</tt> returned by
+ * <tt>toXML()</tt> without turning it into a <tt>String</tt> first : the
+ * parts of an <tt>XmlStringBuilder</tt> are encoded one after the other, and
+ * the bytes are kept in the same array from one stanza to the next.
+ *
+ * A <tt>StanzaBuffer</tt> is not thread-safe : it is used by one writer at a
+ * time.
+ */
+public class StanzaBuffer
+{
+    /**
+     * The initial size (in bytes) of the buffer, large enough for most of
+     * the stanzas but a session-accept.
+     */
+    private static final int INITIAL_CAPACITY = 4096;
+
+    /**
+     * The UTF-8 bytes of the last XML written.
+     */
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+
+    /**
+     * The number of bytes of <tt>bytes</tt> in use.
+     */
+    private int length = 0;
+
+    /**
+     * The high surrogate of a pair whose low surrogate has not been written
+     * yet (it may come in the next part of an <tt>XmlStringBuilder</tt>), or
+     * <tt>0</tt>.
+     */
+    private char highSurrogate = 0;
+
+    /**
+     * The <tt>Writer</tt> handed to <tt>XmlStringBuilder.write</tt>, which
+     * encodes in this buffer what it is given.
+     */
+    private final Writer writer = new Writer()
+    {
+        @Override
+        public void write(int c)
+        {
+            put((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len)
+        {
+            ensureCapacity(len);
+            for (int i = off, end = off + len; i < end; i++)
+                put(cbuf[i]);
+        }
+
+        @Override
+        public void write(String str, int off, int len)
+        {
+            ensureCapacity(len);
+            for (int i = off, end = off + len; i < end; i++)
+                put(str.charAt(i));
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    };
+
+    /**
+     * Replace the content of this buffer with the UTF-8 encoding of
+     * <tt>xml</tt>.
+     *
+     * @param xml the XML to encode.
+     * @return the number of bytes of the encoded XML, at the start of
+     * {@link #getBytes()}.
+     */
+    public int encode(CharSequence xml)
+    {
+        length = 0;
+        append(xml);
+        if (highSurrogate != 0)
+        {
+            highSurrogate = 0;
+            bytes[length++] = '?';
+        }
+        return length;
+    }
+
+    /**
+     * Encode <tt>xml</tt> in UTF-8 after the current content of this buffer.
+     *
+     * @param xml the XML to encode.
+     */
+    public void append(CharSequence xml)
+    {
+        if (xml instanceof XmlStringBuilder)
+        {
+            try
+            {
+                ((XmlStringBuilder) xml).write(writer);
+            }
+            catch (IOException e)
+            {
+                // Our writer does not throw.
+                throw new IllegalStateException(e);
+            }
+        }
+        else
+        {
+            int len = xml.length();
+            ensureCapacity(len);
+            for (int i = 0; i < len; i++)
+                put(xml.charAt(i));
+        }
+    }
+
+    /**
+     * Get the array holding the encoded XML. It is only valid until the next
+     * call to {@link #encode(CharSequence)}, and may be modified in place
+     * (e.g. to mask a WebSocket frame).
+     *
+     * @return the array holding the encoded XML.
+     */
+    public byte[] getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Get the number of bytes of the encoded XML.
+     *
+     * @return the number of bytes of the encoded XML.
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Write the encoded XML to <tt>out</tt>.
+     *
+     * @param out the stream to write to.
+     * @throws IOException if the XML could not be written.
+     */
+    public void writeTo(OutputStream out)
+        throws IOException
+    {
+        out.write(bytes, 0, length);
+    }
+
+    /**
+     * Make room for (at least) <tt>chars</tt> more characters, assuming most
+     * of them are ASCII.
+     *
+     * @param chars the number of characters about to be written.
+     */
+    private void ensureCapacity(int chars)
+    {
+        if (length + chars > bytes.length)
+        {
+            bytes = Arrays.copyOf(
+                bytes, Math.max(bytes.length * 2, length + chars));
+        }
+    }
+
+    /**
+     * Encode one character.
+     *
+     * @param c the character.
+     */
+    private void put(char c)
+    {
+        // A character takes at most 3 bytes, after the replacement of a
+        // lone high surrogate (a surrogate pair takes 4).
+        if (length + 4 > bytes.length)
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+
+        if (highSurrogate != 0)
+        {
+            char high = highSurrogate;
+
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c))
+            {
+                int codePoint = Character.toCodePoint(high, c);
+
+                bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                return;
+            }
+            bytes[length++] = '?';
+        }
+
+        if (c < 0x80)
+        {
+            bytes[length++] = (byte) c;
+        }
+        else if (c < 0x800)
+        {
+            bytes[length++] = (byte) (0xC0 | (c >> 6));
+            bytes[length++] = (byte) (0x80 | (c & 0x3F));
+        }
+        else if (Character.isHighSurrogate(c))
+        {
+            highSurrogate = c;
+        }
+        else if (Character.isLowSurrogate(c))
+        {
+            // Replaced, as String.getBytes(UTF_8) does.
+            bytes[length++] = '?';
+        }
+        else
+        {
+            bytes[length++] = (byte) (0xE0 | (c >> 12));
+            bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            bytes[length++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+}
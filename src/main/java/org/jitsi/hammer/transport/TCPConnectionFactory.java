@@ -0,0 +1,99 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import org.jitsi.hammer.utils.*;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.tcp.*;
+import org.jivesoftware.smackx.ping.*;
+import org.jxmpp.stringprep.*;
+
+/**
+ * The <tt>TCPConnectionFactory</tt> creates one <tt>XMPPTCPConnection</tt>
+ * (logged in anonymously) per fake user, on the client-to-server port of the
+ * XMPP server. STARTTLS is used if the server offers it, and the idle
+ * connections are kept alive with XMPP pings.
+ */
+public class TCPConnectionFactory
+    implements FakeUserConnectionFactory
+{
+    /**
+     * The default client-to-server port of the XMPP servers.
+     */
+    public static final int DEFAULT_PORT = 5222;
+
+    /**
+     * The XMPP server info to which the connections are made.
+     */
+    private final HostInfo serverInfo;
+
+    /**
+     * The stats of the connections created by this factory.
+     */
+    private final TransportStats stats = new TransportStats(Transport.TCP);
+
+    /**
+     * The factory of the sockets of the connections, counting their bytes.
+     */
+    private final CountingSocketFactory socketFactory
+        = new CountingSocketFactory(stats);
+
+    /**
+     * Initializes a <tt>TCPConnectionFactory</tt>.
+     *
+     * @param serverInfo the XMPP server info to which the connections are
+     * made.
+     */
+    public TCPConnectionFactory(HostInfo serverInfo)
+    {
+        this.serverInfo = serverInfo;
+    }
+
+    @Override
+    public AbstractXMPPConnection createConnection(
+            String nickname,
+            boolean smackDebug)
+        throws XmppStringprepException
+    {
+        XMPPTCPConnectionConfiguration config
+            = XMPPTCPConnectionConfiguration.builder()
+                .setHost(serverInfo.getBOSHhostname())
+                .setPort(serverInfo.getXMPPport())
+                .setXmppDomain(serverInfo.getXMPPDomain())
+                .setSocketFactory(socketFactory)
+                .setDebuggerEnabled(smackDebug)
+                .performSaslAnonymousAuthentication()
+                .build();
+
+        AbstractXMPPConnection connection = new XMPPTCPConnection(config);
+
+        PingManager.getInstanceFor(connection).setPingInterval(PING_INTERVAL);
+
+        return connection;
+    }
+
+    @Override
+    public TransportStats getStats()
+    {
+        return stats;
+    }
+
+    @Override
+    public void close()
+    {
+        // Nothing is shared between the TCP connections.
+    }
+}
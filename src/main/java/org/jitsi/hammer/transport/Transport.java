@@ -0,0 +1,56 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+/**
+ * The transports the fake users can use to connect to the XMPP server.
+ */
+public enum Transport
+{
+    /**
+     * One BOSH session per fake user.
+     */
+    BOSH,
+
+    /**
+     * One XMPP over WebSocket (RFC 7395) connection per fake user.
+     */
+    WEBSOCKET,
+
+    /**
+     * One plain XMPP client-to-server TCP connection per fake user.
+     */
+    TCP,
+
+    /**
+     * One or a few XEP-0114 external component connections shared by all the
+     * fake users.
+     */
+    COMPONENT;
+
+    /**
+     * Get the <tt>Transport</tt> whose name is <tt>name</tt> (case
+     * insensitive).
+     *
+     * @param name the name of the transport.
+     * @return the <tt>Transport</tt> whose name is <tt>name</tt>.
+     * @throws IllegalArgumentException if there is no such transport.
+     */
+    public static Transport parseString(String name)
+    {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
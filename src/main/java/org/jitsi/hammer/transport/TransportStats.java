@@ -0,0 +1,195 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The <tt>TransportStats</tt> count, for one transport, the time taken by
+ * the fake users to set up their XMPP connection (connect and login) and the
+ * bytes exchanged with the XMPP server.
+ */
+public class TransportStats
+{
+    /**
+     * The transport whose stats are counted.
+     */
+    private final Transport transport;
+
+    /**
+     * The number of connections set up successfully.
+     */
+    private final AtomicLong setups = new AtomicLong();
+
+    /**
+     * The number of connections whose setup failed.
+     */
+    private final AtomicLong failedSetups = new AtomicLong();
+
+    /**
+     * The total time (in nanoseconds) taken by the successful setups.
+     */
+    private final AtomicLong totalSetupNanos = new AtomicLong();
+
+    /**
+     * The longest time (in nanoseconds) taken by a successful setup.
+     */
+    private final AtomicLong maxSetupNanos = new AtomicLong();
+
+    /**
+     * The number of bytes sent to the XMPP server.
+     */
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * The number of bytes received from the XMPP server.
+     */
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * Initializes the <tt>TransportStats</tt> of <tt>transport</tt>.
+     *
+     * @param transport the transport whose stats are counted.
+     */
+    public TransportStats(Transport transport)
+    {
+        this.transport = transport;
+    }
+
+    /**
+     * Record the successful setup of a connection.
+     *
+     * @param nanos the time (in nanoseconds) taken by the setup.
+     */
+    public void setupSucceeded(long nanos)
+    {
+        setups.incrementAndGet();
+        totalSetupNanos.addAndGet(nanos);
+        maxSetupNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Record the failed setup of a connection.
+     */
+    public void setupFailed()
+    {
+        failedSetups.incrementAndGet();
+    }
+
+    /**
+     * Add <tt>bytes</tt> to the number of bytes sent to the XMPP server.
+     *
+     * @param bytes the number of bytes sent.
+     */
+    public void addBytesSent(long bytes)
+    {
+        bytesSent.addAndGet(bytes);
+    }
+
+    /**
+     * Add <tt>bytes</tt> to the number of bytes received from the XMPP
+     * server.
+     *
+     * @param bytes the number of bytes received.
+     */
+    public void addBytesReceived(long bytes)
+    {
+        bytesReceived.addAndGet(bytes);
+    }
+
+    /**
+     * Get the transport whose stats are counted.
+     *
+     * @return the transport whose stats are counted.
+     */
+    public Transport getTransport()
+    {
+        return transport;
+    }
+
+    /**
+     * Get the number of connections set up successfully.
+     *
+     * @return the number of connections set up successfully.
+     */
+    public long getSetups()
+    {
+        return setups.get();
+    }
+
+    /**
+     * Get the number of connections whose setup failed.
+     *
+     * @return the number of connections whose setup failed.
+     */
+    public long getFailedSetups()
+    {
+        return failedSetups.get();
+    }
+
+    /**
+     * Get the mean time (in milliseconds) taken by the successful setups.
+     *
+     * @return the mean setup time, or 0 if no setup succeeded.
+     */
+    public double getMeanSetupMs()
+    {
+        long count = setups.get();
+        return (count == 0)
+            ? 0 : totalSetupNanos.get() / (count * 1000000D);
+    }
+
+    /**
+     * Get the longest time (in milliseconds) taken by a successful setup.
+     *
+     * @return the longest setup time.
+     */
+    public long getMaxSetupMs()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(maxSetupNanos.get());
+    }
+
+    /**
+     * Get the number of bytes sent to the XMPP server.
+     *
+     * @return the number of bytes sent.
+     */
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+    /**
+     * Get the number of bytes received from the XMPP server.
+     *
+     * @return the number of bytes received.
+     */
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s transport : %d connections set up"
+                + " (%d failed), setup mean %.1fms max %dms,"
+                + " %d bytes sent, %d bytes received",
+                transport, getSetups(), getFailedSetups(), getMeanSetupMs(),
+                getMaxSetupMs(), getBytesSent(), getBytesReceived());
+    }
+}
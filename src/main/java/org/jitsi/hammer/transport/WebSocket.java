@@ -0,0 +1,587 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import javax.net.*;
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A minimal RFC 6455 WebSocket client, exchanging text messages only, as
+ * needed by the XMPP over WebSocket framing (RFC 7395).
+ *
+ * The messages are sent from any thread, and read by a single thread.
+ */
+public class WebSocket
+{
+    /**
+     * The GUID appended to the key of the opening handshake to compute the
+     * <tt>Sec-WebSocket-Accept</tt> header (RFC 6455, section 1.3).
+     */
+    private static final String ACCEPT_GUID
+        = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    /**
+     * The opcodes of the frames (RFC 6455, section 5.2).
+     */
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    /**
+     * The maximum size of the header of the HTTP response to the opening
+     * handshake.
+     */
+    private static final int MAX_HANDSHAKE_RESPONSE_SIZE = 8192;
+
+    /**
+     * The socket of this WebSocket.
+     */
+    private final Socket socket;
+
+    /**
+     * The input stream of the socket.
+     */
+    private final InputStream in;
+
+    /**
+     * The output stream of the socket.
+     */
+    private final OutputStream out;
+
+    /**
+     * The lock held while writing a frame, so that the frames sent by
+     * different threads are not interleaved.
+     */
+    private final Lock writeLock = new ReentrantLock();
+
+    /**
+     * The buffer into which the text messages are encoded and masked,
+     * reused from one message to the next (under <tt>writeLock</tt>).
+     */
+    private final StanzaBuffer textBuffer = new StanzaBuffer();
+
+    /**
+     * The header (with the masking key) of the frame being sent, reused
+     * from one frame to the next (under <tt>writeLock</tt>).
+     */
+    private final byte[] header = new byte[14];
+
+    /**
+     * Whether a close frame was sent.
+     */
+    private volatile boolean closeSent = false;
+
+    /**
+     * The time (from <tt>System.nanoTime()</tt>) at which the last frame was
+     * sent.
+     */
+    private volatile long lastSentNanos = System.nanoTime();
+
+    /**
+     * Initializes a <tt>WebSocket</tt> on an open socket, once the opening
+     * handshake is done.
+     *
+     * @param socket the socket.
+     * @param in the input stream of the socket.
+     */
+    private WebSocket(Socket socket, InputStream in)
+        throws IOException
+    {
+        this.socket = socket;
+        this.in = in;
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Open a WebSocket to <tt>uri</tt>. With <tt>wss://</tt>, the certificate
+     * of the server is checked against the host of <tt>uri</tt>.
+     *
+     * @param uri the <tt>ws://</tt> or <tt>wss://</tt> URI to connect to.
+     * @param subprotocol the subprotocol requested to the server.
+     * @param socketFactory the factory of the (plain) socket.
+     * @param timeoutMs the timeout (in milliseconds) of the connection and of
+     * the opening handshake.
+     * @return the open <tt>WebSocket</tt>.
+     * @throws IOException if the connection or the opening handshake failed.
+     */
+    public static WebSocket connect(
+            URI uri,
+            String subprotocol,
+            SocketFactory socketFactory,
+            int timeoutMs)
+        throws IOException
+    {
+        boolean secure = "wss".equalsIgnoreCase(uri.getScheme());
+        String host = uri.getHost();
+        int port = getPort(uri);
+
+        Socket socket = socketFactory.createSocket();
+        try
+        {
+            socket.connect(new InetSocketAddress(host, port), timeoutMs);
+            if (secure)
+                socket = createSSLSocket(socket, host, port);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeoutMs);
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            handshake(uri, subprotocol, socket.getOutputStream(), in);
+            socket.setSoTimeout(0);
+
+            return new WebSocket(socket, in);
+        }
+        catch (IOException e)
+        {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Layer TLS over a connected socket, verifying the host name of the
+     * server as an HTTPS client does (RFC 2818).
+     *
+     * @param socket the connected socket.
+     * @param host the host name of the server.
+     * @param port the port of the server.
+     * @return the TLS socket.
+     * @throws IOException if the TLS socket could not be created.
+     */
+    private static SSLSocket createSSLSocket(
+            Socket socket,
+            String host,
+            int port)
+        throws IOException
+    {
+        SSLSocket sslSocket
+            = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                .createSocket(socket, host, port, true);
+        SSLParameters parameters = sslSocket.getSSLParameters();
+
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        sslSocket.setSSLParameters(parameters);
+        return sslSocket;
+    }
+
+    /**
+     * Get the port of <tt>uri</tt>, or the default port of its scheme.
+     *
+     * @param uri a <tt>ws://</tt> or <tt>wss://</tt> URI.
+     * @return the port of <tt>uri</tt>.
+     */
+    public static int getPort(URI uri)
+    {
+        if (uri.getPort() != -1)
+            return uri.getPort();
+        return "wss".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+
+    /**
+     * Do the opening handshake of a WebSocket (RFC 6455, section 4).
+     *
+     * @param uri the URI to connect to.
+     * @param subprotocol the subprotocol requested to the server.
+     * @param out the output stream of the socket.
+     * @param in the input stream of the socket.
+     * @throws IOException if the server refused the handshake.
+     */
+    private static void handshake(
+            URI uri,
+            String subprotocol,
+            OutputStream out,
+            InputStream in)
+        throws IOException
+    {
+        byte[] nonce = new byte[16];
+        ThreadLocalRandom.current().nextBytes(nonce);
+        String key = Base64.getEncoder().encodeToString(nonce);
+
+        String path = uri.getRawPath();
+        if (path == null || path.isEmpty())
+            path = "/";
+        if (uri.getRawQuery() != null)
+            path += "?" + uri.getRawQuery();
+
+        String request = "GET " + path + " HTTP/1.1\r\n"
+            + "Host: " + uri.getHost() + ":" + getPort(uri) + "\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: " + key + "\r\n"
+            + "Sec-WebSocket-Version: 13\r\n"
+            + "Sec-WebSocket-Protocol: " + subprotocol + "\r\n"
+            + "\r\n";
+        out.write(request.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        String[] lines = readHandshakeResponse(in).split("\r\n");
+        if (!lines[0].matches("HTTP/1\\.1 101( .*)?"))
+        {
+            throw new IOException(
+                "WebSocket handshake refused by the server : " + lines[0]);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++)
+        {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0)
+            {
+                headers.put(
+                    lines[i].substring(0, colon).trim().toLowerCase(),
+                    lines[i].substring(colon + 1).trim());
+            }
+        }
+
+        if (!getAccept(key).equals(headers.get("sec-websocket-accept")))
+            throw new IOException("Invalid Sec-WebSocket-Accept");
+        if (!subprotocol.equals(headers.get("sec-websocket-protocol")))
+        {
+            throw new IOException("The server does not support the "
+                + subprotocol + " WebSocket subprotocol");
+        }
+    }
+
+    /**
+     * Read the header of the HTTP response to the opening handshake.
+     *
+     * @param in the input stream of the socket.
+     * @return the header of the response, without its final empty line.
+     * @throws IOException if the header could not be read.
+     */
+    private static String readHandshakeResponse(InputStream in)
+        throws IOException
+    {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4)
+        {
+            int b = in.read();
+            if (b == -1)
+                throw new EOFException("Connection closed during handshake");
+            if (response.size() >= MAX_HANDSHAKE_RESPONSE_SIZE)
+                throw new IOException("WebSocket handshake response too big");
+            response.write(b);
+
+            // Look for the \r\n\r\n ending the header.
+            if (b == ((matched % 2 == 0) ? '\r' : '\n'))
+                matched++;
+            else
+                matched = (b == '\r') ? 1 : 0;
+        }
+
+        byte[] bytes = response.toByteArray();
+        return new String(
+            bytes, 0, bytes.length - 4, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Compute the expected value of the <tt>Sec-WebSocket-Accept</tt> header
+     * for the key <tt>key</tt>.
+     *
+     * @param key the <tt>Sec-WebSocket-Key</tt> sent to the server.
+     * @return the expected <tt>Sec-WebSocket-Accept</tt>.
+     */
+    private static String getAccept(String key)
+    {
+        try
+        {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(
+                sha1.digest((key + ACCEPT_GUID)
+                    .getBytes(StandardCharsets.US_ASCII)));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform has SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Send a text message. It is encoded straight into the frame buffer of
+     * this WebSocket, and masked in place.
+     *
+     * @param text the message.
+     * @throws IOException if the message could not be sent.
+     */
+    public void sendText(CharSequence text)
+        throws IOException
+    {
+        writeLock.lock();
+        try
+        {
+            int length = textBuffer.encode(text);
+            sendFrame(OPCODE_TEXT, textBuffer.getBytes(), length);
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Send a ping frame, without payload, which the server answers with a
+     * pong frame.
+     *
+     * @throws IOException if the frame could not be sent.
+     */
+    public void sendPing()
+        throws IOException
+    {
+        sendFrame(OPCODE_PING, new byte[0], 0);
+    }
+
+    /**
+     * Get the time at which the last frame was sent.
+     *
+     * @return the time (from <tt>System.nanoTime()</tt>) at which the last
+     * frame was sent.
+     */
+    public long getLastSentNanos()
+    {
+        return lastSentNanos;
+    }
+
+    /**
+     * Read the next text message. The control frames received in the
+     * meantime are handled, and the binary messages are skipped.
+     *
+     * @return the message, or <tt>null</tt> if the WebSocket was closed.
+     * @throws IOException if the message could not be read.
+     */
+    public String readText()
+        throws IOException
+    {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        int messageOpcode = -1;
+
+        while (true)
+        {
+            int b0 = in.read();
+            if (b0 == -1)
+                return null;
+            int b1 = readByte();
+
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            boolean masked = (b1 & 0x80) != 0;
+            long length = b1 & 0x7F;
+            if (length == 126)
+            {
+                length = (readByte() << 8) | readByte();
+            }
+            else if (length == 127)
+            {
+                length = 0;
+                for (int i = 0; i < 8; i++)
+                    length = (length << 8) | readByte();
+            }
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("WebSocket frame too big : " + length);
+
+            byte[] mask = null;
+            if (masked)
+            {
+                mask = new byte[4];
+                readFully(mask);
+            }
+            byte[] payload = new byte[(int) length];
+            readFully(payload);
+            if (mask != null)
+            {
+                for (int i = 0; i < payload.length; i++)
+                    payload[i] ^= mask[i & 3];
+            }
+
+            switch (opcode)
+            {
+            case OPCODE_PING:
+                sendFrame(OPCODE_PONG, payload, payload.length);
+                continue;
+            case OPCODE_PONG:
+                continue;
+            case OPCODE_CLOSE:
+                if (!closeSent)
+                    sendFrame(OPCODE_CLOSE, payload, payload.length);
+                return null;
+            case OPCODE_TEXT:
+            case OPCODE_BINARY:
+                messageOpcode = opcode;
+                message.reset();
+                break;
+            case OPCODE_CONTINUATION:
+                if (messageOpcode == -1)
+                    throw new IOException("Unexpected continuation frame");
+                break;
+            default:
+                throw new IOException("Unknown WebSocket opcode " + opcode);
+            }
+
+            message.write(payload, 0, payload.length);
+            if (fin)
+            {
+                if (messageOpcode == OPCODE_TEXT)
+                {
+                    return new String(
+                        message.toByteArray(), StandardCharsets.UTF_8);
+                }
+                messageOpcode = -1;
+                message.reset();
+            }
+        }
+    }
+
+    /**
+     * Read one byte of the socket.
+     *
+     * @return the byte read.
+     * @throws IOException if the socket was closed or could not be read.
+     */
+    private int readByte()
+        throws IOException
+    {
+        int b = in.read();
+        if (b == -1)
+            throw new EOFException("WebSocket closed in a frame");
+        return b;
+    }
+
+    /**
+     * Fill <tt>bytes</tt> with the bytes read from the socket.
+     *
+     * @param bytes the array to fill.
+     * @throws IOException if the socket was closed or could not be read.
+     */
+    private void readFully(byte[] bytes)
+        throws IOException
+    {
+        int offset = 0;
+        while (offset < bytes.length)
+        {
+            int read = in.read(bytes, offset, bytes.length - offset);
+            if (read == -1)
+                throw new EOFException("WebSocket closed in a frame");
+            offset += read;
+        }
+    }
+
+    /**
+     * Send a (masked, as a client must) frame. The payload is masked in
+     * place.
+     *
+     * @param opcode the opcode of the frame.
+     * @param payload the payload of the frame.
+     * @param length the length of the payload, at the start of
+     * <tt>payload</tt>.
+     * @throws IOException if the frame could not be sent.
+     */
+    private void sendFrame(int opcode, byte[] payload, int length)
+        throws IOException
+    {
+        writeLock.lock();
+        try
+        {
+            if (closeSent)
+                throw new IOException("WebSocket closed");
+            if (opcode == OPCODE_CLOSE)
+                closeSent = true;
+
+            int headerLength;
+            header[0] = (byte) (0x80 | opcode);
+            if (length < 126)
+            {
+                header[1] = (byte) (0x80 | length);
+                headerLength = 2;
+            }
+            else if (length <= 0xFFFF)
+            {
+                header[1] = (byte) (0x80 | 126);
+                header[2] = (byte) (length >> 8);
+                header[3] = (byte) length;
+                headerLength = 4;
+            }
+            else
+            {
+                header[1] = (byte) (0x80 | 127);
+                for (int i = 0; i < 8; i++)
+                    header[9 - i] = (byte) (((long) length) >> (8 * i));
+                headerLength = 10;
+            }
+
+            int mask = ThreadLocalRandom.current().nextInt();
+            for (int i = 0; i < 4; i++)
+                header[headerLength + i] = (byte) (mask >> (24 - 8 * i));
+            for (int i = 0; i < length; i++)
+                payload[i] ^= header[headerLength + (i & 3)];
+
+            out.write(header, 0, headerLength + 4);
+            out.write(payload, 0, length);
+            out.flush();
+            lastSentNanos = System.nanoTime();
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Send a close frame (if not already sent) and close the socket.
+     */
+    public void close()
+    {
+        try
+        {
+            if (!closeSent)
+                sendFrame(OPCODE_CLOSE, new byte[0], 0);
+        }
+        catch (IOException e)
+        {
+            // The socket is closed below anyway.
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // Nothing more to do with this socket.
+            }
+        }
+    }
+
+    /**
+     * Whether this WebSocket runs over TLS.
+     *
+     * @return <tt>true</tt> if this WebSocket runs over TLS.
+     */
+    public boolean isSecure()
+    {
+        return socket instanceof SSLSocket;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import org.jivesoftware.smack.*;
+
+import java.net.*;
+import java.util.concurrent.*;
+
+/**
+ * The <tt>ConnectionConfiguration</tt> of a <tt>WebSocketConnection</tt>.
+ * The TLS of a <tt>wss://</tt> URI is set up with the socket, there is no
+ * STARTTLS on a WebSocket (RFC 7395, section 3.6).
+ */
+public class WebSocketConfiguration
+    extends ConnectionConfiguration
+{
+    /**
+     * The <tt>ws://</tt> or <tt>wss://</tt> URI of the XMPP server.
+     */
+    private final URI uri;
+
+    /**
+     * The scheduler of the pings of the connection, or <tt>null</tt> if it
+     * sends none.
+     */
+    private final ScheduledExecutorService pingScheduler;
+
+    /**
+     * The interval (in seconds) between two pings of an idle connection.
+     */
+    private final int pingInterval;
+
+    /**
+     * Initializes a <tt>WebSocketConfiguration</tt>.
+     *
+     * @param builder the <tt>Builder</tt> of the configuration.
+     */
+    private WebSocketConfiguration(Builder builder)
+    {
+        super(builder);
+        this.uri = builder.uri;
+        this.pingScheduler = builder.pingScheduler;
+        this.pingInterval = builder.pingInterval;
+    }
+
+    /**
+     * Get the <tt>ws://</tt> or <tt>wss://</tt> URI of the XMPP server.
+     *
+     * @return the URI of the XMPP server.
+     */
+    public URI getURI()
+    {
+        return uri;
+    }
+
+    /**
+     * Get the scheduler of the pings of the connection.
+     *
+     * @return the scheduler of the pings, or <tt>null</tt> if the connection
+     * sends none.
+     */
+    public ScheduledExecutorService getPingScheduler()
+    {
+        return pingScheduler;
+    }
+
+    /**
+     * Get the interval between two pings of an idle connection.
+     *
+     * @return the interval (in seconds) between two pings.
+     */
+    public int getPingInterval()
+    {
+        return pingInterval;
+    }
+
+    /**
+     * Get a new <tt>Builder</tt> of <tt>WebSocketConfiguration</tt>.
+     *
+     * @return a new <tt>Builder</tt>.
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * The builder of <tt>WebSocketConfiguration</tt>.
+     */
+    public static class Builder
+        extends ConnectionConfiguration.Builder<Builder, WebSocketConfiguration>
+    {
+        /**
+         * The <tt>ws://</tt> or <tt>wss://</tt> URI of the XMPP server.
+         */
+        private URI uri;
+
+        /**
+         * The scheduler of the pings of the connection, or <tt>null</tt> if
+         * it sends none.
+         */
+        private ScheduledExecutorService pingScheduler;
+
+        /**
+         * The interval (in seconds) between two pings of an idle connection.
+         */
+        private int pingInterval;
+
+        /**
+         * Initializes a <tt>Builder</tt> of configuration without STARTTLS.
+         */
+        private Builder()
+        {
+            setSecurityMode(SecurityMode.disabled);
+        }
+
+        /**
+         * Set the <tt>ws://</tt> or <tt>wss://</tt> URI of the XMPP server.
+         *
+         * @param uri the URI of the XMPP server.
+         * @return this <tt>Builder</tt>.
+         */
+        public Builder setURI(URI uri)
+        {
+            this.uri = uri;
+            setHost(uri.getHost());
+            setPort(WebSocket.getPort(uri));
+            return this;
+        }
+
+        /**
+         * Make the connection send a ping frame when it has sent nothing for
+         * <tt>pingInterval</tt> seconds.
+         *
+         * @param pingScheduler the scheduler of the pings.
+         * @param pingInterval the interval (in seconds) between two pings of
+         * an idle connection.
+         * @return this <tt>Builder</tt>.
+         */
+        public Builder setPings(
+                ScheduledExecutorService pingScheduler,
+                int pingInterval)
+        {
+            this.pingScheduler = pingScheduler;
+            this.pingInterval = pingInterval;
+            return this;
+        }
+
+        @Override
+        public WebSocketConfiguration build()
+        {
+            return new WebSocketConfiguration(this);
+        }
+
+        @Override
+        protected Builder getThis()
+        {
+            return this;
+        }
+    }
+}
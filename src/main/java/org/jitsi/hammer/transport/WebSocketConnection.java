@@ -0,0 +1,420 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import org.jitsi.util.Logger;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.sasl.packet.*;
+import org.jivesoftware.smack.util.*;
+import org.jxmpp.jid.parts.*;
+import org.xmlpull.v1.*;
+
+import javax.net.*;
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A <tt>WebSocketConnection</tt> is an XMPP connection over a WebSocket, as
+ * specified by RFC 7395 : each WebSocket message carries exactly one
+ * complete XML element (stream open/close, features, SASL element or
+ * stanza), so there is no HTTP request per batch of stanzas nor long
+ * polling as with BOSH. An idle connection is kept alive with WebSocket
+ * ping frames, as RFC 7395 has no whitespace keepalive.
+ */
+public class WebSocketConnection
+    extends AbstractXMPPConnection
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>WebSocketConnection</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(WebSocketConnection.class);
+
+    /**
+     * The WebSocket subprotocol of XMPP.
+     */
+    private static final String SUBPROTOCOL = "xmpp";
+
+    /**
+     * The namespace of the framing of XMPP over WebSocket.
+     */
+    private static final String FRAMING_NAMESPACE
+        = "urn:ietf:params:xml:ns:xmpp-framing";
+
+    /**
+     * The element closing the stream.
+     */
+    private static final String CLOSE
+        = "<close xmlns='" + FRAMING_NAMESPACE + "'/>";
+
+    /**
+     * The counter used to name the reader threads.
+     */
+    private static final AtomicInteger readerCount = new AtomicInteger();
+
+    /**
+     * The configuration of this connection.
+     */
+    private final WebSocketConfiguration config;
+
+    /**
+     * The WebSocket of this connection, or <tt>null</tt> if not connected.
+     */
+    private volatile WebSocket webSocket;
+
+    /**
+     * The task sending the pings of this connection, or <tt>null</tt> if it
+     * sends none.
+     */
+    private volatile ScheduledFuture<?> pingTask;
+
+    /**
+     * Whether this connection was shut down (or is shutting down).
+     */
+    private volatile boolean done = true;
+
+    /**
+     * Initializes a <tt>WebSocketConnection</tt>.
+     *
+     * @param config the configuration of this connection.
+     */
+    public WebSocketConnection(WebSocketConfiguration config)
+    {
+        super(config);
+        this.config = config;
+    }
+
+    @Override
+    public boolean isSecureConnection()
+    {
+        WebSocket webSocket = this.webSocket;
+        return webSocket != null && webSocket.isSecure();
+    }
+
+    @Override
+    public boolean isUsingCompression()
+    {
+        return false;
+    }
+
+    @Override
+    protected void connectInternal()
+        throws SmackException,
+               IOException,
+               XMPPException,
+               InterruptedException
+    {
+        SocketFactory socketFactory = config.getSocketFactory();
+        if (socketFactory == null)
+            socketFactory = SocketFactory.getDefault();
+
+        final WebSocket webSocket
+            = WebSocket.connect(
+                    config.getURI(),
+                    SUBPROTOCOL,
+                    socketFactory,
+                    (int) getReplyTimeout());
+        this.webSocket = webSocket;
+        this.host = config.getURI().getHost();
+        this.port = WebSocket.getPort(config.getURI());
+        done = false;
+
+        Thread reader = new Thread(
+            () -> readMessages(webSocket),
+            "WebSocketConnection reader " + readerCount.incrementAndGet());
+        reader.setDaemon(true);
+        reader.start();
+
+        ScheduledExecutorService pingScheduler = config.getPingScheduler();
+        if (pingScheduler != null)
+        {
+            long interval = config.getPingInterval();
+            pingTask = pingScheduler.scheduleWithFixedDelay(
+                () -> ping(webSocket),
+                interval, interval, TimeUnit.SECONDS);
+        }
+
+        openStream();
+
+        tlsHandled.checkIfSuccessOrWaitOrThrow();
+        saslFeatureReceived.checkIfSuccessOrWaitOrThrow();
+    }
+
+    @Override
+    protected void loginInternal(
+            String username,
+            String password,
+            Resourcepart resource)
+        throws XMPPException,
+               SmackException,
+               IOException,
+               InterruptedException
+    {
+        saslAuthentication.authenticate(
+            username, password, config.getAuthzid(), null);
+        bindResourceAndEstablishSession(resource);
+        afterSuccessfulLogin(false);
+    }
+
+    @Override
+    protected void sendStanzaInternal(Stanza packet)
+        throws SmackException.NotConnectedException,
+               InterruptedException
+    {
+        send(packet);
+        firePacketSendingListeners(packet);
+    }
+
+    @Override
+    public void sendNonza(Nonza element)
+        throws SmackException.NotConnectedException,
+               InterruptedException
+    {
+        send(element);
+    }
+
+    /**
+     * Send <tt>element</tt> in its own WebSocket message.
+     *
+     * @param element the element to send.
+     * @throws SmackException.NotConnectedException if the WebSocket is closed.
+     */
+    private void send(Element element)
+        throws SmackException.NotConnectedException
+    {
+        WebSocket webSocket = this.webSocket;
+        if (webSocket == null || done)
+            throw new SmackException.NotConnectedException();
+
+        try
+        {
+            webSocket.sendText(element.toXML());
+        }
+        catch (IOException e)
+        {
+            notifyConnectionError(e);
+            throw new SmackException.NotConnectedException();
+        }
+    }
+
+    /**
+     * Send a ping frame on <tt>webSocket</tt> if nothing was sent on it for
+     * the ping interval.
+     *
+     * @param webSocket the WebSocket of this connection.
+     */
+    private void ping(WebSocket webSocket)
+    {
+        long idleNanos = System.nanoTime() - webSocket.getLastSentNanos();
+        if (done
+                || idleNanos < TimeUnit.SECONDS.toNanos(
+                        config.getPingInterval()))
+        {
+            return;
+        }
+
+        try
+        {
+            webSocket.sendPing();
+        }
+        catch (IOException e)
+        {
+            notifyConnectionError(e);
+        }
+    }
+
+    /**
+     * Open (or re-open, after the SASL authentication) the XMPP stream.
+     *
+     * @throws SmackException.NotConnectedException if the WebSocket is closed.
+     */
+    private void openStream()
+        throws SmackException.NotConnectedException
+    {
+        final String open
+            = "<open xmlns='" + FRAMING_NAMESPACE + "' to='"
+                + getXMPPServiceDomain() + "' version='1.0'/>";
+
+        send(new Nonza()
+        {
+            @Override
+            public String getNamespace()
+            {
+                return FRAMING_NAMESPACE;
+            }
+
+            @Override
+            public String getElementName()
+            {
+                return "open";
+            }
+
+            @Override
+            public CharSequence toXML()
+            {
+                return open;
+            }
+        });
+    }
+
+    /**
+     * Read and process the messages of <tt>webSocket</tt> until it is
+     * closed.
+     *
+     * @param webSocket the WebSocket of this connection.
+     */
+    private void readMessages(WebSocket webSocket)
+    {
+        try
+        {
+            String message;
+            while ((message = webSocket.readText()) != null)
+            {
+                if (!processMessage(message))
+                    break;
+            }
+            if (!done)
+                throw new EOFException("Stream closed by the server");
+        }
+        catch (Exception e)
+        {
+            if (!done)
+                notifyConnectionError(e);
+        }
+    }
+
+    /**
+     * Process one message received on the WebSocket.
+     *
+     * @param message the message.
+     * @return <tt>false</tt> if the message closed the stream.
+     * @throws Exception if the message could not be processed, or is a
+     * stream error.
+     */
+    private boolean processMessage(String message)
+        throws Exception
+    {
+        XmlPullParser parser
+            = PacketParserUtils.newXmppParser(new StringReader(message));
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.START_TAG)
+        {
+            if (eventType == XmlPullParser.END_DOCUMENT)
+                return true;
+            eventType = parser.next();
+        }
+
+        switch (parser.getName())
+        {
+        case "open":
+            streamId = parser.getAttributeValue("", "id");
+            break;
+        case "close":
+            return false;
+        case "features":
+            parseFeatures(parser);
+            break;
+        case Message.ELEMENT:
+        case IQ.IQ_ELEMENT:
+        case Presence.ELEMENT:
+            parseAndProcessStanza(parser);
+            break;
+        case "challenge":
+            saslAuthentication.challengeReceived(parser.nextText());
+            break;
+        case "success":
+            SaslStreamElements.Success success
+                = new SaslStreamElements.Success(parser.nextText());
+            // The stream is restarted after a successful authentication.
+            openStream();
+            saslAuthentication.authenticated(success);
+            break;
+        case "failure":
+            saslAuthentication.authenticationFailed(
+                PacketParserUtils.parseSASLFailure(parser));
+            break;
+        case "error":
+            throw new XMPPException.StreamErrorException(
+                PacketParserUtils.parseStreamError(parser));
+        default:
+            logger.warn("Unknown element received on a WebSocket : "
+                + parser.getName());
+        }
+        return true;
+    }
+
+    /**
+     * Close this connection after an error, and notify its listeners.
+     *
+     * @param e the error.
+     */
+    private void notifyConnectionError(Exception e)
+    {
+        if (done)
+            return;
+
+        logger.warn("WebSocket connection closed on error : " + e);
+        done = true;
+        closeWebSocket();
+        authenticated = false;
+        connected = false;
+        callConnectionClosedOnErrorListener(e);
+    }
+
+    @Override
+    protected void shutdown()
+    {
+        WebSocket webSocket = this.webSocket;
+        boolean wasDone = done;
+
+        // Set before closing the stream, so that the reply of the server is
+        // not taken for an error.
+        done = true;
+        if (webSocket != null && !wasDone)
+        {
+            try
+            {
+                webSocket.sendText(CLOSE);
+            }
+            catch (IOException e)
+            {
+                // The WebSocket is closed below anyway.
+            }
+        }
+        closeWebSocket();
+        authenticated = false;
+        connected = false;
+    }
+
+    /**
+     * Close the WebSocket of this connection.
+     */
+    private void closeWebSocket()
+    {
+        ScheduledFuture<?> pingTask = this.pingTask;
+        this.pingTask = null;
+        if (pingTask != null)
+            pingTask.cancel(false);
+
+        WebSocket webSocket = this.webSocket;
+        this.webSocket = null;
+        if (webSocket != null)
+            webSocket.close();
+    }
+}
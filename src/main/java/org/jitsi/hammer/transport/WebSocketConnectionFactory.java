@@ -0,0 +1,106 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.transport;
+
+import org.jitsi.hammer.utils.*;
+import org.jivesoftware.smack.*;
+import org.jxmpp.stringprep.*;
+
+import java.net.*;
+import java.util.concurrent.*;
+
+/**
+ * The <tt>WebSocketConnectionFactory</tt> creates one
+ * <tt>WebSocketConnection</tt> (logged in anonymously) per fake user. The
+ * pings of all the connections are sent from a single thread.
+ */
+public class WebSocketConnectionFactory
+    implements FakeUserConnectionFactory
+{
+    /**
+     * The <tt>ws://</tt> or <tt>wss://</tt> URI of the XMPP server.
+     */
+    private final URI uri;
+
+    /**
+     * The XMPP server info to which the connections are made.
+     */
+    private final HostInfo serverInfo;
+
+    /**
+     * The stats of the connections created by this factory.
+     */
+    private final TransportStats stats
+        = new TransportStats(Transport.WEBSOCKET);
+
+    /**
+     * The factory of the sockets of the connections, counting their bytes.
+     */
+    private final CountingSocketFactory socketFactory
+        = new CountingSocketFactory(stats);
+
+    /**
+     * The scheduler of the pings of the connections.
+     */
+    private final ScheduledExecutorService pingScheduler
+        = Executors.newSingleThreadScheduledExecutor(
+                HammerExecutors.newThreadFactory("WebSocketPinger-"));
+
+    /**
+     * Initializes a <tt>WebSocketConnectionFactory</tt>.
+     *
+     * @param serverInfo the XMPP server info to which the connections are
+     * made.
+     * @throws URISyntaxException if the WebSocket URI of
+     * <tt>serverInfo</tt> is invalid.
+     */
+    public WebSocketConnectionFactory(HostInfo serverInfo)
+        throws URISyntaxException
+    {
+        this.serverInfo = serverInfo;
+        this.uri = new URI(serverInfo.getWebSocketURI());
+    }
+
+    @Override
+    public AbstractXMPPConnection createConnection(
+            String nickname,
+            boolean smackDebug)
+        throws XmppStringprepException
+    {
+        WebSocketConfiguration config = WebSocketConfiguration.builder()
+                .setURI(uri)
+                .setXmppDomain(serverInfo.getXMPPDomain())
+                .setSocketFactory(socketFactory)
+                .setPings(pingScheduler, PING_INTERVAL)
+                .setDebuggerEnabled(smackDebug)
+                .performSaslAnonymousAuthentication()
+                .build();
+
+        return new WebSocketConnection(config);
+    }
+
+    @Override
+    public TransportStats getStats()
+    {
+        return stats;
+    }
+
+    @Override
+    public void close()
+    {
+        pingScheduler.shutdownNow();
+    }
+}
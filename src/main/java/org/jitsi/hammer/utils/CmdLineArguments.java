@@ -20,6 +20,9 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 
+import org.jitsi.hammer.stats.*;
+import org.jitsi.hammer.transport.*;
+import org.jxmpp.stringprep.*;
 import org.kohsuke.args4j.*;
 
 /**
@@ -128,6 +131,38 @@ public class CmdLineArguments
         + " that will be read for the audio stream")
     private String audioRtpdumpFile = null;
 
+    /**
+     * If this boolean is true, the users send pre-encoded frames instead of
+     * encoding their media.
+     */
+    @Option(name="-preEncoded",usage="Send pre-encoded frames : Opus"
+        + " silence, and the VP8 frames of the -ivf file (default: "
+        + MediaDeviceChooser.DEFAULT_IVF_FILE + ") in a loop, instead of"
+        + " encoding the media of each user")
+    private boolean preEncoded = false;
+
+    /**
+     * If this boolean is true, the media sent without <tt>MediaDevice</tt>
+     * (rtpdump packets or pre-encoded frames) is produced once for all the
+     * users.
+     */
+    @Option(name="-fanOut",usage="Send the rtpdump packets or the"
+        + " pre-encoded frames of all the users from one sender per media"
+        + " type : each packet is produced once, and only its RTP header is"
+        + " rewritten for each user")
+    private boolean fanOut = false;
+
+    /**
+     * The IVF files of the simulcast layers of the video, lowest first,
+     * separated by commas.
+     */
+    @Option(name="-simulcast",usage="Send the video in simulcast, from 2"
+        + " or 3 IVF files of the same video at increasing bitrates (lowest"
+        + " first), separated by commas : each layer is sent with its own"
+        + " SSRC, advertised in a SIM group and in a FID group with an RTX"
+        + " SSRC")
+    private String simulcastFiles = null;
+
     /**
      * If this boolean is true, the logging of overall stats is activated
      */
@@ -156,6 +191,63 @@ public class CmdLineArguments
         + " polling of stats")
     private int statsPolling = 5;
 
+    /**
+     * The format in which all the stats are written.
+     */
+    @Option(name="-statsFormat", usage="The format in which all the stats"
+        + " are written : json or binary (default: json)")
+    private String statsFormat = "json";
+
+    /**
+     * The fraction of the users whose stats are polled at each polling.
+     */
+    @Option(name="-statsSampleFraction", usage="The fraction of the users"
+        + " whose stats are polled at each polling, rotated from one polling"
+        + " to the next (default: 1, all the users)")
+    private double statsSampleFraction = 1;
+
+    /**
+     * The number of users whose stats are polled at each polling (0 to use
+     * the fraction instead).
+     */
+    @Option(name="-statsSampleSize", usage="The number of users whose stats"
+        + " are polled at each polling, rotated from one polling to the next"
+        + " (default: 0, use -statsSampleFraction)")
+    private int statsSampleSize = 0;
+
+    /**
+     * The service level objectives of the run, separated by commas.
+     */
+    @Option(name="-slo", usage="The service level objectives of the run,"
+        + " checked at each polling of the stats and written in"
+        + " verdict.json, e.g. \"video.RttMs.p95<300,"
+        + "setup.ice_completed.success>99\" (default: none)")
+    private String slo = null;
+
+    /**
+     * The number of consecutive pollings an objective has to be breached for
+     * the run to be aborted.
+     */
+    @Option(name="-sloBreachPollings", usage="The number of consecutive"
+        + " pollings a service level objective has to be breached for the"
+        + " run to be aborted (default: 3)")
+    private int sloBreachPollings = SloEvaluator.DEFAULT_BREACH_POLLINGS;
+
+    /**
+     * The port of the HTTP server exposing the metrics (0 to disable it).
+     */
+    @Option(name="-metricsPort", usage="The port of the HTTP server exposing"
+        + " the metrics in the Prometheus format on /metrics"
+        + " (default: 0, disabled)")
+    private int metricsPort = 0;
+
+    /**
+     * If this boolean is true, the metrics include the stats of each user.
+     */
+    @Option(name="-metricsPerUser", usage="Include the stats of each user"
+        + " in the metrics")
+    private boolean metricsPerUser = false;
+
     /**
      * The path of the file containing users credentials
      */
@@ -170,6 +262,143 @@ public class CmdLineArguments
         + "the start of new users.")
     private int interval = 2000;
 
+    /**
+     * The number of users to start per second. If it is not set, it is
+     * derived from the interval.
+     */
+    @Option(name="-rate", usage="The number of new users started per second"
+        + " (default: derived from -interval)")
+    private double rate = 0;
+
+    /**
+     * The profile of the ramp-up of the users.
+     */
+    @Option(name="-rampProfile", usage="The profile of the ramp-up of the"
+        + " users : constant, burst, linear, step or exponential"
+        + " (default: constant)")
+    private String rampProfile = "constant";
+
+    /**
+     * The duration (in seconds) of the ramp for the linear and exponential
+     * profiles, or of one step for the step profile.
+     */
+    @Option(name="-rampTime", usage="The duration in seconds of the ramp"
+        + " (linear and exponential profiles) or of one step (step profile)")
+    private double rampTime = 0;
+
+    /**
+     * The maximum number of users being started at the same time.
+     */
+    @Option(name="-maxInFlight", usage="The maximum number of users being"
+        + " started at the same time (default: 1)")
+    private int maxInFlight = 1;
+
+    /**
+     * The number of threads accepting the Jingle sessions of the users.
+     */
+    @Option(name="-acceptThreads", usage="The number of threads accepting"
+        + " the Jingle sessions of the users (default: one per processor)")
+    private int acceptThreads = 0;
+
+    /**
+     * The timeout (in milliseconds) of the ICE connectivity establishment.
+     */
+    @Option(name="-iceTimeout", usage="The time in milliseconds after which"
+        + " a user gives up on ICE (default: 30000)")
+    private long iceTimeout = SessionAcceptPipeline.DEFAULT_ICE_TIMEOUT_MS;
+
+    /**
+     * The timeout (in milliseconds) of the other stages of the acceptance of
+     * a Jingle session (answer, DTLS/SRTP start, stream start).
+     */
+    @Option(name="-stageTimeout", usage="The time in milliseconds after which"
+        + " a user gives up on a session accept stage other than ICE"
+        + " (default: 10000)")
+    private long stageTimeout = SessionAcceptPipeline.DEFAULT_STAGE_TIMEOUT_MS;
+
+    /**
+     * The number of threads generating the DTLS certificates of the users
+     * before they are created.
+     */
+    @Option(name="-dtlsThreads", usage="The number of threads generating the"
+        + " DTLS key pairs and certificates of the users before they are"
+        + " created (default: one per processor)")
+    private int dtlsThreads = 0;
+
+    /**
+     * Whether the users are started, set up and stopped on virtual threads.
+     */
+    @Option(name="-virtualThreads", usage="Start, set up and stop the users"
+        + " on virtual threads (needs a build with the jdk21 profile)")
+    private boolean virtualThreads = false;
+
+    /**
+     * The minimum duration (in milliseconds) of the pinning of a virtual
+     * thread reported at the end of the run.
+     */
+    @Option(name="-pinningThreshold", usage="The minimum duration in"
+        + " milliseconds of the pinning of a virtual thread reported at the"
+        + " end of the run (default: 20)")
+    private long pinningThreshold = 20;
+
+    /**
+     * The transport used by the users to connect to the XMPP server.
+     */
+    @Option(name="-transport", usage="The transport used by the users to"
+        + " connect to the XMPP server : bosh, websocket, tcp or component"
+        + " (default: bosh)")
+    private String transport = "bosh";
+
+    /**
+     * The path of the XMPP over WebSocket server (websocket transport).
+     */
+    @Option(name="-websocketPath", usage="The path of the XMPP over"
+        + " WebSocket server, on the BOSH host and port"
+        + " (default: /xmpp-websocket)")
+    private String webSocketPath = null;
+
+    /**
+     * The client-to-server port of the XMPP server (tcp transport).
+     */
+    @Option(name="-XMPPport", usage="The client-to-server port of the XMPP"
+        + " server, on the BOSH host (default: 5222)")
+    private int XMPPport = -1;
+
+    /**
+     * The hostname of the XMPP server accepting the component connections.
+     */
+    @Option(name="-componentHost", usage="The hostname of the XMPP server"
+        + " accepting the component connections (default: the BOSH host)")
+    private String componentHost = null;
+
+    /**
+     * The port of the XMPP server accepting the component connections.
+     */
+    @Option(name="-componentPort", usage="The port of the XMPP server"
+        + " accepting the component connections (default: 5347)")
+    private int componentPort = ComponentConnectionFactory.DEFAULT_PORT;
+
+    /**
+     * The domain of the component the users belong to.
+     */
+    @Option(name="-componentDomain", usage="The domain of the component the"
+        + " users belong to (default: 'hammer.' + XMPPdomain)")
+    private String componentDomain = null;
+
+    /**
+     * The secret shared by the component and the XMPP server.
+     */
+    @Option(name="-componentSecret", usage="The secret shared by the"
+        + " component and the XMPP server")
+    private String componentSecret = null;
+
+    /**
+     * The number of component connections shared by the users.
+     */
+    @Option(name="-componentConnections", usage="The number of component"
+        + " connections shared by the users (default: 1)")
+    private int componentConnections = 1;
+
     /**
      * Whether statistics should be disabled.
      */
@@ -286,6 +515,16 @@ public class CmdLineArguments
         {
             hostInfo.setFocusJID(focusJID);
         }
+
+        if (webSocketPath != null)
+        {
+            hostInfo.setWebSocketPath(webSocketPath);
+        }
+
+        if (XMPPport != -1)
+        {
+            hostInfo.setXMPPport(XMPPport);
+        }
         
         return hostInfo;
         
@@ -346,6 +585,38 @@ public class CmdLineArguments
         return audioRtpdumpFile;
     }
 
+    /**
+     * Get whether the users send pre-encoded frames instead of encoding
+     * their media.
+     * @return <tt>true</tt> if the users send pre-encoded frames.
+     */
+    public boolean getPreEncoded()
+    {
+        return preEncoded;
+    }
+
+    /**
+     * Get whether the media sent without <tt>MediaDevice</tt> is produced
+     * once for all the users.
+     * @return <tt>true</tt> if the media sent without <tt>MediaDevice</tt> is
+     * produced once for all the users.
+     */
+    public boolean getFanOut()
+    {
+        return fanOut;
+    }
+
+    /**
+     * Get the IVF files of the simulcast layers of the video.
+     * @return the IVF files of the simulcast layers of the video, lowest
+     * first, or <tt>null</tt> if the video is not sent in simulcast.
+     */
+    public String[] getSimulcastFiles()
+    {
+        return (simulcastFiles == null)
+            ? null : simulcastFiles.trim().split("\\s*,\\s*");
+    }
+
     /**
      * Create an return a <tt>MediaDeviceChooser</tt> based on the options and
      * arguments this <tt>CmdLineArguments</tt> has collected and parsed.
@@ -407,6 +678,36 @@ public class CmdLineArguments
         return statsPolling;
     }
 
+    /**
+     * Get the format in which all the stats are written.
+     * @return the format in which all the stats are written.
+     * @throws IllegalArgumentException if the format is unknown.
+     */
+    public StatsFormat getStatsFormat()
+    {
+        return StatsFormat.parseString(statsFormat);
+    }
+
+    /**
+     * Get the fraction of the users whose stats are polled at each polling.
+     * @return the fraction of the users whose stats are polled at each
+     * polling.
+     */
+    public double getStatsSampleFraction()
+    {
+        return statsSampleFraction;
+    }
+
+    /**
+     * Get the number of users whose stats are polled at each polling.
+     * @return the number of users whose stats are polled at each polling,
+     * or 0 if the fraction is used instead.
+     */
+    public int getStatsSampleSize()
+    {
+        return statsSampleSize;
+    }
+
     /**
      * Gets the number of milliseconds to wait before adding a new user.
      * @return the number of milliseconds to wait before adding a new user.
@@ -416,6 +717,143 @@ public class CmdLineArguments
         return interval;
     }
 
+    /**
+     * Create a <tt>RampUpScheduler</tt> from the CLI options. If no rate was
+     * given, the rate is derived from the interval between two users.
+     *
+     * @return a <tt>RampUpScheduler</tt> created from the CLI options.
+     */
+    public RampUpScheduler getRampUpSchedulerFromArguments()
+    {
+        double usersPerSecond = rate;
+        if (usersPerSecond <= 0)
+            usersPerSecond = 1000D / Math.max(1, interval);
+
+        return new RampUpScheduler(
+            usersPerSecond,
+            RampUpScheduler.Profile.parseString(rampProfile),
+            rampTime,
+            maxInFlight);
+    }
+
+    /**
+     * Create the <tt>MetricsServer</tt> from the CLI options.
+     *
+     * @return a <tt>MetricsServer</tt> created from the CLI options, or
+     * <tt>null</tt> if the metrics are disabled.
+     */
+    public MetricsServer getMetricsServerFromArguments()
+    {
+        return (metricsPort > 0)
+            ? new MetricsServer(metricsPort, metricsPerUser)
+            : null;
+    }
+
+    /**
+     * Create the <tt>SloEvaluator</tt> from the CLI options.
+     *
+     * @return a <tt>SloEvaluator</tt> created from the CLI options, or
+     * <tt>null</tt> if no objective was given.
+     * @throws IllegalArgumentException if an objective is not valid.
+     */
+    public SloEvaluator getSloEvaluatorFromArguments()
+    {
+        return (slo != null)
+            ? new SloEvaluator(slo, sloBreachPollings)
+            : null;
+    }
+
+    /**
+     * Create a <tt>SessionAcceptPipeline</tt> from the CLI options.
+     *
+     * @return a <tt>SessionAcceptPipeline</tt> created from the CLI options.
+     */
+    public SessionAcceptPipeline getSessionAcceptPipelineFromArguments()
+    {
+        return new SessionAcceptPipeline(
+            acceptThreads,
+            stageTimeout,
+            iceTimeout);
+    }
+
+    /**
+     * Create the <tt>DtlsControlPool</tt> of the users, with the number of
+     * threads given in the CLI options.
+     *
+     * @return a <tt>DtlsControlPool</tt> created from the CLI options.
+     */
+    public DtlsControlPool getDtlsControlPoolFromArguments()
+    {
+        return new DtlsControlPool(dtlsThreads);
+    }
+
+    /**
+     * Create the <tt>FakeUserConnectionFactory</tt> of the transport given in
+     * the CLI options.
+     *
+     * @param hostInfo the information about the XMPP server, used for the
+     * default values of the options.
+     * @return a <tt>FakeUserConnectionFactory</tt> created from the CLI
+     * options.
+     * @throws XmppStringprepException if the component domain is not a valid
+     * XMPP domain.
+     * @throws URISyntaxException if the WebSocket URI is invalid.
+     * @throws IllegalArgumentException if the transport is unknown, or if the
+     * component transport is used without a secret.
+     */
+    public FakeUserConnectionFactory getConnectionFactoryFromArguments(
+            HostInfo hostInfo)
+        throws XmppStringprepException,
+               URISyntaxException
+    {
+        switch (Transport.parseString(transport))
+        {
+        case WEBSOCKET:
+            return new WebSocketConnectionFactory(hostInfo);
+        case TCP:
+            return new TCPConnectionFactory(hostInfo);
+        case COMPONENT:
+            if (componentSecret == null)
+            {
+                throw new IllegalArgumentException(
+                    "-componentSecret is needed by the component transport");
+            }
+            return new ComponentConnectionFactory(
+                (componentHost != null)
+                    ? componentHost : hostInfo.getBOSHhostname(),
+                componentPort,
+                (componentDomain != null)
+                    ? componentDomain : "hammer." + hostInfo.getXMPPDomain(),
+                componentSecret,
+                componentConnections);
+        default:
+            // The bytes of the BOSH bodies are only counted if reported.
+            return new BOSHConnectionFactory(
+                hostInfo,
+                !disableStats || metricsPort > 0);
+        }
+    }
+
+    /**
+     * Get the flag which indicates whether the users are started, set up and
+     * stopped on virtual threads.
+     * @return the flag which indicates whether virtual threads are used.
+     */
+    public boolean getVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    /**
+     * Get the minimum duration (in milliseconds) of the pinning of a virtual
+     * thread reported at the end of the run.
+     * @return the minimum duration of a reported pinning.
+     */
+    public long getPinningThreshold()
+    {
+        return pinningThreshold;
+    }
+
     /**
      * Get the flag which indicates whether statistics should be disabled.
      * @return the flag which indicates whether statistics should be disabled.
@@ -0,0 +1,137 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.utils;
+
+import org.jitsi.impl.neomedia.transform.dtls.DtlsControlImpl;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.Logger;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The <tt>DtlsControlPool</tt> creates up front, in parallel, the
+ * <tt>DtlsControl</tt>s of the fake users. Creating a
+ * <tt>DtlsControlImpl</tt> generates a key pair and a self-signed
+ * certificate, which is the most expensive part of the creation of a
+ * <tt>FakeUser</tt> : with the pool, it is spread on all the processors
+ * before the users are created rather than done one user at a time.
+ *
+ * Each <tt>DtlsControl</tt> is given to one user only, so that the DTLS
+ * handshakes with the bridge are the same as without the pool.
+ */
+public class DtlsControlPool
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>DtlsControlPool</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(DtlsControlPool.class);
+
+    /**
+     * The number of threads creating the <tt>DtlsControl</tt>s.
+     */
+    private final int threads;
+
+    /**
+     * The <tt>DtlsControl</tt>s created and not taken yet.
+     */
+    private final Queue<DtlsControl> pool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Initializes a <tt>DtlsControlPool</tt> with one thread per available
+     * processor.
+     */
+    public DtlsControlPool()
+    {
+        this(0);
+    }
+
+    /**
+     * Initializes a <tt>DtlsControlPool</tt>.
+     *
+     * @param threads the number of threads creating the <tt>DtlsControl</tt>s
+     * (one per available processor if zero or negative).
+     */
+    public DtlsControlPool(int threads)
+    {
+        this.threads = (threads <= 0)
+            ? Runtime.getRuntime().availableProcessors()
+            : threads;
+    }
+
+    /**
+     * Create <tt>count</tt> <tt>DtlsControl</tt>s in parallel, and add them
+     * to this pool. Returns when they are all created.
+     *
+     * @param count the number of <tt>DtlsControl</tt>s to create.
+     */
+    public void fill(int count)
+    {
+        if (count <= 0)
+            return;
+
+        long start = System.nanoTime();
+        ExecutorService executor
+            = Executors.newFixedThreadPool(
+                    Math.min(threads, count),
+                    HammerExecutors.newThreadFactory("DtlsControlPool-"));
+        try
+        {
+            Callable<DtlsControl> create = DtlsControlImpl::new;
+            List<Future<DtlsControl>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                futures.add(executor.submit(create));
+
+            for (Future<DtlsControl> future : futures)
+                pool.add(future.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while creating the DTLS controls,"
+                + " the missing ones will be created by the users");
+        }
+        catch (ExecutionException e)
+        {
+            logger.fatal("Could not create the DTLS controls", e.getCause());
+            System.exit(1);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        logger.info(String.format("DTLS control pool : %d key pairs and"
+                + " certificates generated in %dms with %d threads",
+                pool.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                Math.min(threads, count)));
+    }
+
+    /**
+     * Take a <tt>DtlsControl</tt> from this pool, or create one if the pool
+     * is empty.
+     *
+     * @return a <tt>DtlsControl</tt> used by no other user.
+     */
+    public DtlsControl take()
+    {
+        DtlsControl dtlsControl = pool.poll();
+        return (dtlsControl != null) ? dtlsControl : new DtlsControlImpl();
+    }
+}
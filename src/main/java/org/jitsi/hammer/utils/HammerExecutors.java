@@ -0,0 +1,214 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.utils;
+
+import org.jitsi.util.Logger;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * <tt>HammerExecutors</tt> creates the threads used by the Hammer to start,
+ * set up and stop the fake users. They are daemon platform threads, or
+ * virtual threads once <tt>enableVirtualThreads</tt> succeeded.
+ */
+public class HammerExecutors
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>HammerExecutors</tt> class for
+     * logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HammerExecutors.class);
+
+    /**
+     * The name of the implementation of <tt>VirtualThreadSupport</tt>, only
+     * present when built with the <tt>jdk21</tt> maven profile.
+     */
+    private static final String VIRTUAL_THREAD_SUPPORT_CLASS
+        = "org.jitsi.hammer.utils.VirtualThreadSupportImpl";
+
+    /**
+     * The first Java version whose virtual threads do not pin their carrier
+     * thread while they wait on a monitor (JEP 491).
+     */
+    private static final int UNPINNED_MONITORS_JAVA_VERSION = 24;
+
+    /**
+     * The <tt>VirtualThreadSupport</tt> used to create the threads, or
+     * <tt>null</tt> if the virtual threads are not enabled.
+     */
+    private static volatile VirtualThreadSupport virtualThreadSupport;
+
+    /**
+     * Enable the creation of virtual threads, and start recording where they
+     * get pinned to their carrier thread. If the virtual threads are not
+     * available (not built with the <tt>jdk21</tt> profile, or running on an
+     * older JVM), platform threads keep being used.
+     *
+     * @param pinningThresholdMs the minimum duration (in milliseconds) of the
+     * pinning recorded for the report.
+     * @return <tt>true</tt> if the virtual threads are enabled.
+     */
+    public static synchronized boolean enableVirtualThreads(
+            long pinningThresholdMs)
+    {
+        if (virtualThreadSupport != null)
+            return true;
+
+        try
+        {
+            VirtualThreadSupport support
+                = (VirtualThreadSupport) Class
+                    .forName(VIRTUAL_THREAD_SUPPORT_CLASS)
+                    .getDeclaredConstructor()
+                    .newInstance();
+
+            // Fails right away if the JVM has no virtual threads.
+            support.newThreadFactory("VirtualThreadCheck-");
+            support.startPinningMonitor(pinningThresholdMs);
+            virtualThreadSupport = support;
+            logger.info("Virtual threads enabled (pinning threshold : "
+                + pinningThresholdMs + "ms)");
+            return true;
+        }
+        catch (ReflectiveOperationException
+                | LinkageError
+                | UnsupportedOperationException e)
+        {
+            logger.warn("Virtual threads are not available (they need a"
+                + " build with the jdk21 profile running on Java 21 or"
+                + " newer), using platform threads : " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Get whether the virtual threads are enabled.
+     *
+     * @return <tt>true</tt> if the virtual threads are enabled.
+     */
+    public static boolean isVirtualThreadsEnabled()
+    {
+        return virtualThreadSupport != null;
+    }
+
+    /**
+     * Create a <tt>ThreadFactory</tt> creating virtual threads if they are
+     * enabled, or daemon platform threads otherwise.
+     *
+     * @param prefix the prefix of the names of the threads.
+     * @return a <tt>ThreadFactory</tt>.
+     */
+    public static ThreadFactory newThreadFactory(String prefix)
+    {
+        VirtualThreadSupport support = virtualThreadSupport;
+
+        return (support != null)
+            ? support.newThreadFactory(prefix)
+            : new DaemonThreadFactory(prefix);
+    }
+
+    /**
+     * Create a <tt>ThreadFactory</tt> for the threads blocking in the sockets
+     * of ice4j, which wait on a monitor for their packets : it creates
+     * virtual threads if they are enabled and they are not pinned while
+     * waiting on a monitor (Java 24 or newer), or daemon platform threads
+     * otherwise.
+     *
+     * @param prefix the prefix of the names of the threads.
+     * @return a <tt>ThreadFactory</tt>.
+     */
+    public static ThreadFactory newBlockingThreadFactory(String prefix)
+    {
+        VirtualThreadSupport support = virtualThreadSupport;
+
+        return (support != null
+                && getJavaVersion() >= UNPINNED_MONITORS_JAVA_VERSION)
+            ? support.newThreadFactory(prefix)
+            : new DaemonThreadFactory(prefix);
+    }
+
+    /**
+     * Get the feature version of the running JVM (e.g. 8 for "1.8", 21 for
+     * "21").
+     *
+     * @return the feature version of the running JVM, or 0 if it cannot be
+     * parsed.
+     */
+    private static int getJavaVersion()
+    {
+        String version = System.getProperty("java.specification.version", "");
+        if (version.startsWith("1."))
+            version = version.substring(2);
+        try
+        {
+            return Integer.parseInt(version);
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Stop recording the pinning of the virtual threads and log the report
+     * of where they were pinned. Does nothing if the virtual threads are not
+     * enabled.
+     */
+    public static void logPinningReport()
+    {
+        VirtualThreadSupport support = virtualThreadSupport;
+
+        if (support != null)
+            logger.info(support.stopPinningMonitor());
+    }
+
+    /**
+     * The <tt>ThreadFactory</tt> creating daemon platform threads.
+     */
+    private static class DaemonThreadFactory
+        implements ThreadFactory
+    {
+        /**
+         * The prefix of the names of the threads.
+         */
+        private final String prefix;
+
+        /**
+         * The number of threads created so far, used to name them.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * Initializes a <tt>DaemonThreadFactory</tt>.
+         *
+         * @param prefix the prefix of the names of the threads.
+         */
+        DaemonThreadFactory(String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
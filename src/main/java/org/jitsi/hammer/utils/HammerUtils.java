@@ -22,6 +22,7 @@ import net.java.sip.communicator.service.protocol.media.*;
 
 import org.ice4j.socket.*;
 import org.jitsi.hammer.extension.*;
+import org.jitsi.hammer.stats.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.device.*;
@@ -416,11 +417,13 @@ public class HammerUtils
      * @param mediaStreamMap the <tt>Map</tt> of <tt>MediaStream</tt> to which
      * will be added the <tt>DatagramSocket</tt> of their corresponding
      * <tt>IceMediaStream</tt> contained in the <tt>Agent</tt>.
+     * @param receiveSink the <tt>ReceiveSink</tt> started on the RTP packets
+     * of the socket, or <tt>null</tt> to drop them.
      */
     public static void addSocketToMediaStream(
         Agent agent,
         Map<String,MediaStream> mediaStreamMap,
-        boolean dropIncomingRtpPackets)
+        ReceiveSink receiveSink)
     {
         IceMediaStream iceMediaStream = agent.getStream(IceMediaStreamGenerator.STREAM_NAME);
         CandidatePair pair = null;
@@ -470,6 +473,23 @@ public class HammerUtils
                     pair.getRemoteCandidate().getTransportAddress()
             ));
         }
+
+        // The RTP packets are accounted by the ReceiveSink, instead of
+        // going through the receive chain of libjitsi.
+        if (receiveSink != null
+            && datagramSocket instanceof MultiplexingDatagramSocket)
+        {
+            try
+            {
+                receiveSink.start(
+                    ((MultiplexingDatagramSocket) datagramSocket)
+                        .getSocket(ReceiveSink.RTP_FILTER));
+            }
+            catch (SocketException e)
+            {
+                logger.warn("Cannot receive the RTP packets : " + e);
+            }
+        }
     }
 
 
@@ -607,6 +627,35 @@ public class HammerUtils
     public static void addSSRCToContent(
         Map<String, NewContentPacketExtension> contentMap,
         Map<String, MediaStream> mediaStreamMap)
+    {
+        addSSRCToContent(
+            contentMap,
+            mediaStreamMap,
+            Collections.<String, long[]>emptyMap());
+    }
+
+    /**
+     * Set the ssrc attribute of each <tt>MediaStream</tt> to their
+     * corresponding <tt>NewRtpDescriptionPacketExtension</tt>, and also add a
+     * 'source' element to it, describing the msid,mslabel,label and cname of
+     * the stream.
+     *
+     * The streams sent in simulcast get a 'source' element per SSRC of their
+     * layers and of their RTX streams, all with the same msid, and the
+     * 'ssrc-group' elements of their SIM group (the layers, from the lowest)
+     * and of their FID groups (each layer and its RTX stream).
+     *
+     * @param contentMap the Map of <tt>NewContentPacketExtension</tt> to which
+     * will be set the ssrc and addec the "source" element.
+     * @param mediaStreamMap the Map of <tt>MediaStream</tt> from which will be
+     * gotten the ssrc and other informations.
+     * @param simulcastSsrcMap the Map of the SSRCs (created by
+     * <tt>createSimulcastSsrcs</tt>) of the streams sent in simulcast.
+     */
+    public static void addSSRCToContent(
+        Map<String, NewContentPacketExtension> contentMap,
+        Map<String, MediaStream> mediaStreamMap,
+        Map<String, long[]> simulcastSsrcMap)
     {
         for(String mediaName : contentMap.keySet())
         {
@@ -622,8 +671,98 @@ public class HammerUtils
                 NewRtpDescriptionPacketExtension.class);
 
             description.setSsrc(String.valueOf(ssrc));
-            addSourceExtension(description, ssrc);
+
+            long[] simulcastSsrcs = simulcastSsrcMap.get(mediaName);
+            if(simulcastSsrcs == null)
+            {
+                addSourceExtension(description, ssrc);
+            }
+            else
+            {
+                addSimulcastSourceExtensions(description, simulcastSsrcs);
+            }
+        }
+    }
+
+    /**
+     * Create the SSRCs of a stream sent in simulcast : the SSRCs of its
+     * layers, from the lowest, and then the SSRCs of their RTX streams, in
+     * the same order. The lowest layer has the SSRC of the stream.
+     *
+     * @param ssrc the SSRC of the stream.
+     * @param layers the number of layers.
+     * @return the SSRCs of the layers and of their RTX streams.
+     */
+    public static long[] createSimulcastSsrcs(long ssrc, int layers)
+    {
+        long[] ssrcs = new long[2 * layers];
+        Set<Long> used = new HashSet<>();
+        Random random = new Random();
+
+        ssrcs[0] = ssrc;
+        used.add(ssrc);
+        for(int i = 1; i < ssrcs.length; i++)
+        {
+            long candidate;
+            do
+            {
+                candidate = random.nextInt() & 0xffffffffL;
+            }
+            while((candidate == 0) || !used.add(candidate));
+            ssrcs[i] = candidate;
         }
+        return ssrcs;
+    }
+
+    /**
+     * Adds the <tt>SourcePacketExtension</tt>s of a stream sent in
+     * simulcast, and the 'ssrc-group' elements of its SIM and FID groups, as
+     * child elements of <tt>description</tt>.
+     *
+     * @param description the <tt>NewRtpDescriptionPacketExtension</tt> to which
+     * the child elements will be added.
+     * @param ssrcs the SSRCs of the layers and of their RTX streams, as
+     * created by <tt>createSimulcastSsrcs</tt>.
+     */
+    public static void addSimulcastSourceExtensions(
+        NewRtpDescriptionPacketExtension description,
+        long[] ssrcs)
+    {
+        String msLabel = UUID.randomUUID().toString();
+        String label = UUID.randomUUID().toString();
+        int layers = ssrcs.length / 2;
+
+        for(long ssrc : ssrcs)
+            addSourceExtension(description, ssrc, msLabel, label);
+
+        NewSourceGroupPacketExtension simGroup
+            = NewSourceGroupPacketExtension.createSimulcastGroup();
+        for(int i = 0; i < layers; i++)
+            simGroup.addChildExtension(createGroupSource(ssrcs[i]));
+        description.addChildExtension(simGroup);
+
+        for(int i = 0; i < layers; i++)
+        {
+            NewSourceGroupPacketExtension fidGroup
+                = new NewSourceGroupPacketExtension();
+            fidGroup.setSemantics(NewSourceGroupPacketExtension.SEMANTICS_FID);
+            fidGroup.addChildExtension(createGroupSource(ssrcs[i]));
+            fidGroup.addChildExtension(createGroupSource(ssrcs[layers + i]));
+            description.addChildExtension(fidGroup);
+        }
+    }
+
+    /**
+     * Create the 'source' element of a SSRC in a 'ssrc-group' element.
+     *
+     * @param ssrc the SSRC.
+     * @return the 'source' element of <tt>ssrc</tt>.
+     */
+    private static NewSourcePacketExtension createGroupSource(long ssrc)
+    {
+        NewSourcePacketExtension source = new NewSourcePacketExtension();
+        source.setSSRC(ssrc);
+        return source;
     }
 
     /**
@@ -637,10 +776,31 @@ public class HammerUtils
     public static void addSourceExtension(
         NewRtpDescriptionPacketExtension description,
         long ssrc)
+    {
+        addSourceExtension(
+            description,
+            ssrc,
+            UUID.randomUUID().toString(),
+            UUID.randomUUID().toString());
+    }
+
+    /**
+     * Adds a <tt>SourcePacketExtension</tt> as a child element of
+     * <tt>description</tt>. See XEP-0339.
+     *
+     * @param description the <tt>NewRtpDescriptionPacketExtension</tt> to which
+     * a child element will be added.
+     * @param ssrc the SSRC for the <tt>SourcePacketExtension</tt> to use.
+     * @param msLabel the mslabel of the source.
+     * @param label the label of the source.
+     */
+    public static void addSourceExtension(
+        NewRtpDescriptionPacketExtension description,
+        long ssrc,
+        String msLabel,
+        String label)
     {
         MediaService mediaService = LibJitsi.getMediaService();
-        String msLabel = UUID.randomUUID().toString();
-        String label = UUID.randomUUID().toString();
 
         NewSourcePacketExtension sourcePacketExtension =
             new NewSourcePacketExtension();
@@ -64,6 +64,17 @@ public class HostInfo
      */
     private String focusJID;
 
+    /**
+     * The path where the XMPP over WebSocket server is listening, on the
+     * host and port of the BOSH server.
+     */
+    private String webSocketPath = "/xmpp-websocket";
+
+    /**
+     * The client-to-server TCP port of the XMPP server.
+     */
+    private int XMPPport = 5222;
+
 
     /**
      * Instantiates a new <tt>HostInfo</tt> instance with default attribut. 
@@ -169,6 +180,36 @@ public class HostInfo
         return this.useHTTPS;
     }
 
+    /**
+     * Get the path where the XMPP over WebSocket server is listening
+     * @return the path where the XMPP over WebSocket server is listening
+     */
+    public String getWebSocketPath()
+    {
+        return this.webSocketPath;
+    }
+
+    /**
+     * Get the URI of the XMPP over WebSocket server : <tt>wss://</tt> if
+     * HTTPS is used for BOSH, <tt>ws://</tt> otherwise, on the host and port
+     * of the BOSH server.
+     * @return the URI of the XMPP over WebSocket server
+     */
+    public String getWebSocketURI()
+    {
+        return (this.useHTTPS ? "wss://" : "ws://")
+            + getBOSHhostname() + ":" + this.port + this.webSocketPath;
+    }
+
+    /**
+     * Get the client-to-server TCP port of the XMPP server.
+     * @return the client-to-server TCP port of the XMPP server.
+     */
+    public int getXMPPport()
+    {
+        return this.XMPPport;
+    }
+
     /**
      * Get JID of the focus component.
      */
@@ -250,6 +291,27 @@ public class HostInfo
         this.MUCdomain = MUCdomain;
     }
 
+    /**
+     * Set the path where the XMPP over WebSocket server is listening
+     *
+     * @param webSocketPath the path where the XMPP over WebSocket server is
+     * listening
+     */
+    public void setWebSocketPath(String webSocketPath)
+    {
+        this.webSocketPath = webSocketPath;
+    }
+
+    /**
+     * Set the client-to-server TCP port of the XMPP server
+     *
+     * @param XMPPport the client-to-server TCP port of the XMPP server
+     */
+    public void setXMPPport(int XMPPport)
+    {
+        this.XMPPport = XMPPport;
+    }
+
     /**
      * Set the BOSH host to connect
      *
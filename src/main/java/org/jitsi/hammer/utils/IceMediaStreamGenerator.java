@@ -20,6 +20,7 @@ import org.ice4j.ice.*;
 import org.ice4j.*;
 import org.ice4j.ice.harvest.*;
 import java.util.*;
+import java.util.concurrent.locks.*;
 import java.io.*;
 
 
@@ -59,6 +60,14 @@ public class IceMediaStreamGenerator
      */
     private int currentComponentPort = MIN_COMPONENT_PORT;
 
+    /**
+     * The <tt>Lock</tt> protecting <tt>currentComponentPort</tt> while the
+     * <tt>Component</tt>s are created (and their sockets bound). A
+     * <tt>Lock</tt> rather than a monitor, so that virtual threads waiting
+     * for it are not pinned.
+     */
+    private final Lock componentLock = new ReentrantLock();
+
 
     /**
      * Initializes a new <tt>IceMediaStream</tt> instance with
@@ -141,7 +150,8 @@ public class IceMediaStreamGenerator
         }
         // Instead of creating one component and stream per mline, create one
         //  for everything
-        synchronized (this)
+        componentLock.lock();
+        try
         {
             stream = agent.createMediaStream(IceMediaStreamGenerator.STREAM_NAME);
             if( (currentComponentPort + 1) >= MAX_COMPONENT_PORT )
@@ -155,6 +165,10 @@ public class IceMediaStreamGenerator
                     currentComponentPort,
                     currentComponentPort + 50);
         }
+        finally
+        {
+            componentLock.unlock();
+        }
     }
 
 }
@@ -0,0 +1,459 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.utils;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import org.jitsi.util.Logger;
+
+/**
+ * A media clock shared by the media sources of all the fake users : instead
+ * of one thread per stream waking up at each frame, a few clock threads (one
+ * per processor by default) run the periodic tasks of all the streams.
+ *
+ * Each clock thread drives a hashed timer wheel ticking every millisecond :
+ * a task is kept in the slot of the tick of its next run, so a tick only
+ * visits the tasks due around it, and the clock thread sleeps until the next
+ * tick whose slot has a task. The first runs of the tasks with the same
+ * period are spread over the ticks of the period (and the tasks over the
+ * clock threads), so that the packets of the streams are not all sent in a
+ * burst at the start of each frame. The runs are scheduled from absolute
+ * ticks of <tt>System.nanoTime()</tt>, so they do not drift, and the runs
+ * missed by a late clock thread are caught up one tick after the other.
+ *
+ * The tasks run on the clock threads, so they have to be short (e.g. push a
+ * frame to a <tt>BufferTransferHandler</tt>).
+ */
+public class MediaClock
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>MediaClock</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(MediaClock.class);
+
+    /**
+     * The duration (in nanoseconds) of a tick of the wheels.
+     */
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * The number of slots of the wheels : the tasks with a longer period
+     * stay in their slot for several turns of the wheel. It is the number of
+     * bits of a <tt>long</tt>, so that a wheel keeps the slots with a task in
+     * one.
+     */
+    private static final int WHEEL_SIZE = Long.SIZE;
+
+    /**
+     * The <tt>MediaClock</tt> shared by the media sources, or <tt>null</tt>
+     * if it was not created yet.
+     */
+    private static MediaClock shared;
+
+    /**
+     * The wheels of this clock, one per clock thread.
+     */
+    private final Wheel[] wheels;
+
+    /**
+     * The number of tasks scheduled, used to spread them over the wheels.
+     */
+    private final AtomicInteger scheduled = new AtomicInteger();
+
+    /**
+     * Get the <tt>MediaClock</tt> shared by the media sources of the fake
+     * users, with one clock thread per processor. It is created by the first
+     * call.
+     *
+     * @return the shared <tt>MediaClock</tt>.
+     */
+    public static synchronized MediaClock getShared()
+    {
+        if (shared == null)
+        {
+            shared = new MediaClock(
+                "MediaClock-", Runtime.getRuntime().availableProcessors());
+        }
+        return shared;
+    }
+
+    /**
+     * Initializes a <tt>MediaClock</tt> and starts its clock threads. They
+     * are daemon threads, parked as long as no task is scheduled on them.
+     *
+     * @param prefix the prefix of the names of the clock threads.
+     * @param threads the number of clock threads.
+     */
+    public MediaClock(String prefix, int threads)
+    {
+        wheels = new Wheel[Math.max(1, threads)];
+        for (int i = 0; i < wheels.length; i++)
+        {
+            wheels[i] = new Wheel();
+            Thread thread = new Thread(wheels[i], prefix + i);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            wheels[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Get the number of clock threads of this clock.
+     *
+     * @return the number of clock threads of this clock.
+     */
+    public int getThreadCount()
+    {
+        return wheels.length;
+    }
+
+    /**
+     * Schedule a task to be run periodically by this clock, from within one
+     * period.
+     *
+     * @param task the task.
+     * @param period the period of the task.
+     * @param unit the unit of <tt>period</tt>.
+     * @return the <tt>Timer</tt> of the task, to cancel it.
+     */
+    public Timer schedule(Runnable task, long period, TimeUnit unit)
+    {
+        long periodNanos = Math.max(TICK_NANOS, unit.toNanos(period));
+        int index = scheduled.getAndIncrement();
+
+        // The tasks of a wheel are spread over the ticks of their period.
+        return schedule(
+            task,
+            periodNanos,
+            1 + (index / wheels.length) % (periodNanos / TICK_NANOS),
+            wheels[index % wheels.length]);
+    }
+
+    /**
+     * Schedule a task to be run periodically by a given clock thread of this
+     * clock, from a given delay. It lets the caller spread the tasks sharing
+     * some work over the clock threads and their period.
+     *
+     * @param task the task.
+     * @param period the period of the task.
+     * @param delay the time before the first run of the task, rounded up to
+     * the next tick.
+     * @param unit the unit of <tt>period</tt> and <tt>delay</tt>.
+     * @param thread the index of the clock thread, modulo the number of
+     * clock threads.
+     * @return the <tt>Timer</tt> of the task, to cancel it.
+     */
+    public Timer schedule(
+        Runnable task,
+        long period,
+        long delay,
+        TimeUnit unit,
+        int thread)
+    {
+        return schedule(
+            task,
+            Math.max(TICK_NANOS, unit.toNanos(period)),
+            1 + Math.max(0, unit.toNanos(delay)) / TICK_NANOS,
+            wheels[Math.floorMod(thread, wheels.length)]);
+    }
+
+    /**
+     * Schedule a task to be run periodically by the clock thread of a wheel.
+     *
+     * @param task the task.
+     * @param periodNanos the period (in nanoseconds) of the task.
+     * @param delayTicks the number of ticks before the first run of the
+     * task.
+     * @param wheel the wheel.
+     * @return the <tt>Timer</tt> of the task, to cancel it.
+     */
+    private static Timer schedule(
+        Runnable task,
+        long periodNanos,
+        long delayTicks,
+        Wheel wheel)
+    {
+        Timer timer = new Timer(task, periodNanos, delayTicks);
+        wheel.pending.add(timer);
+        LockSupport.unpark(wheel.thread);
+        return timer;
+    }
+
+    /**
+     * A task scheduled on a <tt>MediaClock</tt>.
+     */
+    public static class Timer
+    {
+        /**
+         * The task.
+         */
+        private final Runnable task;
+
+        /**
+         * The period (in nanoseconds) of the task, which does not have to be
+         * a whole number of ticks.
+         */
+        private final long periodNanos;
+
+        /**
+         * The number of ticks before the first run of the task, once it is
+         * added to its wheel.
+         */
+        private final long delayTicks;
+
+        /**
+         * The time (in nanoseconds since the first tick of the wheel) of the
+         * next run of the task.
+         */
+        private long deadlineNanos;
+
+        /**
+         * The tick of the next run of the task.
+         */
+        private long deadlineTick;
+
+        /**
+         * Whether the task was cancelled.
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Initializes a <tt>Timer</tt>.
+         *
+         * @param task the task.
+         * @param periodNanos the period (in nanoseconds) of the task.
+         * @param delayTicks the number of ticks before the first run of the
+         * task.
+         */
+        private Timer(Runnable task, long periodNanos, long delayTicks)
+        {
+            this.task = task;
+            this.periodNanos = periodNanos;
+            this.delayTicks = delayTicks;
+        }
+
+        /**
+         * Cancel the task : it will not be started again, but it may still
+         * be running when this method returns.
+         */
+        public void cancel()
+        {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * A slot of a <tt>Wheel</tt>.
+     */
+    private static class Slot
+    {
+        /**
+         * The tasks to run at the ticks of the slot.
+         */
+        private List<Timer> timers = new ArrayList<>();
+    }
+
+    /**
+     * A hashed timer wheel, and the clock thread driving it.
+     */
+    private static class Wheel
+        implements Runnable
+    {
+        /**
+         * The tasks added to this wheel by the other threads, and not yet
+         * put in their slot.
+         */
+        private final Queue<Timer> pending = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The slots of the wheel, with the tasks to run at their ticks
+         * (modulo <tt>WHEEL_SIZE</tt>). They are only used by the clock
+         * thread.
+         */
+        private final Slot[] slots = new Slot[WHEEL_SIZE];
+
+        /**
+         * The tasks swapped with the ones of the slot of the current tick
+         * while they are run.
+         */
+        private List<Timer> spare = new ArrayList<>();
+
+        /**
+         * The slots with tasks, one bit per slot.
+         */
+        private long occupied = 0;
+
+        /**
+         * The number of tasks in the slots.
+         */
+        private int size = 0;
+
+        /**
+         * The clock thread driving this wheel.
+         */
+        private Thread thread;
+
+        /**
+         * Initializes a <tt>Wheel</tt>.
+         */
+        Wheel()
+        {
+            for (int i = 0; i < slots.length; i++)
+                slots[i] = new Slot();
+        }
+
+        /**
+         * Turn the wheel, from one tick with tasks to the next, running the
+         * tasks due at each of these ticks.
+         */
+        @Override
+        public void run()
+        {
+            long startNanos = System.nanoTime();
+            long tick = 0;
+            while (true)
+            {
+                if (size == 0 && pending.isEmpty())
+                {
+                    // Nothing to run : wait for a task, and restart the
+                    // ticks from its arrival.
+                    LockSupport.park(this);
+                    startNanos = System.nanoTime();
+                    tick = 0;
+                    continue;
+                }
+
+                if (!pending.isEmpty())
+                {
+                    // The tasks added while sleeping are delayed from the
+                    // current tick, not from the last one run.
+                    addPending(Math.max(
+                        tick, (System.nanoTime() - startNanos) / TICK_NANOS));
+                }
+
+                long next = getNextTick(tick);
+                long remaining
+                    = startNanos + next * TICK_NANOS - System.nanoTime();
+                if (remaining > 0)
+                {
+                    // Woken up early by a new task, or by the next tick.
+                    LockSupport.parkNanos(this, remaining);
+                    continue;
+                }
+                tick = next;
+                runTick(tick);
+            }
+        }
+
+        /**
+         * Put the tasks added by the other threads in their slot.
+         *
+         * @param tick the current tick.
+         */
+        private void addPending(long tick)
+        {
+            Timer timer;
+            while ((timer = pending.poll()) != null)
+            {
+                timer.deadlineTick = tick + timer.delayTicks;
+                timer.deadlineNanos = timer.deadlineTick * TICK_NANOS;
+                add(timer);
+            }
+        }
+
+        /**
+         * Get the first tick after a tick whose slot has tasks. The tasks of
+         * the slot may be due at a later turn of the wheel.
+         *
+         * @param tick the tick.
+         * @return the first tick after <tt>tick</tt> whose slot has tasks.
+         */
+        private long getNextTick(long tick)
+        {
+            int from = (int) ((tick + 1) & (WHEEL_SIZE - 1));
+            return tick + 1
+                + Long.numberOfTrailingZeros(Long.rotateRight(occupied, from));
+        }
+
+        /**
+         * Run the tasks due at a tick, and put them in the slot of their next
+         * run.
+         *
+         * @param tick the tick.
+         */
+        private void runTick(long tick)
+        {
+            int index = (int) (tick & (WHEEL_SIZE - 1));
+            List<Timer> timers = slots[index].timers;
+            slots[index].timers = spare;
+            occupied &= ~(1L << index);
+            for (Timer timer : timers)
+            {
+                if (timer.cancelled)
+                {
+                    size--;
+                    continue;
+                }
+                if (timer.deadlineTick > tick)
+                {
+                    // Due at a later turn of the wheel.
+                    size--;
+                    add(timer);
+                    continue;
+                }
+
+                try
+                {
+                    timer.task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Error in a task of the media clock", e);
+                }
+
+                timer.deadlineNanos += timer.periodNanos;
+                timer.deadlineTick = timer.deadlineNanos / TICK_NANOS;
+                if (timer.deadlineTick <= tick)
+                {
+                    // The clock is late : catch up from the next tick.
+                    timer.deadlineTick = tick + 1;
+                }
+                size--;
+                add(timer);
+            }
+            timers.clear();
+            spare = timers;
+        }
+
+        /**
+         * Put a task in the slot of its next run.
+         *
+         * @param timer the <tt>Timer</tt> of the task.
+         */
+        private void add(Timer timer)
+        {
+            int index = (int) (timer.deadlineTick & (WHEEL_SIZE - 1));
+            slots[index].timers.add(timer);
+            occupied |= 1L << index;
+            size++;
+        }
+    }
+}
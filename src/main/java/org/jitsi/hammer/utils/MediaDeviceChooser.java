@@ -17,20 +17,15 @@
 package org.jitsi.hammer.utils;
 
 
+import java.io.*;
+
+import org.jitsi.hammer.media.*;
 import org.jitsi.impl.neomedia.jmfext.media.protocol.greyfading.*;
-import org.jitsi.impl.neomedia.jmfext.media.protocol.ivffile.*;
-import org.jitsi.impl.neomedia.jmfext.media.protocol.rtpdumpfile.*;
-import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
-import org.jitsi.service.neomedia.codec.*;
 import org.jitsi.service.neomedia.device.*;
-import org.jitsi.service.neomedia.format.MediaFormatFactory;
 import org.jitsi.util.Logger;
 import org.jitsi.videobridge.*;
 
-import javax.media.*;
-import javax.media.format.*;
-
 /**
  * This class is used to get the chosen MediaDevice for a given MediaType.
  *
@@ -48,6 +43,13 @@ public class MediaDeviceChooser
     private static final Logger logger
         = Logger.getLogger(MediaDeviceChooser.class);
 
+    /**
+     * The IVF file whose frames are sent by the users when they send
+     * pre-encoded frames and no IVF file is given.
+     */
+    public static final String DEFAULT_IVF_FILE
+        = "resources/big-buck-bunny_trailer_track1_eng.ivf";
+
     /**
      * The chosen video MediaDevice of this <tt>MediaDeviceChooser</tt>
      */
@@ -58,6 +60,60 @@ public class MediaDeviceChooser
      */
     MediaDevice audioMediaDevice;
 
+    /**
+     * The pre-encoded video frames sent instead of using a video
+     * <tt>MediaDevice</tt>, or <tt>null</tt>.
+     */
+    PreEncodedSource videoSource;
+
+    /**
+     * The pre-encoded audio frames sent instead of using an audio
+     * <tt>MediaDevice</tt>, or <tt>null</tt>.
+     */
+    PreEncodedSource audioSource;
+
+    /**
+     * The packets of the rtpdump file sent instead of using a video
+     * <tt>MediaDevice</tt>, or <tt>null</tt>.
+     */
+    RtpdumpIndex videoRtpdump;
+
+    /**
+     * The packets of the rtpdump file sent instead of using an audio
+     * <tt>MediaDevice</tt>, or <tt>null</tt>.
+     */
+    RtpdumpIndex audioRtpdump;
+
+    /**
+     * The pre-encoded video frames of the simulcast layers, lowest first,
+     * sent instead of using a video <tt>MediaDevice</tt>, or <tt>null</tt>.
+     */
+    PreEncodedSource[] videoLayers;
+
+    /**
+     * Whether the media sent without <tt>MediaDevice</tt> is produced once
+     * for all the users, by <tt>videoSender</tt> and <tt>audioSender</tt>.
+     */
+    boolean fanOut = false;
+
+    /**
+     * The <tt>MediaSender</tt> shared by the video streams of all the users,
+     * if <tt>fanOut</tt>, once created.
+     */
+    private MediaSender videoSender;
+
+    /**
+     * The <tt>MediaSender</tt> shared by the audio streams of all the users,
+     * if <tt>fanOut</tt>, once created.
+     */
+    private MediaSender audioSender;
+
+    /**
+     * The <tt>MediaSender</tt> of the simulcast layers shared by the video
+     * streams of all the users, if <tt>fanOut</tt>, once created.
+     */
+    private MediaSender videoLayerSender;
+
     /**
      * Initialize an empty <tt>MediaDeviceChooser<tt>. No video or audio
      * MediaDevice will be chosen (they'll need to be set later).
@@ -81,42 +137,28 @@ public class MediaDeviceChooser
             String str
                 = "Creating a MediaDeviceChooser from console arguments :\n";
 
-            MediaService service = LibJitsi.getMediaService();
-            MediaFormatFactory factory = service.getFormatFactory();
+            fanOut = cmdArg.getFanOut();
 
             /*
-             * If an rtpdump file is given, it has priority over
-             * AudioSilence
+             * If an rtpdump file is given, it has priority over the
+             * pre-encoded frames that have priority over AudioSilence. The
+             * packets of the rtpdump file and the pre-encoded frames are
+             * sent without MediaDevice, so that libjitsi neither captures
+             * nor encodes anything.
              */
             if(cmdArg.getAudioRtpdumpFile() != null)
             {
                 str = str + "-with rtpdump file " + cmdArg.getAudioRtpdumpFile()
                     + " for the audio stream.\n";
-                AudioFormat opusFormat
-                    = new AudioFormat(
-                            Constants.OPUS_RTP,
-                            48000,
-                            Format.NOT_SPECIFIED,
-                            2 /* channels */)
-                {
-                    /**
-                     * FMJ depends on this value when it calculates the RTP
-                     * timestamps on the packets that it sends.
-                     *
-                     * This limits the supported files to only files with 20ms
-                     * opus frames.
-                     */
-                    @Override
-                    public long computeDuration(long length)
-                    {
-                        return 20L * 1000 * 1000;
-                    }
-                };
-                audioMediaDevice
-                    = RtpdumpMediaDevice.createRtpdumpAudioMediaDevice(
-                            cmdArg.getAudioRtpdumpFile(),
-                            opusFormat);
-
+                audioRtpdump = mapRtpdump(
+                    cmdArg.getAudioRtpdumpFile(),
+                    PreEncodedSource.OPUS);
+            }
+            else if(cmdArg.getPreEncoded())
+            {
+                audioSource = PreEncodedSource.createOpusSilence();
+                str = str + "-with " + audioSource
+                    + " for the audio stream.\n";
             }
             else
             {
@@ -126,25 +168,62 @@ public class MediaDeviceChooser
             }
 
             /*
-             * For the video MediaDevice, an rtpdump CaptureDevice has priority
-             * over an ivf CaptureDevice that has priority over
+             * For the video MediaDevice, an rtpdump file has priority
+             * over the simulcast layers and the pre-encoded frames, that
+             * have priority over an ivf CaptureDevice that has priority over
              * the VideoGreyFading CaptureDevice.
              */
             if(cmdArg.getVideoRtpdumpFile() != null)
             {
                 str = str + "-with rtpdump file " + cmdArg.getVideoRtpdumpFile()
                     + " for the video stream\n";
-                videoMediaDevice
-                    = RtpdumpMediaDevice.createRtpdumpVideoMediaDevice(
-                            cmdArg.getVideoRtpdumpFile(),
-                            Constants.VP8_RTP,
-                            factory.createMediaFormat("vp8", 90000));
+                videoRtpdump = mapRtpdump(
+                    cmdArg.getVideoRtpdumpFile(),
+                    PreEncodedSource.VP8);
+            }
+            else if(cmdArg.getSimulcastFiles() != null)
+            {
+                String[] files = cmdArg.getSimulcastFiles();
+                if(files.length < 2 || files.length > 3)
+                {
+                    logger.fatal("Simulcast needs 2 or 3 IVF files, not "
+                        + files.length);
+                    System.exit(1);
+                }
+                videoLayers = new PreEncodedSource[files.length];
+                for(int i = 0; i < files.length; i++)
+                {
+                    videoLayers[i] = readIVF(files[i]);
+                    str = str + "-with " + videoLayers[i] + " from "
+                        + files[i] + " for the simulcast layer " + i
+                        + " of the video stream\n";
+                }
+                for(int i = 1; i < files.length; i++)
+                {
+                    if(videoLayers[i].getFrameNanos()
+                        != videoLayers[0].getFrameNanos())
+                    {
+                        logger.fatal("The simulcast layers must have the same"
+                            + " frame rate, " + files[i] + " does not have"
+                            + " the one of " + files[0]);
+                        System.exit(1);
+                    }
+                }
+            }
+            else if(cmdArg.getPreEncoded())
+            {
+                String ivfFile = (cmdArg.getIVFFile() != null)
+                    ? cmdArg.getIVFFile() : DEFAULT_IVF_FILE;
+                videoSource = readIVF(ivfFile);
+                str = str + "-with " + videoSource + " from " + ivfFile
+                    + " for the video stream\n";
             }
             else if(cmdArg.getIVFFile() != null)
             {
                 str = str + "-with ivf file " + cmdArg.getIVFFile()
                     + " for the video stream\n";
-                videoMediaDevice = new IVFMediaDevice(cmdArg.getIVFFile());
+                videoMediaDevice = new PreEncodedMediaDevice(
+                    readIVF(cmdArg.getIVFFile()));
             }
             else
             {
@@ -152,6 +231,11 @@ public class MediaDeviceChooser
                     + " for the video stream\n";
                 videoMediaDevice = new VideoGreyFadingMediaDevice();
             }
+            if(fanOut)
+            {
+                str = str + "-with one sender per media type for all the"
+                    + " users\n";
+            }
             logger.info(str);
         }
     }
@@ -178,6 +262,131 @@ public class MediaDeviceChooser
         return returnedDevice;
     }
 
+    /**
+     * Map and index the frames of an IVF file, shared by all the users.
+     *
+     * @param path the path of the IVF file.
+     * @return the <tt>PreEncodedSource</tt> of the frames of the file.
+     */
+    private static PreEncodedSource readIVF(String path)
+    {
+        PreEncodedSource source = null;
+        try
+        {
+            source = PreEncodedSource.readIVF(path);
+        }
+        catch (IOException e)
+        {
+            logger.fatal("Could not read the VP8 frames of " + path, e);
+            System.exit(1);
+        }
+        return source;
+    }
+
+    /**
+     * Map a rtpdump file, shared by all the users.
+     *
+     * @param path the path of the rtpdump file.
+     * @param encoding the encoding of its packets.
+     * @return the <tt>RtpdumpIndex</tt> of the packets of the file.
+     */
+    private static RtpdumpIndex mapRtpdump(String path, String encoding)
+    {
+        RtpdumpIndex index = null;
+        try
+        {
+            index = new RtpdumpIndex(path, encoding);
+        }
+        catch (IOException e)
+        {
+            logger.fatal("Could not map the rtpdump file " + path, e);
+            System.exit(1);
+        }
+        return index;
+    }
+
+    /**
+     * Get the <tt>MediaSender</tt> sending the media of a
+     * <tt>MediaStream</tt> which has no <tt>MediaDevice</tt> : the packets
+     * of a rtpdump file, or pre-encoded frames. It is a new one for each
+     * stream, or the one shared by all the streams of its type if the media
+     * is fanned out.
+     * @param type the <tt>MediaType</tt> of the stream.
+     * @return the <tt>MediaSender</tt>, or <tt>null</tt> if a
+     * <tt>MediaDevice</tt> is used for <tt>type</tt>.
+     */
+    public synchronized MediaSender getMediaSender(MediaType type)
+    {
+        switch(type)
+        {
+            case AUDIO:
+                if(!fanOut)
+                    return createMediaSender(audioRtpdump, audioSource);
+                if(audioSender == null)
+                    audioSender = createMediaSender(audioRtpdump, audioSource);
+                return audioSender;
+            case VIDEO:
+                if(!fanOut)
+                    return createMediaSender(videoRtpdump, videoSource);
+                if(videoSender == null)
+                    videoSender = createMediaSender(videoRtpdump, videoSource);
+                return videoSender;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Get the number of simulcast layers of the video streams.
+     * @return the number of simulcast layers of the video streams, or 0 if
+     * they are not sent in simulcast.
+     */
+    public synchronized int getSimulcastLayerCount()
+    {
+        return (videoLayers == null) ? 0 : videoLayers.length;
+    }
+
+    /**
+     * Get the <tt>MediaSender</tt> of the simulcast layers of a video
+     * stream, which sends all the layers aligned. It is a new one for each
+     * stream, or the one shared by all the streams if the media is fanned
+     * out.
+     * @return the <tt>MediaSender</tt> of the simulcast layers, or
+     * <tt>null</tt> if the video streams are not sent in simulcast.
+     */
+    public synchronized MediaSender getSimulcastSender()
+    {
+        if(videoLayers == null)
+            return null;
+        if(fanOut && videoLayerSender != null)
+            return videoLayerSender;
+
+        MediaSender sender = new PreEncodedSender(videoLayers);
+        if(fanOut)
+            videoLayerSender = sender;
+        return sender;
+    }
+
+    /**
+     * Create a <tt>MediaSender</tt> sending the packets of a rtpdump file,
+     * or pre-encoded frames.
+     * @param rtpdump the packets of the rtpdump file, or <tt>null</tt>.
+     * @param source the pre-encoded frames, or <tt>null</tt>.
+     * @return the <tt>MediaSender</tt>, or <tt>null</tt> if neither
+     * <tt>rtpdump</tt> nor <tt>source</tt> is given.
+     */
+    private static MediaSender createMediaSender(
+        RtpdumpIndex rtpdump,
+        PreEncodedSource source)
+    {
+        if(rtpdump != null)
+            return new RtpdumpSender(rtpdump);
+        else if(source != null)
+            return new PreEncodedSender(source);
+        else
+            return null;
+    }
+
     /**
      * Set a <tt>MediaDevice</tt> as the chosen audio or video <tt>MediaDevice<tt>
      * (depending of its <tt>MediaType</tt>)
@@ -0,0 +1,395 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.utils;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+import net.java.sip.communicator.service.protocol.media.DynamicPayloadTypeRegistry;
+import net.java.sip.communicator.service.protocol.media.DynamicRTPExtensionsRegistry;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.format.MediaFormat;
+import org.jivesoftware.smack.packet.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * The <tt>OfferCache</tt> keeps the result of the negotiation of the
+ * session-initiates received by the fake users, so that it is done once per
+ * distinct offer rather than once per user : in a load test, all the users
+ * receive nearly identical session-initiates from the focus.
+ *
+ * An offer is identified by a normalized form of the RTP descriptions of its
+ * contents (payload types with their parameters and rtcp-fb, and rtp-hdrext),
+ * and of the RTP extensions supported locally. The transports, sources and
+ * fingerprints are not part of it : they are added per user to a clone of
+ * the cached content.
+ */
+public class OfferCache
+{
+    /**
+     * The separator of the fields of a key (which cannot appear in XML).
+     */
+    private static final char SEPARATOR = '\0';
+
+    /**
+     * The negotiated offers, by key.
+     */
+    private final ConcurrentMap<String, NegotiatedOffer> offers
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The number of offers found in this cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of offers negotiated and added to this cache.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Get the negotiated offer with key <tt>key</tt>, negotiating it with
+     * <tt>negotiator</tt> if it is not in this cache yet. The users
+     * receiving the same offer meanwhile wait for its negotiation.
+     *
+     * @param key the key of the offer, as returned by
+     * {@link #getKey(List, Function)}.
+     * @param negotiator negotiates the offer.
+     * @return the negotiated offer.
+     */
+    public NegotiatedOffer get(
+            String key,
+            Supplier<NegotiatedOffer> negotiator)
+    {
+        NegotiatedOffer offer = offers.get(key);
+        if (offer != null)
+        {
+            hits.incrementAndGet();
+            return offer;
+        }
+
+        return offers.computeIfAbsent(key, k -> {
+            misses.incrementAndGet();
+            return negotiator.get();
+        });
+    }
+
+    /**
+     * Get the key of the offer made of <tt>contents</tt>.
+     *
+     * @param contents the contents of the session-initiate.
+     * @param supportedExtensions gives the RTP extensions supported locally
+     * for a <tt>MediaType</tt>.
+     * @return the key of the offer.
+     */
+    public static String getKey(
+            List<NewContentPacketExtension> contents,
+            Function<MediaType, List<RTPExtension>> supportedExtensions)
+    {
+        StringBuilder key = new StringBuilder();
+
+        for (NewContentPacketExtension cpe : contents)
+        {
+            key.append(cpe.getName()).append(SEPARATOR);
+            if (cpe.getName().equalsIgnoreCase("data"))
+                continue;
+
+            NewRtpDescriptionPacketExtension description
+                = cpe.getFirstChildOfType(
+                        NewRtpDescriptionPacketExtension.class);
+            if (description == null)
+                continue;
+
+            key.append(description.getMedia()).append(SEPARATOR);
+            for (NewPayloadTypePacketExtension payloadType
+                    : description.getPayloadTypes())
+            {
+                appendNormalized(key, payloadType);
+            }
+            for (NewRTPHdrExtPacketExtension extmap
+                    : description.getExtmapList())
+            {
+                appendNormalized(key, extmap);
+            }
+            for (NewRtcpFbPacketExtension rtcpFb
+                    : description.getChildExtensionsOfType(
+                            NewRtcpFbPacketExtension.class))
+            {
+                appendNormalized(key, rtcpFb);
+            }
+
+            for (RTPExtension extension
+                    : supportedExtensions.apply(
+                        MediaType.parseString(cpe.getName())))
+            {
+                key.append(extension.getURI())
+                    .append(SEPARATOR)
+                    .append(extension.getDirection())
+                    .append(SEPARATOR);
+            }
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Append to <tt>key</tt> a normalized form of <tt>element</tt> and of its
+     * children : the attributes are sorted by name.
+     *
+     * @param key the key being built.
+     * @param element the element to append.
+     */
+    private static void appendNormalized(
+            StringBuilder key,
+            NewAbstractExtensionElement element)
+    {
+        key.append('<').append(element.getElementName());
+
+        List<String> names = element.getAttributeNames();
+        Collections.sort(names);
+        for (String name : names)
+        {
+            key.append(SEPARATOR)
+                .append(name)
+                .append('=')
+                .append(element.getAttributeAsString(name));
+        }
+        key.append('>');
+
+        for (Element child : element.getChildExtensions())
+        {
+            if (child instanceof NewAbstractExtensionElement)
+                appendNormalized(key, (NewAbstractExtensionElement) child);
+            else
+                key.append(child.toXML());
+        }
+        if (element.getText() != null)
+            key.append(element.getText());
+        key.append("</").append(SEPARATOR);
+    }
+
+    /**
+     * Get the number of offers found in this cache so far.
+     *
+     * @return the number of offers found in this cache so far.
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of offers negotiated and added to this cache so far.
+     *
+     * @return the number of offers negotiated so far.
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Get a summary of the use of this cache.
+     *
+     * @return a summary of the use of this cache.
+     */
+    public String getStats()
+    {
+        return String.format(
+            "Offer cache : %d distinct offers negotiated, %d reused",
+            misses.get(), hits.get());
+    }
+
+    /**
+     * The result of the negotiation of an offer, shared by all the users
+     * which received it.
+     */
+    public static class NegotiatedOffer
+    {
+        /**
+         * The negotiated contents, in the order of the offer.
+         */
+        private final List<NegotiatedContent> contents;
+
+        /**
+         * The dynamic payload type mappings learned in the offer (and
+         * obtained for the answer).
+         */
+        private final Map<MediaFormat, Byte> payloadTypeMappings;
+
+        /**
+         * The RTP extension mappings obtained for the answer.
+         */
+        private final Map<RTPExtension, Byte> rtpExtensionMappings;
+
+        /**
+         * Initializes a <tt>NegotiatedOffer</tt>.
+         *
+         * @param contents the negotiated contents, in the order of the offer.
+         * @param ptRegistry the registry of the dynamic payload types used
+         * for the negotiation.
+         * @param rtpExtRegistry the registry of the RTP extensions used for
+         * the negotiation.
+         */
+        public NegotiatedOffer(
+                List<NegotiatedContent> contents,
+                DynamicPayloadTypeRegistry ptRegistry,
+                DynamicRTPExtensionsRegistry rtpExtRegistry)
+        {
+            this.contents
+                = Collections.unmodifiableList(new ArrayList<>(contents));
+            this.payloadTypeMappings = ptRegistry.getMappings();
+            this.rtpExtensionMappings = rtpExtRegistry.getMappings();
+        }
+
+        /**
+         * Get the negotiated contents, in the order of the offer.
+         *
+         * @return the negotiated contents.
+         */
+        public List<NegotiatedContent> getContents()
+        {
+            return contents;
+        }
+
+        /**
+         * Add the mappings learned and obtained during the negotiation to
+         * the (empty) registries of a user.
+         *
+         * @param ptRegistry the registry of the dynamic payload types of the
+         * user.
+         * @param rtpExtRegistry the registry of the RTP extensions of the
+         * user.
+         */
+        public void register(
+                DynamicPayloadTypeRegistry ptRegistry,
+                DynamicRTPExtensionsRegistry rtpExtRegistry)
+        {
+            for (Map.Entry<MediaFormat, Byte> mapping
+                    : payloadTypeMappings.entrySet())
+            {
+                ptRegistry.addMapping(mapping.getKey(), mapping.getValue());
+            }
+            for (Map.Entry<RTPExtension, Byte> mapping
+                    : rtpExtensionMappings.entrySet())
+            {
+                rtpExtRegistry.addMapping(
+                    mapping.getKey(),
+                    mapping.getValue());
+            }
+        }
+    }
+
+    /**
+     * The result of the negotiation of one content of an offer.
+     */
+    public static class NegotiatedContent
+    {
+        /**
+         * The name of the content.
+         */
+        private final String name;
+
+        /**
+         * The format selected for the stream of the content, or
+         * <tt>null</tt> if the content has no RTP stream.
+         */
+        private final MediaFormat selectedFormat;
+
+        /**
+         * The intersection of the offered and supported RTP extensions.
+         */
+        private final List<RTPExtension> rtpExtensions;
+
+        /**
+         * The content of the answer, cloned for each user and never modified
+         * itself.
+         */
+        private final NewContentPacketExtension template;
+
+        /**
+         * Initializes a <tt>NegotiatedContent</tt>.
+         *
+         * @param name the name of the content.
+         * @param selectedFormat the format selected for the stream of the
+         * content, or <tt>null</tt> if the content has no RTP stream.
+         * @param rtpExtensions the intersection of the offered and supported
+         * RTP extensions.
+         * @param template the content of the answer (without transport nor
+         * sources).
+         */
+        public NegotiatedContent(
+                String name,
+                MediaFormat selectedFormat,
+                List<RTPExtension> rtpExtensions,
+                NewContentPacketExtension template)
+        {
+            this.name = name;
+            this.selectedFormat = selectedFormat;
+            this.rtpExtensions = (rtpExtensions == null)
+                ? null
+                : Collections.unmodifiableList(new ArrayList<>(rtpExtensions));
+            this.template = template;
+        }
+
+        /**
+         * Get the name of the content.
+         *
+         * @return the name of the content.
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Get the format selected for the stream of the content.
+         *
+         * @return the format selected for the stream of the content, or
+         * <tt>null</tt> if the content has no RTP stream.
+         */
+        public MediaFormat getSelectedFormat()
+        {
+            return selectedFormat;
+        }
+
+        /**
+         * Get the intersection of the offered and supported RTP extensions.
+         *
+         * @return the intersection of the offered and supported RTP
+         * extensions.
+         */
+        public List<RTPExtension> getRtpExtensions()
+        {
+            return rtpExtensions;
+        }
+
+        /**
+         * Create the content of the answer of a user, to which its transport
+         * and sources can be added.
+         *
+         * @return a new clone of the content of the answer.
+         */
+        public synchronized NewContentPacketExtension createContent()
+        {
+            // Synchronized because getChildExtensions() of the description
+            // rebuilds its list of children.
+            return NewAbstractExtensionElement.cloneTree(template);
+        }
+    }
+}
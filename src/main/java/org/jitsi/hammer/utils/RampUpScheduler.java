@@ -0,0 +1,452 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.utils;
+
+import org.jitsi.util.Logger;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The <tt>RampUpScheduler</tt> admits the setup tasks of the fake users at a
+ * target rate (in users per second) following a <tt>Profile</tt>, while
+ * keeping a bounded number of setups in flight at the same time.
+ *
+ * At the end of the ramp-up it reports the rate it actually achieved against
+ * the one that was requested.
+ */
+public class RampUpScheduler
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>RampUpScheduler</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RampUpScheduler.class);
+
+    /**
+     * The interval (in milliseconds) between two progress reports logged
+     * during the ramp-up.
+     */
+    private static final long PROGRESS_INTERVAL_MS = 5000;
+
+    /**
+     * The shapes the admission rate can take during the ramp-up.
+     */
+    public enum Profile
+    {
+        /**
+         * All the users are admitted at once (only bounded by the maximum
+         * number of setups in flight).
+         */
+        BURST,
+
+        /**
+         * The users are admitted at the target rate from the start.
+         */
+        CONSTANT,
+
+        /**
+         * The admission rate grows linearly from zero to the target rate
+         * during the ramp time, and stays at the target rate afterwards.
+         */
+        LINEAR,
+
+        /**
+         * The users are admitted in batches, one at the beginning of each
+         * step of ramp time seconds, with batches sized so that the average
+         * rate is the target rate.
+         */
+        STEP,
+
+        /**
+         * The admission rate doubles regularly from one user per second to
+         * the target rate during the ramp time, and stays at the target rate
+         * afterwards.
+         */
+        EXPONENTIAL;
+
+        /**
+         * Get the <tt>Profile</tt> whose name is <tt>name</tt> (case
+         * insensitive).
+         *
+         * @param name the name of the profile.
+         * @return the <tt>Profile</tt> whose name is <tt>name</tt>.
+         * @throws IllegalArgumentException if there is no such profile.
+         */
+        public static Profile parseString(String name)
+        {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * The target admission rate, in users per second.
+     */
+    private final double rate;
+
+    /**
+     * The shape of the admission rate.
+     */
+    private final Profile profile;
+
+    /**
+     * The duration (in seconds) of the ramp for the <tt>LINEAR</tt> and
+     * <tt>EXPONENTIAL</tt> profiles, or of a step for the <tt>STEP</tt>
+     * profile.
+     */
+    private final double rampTime;
+
+    /**
+     * The maximum number of setups allowed to run at the same time.
+     */
+    private final int maxInFlight;
+
+    /**
+     * Counted down when the ramp-up is cancelled, so that the admission
+     * loop wakes up right away.
+     */
+    private final CountDownLatch cancelLatch = new CountDownLatch(1);
+
+    /**
+     * The number of setups that returned normally.
+     */
+    private final AtomicInteger completed = new AtomicInteger();
+
+    /**
+     * The number of setups that threw an exception.
+     */
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * The number of setups currently running.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * The highest number of setups that ran at the same time.
+     */
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+
+    /**
+     * The number of setups admitted so far.
+     */
+    private volatile int admitted;
+
+    /**
+     * Initializes a <tt>RampUpScheduler</tt> admitting users at a constant
+     * <tt>rate</tt>, one at a time.
+     *
+     * @param rate the target admission rate, in users per second.
+     */
+    public RampUpScheduler(double rate)
+    {
+        this(rate, Profile.CONSTANT, 0, 1);
+    }
+
+    /**
+     * Initializes a <tt>RampUpScheduler</tt>.
+     *
+     * @param rate the target admission rate, in users per second.
+     * @param profile the shape of the admission rate.
+     * @param rampTime the duration (in seconds) of the ramp for the
+     * <tt>LINEAR</tt> and <tt>EXPONENTIAL</tt> profiles, or of a step for the
+     * <tt>STEP</tt> profile.
+     * @param maxInFlight the maximum number of setups allowed to run at the
+     * same time.
+     */
+    public RampUpScheduler(
+            double rate,
+            Profile profile,
+            double rampTime,
+            int maxInFlight)
+    {
+        if (rate <= 0)
+            throw new IllegalArgumentException("rate must be positive");
+
+        this.rate = rate;
+        this.profile = (profile == null) ? Profile.CONSTANT : profile;
+        this.rampTime = Math.max(0, rampTime);
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Get the time (in seconds, relative to the start of the ramp-up) at
+     * which the user with index <tt>index</tt> is to be admitted.
+     *
+     * @param index the (zero-based) index of the user.
+     * @return the admission time of the user, in seconds.
+     */
+    public double getAdmissionTime(int index)
+    {
+        switch (profile)
+        {
+        case BURST:
+            return 0;
+
+        case LINEAR:
+            if (rampTime > 0)
+            {
+                double usersDuringRamp = rate * rampTime / 2;
+                if (index <= usersDuringRamp)
+                    return Math.sqrt(2 * rampTime * index / rate);
+                return rampTime + (index - usersDuringRamp) / rate;
+            }
+            break;
+
+        case STEP:
+            if (rampTime > 0)
+            {
+                int usersPerStep = (int) Math.max(1, Math.ceil(rate * rampTime));
+                return (index / usersPerStep) * rampTime;
+            }
+            break;
+
+        case EXPONENTIAL:
+            if (rampTime > 0 && rate > 1)
+            {
+                double doublingTime = rampTime * Math.log(2) / Math.log(rate);
+                double k = doublingTime / Math.log(2);
+                double usersDuringRamp = k * (rate - 1);
+                if (index <= usersDuringRamp)
+                    return k * Math.log(1 + index / k);
+                return rampTime + (index - usersDuringRamp) / rate;
+            }
+            break;
+
+        default:
+            break;
+        }
+        return index / rate;
+    }
+
+    /**
+     * Run all the <tt>tasks</tt> following the profile of this
+     * <tt>RampUpScheduler</tt>, and return once all the admitted tasks have
+     * returned (or the ramp-up has been cancelled).
+     *
+     * @param tasks the setup tasks of the users, in admission order.
+     * @throws InterruptedException if the current thread is interrupted while
+     * waiting.
+     */
+    public void run(List<? extends Runnable> tasks)
+        throws InterruptedException
+    {
+        final Semaphore slots = new Semaphore(maxInFlight);
+        final CountDownLatch done = new CountDownLatch(tasks.size());
+        ExecutorService executor
+            = Executors.newFixedThreadPool(
+                    Math.min(maxInFlight, Math.max(1, tasks.size())),
+                    HammerExecutors.newThreadFactory("RampUp-"));
+
+        logger.info(String.format("Starting the ramp-up of %d users with a %s"
+                + " profile at %.2f users/s (ramp time : %.1fs,"
+                + " max in flight : %d)",
+                tasks.size(), profile, rate, rampTime, maxInFlight));
+
+        long startNanos = System.nanoTime();
+        long lastProgressNanos = startNanos;
+        long maxLagNanos = 0;
+        int submitted = 0;
+
+        try
+        {
+            for (final Runnable task : tasks)
+            {
+                long dueNanos = startNanos
+                    + (long) (getAdmissionTime(submitted) * 1e9);
+                long waitNanos = dueNanos - System.nanoTime();
+                if (waitNanos > 0
+                        && cancelLatch.await(waitNanos, TimeUnit.NANOSECONDS))
+                    break;
+
+                while (!slots.tryAcquire(100, TimeUnit.MILLISECONDS))
+                {
+                    if (isCancelled())
+                        break;
+                }
+                if (isCancelled())
+                    break;
+
+                maxLagNanos = Math.max(maxLagNanos, System.nanoTime() - dueNanos);
+                int running = inFlight.incrementAndGet();
+                updatePeakInFlight(running);
+
+                executor.execute(() -> {
+                    try
+                    {
+                        task.run();
+                        completed.incrementAndGet();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        failed.incrementAndGet();
+                        logger.error("A user setup failed during the ramp-up", e);
+                    }
+                    finally
+                    {
+                        inFlight.decrementAndGet();
+                        slots.release();
+                        done.countDown();
+                    }
+                });
+                admitted = ++submitted;
+
+                long now = System.nanoTime();
+                if (now - lastProgressNanos
+                        > TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MS))
+                {
+                    lastProgressNanos = now;
+                    logger.info(String.format("Ramp-up : %d/%d users admitted,"
+                            + " %d completed, %d in flight, %d failed",
+                            submitted, tasks.size(), completed.get(),
+                            inFlight.get(), failed.get()));
+                }
+            }
+            long admissionNanos = System.nanoTime() - startNanos;
+
+            // Tasks that were never submitted will never count down.
+            for (int i = submitted; i < tasks.size(); i++)
+                done.countDown();
+            done.await();
+
+            report(tasks.size(), admissionNanos, System.nanoTime() - startNanos,
+                maxLagNanos);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Cancel the ramp-up : no more users will be admitted, the setups already
+     * running are left to finish.
+     */
+    public void cancel()
+    {
+        if (!isCancelled())
+        {
+            logger.info("Cancelling the ramp-up");
+            cancelLatch.countDown();
+        }
+    }
+
+    /**
+     * Get whether the ramp-up has been cancelled.
+     *
+     * @return <tt>true</tt> if the ramp-up has been cancelled.
+     */
+    public boolean isCancelled()
+    {
+        return cancelLatch.getCount() == 0;
+    }
+
+    /**
+     * Get the number of setups admitted so far.
+     *
+     * @return the number of setups admitted so far.
+     */
+    public int getAdmitted()
+    {
+        return admitted;
+    }
+
+    /**
+     * Get the number of setups that completed normally so far.
+     *
+     * @return the number of setups that completed normally so far.
+     */
+    public int getCompleted()
+    {
+        return completed.get();
+    }
+
+    /**
+     * Get the number of setups that failed so far.
+     *
+     * @return the number of setups that failed so far.
+     */
+    public int getFailed()
+    {
+        return failed.get();
+    }
+
+    /**
+     * Get the number of setups currently running.
+     *
+     * @return the number of setups currently running.
+     */
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    /**
+     * Record <tt>running</tt> as the peak number of setups in flight if it is
+     * higher than the current peak.
+     *
+     * @param running the number of setups currently running.
+     */
+    private void updatePeakInFlight(int running)
+    {
+        int peak;
+        do
+        {
+            peak = peakInFlight.get();
+        }
+        while (running > peak && !peakInFlight.compareAndSet(peak, running));
+    }
+
+    /**
+     * Log the rate achieved by this ramp-up against the requested one.
+     *
+     * @param total the number of users given to the ramp-up.
+     * @param admissionNanos the time spent admitting the users.
+     * @param totalNanos the time spent until the last setup returned.
+     * @param maxLagNanos the biggest delay between the scheduled admission
+     * time of a user and its actual admission.
+     */
+    private void report(
+            int total,
+            long admissionNanos,
+            long totalNanos,
+            long maxLagNanos)
+    {
+        int n = admitted;
+        double requestedSeconds = (n > 1) ? getAdmissionTime(n - 1) : 0;
+        double admissionSeconds = admissionNanos / 1e9;
+        double totalSeconds = totalNanos / 1e9;
+
+        logger.info(String.format("Ramp-up done : %d/%d users admitted in"
+                + " %.1fs (requested %.2f users/s over %.1fs, achieved"
+                + " %.2f users/s), %d setups completed in %.1fs"
+                + " (%.2f users/s), %d failed, peak in flight %d,"
+                + " max admission lag %dms",
+                n, total,
+                admissionSeconds,
+                (requestedSeconds > 0) ? (n - 1) / requestedSeconds : rate,
+                requestedSeconds,
+                (admissionSeconds > 0) ? (n - 1) / admissionSeconds : n,
+                completed.get(),
+                totalSeconds,
+                (totalSeconds > 0) ? completed.get() / totalSeconds : 0,
+                failed.get(),
+                peakInFlight.get(),
+                TimeUnit.NANOSECONDS.toMillis(maxLagNanos)));
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.utils;
+
+import org.jitsi.util.Logger;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * The <tt>SessionAcceptPipeline</tt> runs the acceptance of the Jingle
+ * sessions of the fake users (answer, ICE, DTLS/SRTP start, stream start)
+ * as a chain of <tt>CompletableFuture</tt>s on a bounded pool of threads,
+ * so that the Smack threads delivering the session-initiate are never
+ * blocked by it.
+ *
+ * Each stage has its own timeout : if a stage did not complete in time, the
+ * future of the session fails with a <tt>TimeoutException</tt>.
+ */
+public class SessionAcceptPipeline
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>SessionAcceptPipeline</tt> class
+     * and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SessionAcceptPipeline.class);
+
+    /**
+     * The default timeout (in milliseconds) of the stages other than ICE.
+     */
+    public static final long DEFAULT_STAGE_TIMEOUT_MS = 10000;
+
+    /**
+     * The default timeout (in milliseconds) of the ICE stage.
+     */
+    public static final long DEFAULT_ICE_TIMEOUT_MS = 30000;
+
+    /**
+     * The stages of the acceptance of a Jingle session.
+     */
+    public enum Stage
+    {
+        /**
+         * The creation and sending of the session-accept.
+         */
+        ANSWER,
+
+        /**
+         * The ICE connectivity establishment.
+         */
+        ICE,
+
+        /**
+         * The start of the DTLS/SRTP encryption of the streams.
+         */
+        DTLS_SRTP,
+
+        /**
+         * The start of the <tt>MediaStream</tt>s.
+         */
+        STREAM_START
+    }
+
+    /**
+     * The bounded pool of threads running the stages.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The single thread firing the timeouts of the stages.
+     */
+    private final ScheduledExecutorService timer;
+
+    /**
+     * The timeout (in milliseconds) of the stages other than ICE.
+     */
+    private final long stageTimeoutMs;
+
+    /**
+     * The timeout (in milliseconds) of the ICE stage.
+     */
+    private final long iceTimeoutMs;
+
+    /**
+     * The number of stages that timed out so far, indexed by
+     * <tt>Stage</tt> ordinal.
+     */
+    private final AtomicIntegerArray timeouts
+        = new AtomicIntegerArray(Stage.values().length);
+
+    /**
+     * Initializes a <tt>SessionAcceptPipeline</tt> with one thread per
+     * available processor and the default timeouts.
+     */
+    public SessionAcceptPipeline()
+    {
+        this(0, DEFAULT_STAGE_TIMEOUT_MS, DEFAULT_ICE_TIMEOUT_MS);
+    }
+
+    /**
+     * Initializes a <tt>SessionAcceptPipeline</tt>.
+     *
+     * @param threads the number of threads running the stages (one per
+     * available processor if zero or negative).
+     * @param stageTimeoutMs the timeout (in milliseconds) of the stages other
+     * than ICE.
+     * @param iceTimeoutMs the timeout (in milliseconds) of the ICE stage.
+     */
+    public SessionAcceptPipeline(
+            int threads,
+            long stageTimeoutMs,
+            long iceTimeoutMs)
+    {
+        if (threads <= 0)
+            threads = Runtime.getRuntime().availableProcessors();
+
+        this.stageTimeoutMs = stageTimeoutMs;
+        this.iceTimeoutMs = iceTimeoutMs;
+        this.executor
+            = Executors.newFixedThreadPool(
+                    threads,
+                    HammerExecutors.newThreadFactory("SessionAccept-"));
+        this.timer
+            = Executors.newSingleThreadScheduledExecutor(
+                    HammerExecutors.newThreadFactory("SessionAcceptTimer-"));
+
+        logger.info(String.format("Session accept pipeline with %d threads"
+                + " (stage timeout : %dms, ICE timeout : %dms)",
+                threads, stageTimeoutMs, iceTimeoutMs));
+    }
+
+    /**
+     * Run <tt>supplier</tt> as the stage <tt>stage</tt> on the threads of
+     * this pipeline.
+     *
+     * @param stage the stage run by <tt>supplier</tt>.
+     * @param supplier the work of the stage.
+     * @return a future completed with the result of <tt>supplier</tt>, or
+     * exceptionally if it threw or did not complete in time.
+     */
+    public <T> CompletableFuture<T> supply(Stage stage, Supplier<T> supplier)
+    {
+        return withTimeout(
+            CompletableFuture.supplyAsync(supplier, executor),
+            stage);
+    }
+
+    /**
+     * Chain the stage <tt>stage</tt>, running <tt>fn</tt> on the threads of
+     * this pipeline, after <tt>previous</tt>.
+     *
+     * @param previous the future of the previous stage.
+     * @param stage the stage run by <tt>fn</tt>.
+     * @param fn the work of the stage, given the result of the previous one.
+     * @return a future completed with the result of <tt>fn</tt>, or
+     * exceptionally if a stage failed or did not complete in time.
+     */
+    public <T, R> CompletableFuture<R> then(
+            CompletableFuture<T> previous,
+            Stage stage,
+            Function<? super T, ? extends R> fn)
+    {
+        return previous.thenCompose(
+            t -> supply(stage, () -> fn.apply(t)));
+    }
+
+    /**
+     * Chain the stage <tt>stage</tt> after <tt>previous</tt>, where
+     * <tt>fn</tt> starts the stage and returns a future completed when the
+     * stage is done (without holding a thread while waiting).
+     *
+     * @param previous the future of the previous stage.
+     * @param stage the stage started by <tt>fn</tt>.
+     * @param fn starts the stage, given the result of the previous one.
+     * @return a future completed when the stage is done, or exceptionally if
+     * a stage failed or did not complete in time.
+     */
+    public <T, R> CompletableFuture<R> thenAwait(
+            CompletableFuture<T> previous,
+            Stage stage,
+            Function<? super T, CompletableFuture<R>> fn)
+    {
+        return previous.thenComposeAsync(
+            t -> withTimeout(fn.apply(t), stage),
+            executor);
+    }
+
+    /**
+     * Make <tt>future</tt> complete exceptionally with a
+     * <tt>TimeoutException</tt> if it is not completed before the timeout of
+     * <tt>stage</tt>.
+     *
+     * @param future the future of the stage.
+     * @param stage the stage whose timeout is applied.
+     * @return <tt>future</tt>.
+     */
+    public <T> CompletableFuture<T> withTimeout(
+            final CompletableFuture<T> future,
+            final Stage stage)
+    {
+        final long timeoutMs = getTimeout(stage);
+        if (timeoutMs <= 0 || future.isDone())
+            return future;
+
+        final ScheduledFuture<?> task = timer.schedule(() -> {
+            if (future.completeExceptionally(new TimeoutException(
+                    stage + " did not complete within " + timeoutMs + "ms")))
+            {
+                timeouts.incrementAndGet(stage.ordinal());
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((r, t) -> task.cancel(false));
+
+        return future;
+    }
+
+    /**
+     * Get the timeout (in milliseconds) of <tt>stage</tt>.
+     *
+     * @param stage the stage.
+     * @return the timeout (in milliseconds) of <tt>stage</tt>.
+     */
+    public long getTimeout(Stage stage)
+    {
+        return (stage == Stage.ICE) ? iceTimeoutMs : stageTimeoutMs;
+    }
+
+    /**
+     * Get the number of times <tt>stage</tt> timed out so far.
+     *
+     * @param stage the stage.
+     * @return the number of times <tt>stage</tt> timed out so far.
+     */
+    public int getTimeouts(Stage stage)
+    {
+        return timeouts.get(stage.ordinal());
+    }
+
+    /**
+     * Stop the threads of this pipeline. The stages not started yet are
+     * dropped.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.utils;
+
+import java.util.concurrent.*;
+
+/**
+ * The <tt>VirtualThreadSupport</tt> gives access to the virtual threads of
+ * Java 21. Its implementation is only compiled with the <tt>jdk21</tt> maven
+ * profile, and is loaded by <tt>HammerExecutors</tt> when the virtual thread
+ * mode is enabled.
+ */
+public interface VirtualThreadSupport
+{
+    /**
+     * Create a <tt>ThreadFactory</tt> creating virtual threads.
+     *
+     * @param prefix the prefix of the names of the threads.
+     * @return a <tt>ThreadFactory</tt> creating virtual threads.
+     */
+    ThreadFactory newThreadFactory(String prefix);
+
+    /**
+     * Start recording the times a virtual thread is pinned to its carrier
+     * thread for longer than <tt>thresholdMs</tt>.
+     *
+     * @param thresholdMs the minimum duration (in milliseconds) of the
+     * recorded pinning.
+     */
+    void startPinningMonitor(long thresholdMs);
+
+    /**
+     * Stop recording the pinning of the virtual threads.
+     *
+     * @return a report of the code locations where the virtual threads were
+     * pinned, by decreasing total pinned time.
+     */
+    String stopPinningMonitor();
+}
@@ -17,15 +17,16 @@ package org.jitsi.videobridge;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.media.*;
 import javax.media.control.*;
 import javax.media.format.*;
 import javax.media.protocol.*;
 
+import org.jitsi.hammer.utils.*;
 import org.jitsi.impl.neomedia.codec.*;
 import org.jitsi.impl.neomedia.jmfext.media.protocol.*;
-import org.jitsi.impl.neomedia.jmfext.media.renderer.audio.*;
 
 /**
  * Implements a <tt>CaptureDevice</tt> which provides silence in the form of
@@ -116,10 +117,17 @@ public class AudioSilenceCaptureDevice
         private boolean started;
 
         /**
-         * The <tt>Thread</tt> which pushes available media data out of this
-         * instance to its consumer i.e. <tt>BufferTransferHandler</tt>.
+         * The <tt>Timer</tt> of the shared <tt>MediaClock</tt> which ticks
+         * the clock of this instance, or <tt>null</tt> if it is not started.
          */
-        private Thread thread;
+        private MediaClock.Timer timer;
+
+        /**
+         * The <tt>Thread</tt> of the <tt>MediaClock</tt> which is pushing
+         * available media data out of this instance to its consumer i.e.
+         * <tt>BufferTransferHandler</tt>, or <tt>null</tt>.
+         */
+        private Thread tickThread;
 
         /**
          * Initializes a new <tt>AudioSilenceStream</tt> which is to be exposed
@@ -180,102 +188,40 @@ public class AudioSilenceCaptureDevice
         }
 
         /**
-         * Runs in {@link #thread} and pushes available media data out of this
-         * instance to its consumer i.e. <tt>BufferTransferHandler</tt>.
+         * Runs on a thread of the shared <tt>MediaClock</tt> at each tick of
+         * the clock of this instance, and pushes available media data out of
+         * this instance to its consumer i.e. <tt>BufferTransferHandler</tt>.
          */
         public void run()
         {
-            try
+            synchronized (this)
             {
                 /*
-                 * Make sure that the current thread which implements the actual
-                 * ticking of the clock implemented by this instance uses a
-                 * thread priority considered appropriate for audio processing.
+                 * If this AudioSilenceStream has been stopped, the clock no
+                 * longer has the right to touch it.
                  */
-                AbstractAudioRenderer.useAudioThreadPriority();
+                if (!started)
+                    return;
+                tickThread = Thread.currentThread();
+            }
 
-                /*
-                 * The method implements a clock which ticks at a certain and
-                 * regular interval of time which is not affected by the
-                 * duration of the execution of, for example, the invocation of
-                 * BufferTransferHandler.transferData(PushBufferStream).
-                 *
-                 * XXX The implementation utilizes System.currentTimeMillis()
-                 * and, consequently, may be broken by run-time adjustments to
-                 * the system time. 
-                 */
-                long tickTime = System.currentTimeMillis();
+            try
+            {
+                BufferTransferHandler transferHandler = this.transferHandler;
 
-                while (true)
+                if (transferHandler != null)
                 {
-                    long sleepInterval = tickTime - System.currentTimeMillis();
-                    boolean tick = (sleepInterval <= 0);
-
-                    if (tick)
-                    {
-                        /*
-                         * The current thread has woken up just in time or too
-                         * late for the next scheduled clock tick and,
-                         * consequently, the clock should tick right now.
-                         */
-                        tickTime += CLOCK_TICK_INTERVAL;
-                    }
-                    else
-                    {
-                        /*
-                         * The current thread has woken up too early for the
-                         * next scheduled clock tick and, consequently, it
-                         * should sleep until the time of the next scheduled
-                         * clock tick comes.
-                         */
-                        try
-                        {
-                            Thread.sleep(sleepInterval);
-                        }
-                        catch (InterruptedException ie)
-                        {
-                        }
-                        /*
-                         * The clock will not tick and spurious wakeups will be
-                         * handled. However, the current thread will first check
-                         * whether it is still utilized by this
-                         * AudioSilenceStream in order to not delay stop
-                         * requests.
-                         */
-                    }
-
-                    synchronized (this)
+                    try
                     {
-                        /*
-                         * If the current Thread is no longer utilized by this
-                         * AudioSilenceStream, it no longer has the right to
-                         * touch it. If this AudioSilenceStream has been
-                         * stopped, the current Thread should stop as well. 
-                         */
-                        if ((thread != Thread.currentThread()) || !started)
-                            break;
+                        transferHandler.transferData(this);
                     }
-
-                    if (tick)
+                    catch (Throwable t)
                     {
-                        BufferTransferHandler transferHandler
-                            = this.transferHandler;
-
-                        if (transferHandler != null)
+                        if (t instanceof ThreadDeath)
+                            throw (ThreadDeath) t;
+                        else
                         {
-                            try
-                            {
-                                transferHandler.transferData(this);
-                            }
-                            catch (Throwable t)
-                            {
-                                if (t instanceof ThreadDeath)
-                                    throw (ThreadDeath) t;
-                                else
-                                {
-                                    // TODO Auto-generated method stub
-                                }
-                            }
+                            // TODO Auto-generated method stub
                         }
                     }
                 }
@@ -284,12 +230,8 @@ public class AudioSilenceCaptureDevice
             {
                 synchronized (this)
                 {
-                    if (thread == Thread.currentThread())
-                    {
-                        thread = null;
-                        started = false;
-                        notifyAll();
-                    }
+                    tickThread = null;
+                    notifyAll();
                 }
             }
         }
@@ -304,31 +246,21 @@ public class AudioSilenceCaptureDevice
         public synchronized void start()
             throws IOException
         {
-            if (thread == null)
+            if (timer == null)
             {
-                String className = getClass().getName();
-
-                thread = new Thread(this, className);
-                thread.setDaemon(true);
-
-                boolean started = false;
-
-                try
-                {
-                    thread.start();
-                    started = true;
-                }
-                finally
-                {
-                    this.started = started;
-                    if (!started)
-                    {
-                        thread = null;
-                        notifyAll();
-
-                        throw new IOException("Failed to start " + className);
-                    }
-                }
+                /*
+                 * The clock ticks at a regular interval of time which is not
+                 * affected by the duration of the invocations of
+                 * BufferTransferHandler.transferData(PushBufferStream), and
+                 * is shared with the other AudioSilenceStreams instead of
+                 * using a thread per instance.
+                 */
+                timer
+                    = MediaClock.getShared().schedule(
+                            this,
+                            CLOCK_TICK_INTERVAL,
+                            TimeUnit.MILLISECONDS);
+                started = true;
             }
         }
 
@@ -343,11 +275,20 @@ public class AudioSilenceCaptureDevice
             throws IOException
         {
             this.started = false;
-            notifyAll();
+            if (timer != null)
+            {
+                timer.cancel();
+                timer = null;
+            }
 
+            /*
+             * Wait for the tick in progress, unless it is the one stopping
+             * this instance.
+             */
             boolean interrupted = false;
 
-            while (thread != null)
+            while ((tickThread != null)
+                    && (tickThread != Thread.currentThread()))
             {
                 try
                 {
@@ -0,0 +1,200 @@
+/*
+ * Copyright @ 2017 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.utils;
+
+import jdk.jfr.consumer.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The Java 21 implementation of <tt>VirtualThreadSupport</tt>. The pinning
+ * of the virtual threads is recorded with the
+ * <tt>jdk.VirtualThreadPinned</tt> JFR event, and grouped by the first frame
+ * of the Hammer code found in its stack trace.
+ */
+public class VirtualThreadSupportImpl
+    implements VirtualThreadSupport
+{
+    /**
+     * The name of the JFR event recorded when a virtual thread blocks while
+     * pinned to its carrier thread.
+     */
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    /**
+     * The prefix of the classes considered as Hammer code when looking for
+     * the location of a pinning.
+     */
+    private static final String[] HAMMER_PACKAGES
+        = { "org.jitsi.hammer.", "org.jitsi.videobridge." };
+
+    /**
+     * The maximum number of locations listed in the report.
+     */
+    private static final int MAX_REPORTED_LOCATIONS = 20;
+
+    /**
+     * The pinning recorded so far, by location.
+     */
+    private final Map<String, PinnedLocation> locations
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The JFR stream recording the pinning, or <tt>null</tt> if not started.
+     */
+    private RecordingStream recording;
+
+    @Override
+    public ThreadFactory newThreadFactory(String prefix)
+    {
+        return Thread.ofVirtual().name(prefix, 1).factory();
+    }
+
+    @Override
+    public synchronized void startPinningMonitor(long thresholdMs)
+    {
+        if (recording != null)
+            return;
+
+        recording = new RecordingStream();
+        recording.enable(PINNED_EVENT)
+            .withThreshold(Duration.ofMillis(thresholdMs))
+            .withStackTrace();
+        recording.onEvent(PINNED_EVENT, this::onPinned);
+        recording.startAsync();
+    }
+
+    @Override
+    public synchronized String stopPinningMonitor()
+    {
+        if (recording != null)
+        {
+            recording.close();
+            recording = null;
+        }
+
+        List<Map.Entry<String, PinnedLocation>> entries
+            = new ArrayList<>(locations.entrySet());
+        entries.sort((a, b) -> Long.compare(
+            b.getValue().totalNanos.get(), a.getValue().totalNanos.get()));
+
+        StringBuilder report = new StringBuilder();
+        report.append("Virtual thread pinning report : ")
+            .append(entries.size())
+            .append(" locations");
+        for (int i = 0;
+                i < entries.size() && i < MAX_REPORTED_LOCATIONS;
+                i++)
+        {
+            PinnedLocation location = entries.get(i).getValue();
+            report.append(String.format("%n  %6d pinned, total %6dms,"
+                    + " max %5dms : %s",
+                    location.count.get(),
+                    TimeUnit.NANOSECONDS.toMillis(location.totalNanos.get()),
+                    TimeUnit.NANOSECONDS.toMillis(location.maxNanos.get()),
+                    entries.get(i).getKey()));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Record a <tt>jdk.VirtualThreadPinned</tt> event.
+     *
+     * @param event the event.
+     */
+    private void onPinned(RecordedEvent event)
+    {
+        locations
+            .computeIfAbsent(
+                getLocation(event.getStackTrace()),
+                k -> new PinnedLocation())
+            .add(event.getDuration().toNanos());
+    }
+
+    /**
+     * Get the location of a pinning : the first frame of the Hammer code in
+     * its stack trace, or its top frame if there is none.
+     *
+     * @param stackTrace the stack trace of the pinning.
+     * @return the location of the pinning.
+     */
+    private static String getLocation(RecordedStackTrace stackTrace)
+    {
+        if (stackTrace == null || stackTrace.getFrames().isEmpty())
+            return "<unknown>";
+
+        List<RecordedFrame> frames = stackTrace.getFrames();
+        for (RecordedFrame frame : frames)
+        {
+            String type = frame.getMethod().getType().getName();
+            for (String hammerPackage : HAMMER_PACKAGES)
+            {
+                if (type.startsWith(hammerPackage))
+                    return format(frame);
+            }
+        }
+        return format(frames.get(0));
+    }
+
+    /**
+     * Format a stack frame as <tt>class.method:line</tt>.
+     *
+     * @param frame the frame.
+     * @return the formatted frame.
+     */
+    private static String format(RecordedFrame frame)
+    {
+        return frame.getMethod().getType().getName()
+            + '.' + frame.getMethod().getName()
+            + ':' + frame.getLineNumber();
+    }
+
+    /**
+     * The pinning recorded at a location.
+     */
+    private static class PinnedLocation
+    {
+        /**
+         * The number of times a virtual thread was pinned.
+         */
+        final AtomicLong count = new AtomicLong();
+
+        /**
+         * The total time (in nanoseconds) virtual threads were pinned.
+         */
+        final AtomicLong totalNanos = new AtomicLong();
+
+        /**
+         * The longest time (in nanoseconds) a virtual thread was pinned.
+         */
+        final AtomicLong maxNanos = new AtomicLong();
+
+        /**
+         * Record a pinning.
+         *
+         * @param nanos the duration of the pinning, in nanoseconds.
+         */
+        void add(long nanos)
+        {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+}